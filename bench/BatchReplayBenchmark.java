@@ -0,0 +1,191 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Equivalence check and benchmark of the memory-mapped batch replay.
+ *
+ * <p>The check replays files full of awkward input through MappedCommandLexer with tiny windows,
+ * so that lines cross window boundaries and outgrow windows, and compares the responses byte for
+ * byte with those of CommandLexer reading the same file through an InputStreamReader, as the
+ * console reads standard input. The input mixes valid and invalid commands with CR LF and lone CR
+ * line ends, Unicode line separators and whitespace, malformed bytes, blank and very long lines,
+ * and ends without a line separator. The benchmark compares the throughput of both lexers on a
+ * large file of valid commands.</p>
+ *
+ * <p>Run with: {@code javac -d out src/*.java bench/*.java && java -cp out BatchReplayBenchmark}</p>
+ */
+public final class BatchReplayBenchmark {
+    private static final long SEED = 7;  // Seed of the generated input
+    private static final int CHECK_LINES = 20_000;  // Lines of the awkward input
+    private static final int[] CHECK_WINDOWS = {1, 7, 64, 4096};  // Window sizes of the check
+    private static final int BENCH_LINES = 2_000_000;  // Lines of the benchmark input
+    private static final String[] PIECES = {
+        "TurnOn Light 1", "TurnOff Light 2", "SetAngle Camera 4 -30", "SetTemperature Heater 7 25",
+        "SetColor Light 3 WHITE", "SetBrightness Light 0 HIGH", "StartRecording Camera 5", "TurnOn * *",
+        "TurnOff Heater 6-9", "DisplayAllStatus", "", "   ", "TurnOn  Light 1", "TurnOn Light 1 ", "nonsense",
+        "TurnOn\u3000Light 2", "SetColor Light 3 GR\u00DCN", "TurnOn Light \u0661", "Stats\u2028DisplayAllStatus",
+        "TurnOff Light 0\u0085TurnOn Light 0", "TurnOn Light 3\u2029", "TurnOn Light \u2007 3", "\u00A0TurnOn Light 3"
+    };
+    private static final String[] SEPARATORS = {"\n", "\r\n", "\r", "\n\n", "\r\r\n"};
+
+    private BatchReplayBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        // Battery levels follow the clock, so stop it for responses of different runs to compare equal
+        Battery.setClock(Clock.fixed(Instant.now(), ZoneOffset.UTC));
+        Path directory = Files.createTempDirectory("replay");
+        Path awkward = directory.resolve("awkward.txt");
+        Files.write(awkward, awkwardInput());
+        for (Charset charset : new Charset[] {StandardCharsets.UTF_8, StandardCharsets.ISO_8859_1,
+            StandardCharsets.US_ASCII}) {
+            byte[] expected = replayReader(awkward, charset);
+            for (int window : CHECK_WINDOWS) {
+                byte[] actual = replayMapped(awkward, charset, window);
+                Bench.check("mapped replay equals stdin replay, " + charset + ", window " + window,
+                        Arrays.equals(expected, actual));
+            }
+        }
+
+        Path large = directory.resolve("large.txt");
+        Files.write(large, largeInput());
+        long bytes = Files.size(large);
+        System.out.printf("input: %d lines, %.1f MB%n", BENCH_LINES, bytes / 1048576.0);
+        Bench.run("stdin lexer (InputStreamReader)", BENCH_LINES,
+                () -> lines(large, false));
+        Bench.run("mapped lexer", BENCH_LINES, () -> lines(large, true));
+        Bench.run("replay, stdin lexer", BENCH_LINES, () -> replay(large, false));
+        Bench.run("replay, mapped lexer", BENCH_LINES, () -> replay(large, true));
+    }
+
+    /**
+     * Generates the awkward input of the check.
+     *
+     * @return Bytes of the input.
+     */
+    private static byte[] awkwardInput() {
+        Random random = new Random(SEED);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (int i = 0; i < CHECK_LINES; i++) {
+            int kind = random.nextInt(100);
+            if (kind == 0) {
+                bytes.writeBytes(("TurnOn Light " + "1".repeat(5000)).getBytes(StandardCharsets.UTF_8));
+            } else if (kind == 1) {
+                bytes.writeBytes(new byte[] {'T', 'u', 'r', 'n', 'O', 'n', (byte) 0xE2, (byte) 0x80, ' ', 'L'});
+            } else if (kind == 2) {
+                bytes.writeBytes(new byte[] {(byte) 0xC3, 'S', 't', 'a', 't', 's', (byte) 0x85});
+            } else {
+                bytes.writeBytes(PIECES[random.nextInt(PIECES.length)].getBytes(StandardCharsets.UTF_8));
+            }
+            if (i < CHECK_LINES - 1) {
+                bytes.writeBytes(SEPARATORS[random.nextInt(SEPARATORS.length)].getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Generates the large input of the benchmark.
+     *
+     * @return Bytes of the input.
+     */
+    private static byte[] largeInput() {
+        Random random = new Random(SEED);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < BENCH_LINES; i++) {
+            int id = random.nextInt(10);
+            text.append(switch (id) {
+                case 0, 1, 2, 3 -> random.nextBoolean() ? "TurnOn Light " + id : "SetColor Light " + id + " WHITE";
+                case 4, 5 -> "SetAngle Camera " + id + " " + (random.nextInt(121) - 60);
+                default -> "SetTemperature Heater " + id + " " + (15 + random.nextInt(16));
+            }).append('\n');
+        }
+        return text.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Replays a file through CommandLexer, as the console does with standard input.
+     *
+     * @param file    Command file.
+     * @param charset Charset of the reader.
+     * @return Responses.
+     * @throws IOException If reading fails.
+     */
+    private static byte[] replayReader(Path file, Charset charset) throws IOException {
+        ByteArrayOutputStream responses = new ByteArrayOutputStream();
+        ResponseWriter out = new ResponseWriter(responses);
+        new CommandDispatcher(Bench.defaultDevices(), out).run(new CommandLexer(
+                new InputStreamReader(Files.newInputStream(file), charset)));
+        return responses.toByteArray();
+    }
+
+    /**
+     * Replays a file through MappedCommandLexer.
+     *
+     * @param file    Command file.
+     * @param charset Charset of the file.
+     * @param window  Bytes mapped at a time.
+     * @return Responses.
+     * @throws IOException If reading fails.
+     */
+    private static byte[] replayMapped(Path file, Charset charset, int window) throws IOException {
+        ByteArrayOutputStream responses = new ByteArrayOutputStream();
+        ResponseWriter out = new ResponseWriter(responses);
+        try (MappedCommandLexer lexer = new MappedCommandLexer(file, charset, window)) {
+            new CommandDispatcher(Bench.defaultDevices(), out).run(lexer);
+        }
+        return responses.toByteArray();
+    }
+
+    /**
+     * Reads all lines of a file and counts their tokens.
+     *
+     * @param file   Command file.
+     * @param mapped Whether to use MappedCommandLexer instead of CommandLexer.
+     * @return Number of tokens.
+     */
+    private static long lines(Path file, boolean mapped) {
+        try (MappedCommandLexer mappedLexer = mapped ? new MappedCommandLexer(file) : null) {
+            CommandInput input = mapped ? mappedLexer
+                    : new CommandLexer(new InputStreamReader(Files.newInputStream(file)));
+            long tokens = 0;
+            while (input.nextLine()) {
+                tokens += input.tokenCount();
+            }
+            return tokens;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Replays a file with the default devices, discarding the responses.
+     *
+     * @param file   Command file.
+     * @param mapped Whether to use MappedCommandLexer instead of CommandLexer.
+     * @return Number of devices, to be consumed by the harness.
+     */
+    private static long replay(Path file, boolean mapped) {
+        try (MappedCommandLexer mappedLexer = mapped ? new MappedCommandLexer(file) : null) {
+            CommandInput input = mapped ? mappedLexer
+                    : new CommandLexer(new InputStreamReader(Files.newInputStream(file)));
+            DeviceRegistry registry = Bench.defaultDevices();
+            new CommandDispatcher(registry, new ResponseWriter(OutputStream.nullOutputStream())).run(input);
+            return registry.size();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,281 @@
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Check and benchmark of the lazily computed battery levels and the low battery events.
+ *
+ * <p>Verifies with a clock driven by the check that batteries drain, charge and keep their level
+ * as modelled, for standalone devices and for views of a columnar store, that the status line
+ * follows the level, that a store keeps the anchors of its chargeable devices while devices are added
+ * and removed in any order, and that the monitor reports a draining battery exactly when it becomes low.
+ * Then shows that time passing costs nothing and a transition costs the same whether a registry
+ * holds a thousand or a million devices, next to what an eager tick updating every battery costs.</p>
+ *
+ * <p>Run with: {@code javac -d out src/*.java bench/*.java && java -cp out BatteryBenchmark}</p>
+ */
+public final class BatteryBenchmark {
+    private static final long START_MILLIS = 1_700_000_000_000L;  // Time of the clock of the checks
+    private static final long HOUR_MILLIS = 3_600_000;
+    private static final int[] SIZES = {1_000, 1_000_000};  // Devices of the benchmark registries
+    private static final int TRANSITIONS = 1_000_000;  // Transitions per round
+    private static final int POLLS = 10_000;  // Polls of the monitor per round
+    private static final int READS = 1_000_000;  // Reads of a battery level per round
+    private static long now;  // Current time of the clock of the checks
+
+    private BatteryBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        checkModel(new DeviceRegistry(), "device objects");
+        checkModel(new DeviceRegistry(new DeviceStateStore(16)), "columnar store");
+        checkStatusLine();
+        checkStoreAnchors();
+        checkLowBatteryEvents(new DeviceRegistry(), "device objects");
+        checkLowBatteryEvents(new DeviceRegistry(new DeviceStateStore(16)), "columnar store");
+        Battery.setClock(Clock.systemUTC());
+
+        for (int size : SIZES) {
+            DeviceRegistry registry = populate(new DeviceRegistry(), size);
+            DeviceEventBus bus = RuleEngine.newEventBus();
+            registry.setEventBus(bus);
+            BatteryMonitor monitor = new BatteryMonitor(registry, bus);
+            Bench.run("poll of the monitor, nothing changed, " + size + " devices", POLLS, () -> {
+                long published = 0;
+                for (int i = 0; i < POLLS; i++) {
+                    published += monitor.poll();
+                }
+                return published;
+            });
+            Bench.run("turnOn/turnOff with the monitor, " + size + " devices", TRANSITIONS,
+                    () -> toggle(registry, monitor, size));
+            DeviceRegistry plain = populate(new DeviceRegistry(), size);
+            Bench.run("turnOn/turnOff without a bus, " + size + " devices", TRANSITIONS,
+                    () -> toggle(plain, null, size));
+            Chargeable light = (Chargeable) registry.get(size / 6 * 3);
+            Bench.run("read a battery level, " + size + " devices", READS, () -> {
+                long sum = 0;
+                for (int i = 0; i < READS; i++) {
+                    sum += light.getBatteryLevel();
+                }
+                return sum;
+            });
+            int[] levels = new int[size];
+            Bench.run("eager tick of every battery, " + size + " devices", 1, () -> tick(registry, levels));
+        }
+    }
+
+    /**
+     * Checks the levels of a light and a camera through a sequence of transitions.
+     *
+     * @param registry Empty registry.
+     * @param name     Description of the registry.
+     */
+    private static void checkModel(DeviceRegistry registry, String name) {
+        setTime(START_MILLIS);
+        registry.add(0, new Light(Status.ON, false, Brightnesslevel.LOW, LightColor.WHITE));
+        registry.add(1, new Camera(Status.ON, false, true, 0));
+        Light light = (Light) registry.get(0);
+        Camera camera = (Camera) registry.get(1);
+        boolean ok = light.getBatteryLevel() == Battery.FULL_LEVEL;
+        setTime(now + HOUR_MILLIS);
+        ok &= light.getBatteryLevel() == Battery.FULL_LEVEL - Battery.LIGHT_DRAIN_PER_HOUR;
+        ok &= camera.getBatteryLevel()
+                == Battery.FULL_LEVEL - Battery.CAMERA_DRAIN_PER_HOUR - Battery.RECORDING_DRAIN_PER_HOUR;
+        light.turnOff();
+        camera.stopRecording();
+        setTime(now + HOUR_MILLIS);
+        ok &= light.getBatteryLevel() == Battery.FULL_LEVEL - Battery.LIGHT_DRAIN_PER_HOUR;
+        ok &= camera.getBatteryLevel() == Battery.FULL_LEVEL - 2 * Battery.CAMERA_DRAIN_PER_HOUR
+                - Battery.RECORDING_DRAIN_PER_HOUR;
+        light.startCharging();
+        setTime(now + HOUR_MILLIS / 10);
+        ok &= light.getBatteryLevel() == Battery.FULL_LEVEL - Battery.LIGHT_DRAIN_PER_HOUR
+                + Battery.CHARGE_PER_HOUR / 10;
+        setTime(now + HOUR_MILLIS);
+        ok &= light.getBatteryLevel() == Battery.FULL_LEVEL;
+        camera.turnOff();
+        int cameraLevel = camera.getBatteryLevel();
+        setTime(now + 100 * HOUR_MILLIS);
+        ok &= camera.getBatteryLevel() == cameraLevel && !camera.isBatteryLow();
+
+        // A device copied into another registry keeps its level and rate
+        camera.turnOn();
+        DeviceRegistry copy = new DeviceRegistry(new DeviceStateStore(16));
+        copy.add(1, camera);
+        setTime(now + HOUR_MILLIS);
+        ok &= ((Camera) copy.get(1)).getBatteryLevel() == camera.getBatteryLevel()
+                && camera.getBatteryLevel() == cameraLevel - Battery.CAMERA_DRAIN_PER_HOUR;
+        setTime(now + 100 * HOUR_MILLIS);
+        ok &= camera.getBatteryLevel() == 0 && camera.isBatteryLow();
+        Bench.check("batteries drain, charge and hold as modelled, " + name, ok);
+    }
+
+    /**
+     * Checks that the cached status line follows the battery level while the state stays unchanged.
+     */
+    private static void checkStatusLine() {
+        setTime(START_MILLIS);
+        Light light = new Light(Status.ON, false, Brightnesslevel.LOW, LightColor.WHITE);
+        boolean ok = light.displayStatus().contains("the battery level is 100%,");
+        setTime(now + HOUR_MILLIS);
+        ok &= light.displayStatus().contains("the battery level is 90%,");
+        ok &= light.displayStatus() == light.displayStatus();
+        Bench.check("the status line shows the current battery level", ok);
+    }
+
+    /**
+     * Checks that a store keeps the anchor of every chargeable device while devices of all types
+     * are added and removed in scrambled order, sharing the pages of their bitset words.
+     */
+    private static void checkStoreAnchors() {
+        int count = 200;
+        SmartDevice[] devices = new SmartDevice[count];
+        for (int id = 0; id < count; id++) {
+            setTime(START_MILLIS);
+            devices[id] = switch (id % 3) {
+                case 0 -> new Light(Status.ON, false, Brightnesslevel.LOW, LightColor.WHITE);
+                case 1 -> new Camera(Status.ON, false, id % 2 == 0, 0);
+                default -> new Heater(Status.ON, 20);
+            };
+            // Drain each battery for a different time, so every device has its own anchor
+            setTime(START_MILLIS + id * HOUR_MILLIS / 100);
+            devices[id].turnOff();
+        }
+        DeviceStateStore store = new DeviceStateStore(16);
+        boolean ok = true;
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < count; i++) {
+                int id = (i * 7 + round) % count;  // 7 is coprime to the count, so every ID comes once
+                if (store.typeOf(id) == null) {
+                    store.add(id, devices[id]);
+                }
+            }
+            for (int id = 0; id < count; id++) {
+                ok &= !devices[id].getType().supports(Capability.CHARGEABLE)
+                        || store.getBatteryAnchor(id) == devices[id].getBatteryAnchor();
+            }
+            for (int id = round; id < count; id += 5) {
+                store.remove(id);
+            }
+            for (int id = 0; id < count; id++) {
+                ok &= store.typeOf(id) == null || !devices[id].getType().supports(Capability.CHARGEABLE)
+                        || store.getBatteryAnchor(id) == devices[id].getBatteryAnchor();
+            }
+        }
+        Bench.check("a store keeps the battery anchors while devices are added and removed", ok);
+    }
+
+    /**
+     * Checks that the monitor reports a draining battery once, when it becomes low, and no
+     * battery that stopped draining before.
+     *
+     * @param registry Empty registry.
+     * @param name     Description of the registry.
+     */
+    private static void checkLowBatteryEvents(DeviceRegistry registry, String name) {
+        setTime(START_MILLIS);
+        registry.add(0, new Light(Status.ON, false, Brightnesslevel.LOW, LightColor.WHITE));
+        registry.add(1, new Light(Status.ON, false, Brightnesslevel.LOW, LightColor.WHITE));
+        registry.add(2, new Camera(Status.OFF, false, false, 0));
+        registry.add(3, new Heater(Status.ON, 20));
+        DeviceEventBus bus = RuleEngine.newEventBus();
+        registry.setEventBus(bus);
+        DeviceEventBus.Subscription subscription = bus.subscribe(OverflowPolicy.BLOCK);
+        List<String> events = new ArrayList<>();
+        DeviceEventBus.Handler collector = event -> {
+            if (event.getAttribute() == DeviceAttribute.BATTERY) {
+                events.add(event.toString());
+            }
+        };
+        BatteryMonitor monitor = new BatteryMonitor(registry, bus);
+        boolean ok = monitor.pendingAlarms() == 2;
+
+        // The light drains 10% per hour, so it shows 15% once it is below 16%, after 8.4001 hours
+        long lowAt = START_MILLIS + Battery.millisUntil(registry.get(0).getBatteryAnchor(),
+                -Battery.LIGHT_DRAIN_PER_HOUR, Battery.LOW_LEVEL);
+        ok &= lowAt == START_MILLIS + 84_001 * HOUR_MILLIS / 10_000;
+        setTime(START_MILLIS + 4 * HOUR_MILLIS);
+        registry.get(1).turnOff();
+        ((Camera) registry.get(2)).startRecording();
+        ok &= monitor.poll() == 0 && monitor.pendingAlarms() == 2;
+        setTime(lowAt - 1);
+        ok &= monitor.poll() == 0 && ((Chargeable) registry.get(0)).getBatteryLevel() == Battery.LOW_LEVEL + 1;
+        setTime(lowAt);
+        ok &= monitor.poll() == 1;
+        setTime(START_MILLIS + 100 * HOUR_MILLIS);
+        ok &= monitor.poll() == 1 && monitor.poll() == 0 && monitor.reportedCount() == 2;
+        subscription.poll(collector);
+        ok &= events.equals(List.of("Light 0 BATTERY 15", "Camera 2 BATTERY 0"));
+        Bench.check("low batteries are reported once, when they become low, " + name, ok);
+    }
+
+    /**
+     * Turns every device of a stride on or off and lets the monitor follow.
+     *
+     * @param registry Devices to change.
+     * @param monitor  Monitor of the registry, or null.
+     * @param size     Number of devices.
+     * @return Number of effective transitions.
+     */
+    private static long toggle(DeviceRegistry registry, BatteryMonitor monitor, int size) {
+        long changed = 0;
+        for (int i = 0; i < TRANSITIONS; i++) {
+            SmartDevice device = registry.get((int) ((i * 0x9E3779B1L) % size));
+            changed += (device.isOn() ? device.turnOff() : device.turnOn()) ? 1 : 0;
+            if (monitor != null && (i & 1023) == 1023) {
+                monitor.poll();
+            }
+        }
+        return monitor != null ? changed + monitor.poll() : changed;
+    }
+
+    /**
+     * Updates the stored level of every battery, as a periodic tick of an eager model would.
+     *
+     * @param registry Devices to update.
+     * @param levels   Stored level of every device.
+     * @return Sum of the levels.
+     */
+    private static long tick(DeviceRegistry registry, int[] levels) {
+        long sum = 0;
+        for (int id = registry.nextId(0); id >= 0; id = registry.nextId(id + 1)) {
+            SmartDevice device = registry.get(id);
+            if (device instanceof Chargeable chargeable) {
+                levels[id] = chargeable.getBatteryLevel();
+                sum += levels[id];
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Adds lights, cameras and heaters in turn under the IDs 0 to count - 1, all of them on.
+     *
+     * @param registry Empty registry.
+     * @param count    Number of devices.
+     * @return The registry.
+     */
+    private static DeviceRegistry populate(DeviceRegistry registry, int count) {
+        for (int id = 0; id < count; id++) {
+            registry.add(id, switch (id % 3) {
+                case 0 -> new Light(Status.ON, false, Brightnesslevel.LOW, LightColor.WHITE);
+                case 1 -> new Camera(Status.ON, false, id % 2 == 0, 0);
+                default -> new Heater(Status.ON, 20);
+            });
+        }
+        return registry;
+    }
+
+    /**
+     * Sets the clock of the batteries to a fixed time.
+     *
+     * @param millis Time in milliseconds since the epoch.
+     */
+    private static void setTime(long millis) {
+        now = millis;
+        Battery.setClock(Clock.fixed(Instant.ofEpochMilli(millis), ZoneOffset.UTC));
+    }
+}
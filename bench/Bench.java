@@ -0,0 +1,161 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.LongSupplier;
+
+/**
+ * Minimal timing harness for the plain Java microbenchmarks in this directory.
+ *
+ * <p>Every run is also recorded, so that a benchmark can write all its results as JSON for
+ * tracking them over time.</p>
+ */
+public final class Bench {
+    private static final int WARMUP_ROUNDS = 5;  // Rounds run before measuring
+    private static final int MEASURED_ROUNDS = 10;  // Rounds that are measured
+    private static final List<Result> RESULTS = new ArrayList<>();  // Results recorded so far
+    private static volatile long sink;  // Keeps results alive so the JIT cannot drop the work
+
+    private Bench() {
+    }
+
+    /**
+     * Result of one benchmark.
+     *
+     * @param name       Name of the benchmark.
+     * @param operations Number of operations per round.
+     * @param rounds     Nanoseconds per operation of every measured round.
+     */
+    private record Result(String name, long operations, double[] rounds) {
+    }
+
+    /**
+     * Runs a workload repeatedly and prints the best time per operation.
+     *
+     * @param name       Name printed next to the result.
+     * @param operations Number of operations performed by one call of the workload.
+     * @param workload   Workload to time; its result is consumed to defeat dead code elimination.
+     * @return Best observed nanoseconds per operation.
+     */
+    public static double run(String name, long operations, LongSupplier workload) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            sink += workload.getAsLong();
+        }
+        double[] rounds = new double[MEASURED_ROUNDS];
+        double best = Double.MAX_VALUE;
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            long start = System.nanoTime();
+            sink += workload.getAsLong();
+            rounds[i] = (double) (System.nanoTime() - start) / operations;
+            best = Math.min(best, rounds[i]);
+        }
+        RESULTS.add(new Result(name, operations, rounds));
+        System.out.printf("%-56s %12.3f ns/op%n", name, best);
+        return best;
+    }
+
+    /**
+     * Prints the result of a check and exits if it failed.
+     *
+     * @param name Description of the check.
+     * @param ok   Whether the check passed.
+     */
+    public static void check(String name, boolean ok) {
+        System.out.println((ok ? "PASS " : "FAIL ") + name);
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Creates the default devices of Main.
+     *
+     * @return A registry with four lights, two cameras and four heaters.
+     */
+    public static DeviceRegistry defaultDevices() {
+        DeviceRegistry registry = new DeviceRegistry();
+        for (int id = 0; id < 10; id++) {
+            registry.add(id, id < 4 ? new Light(Status.ON, false, Brightnesslevel.LOW, LightColor.YELLOW)
+                    : id < 6 ? new Camera(Status.ON, false, false, Main.INITIAL_CAMERA_ANGLE)
+                    : new Heater(Status.ON, Main.INITIAL_HEATER_TEMP));
+        }
+        return registry;
+    }
+
+    /**
+     * Adds lights, cameras and heaters in turn to an empty registry.
+     *
+     * @param registry Registry to fill.
+     * @param devices  Number of devices to add, with IDs from 0.
+     * @return The registry.
+     */
+    public static DeviceRegistry devicesInTurn(DeviceRegistry registry, int devices) {
+        for (int id = 0; id < devices; id++) {
+            registry.add(id, id % 3 == 0 ? new Light(Status.ON, false, Brightnesslevel.LOW, LightColor.YELLOW)
+                    : id % 3 == 1 ? new Camera(Status.ON, false, false, Main.INITIAL_CAMERA_ANGLE)
+                    : new Heater(Status.ON, Main.INITIAL_HEATER_TEMP));
+        }
+        return registry;
+    }
+
+    /**
+     * Writes every result recorded so far as a JSON document, with the best, mean and every
+     * measured round in nanoseconds per operation, and the JVM that produced them.
+     *
+     * @param file  File to write, replaced if it exists.
+     * @param suite Name of the benchmark suite.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void writeJson(Path file, String suite) throws IOException {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"suite\": ").append(quote(suite))
+                .append(",\n  \"java\": ").append(quote(System.getProperty("java.vm.name") + " "
+                        + System.getProperty("java.runtime.version")))
+                .append(",\n  \"processors\": ").append(Runtime.getRuntime().availableProcessors())
+                .append(",\n  \"warmupRounds\": ").append(WARMUP_ROUNDS)
+                .append(",\n  \"measuredRounds\": ").append(MEASURED_ROUNDS)
+                .append(",\n  \"unit\": \"ns/op\",\n  \"results\": [");
+        for (int i = 0; i < RESULTS.size(); i++) {
+            Result result = RESULTS.get(i);
+            double best = Double.MAX_VALUE;
+            double sum = 0;
+            StringBuilder rounds = new StringBuilder();
+            for (double round : result.rounds()) {
+                best = Math.min(best, round);
+                sum += round;
+                rounds.append(rounds.length() == 0 ? "" : ", ").append(number(round));
+            }
+            json.append(i == 0 ? "\n" : ",\n")
+                    .append("    {\"name\": ").append(quote(result.name()))
+                    .append(", \"operations\": ").append(result.operations())
+                    .append(", \"best\": ").append(number(best))
+                    .append(", \"mean\": ").append(number(sum / result.rounds().length))
+                    .append(", \"rounds\": [").append(rounds).append("]}");
+        }
+        json.append("\n  ]\n}\n");
+        Files.writeString(file, json, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Formats a number of nanoseconds for JSON.
+     *
+     * @param value Nanoseconds per operation.
+     * @return The value with three decimals.
+     */
+    private static String number(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    /**
+     * Quotes a string for JSON.
+     *
+     * @param text Text without control characters.
+     * @return The quoted text.
+     */
+    private static String quote(String text) {
+        return '"' + text.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+}
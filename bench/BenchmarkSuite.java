@@ -0,0 +1,286 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Regression suite covering the command path and the devices end to end, writing its results as JSON.
+ *
+ * <p>Measures parsing of every verb, handling of a mixed command script against a million devices,
+ * displayStatus() of every device type with a cached and a just changed status line, DisplayAllStatus
+ * at 10, 10k and 1M devices, and turnOn/turnOff contended by several threads on a few shared devices.
+ * Inputs are generated from a fixed seed, so every run measures the same work.</p>
+ *
+ * <p>Run with: {@code bench/run-suite.sh [results.json]}, or
+ * {@code javac -d out src/*.java bench/*.java && java -cp out BenchmarkSuite [results.json]}</p>
+ */
+public final class BenchmarkSuite {
+    private static final String DEFAULT_RESULTS = "bench-results.json";  // Results file if none is given
+    private static final long SEED = 42;  // Seed of every generated input
+    private static final int PARSE_LINES = 100_000;  // Lines per parsing round
+    private static final int LARGE_DEVICES = 1_000_000;  // Devices of the large registry
+    private static final int SCRIPT_LINES = 200_000;  // Commands per handling round
+    private static final int STATUS_DEVICES = 1024;  // Devices per type in the displayStatus() benchmark
+    private static final int[] DUMP_SIZES = {10, 10_000, 1_000_000};  // Registry sizes for DisplayAllStatus
+    private static final int SHARED_DEVICES = 16;  // Devices shared by the contending threads
+    private static final int CONTENDED_OPERATIONS = 500_000;  // Transitions per thread and round
+    private static final int THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+    private static final String[] PARSE_LINES_BY_VERB = {
+        "end", "DisplayAllStatus", "TurnOn Light 0", "TurnOff Camera 4", "StartCharging Light 2",
+        "StopCharging Camera 5", "SetTemperature Heater 7 25", "SetBrightness Light 1 HIGH",
+        "SetColor Light 3 WHITE", "SetAngle Camera 4 -30", "StartRecording Camera 5", "StopRecording Camera 4",
+        "Stats", "After 90m TurnOff Heater 6", "At 23:00 StopRecording Camera 4",
+        "Every 1h SetTemperature Heater 7 22", "Daily 23:00 SetBrightness Light * LOW", "ListSchedules",
+        "CancelSchedule 3", "When Camera * Recording = true TurnOn Light 0-3", "ListRules", "RemoveRule 2",
+        "Find Light * Status = ON and Brightness = HIGH and Color = YELLOW", "Count Heater * Status = OFF",
+        "RoomTemperature Heater 6", "Simulate 90m",
+        "Transaction TurnOn Light 0-3 and SetColor Light 0-3 WHITE and StartRecording Camera 4"
+    };
+
+    private BenchmarkSuite() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path results = Path.of(args.length > 0 ? args[0] : DEFAULT_RESULTS);
+        for (Verb verb : Verb.values()) {
+            String line = PARSE_LINES_BY_VERB[verb.ordinal()];
+            String script = (line + '\n').repeat(PARSE_LINES);
+            Bench.run("parse " + verb.getKeyword(), PARSE_LINES, () -> parse(script, verb));
+        }
+
+        String script = commandScript();
+        for (boolean columnar : new boolean[] {false, true}) {
+            DeviceRegistry registry = populate(columnar, LARGE_DEVICES);
+            Bench.run("handle mixed commands, 1M devices" + suffix(columnar), SCRIPT_LINES,
+                    () -> handle(registry, script));
+        }
+
+        DeviceRegistry statusDevices = populate(false, STATUS_DEVICES * 3);
+        for (DeviceType type : DeviceType.values()) {
+            int first = type.ordinal();
+            Bench.run("displayStatus " + type.getDisplayName() + ", cached", STATUS_DEVICES,
+                    () -> displayStatus(statusDevices, first, false));
+            Bench.run("displayStatus " + type.getDisplayName() + ", changed", STATUS_DEVICES,
+                    () -> displayStatus(statusDevices, first, true));
+        }
+
+        Command displayAll = parsed("DisplayAllStatus");
+        for (int size : DUMP_SIZES) {
+            for (boolean columnar : new boolean[] {false, true}) {
+                DeviceRegistry registry = populate(columnar, size);
+                ResponseWriter out = new ResponseWriter(OutputStream.nullOutputStream());
+                CommandDispatcher dispatcher = new CommandDispatcher(registry, out);
+                Bench.run("DisplayAllStatus, " + size + " devices" + suffix(columnar), size,
+                        () -> dispatchAndFlush(dispatcher, displayAll, out));
+            }
+        }
+
+        DeviceRegistry shared = populate(false, SHARED_DEVICES);
+        Bench.run("contended turnOn/turnOff, " + THREADS + " threads", (long) THREADS * CONTENDED_OPERATIONS,
+                () -> contend(shared));
+
+        Bench.writeJson(results, "BenchmarkSuite");
+        System.out.println("Results written to " + results.toAbsolutePath());
+    }
+
+    /**
+     * Parses a script of identical lines.
+     *
+     * @param script Command script.
+     * @param verb   Verb of every line of the script.
+     * @return Number of lines parsed as the verb.
+     */
+    private static long parse(String script, Verb verb) {
+        try {
+            CommandLexer lexer = new CommandLexer(new StringReader(script));
+            Command command = new Command();
+            long parsed = 0;
+            while (lexer.nextLine()) {
+                if (CommandParser.parse(lexer, command) && command.getVerb() == verb) {
+                    parsed++;
+                }
+            }
+            return parsed;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Generates a script of valid commands for random devices of the large registry, every verb
+     * with a device being equally likely.
+     *
+     * @return Command script.
+     */
+    private static String commandScript() {
+        Random random = new Random(SEED);
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < SCRIPT_LINES; i++) {
+            int id = random.nextInt(LARGE_DEVICES);
+            String line = switch (DeviceType.values()[id % 3]) {
+                case LIGHT -> switch (random.nextInt(5)) {
+                    case 0 -> "TurnOn Light " + id;
+                    case 1 -> "TurnOff Light " + id;
+                    case 2 -> (random.nextBoolean() ? "StartCharging Light " : "StopCharging Light ") + id;
+                    case 3 -> "SetBrightness Light " + id + " " + Brightnesslevel.values()[random.nextInt(3)];
+                    default -> "SetColor Light " + id + " " + LightColor.values()[random.nextInt(2)];
+                };
+                case CAMERA -> switch (random.nextInt(4)) {
+                    case 0 -> (random.nextBoolean() ? "TurnOn Camera " : "TurnOff Camera ") + id;
+                    case 1 -> (random.nextBoolean() ? "StartCharging Camera " : "StopCharging Camera ") + id;
+                    case 2 -> (random.nextBoolean() ? "StartRecording Camera " : "StopRecording Camera ") + id;
+                    default -> "SetAngle Camera " + id + " " + (random.nextInt(121) - 60);
+                };
+                case HEATER -> random.nextInt(3) == 0
+                        ? (random.nextBoolean() ? "TurnOn Heater " : "TurnOff Heater ") + id
+                        : "SetTemperature Heater " + id + " " + (15 + random.nextInt(16));
+            };
+            script.append(line).append('\n');
+        }
+        return script.toString();
+    }
+
+    /**
+     * Lexes, parses and executes a command script, discarding the responses.
+     *
+     * @param registry Devices the commands apply to.
+     * @param script   Command script.
+     * @return Number of devices, to be consumed by the harness.
+     */
+    private static long handle(DeviceRegistry registry, String script) {
+        try {
+            CommandDispatcher dispatcher = new CommandDispatcher(registry,
+                    new ResponseWriter(OutputStream.nullOutputStream()));
+            dispatcher.run(new CommandLexer(new StringReader(script)));
+            return registry.size();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Gets the status line of every device of one type, optionally changing the device first so
+     * that the line has to be rendered again.
+     *
+     * @param registry Lights, cameras and heaters in turn.
+     * @param first    ID of the first device of the type.
+     * @param change   Whether to change every device before reading its status line.
+     * @return Total length of the status lines.
+     */
+    private static long displayStatus(DeviceRegistry registry, int first, boolean change) {
+        long length = 0;
+        for (int id = first; id < STATUS_DEVICES * 3; id += 3) {
+            SmartDevice device = registry.get(id);
+            if (change && !device.turnOff()) {
+                device.turnOn();
+            }
+            length += device.displayStatus().length();
+        }
+        return length;
+    }
+
+    /**
+     * Executes a command and flushes its responses.
+     *
+     * @param dispatcher Dispatcher writing to the output.
+     * @param command    Parsed command.
+     * @param out        Output of the dispatcher.
+     * @return 1, to be consumed by the harness.
+     */
+    private static long dispatchAndFlush(CommandDispatcher dispatcher, Command command, ResponseWriter out) {
+        try {
+            dispatcher.dispatch(command);
+            out.flush();
+            return 1;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Lets several threads toggle the power of the same few devices.
+     *
+     * @param registry Shared devices.
+     * @return Number of successful transitions.
+     */
+    private static long contend(DeviceRegistry registry) {
+        SmartDevice[] devices = new SmartDevice[SHARED_DEVICES];
+        for (int id = 0; id < SHARED_DEVICES; id++) {
+            devices[id] = registry.get(id);
+        }
+        long[] changed = new long[THREADS];
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            int thread = t;
+            threads[t] = new Thread(() -> {
+                long count = 0;
+                for (int i = 0; i < CONTENDED_OPERATIONS; i++) {
+                    SmartDevice device = devices[(i + thread) & (SHARED_DEVICES - 1)];
+                    if ((i & 1) == 0 ? device.turnOn() : device.turnOff()) {
+                        count++;
+                    }
+                }
+                changed[thread] = count;
+            });
+            threads[t].start();
+        }
+        long total = 0;
+        for (int t = 0; t < THREADS; t++) {
+            try {
+                threads[t].join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+            total += changed[t];
+        }
+        return total;
+    }
+
+    /**
+     * Parses a single command line.
+     *
+     * @param line Valid command line.
+     * @return The parsed command.
+     * @throws IOException If lexing fails.
+     */
+    private static Command parsed(String line) throws IOException {
+        CommandLexer lexer = new CommandLexer(new StringReader(line + '\n'));
+        Command command = new Command();
+        if (!lexer.nextLine() || !CommandParser.parse(lexer, command)) {
+            throw new IllegalArgumentException("Invalid command: " + line);
+        }
+        return command;
+    }
+
+    /**
+     * Creates a registry of lights, cameras and heaters in turn.
+     *
+     * @param columnar Whether to keep the device state in a columnar store.
+     * @param size     Number of devices.
+     * @return The registry.
+     */
+    private static DeviceRegistry populate(boolean columnar, int size) {
+        DeviceRegistry registry = columnar ? new DeviceRegistry(new DeviceStateStore(size)) : new DeviceRegistry();
+        for (int id = 0; id < size; id++) {
+            registry.add(id, switch (id % 3) {
+                case 0 -> new Light(Status.ON, false, Brightnesslevel.LOW, LightColor.YELLOW);
+                case 1 -> new Camera(Status.ON, false, false, Main.INITIAL_CAMERA_ANGLE);
+                default -> new Heater(Status.ON, Main.INITIAL_HEATER_TEMP);
+            });
+        }
+        return registry;
+    }
+
+    /**
+     * Names the representation of a registry in a benchmark name.
+     *
+     * @param columnar Whether the registry keeps the device state in a columnar store.
+     * @return Suffix of the benchmark name.
+     */
+    private static String suffix(boolean columnar) {
+        return columnar ? " (store views)" : " (standalone devices)";
+    }
+}
@@ -0,0 +1,320 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Check and benchmark of the binary command protocol against the text protocol.
+ *
+ * <p>Verifies that a script of commands covering every response code gets the same responses
+ * from the binary protocol, converted to text, as from the text protocol, on registries of both
+ * kinds, that requests convert to text and back unchanged, that malformed responses are rejected
+ * instead of crashing the decoder, and that a command server session switches to the binary
+ * protocol on its first byte. Then compares the throughput of a stream of single device commands
+ * executed from text lines and from binary requests.</p>
+ *
+ * <p>Run with: {@code javac -d out src/*.java bench/*.java && java -cp out BinaryProtocolBenchmark}</p>
+ */
+public final class BinaryProtocolBenchmark {
+    private static final String[] CHECK_LINES = {
+        "TurnOn Light 0", "TurnOff Light 0", "TurnOff Light 0", "TurnOn Light 0",
+        "StartCharging Light 1", "StartCharging Light 1", "StopCharging Light 1", "StopCharging Light 1",
+        "StartCharging Heater 6", "StartRecording Camera 3", "StartRecording Camera 3",
+        "StopRecording Camera 3", "StopRecording Camera 3", "SetAngle Camera 3 -30", "SetAngle Camera 3 -30",
+        "SetAngle Camera 3 61", "SetAngle Camera 3 -99999", "SetTemperature Heater 6 25",
+        "SetTemperature Heater 6 25", "SetTemperature Heater 6 14", "SetTemperature Heater 6 4000000000",
+        "SetColor Light 2 WHITE", "SetColor Light 2 WHITE", "SetColor Light 2 BLUE", "SetBrightness Light 2 HIGH",
+        "SetBrightness Light 2 HIGH", "SetBrightness Light 2 DIM", "SetTemperature Light 2 20",
+        "SetAngle Heater 7 10", "TurnOff Camera 4", "StartRecording Camera 4", "SetAngle Camera 4 10",
+        "TurnOn Camera 4", "TurnOn Light 42", "TurnOn Light 6", "TurnOn Lamp 0", "SetColor Lamp 0 WHITE"
+    };
+    private static final String[] BENCH_LINES = {
+        "TurnOn Light 0", "TurnOff Light 0", "SetTemperature Heater 7 25", "SetTemperature Heater 7 22",
+        "SetBrightness Light 1 HIGH", "SetColor Light 2 WHITE", "SetAngle Camera 4 -30",
+        "StartRecording Camera 5", "StopRecording Camera 5", "StartCharging Light 2", "StopCharging Light 2",
+        "TurnOn Light 9"
+    };
+    private static final int REPEAT = 20_000;  // Number of times the benchmark lines are repeated
+
+    private BinaryProtocolBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        checkResponses(new DeviceRegistry(), new DeviceRegistry(), "device objects");
+        checkResponses(new DeviceRegistry(new DeviceStateStore(16)), new DeviceRegistry(new DeviceStateStore(16)),
+                "columnar store");
+        checkRequests();
+        checkMalformedResponses();
+        checkServer();
+
+        StringBuilder script = new StringBuilder();
+        ByteBuffer requests = ByteBuffer.allocate(REPEAT * BENCH_LINES.length * BinaryProtocol.REQUEST_BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < REPEAT; i++) {
+            for (String line : BENCH_LINES) {
+                script.append(line).append('\n');
+                BinaryProtocol.encode(line, requests);
+            }
+        }
+        String text = script.toString();
+        byte[] binary = requests.array();
+        long commands = (long) REPEAT * BENCH_LINES.length;
+        DeviceRegistry registry = populate(new DeviceRegistry());
+        double textNanos = Bench.run("text lines, lex + parse + execute + format", commands, () -> {
+            CountingStream sink = new CountingStream();
+            try {
+                new CommandDispatcher(registry, new ResponseWriter(sink)).run(new CommandLexer(new StringReader(text)));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return sink.count;
+        });
+        double binaryNanos = Bench.run("binary requests, decode + execute + encode", commands, () -> {
+            CountingStream sink = new CountingStream();
+            try {
+                new CommandDispatcher(registry, new ResponseWriter(sink)).runBinary(new ByteArrayInputStream(binary),
+                        sink);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return sink.count;
+        });
+        System.out.printf("binary speedup: %.1fx, %d request bytes instead of %d%n", textNanos / binaryNanos,
+                binary.length, text.length());
+    }
+
+    /**
+     * Runs the check script through both protocols on identical registries and compares the responses.
+     *
+     * @param textRegistry   Empty registry for the text protocol.
+     * @param binaryRegistry Empty registry for the binary protocol.
+     * @param name           Description of the registries.
+     * @throws IOException If executing fails.
+     */
+    private static void checkResponses(DeviceRegistry textRegistry, DeviceRegistry binaryRegistry, String name)
+            throws IOException {
+        populate(textRegistry);
+        populate(binaryRegistry);
+        ByteArrayOutputStream textOut = new ByteArrayOutputStream();
+        ResponseWriter textWriter = new ResponseWriter(textOut);
+        CommandStats textStats = new CommandStats();
+        CommandDispatcher textDispatcher = new CommandDispatcher(textRegistry, textWriter);
+        textDispatcher.setStats(textStats);
+        textDispatcher.run(new CommandLexer(new StringReader(String.join("\n", CHECK_LINES))));
+
+        ByteArrayOutputStream binaryOut = new ByteArrayOutputStream();
+        ResponseWriter binaryWriter = new ResponseWriter(binaryOut);
+        CommandStats binaryStats = new CommandStats();
+        CommandDispatcher binaryDispatcher = new CommandDispatcher(binaryRegistry, binaryWriter);
+        binaryDispatcher.setStats(binaryStats);
+        ByteBuffer request = ByteBuffer.allocate(BinaryProtocol.REQUEST_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer response = ByteBuffer.allocate(BinaryProtocol.RESPONSE_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        Command command = new Command();
+        boolean ok = true;
+        boolean[] seen = new boolean[ResponseCode.values().length];
+        for (String line : CHECK_LINES) {
+            request.clear();
+            ok &= BinaryProtocol.encode(line, request);
+            request.flip();
+            response.clear();
+            ResponseCode code = binaryDispatcher.execute(request, response, command);
+            response.flip();
+            seen[code.ordinal()] = true;
+            ok &= BinaryProtocol.writeResponse(response, binaryWriter) == code;
+        }
+        binaryWriter.flush();
+        ok &= countsMatch(textStats, binaryStats);
+        request.clear();
+        request.put((byte) Verb.DISPLAY_ALL_STATUS.ordinal()).put((byte) 0).putShort((short) 0).putInt(0).flip();
+        response.clear();
+        seen[binaryDispatcher.execute(request, response, command).ordinal()] = true;
+        ok &= textOut.toString(StandardCharsets.UTF_8).equals(binaryOut.toString(StandardCharsets.UTF_8));
+        for (boolean covered : seen) {
+            ok &= covered;
+        }
+        Bench.check("binary responses match the text protocol for every response code, " + name, ok);
+    }
+
+    /**
+     * Compares the counts of two statistics.
+     *
+     * @param text   Statistics of the text protocol.
+     * @param binary Statistics of the binary protocol.
+     * @return Whether every verb has the same count of every outcome.
+     */
+    private static boolean countsMatch(CommandStats text, CommandStats binary) {
+        for (Verb verb : Verb.values()) {
+            for (CommandOutcome outcome : CommandOutcome.values()) {
+                if (text.getCount(verb, outcome) != binary.getCount(verb, outcome)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks that requests convert to text lines that encode to the same requests.
+     *
+     * @throws IOException If writing fails.
+     */
+    private static void checkRequests() throws IOException {
+        boolean ok = true;
+        for (String line : CHECK_LINES) {
+            ByteBuffer request = ByteBuffer.allocate(BinaryProtocol.REQUEST_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            BinaryProtocol.encode(line, request);
+            request.flip();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ResponseWriter out = new ResponseWriter(bytes);
+            ok &= BinaryProtocol.writeRequest(request, out);
+            out.flush();
+            ByteBuffer again = ByteBuffer.allocate(BinaryProtocol.REQUEST_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            ok &= BinaryProtocol.encode(bytes.toString(StandardCharsets.UTF_8).trim(), again);
+            ok &= Arrays.equals(request.array(), again.array());
+        }
+        ByteBuffer bulk = ByteBuffer.allocate(BinaryProtocol.REQUEST_BYTES);
+        ok &= !BinaryProtocol.encode("TurnOff Heater *", bulk) && !BinaryProtocol.encode("DisplayAllStatus", bulk);
+        Bench.check("requests convert to text and back unchanged", ok);
+    }
+
+    /**
+     * Checks that responses naming no known device type, or a capability beyond the enum, are
+     * rejected without writing anything, while a response without a device needs no type.
+     *
+     * @throws IOException If writing fails.
+     */
+    private static void checkMalformedResponses() throws IOException {
+        ByteBuffer in = ByteBuffer.allocate(4 * BinaryProtocol.RESPONSE_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        BinaryProtocol.putResponse(in, ResponseCode.ON, null, 3, 0);
+        BinaryProtocol.putResponse(in, ResponseCode.ANGLE_SET, null, 4, 10);
+        BinaryProtocol.putResponse(in, ResponseCode.NOT_CAPABLE, DeviceType.HEATER, 6, Capability.values().length);
+        BinaryProtocol.putResponse(in, ResponseCode.NOT_FOUND, null, 42, 0);
+        in.flip();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ResponseWriter out = new ResponseWriter(bytes);
+        boolean ok = BinaryProtocol.writeResponse(in, out) == null && BinaryProtocol.writeResponse(in, out) == null
+                && BinaryProtocol.writeResponse(in, out) == null
+                && BinaryProtocol.writeResponse(in, out) == ResponseCode.NOT_FOUND && !in.hasRemaining();
+        out.flush();
+        ok &= bytes.toString(StandardCharsets.UTF_8).equals("The smart device was not found" + System.lineSeparator());
+        Bench.check("malformed responses are rejected without output", ok);
+    }
+
+    /**
+     * Checks that a server session whose first byte is the magic byte answers binary requests,
+     * including a color and a brightness beyond their enums, and keeps answering after them.
+     *
+     * @throws IOException If the connection fails.
+     */
+    private static void checkServer() throws IOException {
+        DeviceRegistry registry = populate(new DeviceRegistry());
+        boolean ok;
+        try (CommandServer server = new CommandServer(registry, 0)) {
+            Thread acceptor = new Thread(() -> {
+                try {
+                    server.serve();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, "acceptor");
+            acceptor.setDaemon(true);
+            acceptor.start();
+            ByteBuffer requests = ByteBuffer.allocate(1 + 6 * BinaryProtocol.REQUEST_BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            requests.put((byte) BinaryProtocol.MAGIC);
+            BinaryProtocol.encode("SetTemperature Heater 7 25", requests);
+            BinaryProtocol.encode("SetTemperature Heater 7 25", requests);
+            BinaryProtocol.encode("TurnOn Light 42", requests);
+            requests.put((byte) Verb.SET_COLOR.ordinal()).put((byte) DeviceType.LIGHT.ordinal()).putShort((short) 7)
+                    .putInt(1);
+            requests.put((byte) Verb.SET_BRIGHTNESS.ordinal()).put((byte) DeviceType.LIGHT.ordinal())
+                    .putShort(Short.MAX_VALUE).putInt(1);
+            BinaryProtocol.encode("SetColor Light 1 WHITE", requests);
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+                socket.getOutputStream().write(requests.array());
+                byte[] responses = new byte[6 * BinaryProtocol.RESPONSE_BYTES];
+                new DataInputStream(socket.getInputStream()).readFully(responses);
+                ByteBuffer in = ByteBuffer.wrap(responses).order(ByteOrder.LITTLE_ENDIAN);
+                ok = BinaryProtocol.codeOf(in) == ResponseCode.TEMPERATURE_SET && in.getShort(2) == 25
+                        && in.getInt(BinaryProtocol.REQUEST_BYTES - Integer.BYTES) == 7;
+                in.position(BinaryProtocol.RESPONSE_BYTES);
+                ok &= BinaryProtocol.codeOf(in) == ResponseCode.TEMPERATURE_ALREADY_SET;
+                in.position(2 * BinaryProtocol.RESPONSE_BYTES);
+                ok &= BinaryProtocol.codeOf(in) == ResponseCode.NOT_FOUND;
+                in.position(3 * BinaryProtocol.RESPONSE_BYTES);
+                ok &= BinaryProtocol.codeOf(in) == ResponseCode.UNKNOWN_COLOR;
+                in.position(4 * BinaryProtocol.RESPONSE_BYTES);
+                ok &= BinaryProtocol.codeOf(in) == ResponseCode.UNKNOWN_BRIGHTNESS;
+                in.position(5 * BinaryProtocol.RESPONSE_BYTES);
+                ok &= BinaryProtocol.codeOf(in) == ResponseCode.COLOR_SET;
+            }
+        }
+        ok &= ((Heater) registry.get(7)).getTemperature() == 25;
+        ok &= ((Light) registry.get(1)).getLightColor() == LightColor.WHITE
+                && ((Light) registry.get(1)).getBrightnessLevel() == Brightnesslevel.LOW;
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        ResponseWriter out = new ResponseWriter(text);
+        ResponseCode.COLOR_SET.writeTo(out, DeviceType.LIGHT, 1, 7);
+        ResponseCode.BRIGHTNESS_SET.writeTo(out, DeviceType.LIGHT, 1, -1);
+        out.flush();
+        ok &= text.toString(StandardCharsets.UTF_8).equals(respond(ResponseCode.UNKNOWN_COLOR)
+                + respond(ResponseCode.UNKNOWN_BRIGHTNESS));
+        Bench.check("a server session starting with the magic byte speaks the binary protocol", ok);
+    }
+
+    /**
+     * Writes a response without a device as text.
+     *
+     * @param code Response code.
+     * @return The response line.
+     * @throws IOException If writing fails.
+     */
+    private static String respond(ResponseCode code) throws IOException {
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        ResponseWriter out = new ResponseWriter(text);
+        code.writeTo(out, null, 0, 0);
+        out.flush();
+        return text.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Adds three lights, three cameras and four heaters under the IDs 0 to 9, camera 4 off.
+     *
+     * @param registry Empty registry.
+     * @return The registry.
+     */
+    private static DeviceRegistry populate(DeviceRegistry registry) {
+        for (int id = 0; id < 10; id++) {
+            registry.add(id, id < 3 ? new Light(Status.ON, false, Brightnesslevel.LOW, LightColor.YELLOW)
+                    : id < 6 ? new Camera(id == 4 ? Status.OFF : Status.ON, false, false, 0)
+                    : new Heater(Status.ON, 20));
+        }
+        return registry;
+    }
+
+    /**
+     * Output stream counting and discarding the bytes written to it.
+     */
+    private static final class CountingStream extends OutputStream {
+        private long count;  // Bytes written so far
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            count += length;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.util.Arrays;
+
+/**
+ * Benchmark and determinism check for bulk commands on a large registry.
+ *
+ * <p>Compares turning every heater off and on again with one single-device command line per
+ * heater against one bulk command line per transition, and checks that a bulk command that runs
+ * in parallel writes exactly the responses of the equivalent single-device commands, in ID order.</p>
+ *
+ * <p>Run with: {@code javac -d out src/*.java bench/*.java && java -cp out BulkCommandBenchmark}</p>
+ */
+public final class BulkCommandBenchmark {
+    private static final int DEVICES = 1 << 18;  // Devices in the registry, every fourth one a heater
+
+    private BulkCommandBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        check(new DeviceRegistry(), new DeviceRegistry());
+        check(new DeviceRegistry(new DeviceStateStore(DEVICES)), new DeviceRegistry(new DeviceStateStore(DEVICES)));
+
+        StringBuilder single = new StringBuilder();
+        for (String verb : new String[] {"TurnOff", "TurnOn"}) {
+            for (int id = 3; id < DEVICES; id += 4) {
+                single.append(verb).append(" Heater ").append(id).append('\n');
+            }
+        }
+        String singleLines = single.toString();
+        String bulkLines = "TurnOff Heater *\nTurnOn Heater *\n";
+        int operations = DEVICES / 4 * 2;
+        for (boolean columnar : new boolean[] {false, true}) {
+            DeviceRegistry registry = columnar ? new DeviceRegistry(new DeviceStateStore(DEVICES))
+                    : new DeviceRegistry();
+            populate(registry);
+            OutputStream sink = OutputStream.nullOutputStream();
+            String name = columnar ? " (store views)" : " (standalone devices)";
+            Bench.run("single-device lines" + name, operations, () -> run(registry, singleLines, sink));
+            Bench.run("bulk lines" + name, operations, () -> run(registry, bulkLines, sink));
+        }
+    }
+
+    /**
+     * Verifies that a parallel bulk command writes the responses of the single-device commands plus a summary.
+     *
+     * @param registry Registry to run the single-device commands on.
+     * @param bulk     Equally filled registry to run the bulk command on.
+     */
+    private static void check(DeviceRegistry registry, DeviceRegistry bulk) {
+        populate(registry);
+        populate(bulk);
+        run(registry, "TurnOff Heater 7\n", OutputStream.nullOutputStream());
+        run(bulk, "TurnOff Heater 7\n", OutputStream.nullOutputStream());
+        StringBuilder single = new StringBuilder();
+        for (int id = 3; id < DEVICES; id += 4) {
+            single.append("TurnOff Heater ").append(id).append('\n');
+        }
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        run(registry, single.toString(), expected);
+        expected.writeBytes(("TurnOff: " + (DEVICES / 4 - 1) + " of " + DEVICES / 4 + " devices changed\n").getBytes());
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        run(bulk, "TurnOff Heater *\n", actual);
+        boolean ok = Arrays.equals(expected.toByteArray(), actual.toByteArray());
+        System.out.println((ok ? "PASS" : "FAIL") + " bulk responses in ID order, " + bulk.size() + " devices");
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Fills a registry with lights, cameras and heaters.
+     *
+     * @param registry Registry to fill.
+     */
+    private static void populate(DeviceRegistry registry) {
+        for (int id = 0; id < DEVICES; id++) {
+            registry.add(id, switch (id % 4) {
+                case 0, 1 -> new Light(Status.ON, false, Brightnesslevel.LOW, LightColor.YELLOW);
+                case 2 -> new Camera(Status.ON, false, false, 0);
+                default -> new Heater(Status.ON, 20);
+            });
+        }
+    }
+
+    /**
+     * Executes command lines against a registry.
+     *
+     * @param registry Devices the commands apply to.
+     * @param lines    Command lines.
+     * @param sink     Destination of the responses.
+     * @return Number of devices, to be consumed by the harness.
+     */
+    private static long run(DeviceRegistry registry, String lines, OutputStream sink) {
+        try {
+            CommandLexer lexer = new CommandLexer(new StringReader(lines));
+            new CommandDispatcher(registry, new ResponseWriter(sink)).run(lexer);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return registry.size();
+    }
+}
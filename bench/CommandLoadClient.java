@@ -0,0 +1,171 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Local load client for CommandServer. Opens many concurrent connections, waits until all of them
+ * are established, then lets every connection send single-line commands one at a time and wait
+ * for each response, and reports the total throughput and the latency percentiles per command.
+ *
+ * <p>Without a port argument an in-process server is started on a free port; with one, the client
+ * targets a server started separately with {@code java -cp out Main --server <port>}.</p>
+ *
+ * <p>Run with: {@code javac -d out src/*.java bench/*.java
+ * && java -cp out CommandLoadClient [connections] [commandsPerConnection] [port]}</p>
+ */
+public final class CommandLoadClient {
+    private static final int DEFAULT_CONNECTIONS = 1000;  // Concurrent connections when not given
+    private static final int DEFAULT_COMMANDS = 200;  // Commands per connection when not given
+    private static final int LIGHTS = 4;  // Lights 0 to 3 of the default devices are toggled
+
+    private CommandLoadClient() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_CONNECTIONS;
+        int commands = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_COMMANDS;
+        CommandServer server = null;
+        int port;
+        if (args.length > 2) {
+            port = Integer.parseInt(args[2]);
+        } else {
+            DeviceRegistry registry = new DeviceRegistry();
+            for (int id = 0; id < LIGHTS; id++) {
+                registry.add(id, new Light(Status.ON, false, Brightnesslevel.LOW, LightColor.YELLOW));
+            }
+            CommandServer local = new CommandServer(registry, 0);
+            server = local;
+            port = local.getPort();
+            Thread acceptor = new Thread(() -> serve(local), "acceptor");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+        try {
+            run(port, connections, commands);
+        } finally {
+            if (server != null) {
+                server.close();
+            }
+        }
+    }
+
+    /**
+     * Runs the accept loop of an in-process server.
+     *
+     * @param server Server to run.
+     */
+    private static void serve(CommandServer server) {
+        try {
+            server.serve();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Drives the load and prints the results.
+     *
+     * @param port        Port of the server on localhost.
+     * @param connections Number of concurrent connections.
+     * @param commands    Number of commands sent by each connection.
+     * @throws InterruptedException If interrupted while waiting for the connections.
+     */
+    private static void run(int port, int connections, int commands) throws InterruptedException {
+        long[] latencies = new long[connections * commands];
+        AtomicInteger failures = new AtomicInteger();
+        CountDownLatch connected = new CountDownLatch(connections);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(connections);
+        ExecutorService clients = CommandServer.newPerTaskExecutor();
+        for (int c = 0; c < connections; c++) {
+            int connection = c;
+            clients.execute(() -> {
+                try {
+                    client(port, connection, commands, latencies, connected, start);
+                } catch (IOException | InterruptedException e) {
+                    failures.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        connected.await();
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        clients.shutdown();
+
+        int completed = connections - failures.get();
+        long total = (long) completed * commands;
+        long[] measured = Arrays.stream(latencies).filter(latency -> latency > 0).sorted().toArray();
+        System.out.printf("%d connections (%d failed), %d commands in %.3f s: %.0f commands/s%n",
+                connections, failures.get(), total, elapsed / 1e9, total / (elapsed / 1e9));
+        if (measured.length > 0) {
+            System.out.printf("latency p50 %.1f us, p99 %.1f us, p99.9 %.1f us, max %.1f us%n",
+                    percentile(measured, 0.50) / 1e3, percentile(measured, 0.99) / 1e3,
+                    percentile(measured, 0.999) / 1e3, measured[measured.length - 1] / 1e3);
+        }
+    }
+
+    /**
+     * Runs one connection: connects, waits for the start signal, then alternately turns one of the
+     * lights on and off, timing each command until its response line has arrived.
+     *
+     * @param port       Port of the server on localhost.
+     * @param connection Index of the connection.
+     * @param commands   Number of commands to send.
+     * @param latencies  Latencies of all connections, indexed by connection and command.
+     * @param connected  Counted down once the connection is established or has failed.
+     * @param start      Released when all connections are established.
+     * @throws IOException          If the connection fails.
+     * @throws InterruptedException If interrupted while waiting for the start signal.
+     */
+    private static void client(int port, int connection, int commands, long[] latencies,
+                               CountDownLatch connected, CountDownLatch start)
+            throws IOException, InterruptedException {
+        Socket socket;
+        try {
+            socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        } finally {
+            connected.countDown();
+        }
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            OutputStream out = socket.getOutputStream();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            byte[] turnOn = ("TurnOn Light " + connection % LIGHTS + "\n").getBytes();
+            byte[] turnOff = ("TurnOff Light " + connection % LIGHTS + "\n").getBytes();
+            start.await();
+            for (int i = 0; i < commands; i++) {
+                long sent = System.nanoTime();
+                out.write(i % 2 == 0 ? turnOn : turnOff);
+                out.flush();
+                if (in.readLine() == null) {
+                    throw new IOException("Server closed the connection");
+                }
+                latencies[connection * commands + i] = Math.max(1, System.nanoTime() - sent);
+            }
+            out.write("end\n".getBytes());
+            out.flush();
+        }
+    }
+
+    /**
+     * Gets a percentile of sorted samples.
+     *
+     * @param sorted   Samples in ascending order.
+     * @param fraction Percentile as a fraction between 0 and 1.
+     * @return The sample at the percentile.
+     */
+    private static long percentile(long[] sorted, double fraction) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * fraction))];
+    }
+}
@@ -0,0 +1,92 @@
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Scanner;
+import java.util.regex.Pattern;
+
+/**
+ * Compares the Scanner and regex based command validation that Main used to perform
+ * with the CommandLexer and CommandParser path.
+ *
+ * <p>Run with: {@code javac -d out src/*.java bench/*.java && java -cp out CommandParsingBenchmark}</p>
+ */
+public final class CommandParsingBenchmark {
+    private static final String[] LINES = {
+        "TurnOn Light 0", "TurnOff Camera 4", "StartCharging Light 2", "StopCharging Camera 5",
+        "SetTemperature Heater 7 25", "SetBrightness Light 1 HIGH", "SetColor Light 3 WHITE",
+        "SetAngle Camera 4 -30", "StartRecording Camera 5", "StopRecording Camera 4",
+        "DisplayAllStatus", "TurnOn Lamp 0", "SetAngle Camera 4 x", "Unknown verb"
+    };
+    private static final int REPEAT = 2000;  // Number of times the line set is repeated
+
+    private CommandParsingBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < REPEAT; i++) {
+            for (String line : LINES) {
+                script.append(line).append('\n');
+            }
+        }
+        String input = script.toString();
+        long lines = (long) REPEAT * LINES.length;
+
+        double scanner = Bench.run("Scanner + Pattern.compile", lines, () -> scannerPath(input));
+        double lexer = Bench.run("CommandLexer + CommandParser", lines, () -> lexerPath(input));
+        System.out.printf("speedup: %.1fx%n", scanner / lexer);
+    }
+
+    /**
+     * Validates every line of the input the way Main did before the lexer existed.
+     *
+     * @param input Command script.
+     * @return Number of valid lines.
+     */
+    private static long scannerPath(String input) {
+        Scanner scanner = new Scanner(input);
+        long valid = 0;
+        while (scanner.hasNextLine()) {
+            Scanner sc = new Scanner(scanner.nextLine());
+            String verb = sc.next();
+            boolean ok = switch (verb) {
+                case "DisplayAllStatus", "end" -> !sc.hasNext();
+                case "TurnOn", "TurnOff", "StartCharging", "StopCharging", "StartRecording", "StopRecording" ->
+                        sc.hasNext(Pattern.compile("(\\D+)")) && sc.next() != null
+                                && sc.hasNext(Pattern.compile("(\\d+)$")) && sc.nextInt() >= 0;
+                case "SetTemperature", "SetAngle", "SetColor", "SetBrightness" ->
+                        sc.hasNext(Pattern.compile("(\\D+)")) && sc.next() != null
+                                && sc.hasNext(Pattern.compile("(\\d+)")) && sc.nextInt() >= 0
+                                && sc.hasNext(Pattern.compile(verb.equals("SetAngle") ? "(-?\\d+)$"
+                                : verb.equals("SetTemperature") ? "(\\d+)$" : "(\\D+)$"))
+                                && Pattern.compile("(Camera|Light|Heater)").matcher("Light").matches();
+                default -> false;
+            };
+            if (ok) {
+                valid++;
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * Validates every line of the input with the lexer and parser.
+     *
+     * @param input Command script.
+     * @return Number of valid lines.
+     */
+    private static long lexerPath(String input) {
+        try {
+            CommandLexer lexer = new CommandLexer(new StringReader(input));
+            Command command = new Command();
+            long valid = 0;
+            while (lexer.nextLine()) {
+                if (CommandParser.parse(lexer, command)) {
+                    valid++;
+                }
+            }
+            return valid;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
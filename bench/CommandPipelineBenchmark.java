@@ -0,0 +1,120 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Equivalence check and benchmark of the pipelined command execution.
+ *
+ * <p>The check runs a random script of valid, invalid and bulk commands through the sequential
+ * loop and through pipelines with rings of 1, 2 and 1024 records, and compares the responses and
+ * the final device states byte for byte. The benchmark compares the throughput of both on a large
+ * script whose responses go to a file. The stages only overlap on a machine with at least three
+ * cores; with fewer, the pipeline measures its hand-off overhead instead of a speedup.</p>
+ *
+ * <p>Run with: {@code javac -d out src/*.java bench/*.java && java -cp out CommandPipelineBenchmark}</p>
+ */
+public final class CommandPipelineBenchmark {
+    private static final long SEED = 11;  // Seed of the generated scripts
+    private static final int CHECK_LINES = 50_000;  // Lines of the check script
+    private static final int[] CHECK_CAPACITIES = {1, 2, 1024};  // Ring sizes of the check
+    private static final int BENCH_LINES = 1_000_000;  // Lines of the benchmark script
+    private static final int DEVICES = 1000;  // Devices of the registry
+    private static final String[] TYPES = {"Light", "Camera", "Heater", "Lamp"};
+
+    private CommandPipelineBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        // Battery levels follow the clock, so stop it for responses of different runs to compare equal
+        Battery.setClock(Clock.fixed(Instant.now(), ZoneOffset.UTC));
+        String check = script(CHECK_LINES, true) + "end\nTurnOn Light 1\n";
+        byte[] expected = handle(check, 0, new ByteArrayOutputStream());
+        for (int capacity : CHECK_CAPACITIES) {
+            Bench.check("pipeline with " + capacity + " records answers like the sequential loop",
+                    Arrays.equals(expected, handle(check, capacity, new ByteArrayOutputStream())));
+        }
+
+        System.out.println("available processors: " + Runtime.getRuntime().availableProcessors());
+        String script = script(BENCH_LINES, false);
+        Path file = Files.createTempFile("pipeline", ".txt");
+        try {
+            for (int capacity : new int[] {0, CommandPipeline.DEFAULT_CAPACITY}) {
+                Bench.run(capacity == 0 ? "sequential loop, responses to a file" : "pipeline, responses to a file",
+                        BENCH_LINES, () -> {
+                            try (OutputStream stream = Files.newOutputStream(file)) {
+                                return handle(script, capacity, stream).length;
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        });
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Generates a random command script.
+     *
+     * @param lines   Number of lines.
+     * @param awkward Whether to mix in invalid lines, unknown devices and bulk commands.
+     * @return The script.
+     */
+    private static String script(int lines, boolean awkward) {
+        Random random = new Random(SEED);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            String type = TYPES[random.nextInt(awkward ? TYPES.length : TYPES.length - 1)];
+            int id = random.nextInt(awkward ? DEVICES + 10 : DEVICES);
+            int kind = random.nextInt(awkward ? 12 : 8);
+            text.append(switch (kind) {
+                case 0, 1 -> "TurnOn " + type + " " + id;
+                case 2, 3 -> "TurnOff " + type + " " + id;
+                case 4 -> "SetAngle " + type + " " + id + " " + (random.nextInt(150) - 75);
+                case 5 -> "SetTemperature " + type + " " + id + " " + (10 + random.nextInt(25));
+                case 6 -> "SetColor " + type + " " + id + (random.nextBoolean() ? " WHITE" : " YELLOW");
+                case 7 -> "StartRecording " + type + " " + id;
+                case 8 -> "TurnOff " + type + " " + id + "-" + (id + random.nextInt(50));
+                case 9 -> random.nextInt(100) == 0 ? "DisplayAllStatus" : "TurnOn * *";
+                case 10 -> "SetBrightness " + type + " " + id + " LOUD";
+                default -> "nonsense " + id;
+            }).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Handles a script with fresh devices and appends their final status to the responses.
+     *
+     * @param script   Command script.
+     * @param capacity Records of the pipeline, or 0 for the sequential loop.
+     * @param stream   Destination of the responses.
+     * @return The responses if the stream is a ByteArrayOutputStream, an empty array otherwise.
+     * @throws IOException If handling fails.
+     */
+    private static byte[] handle(String script, int capacity, OutputStream stream) throws IOException {
+        DeviceRegistry registry = Bench.devicesInTurn(new DeviceRegistry(), DEVICES);
+        ResponseWriter out = new ResponseWriter(stream);
+        CommandDispatcher dispatcher = new CommandDispatcher(registry, out);
+        CommandLexer lexer = new CommandLexer(new StringReader(script));
+        if (capacity == 0) {
+            dispatcher.run(lexer);
+        } else {
+            new CommandPipeline(dispatcher, out, capacity).run(lexer);
+        }
+        for (int id = registry.nextId(0); id >= 0; id = registry.nextId(id + 1)) {
+            out.println(registry.get(id).displayStatus());
+        }
+        out.flush();
+        return stream instanceof ByteArrayOutputStream ? ((ByteArrayOutputStream) stream).toByteArray() : new byte[0];
+    }
+}
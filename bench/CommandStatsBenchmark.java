@@ -0,0 +1,121 @@
+import com.sun.management.ThreadMXBean;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Check and benchmark of the command statistics.
+ *
+ * <p>Verifies that the buckets of the latency histogram cover every latency with the promised
+ * precision, that recording allocates nothing, and that a script with known outcomes is counted
+ * correctly. Then measures record() alone and the overhead that statistics add to handling a
+ * command script.</p>
+ *
+ * <p>Run with: {@code javac -d out src/*.java bench/*.java && java -cp out CommandStatsBenchmark}</p>
+ */
+public final class CommandStatsBenchmark {
+    private static final int RECORDS = 1_000_000;  // Records per benchmark round
+    private static final int REPEAT = 20_000;  // Repetitions of the script per handling round
+    private static final String SCRIPT = "TurnOn Light 0\nTurnOff Light 1\nTurnOn Light 1\nSetAngle Camera 4 10\n"
+            + "SetTemperature Heater 6 99\nTurnOn Lamp 3\nTurnOn Light 42\nStartRecording Light 2\nnonsense\n";
+    private static final int SCRIPT_LINES = 9;  // Lines of the script
+
+    private CommandStatsBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        checkBuckets();
+        checkNoAllocation();
+        checkCounts();
+
+        CommandStats stats = new CommandStats();
+        Bench.run("record", RECORDS, () -> {
+            for (int i = 0; i < RECORDS; i++) {
+                stats.record(Verb.TURN_ON, CommandOutcome.CHANGED, 100 + (i & 1023));
+            }
+            return stats.getCount(Verb.TURN_ON, CommandOutcome.CHANGED);
+        });
+        String script = SCRIPT.repeat(REPEAT);
+        for (boolean recording : new boolean[] {false, true}) {
+            DeviceRegistry registry = Bench.defaultDevices();
+            CommandStats attached = recording ? new CommandStats() : null;
+            Bench.run(recording ? "handle script, statistics" : "handle script, no statistics",
+                    (long) REPEAT * SCRIPT_LINES, () -> handle(registry, attached, script));
+        }
+    }
+
+    /**
+     * Checks that every latency lies in its bucket and that a bucket spans at most 12.5% of its values.
+     */
+    private static void checkBuckets() {
+        boolean ok = true;
+        for (long nanos = 0; nanos < 1L << 20; nanos++) {
+            int bucket = CommandStats.bucket(nanos);
+            long upper = CommandStats.upperBound(bucket);
+            long lower = bucket == 0 ? 0 : CommandStats.upperBound(bucket - 1) + 1;
+            ok &= lower <= nanos && nanos <= upper && upper - lower <= lower / 8;
+        }
+        for (int shift = 20; shift < 40; shift++) {
+            long nanos = (1L << shift) + 12345;
+            ok &= CommandStats.upperBound(CommandStats.bucket(nanos)) >= nanos;
+        }
+        Bench.check("histogram buckets cover every latency within 12.5%", ok);
+    }
+
+    /**
+     * Checks that recording allocates nothing.
+     */
+    private static void checkNoAllocation() {
+        CommandStats stats = new CommandStats();
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long allocated = 0;
+        for (int round = 0; round < 5; round++) {
+            long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            for (int i = 0; i < RECORDS; i++) {
+                stats.record(Verb.SET_ANGLE, CommandOutcome.UNCHANGED, i);
+                stats.record(null, CommandOutcome.INVALID, i * 31L);
+            }
+            allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+        }
+        Bench.check("recording " + 2 * RECORDS + " commands allocated " + allocated + " bytes", allocated < 1024);
+    }
+
+    /**
+     * Checks the counted outcomes of a script whose outcomes are known.
+     */
+    private static void checkCounts() {
+        CommandStats stats = new CommandStats();
+        handle(Bench.defaultDevices(), stats, SCRIPT);
+        boolean ok = stats.getCount(Verb.TURN_ON, CommandOutcome.UNCHANGED) == 1
+                && stats.getCount(Verb.TURN_ON, CommandOutcome.CHANGED) == 1
+                && stats.getCount(Verb.TURN_ON, CommandOutcome.NOT_FOUND) == 2
+                && stats.getCount(Verb.TURN_OFF, CommandOutcome.CHANGED) == 1
+                && stats.getCount(Verb.SET_ANGLE, CommandOutcome.CHANGED) == 1
+                && stats.getCount(Verb.SET_TEMPERATURE, CommandOutcome.UNCHANGED) == 1
+                && stats.getCount(Verb.START_RECORDING, CommandOutcome.UNSUPPORTED) == 1
+                && stats.getCount(null, CommandOutcome.INVALID) == 1;
+        Bench.check("outcomes of a known script are counted", ok);
+    }
+
+    /**
+     * Handles a command script with the default devices, discarding the responses.
+     *
+     * @param registry Devices the commands apply to.
+     * @param stats    Statistics to record, or null.
+     * @param script   Command script.
+     * @return Number of devices, to be consumed by the harness.
+     */
+    private static long handle(DeviceRegistry registry, CommandStats stats, String script) {
+        try {
+            CommandDispatcher dispatcher = new CommandDispatcher(registry,
+                    new ResponseWriter(OutputStream.nullOutputStream()));
+            dispatcher.setStats(stats);
+            dispatcher.run(new CommandLexer(new StringReader(script)));
+            return registry.size();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,242 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Stress check and scaling benchmark for the lock-free state transitions of devices.
+ *
+ * <p>The stress part lets many threads race turnOn/turnOff, charging and recording transitions
+ * on a few shared devices, for standalone devices and for store views, and verifies that the
+ * successful transitions reported by all threads add up to the final state, i.e. no update was
+ * lost and no transition was reported twice. It also checks that concurrent brightness and color
+ * changes of the same light do not overwrite each other. The benchmark part measures transition
+ * throughput as the number of threads grows, and with more threads than cores sharing a few
+ * devices, where a transition that waited for another one preempted in the middle would stall.</p>
+ *
+ * <p>Run with: {@code javac -d out src/*.java bench/*.java && java -cp out ConcurrentTransitionBenchmark}</p>
+ */
+public final class ConcurrentTransitionBenchmark {
+    private static final int SHARED_DEVICES = 16;  // Devices shared by all threads in the stress check
+    private static final int STRESS_OPERATIONS = 200_000;  // Transitions per thread in the stress check
+    private static final int DEVICES_PER_THREAD = 1024;  // Devices owned by each thread in the benchmark
+    private static final int BENCH_OPERATIONS = 2_000_000;  // Transitions per thread in the benchmark
+    private static final int ATTRIBUTES = 3;  // Power, charging and recording
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    private ConcurrentTransitionBenchmark() {
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        stress("standalone devices", new DeviceRegistry());
+        stress("store views", new DeviceRegistry(new DeviceStateStore(SHARED_DEVICES)));
+        for (int threads = 1; threads <= THREADS; threads *= 2) {
+            scale("standalone devices", new DeviceRegistry(), threads);
+            scale("store views", new DeviceRegistry(new DeviceStateStore(threads * DEVICES_PER_THREAD)), threads);
+        }
+        contend("standalone devices", new DeviceRegistry());
+        contend("store views", new DeviceRegistry(new DeviceStateStore(SHARED_DEVICES)));
+    }
+
+    /**
+     * Races transitions on shared devices and verifies the reported outcomes against the final state.
+     *
+     * @param name     Name of the representation.
+     * @param registry Empty registry to put the shared devices into.
+     * @throws InterruptedException If interrupted while waiting for the threads.
+     */
+    private static void stress(String name, DeviceRegistry registry) throws InterruptedException {
+        for (int id = 0; id < SHARED_DEVICES; id++) {
+            registry.add(id, id % 2 == 0 ? new Camera(Status.OFF, false, false, 0)
+                    : new Light(Status.OFF, false, Brightnesslevel.LOW, LightColor.YELLOW));
+        }
+        int threads = Math.max(4, THREADS * 2);
+        long[][] switchedOn = new long[threads][SHARED_DEVICES * ATTRIBUTES];
+        long[][] switchedOff = new long[threads][SHARED_DEVICES * ATTRIBUTES];
+        runThreads(threads, thread -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < STRESS_OPERATIONS; i++) {
+                int id = random.nextInt(SHARED_DEVICES);
+                int attribute = random.nextInt(ATTRIBUTES);
+                boolean on = random.nextBoolean();
+                if (transition(registry.get(id), attribute, on)) {
+                    (on ? switchedOn : switchedOff)[thread][id * ATTRIBUTES + attribute]++;
+                }
+            }
+        });
+        int violations = 0;
+        for (int id = 0; id < SHARED_DEVICES; id++) {
+            SmartDevice device = registry.get(id);
+            for (int attribute = 0; attribute < ATTRIBUTES; attribute++) {
+                int slot = id * ATTRIBUTES + attribute;
+                long net = 0;
+                for (int thread = 0; thread < threads; thread++) {
+                    net += switchedOn[thread][slot] - switchedOff[thread][slot];
+                }
+                if (net != (value(device, attribute) ? 1 : 0)) {
+                    violations++;
+                }
+            }
+        }
+        violations += stressLightSettings(registry);
+        System.out.printf("stress %-20s %d threads: %s%n", name, threads,
+                violations == 0 ? "OK" : "FAILED (" + violations + " violations)");
+        if (violations != 0) {
+            throw new AssertionError("Lost or duplicated transitions in " + name);
+        }
+    }
+
+    /**
+     * Lets one thread change only the brightness and another only the color of the same lights,
+     * then checks that each light ends with the last value written by each thread.
+     *
+     * @param registry Registry containing the shared devices.
+     * @return Number of lights whose brightness or color update was lost.
+     * @throws InterruptedException If interrupted while waiting for the threads.
+     */
+    private static int stressLightSettings(DeviceRegistry registry) throws InterruptedException {
+        Brightnesslevel[] levels = Brightnesslevel.values();
+        LightColor[] colors = LightColor.values();
+        Brightnesslevel[] lastLevel = new Brightnesslevel[SHARED_DEVICES];
+        LightColor[] lastColor = new LightColor[SHARED_DEVICES];
+        runThreads(2, thread -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < STRESS_OPERATIONS; i++) {
+                int id = random.nextInt(SHARED_DEVICES / 2) * 2 + 1;
+                Light light = (Light) registry.get(id);
+                if (thread == 0) {
+                    lastLevel[id] = levels[random.nextInt(levels.length)];
+                    light.setBrightnessLevel(lastLevel[id]);
+                } else {
+                    lastColor[id] = colors[random.nextInt(colors.length)];
+                    light.setLightColor(lastColor[id]);
+                }
+            }
+        });
+        int violations = 0;
+        for (int id = 1; id < SHARED_DEVICES; id += 2) {
+            Light light = (Light) registry.get(id);
+            if ((lastLevel[id] != null && light.getBrightnessLevel() != lastLevel[id])
+                    || (lastColor[id] != null && light.getLightColor() != lastColor[id])) {
+                violations++;
+            }
+        }
+        return violations;
+    }
+
+    /**
+     * Measures transitions per second with each thread toggling devices of its own.
+     *
+     * @param name     Name of the representation.
+     * @param registry Empty registry to put the devices into.
+     * @param threads  Number of threads.
+     * @throws InterruptedException If interrupted while waiting for the threads.
+     */
+    private static void scale(String name, DeviceRegistry registry, int threads) throws InterruptedException {
+        for (int id = 0; id < threads * DEVICES_PER_THREAD; id++) {
+            registry.add(id, new Heater(Status.OFF, Main.INITIAL_HEATER_TEMP));
+        }
+        SmartDevice[][] owned = new SmartDevice[threads][DEVICES_PER_THREAD];
+        for (int thread = 0; thread < threads; thread++) {
+            for (int i = 0; i < DEVICES_PER_THREAD; i++) {
+                owned[thread][i] = registry.get(i * threads + thread);
+            }
+        }
+        long start = System.nanoTime();
+        runThreads(threads, thread -> {
+            SmartDevice[] devices = owned[thread];
+            for (int i = 0; i < BENCH_OPERATIONS; i++) {
+                SmartDevice device = devices[i & (DEVICES_PER_THREAD - 1)];
+                if (!device.turnOn()) {
+                    device.turnOff();
+                }
+            }
+        });
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("scale  %-20s %2d threads: %8.1f M transitions/s%n", name, threads,
+                (double) threads * BENCH_OPERATIONS / seconds / 1e6);
+    }
+
+    /**
+     * Measures transitions per second with more threads than cores toggling the same few heaters.
+     *
+     * @param name     Name of the representation.
+     * @param registry Empty registry to put the shared devices into.
+     * @throws InterruptedException If interrupted while waiting for the threads.
+     */
+    private static void contend(String name, DeviceRegistry registry) throws InterruptedException {
+        for (int id = 0; id < SHARED_DEVICES; id++) {
+            registry.add(id, new Heater(Status.OFF, Main.INITIAL_HEATER_TEMP));
+        }
+        int threads = Math.max(4, THREADS * 2);
+        long start = System.nanoTime();
+        runThreads(threads, thread -> {
+            for (int i = 0; i < BENCH_OPERATIONS; i++) {
+                SmartDevice device = registry.get((i + thread) & (SHARED_DEVICES - 1));
+                if (!device.turnOn()) {
+                    device.turnOff();
+                }
+            }
+        });
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("shared %-20s %2d threads: %8.1f M transitions/s%n", name, threads,
+                (double) threads * BENCH_OPERATIONS / seconds / 1e6);
+    }
+
+    /**
+     * Applies a transition to one attribute of a camera or light.
+     *
+     * @param device    Device to change.
+     * @param attribute 0 for power, 1 for charging, 2 for recording (cameras only).
+     * @param on        Whether to switch the attribute on or off.
+     * @return true if the transition changed the device.
+     */
+    private static boolean transition(SmartDevice device, int attribute, boolean on) {
+        return switch (attribute) {
+            case 0 -> on ? device.turnOn() : device.turnOff();
+            case 1 -> on ? ((Chargeable) device).startCharging() : ((Chargeable) device).stopCharging();
+            default -> device instanceof Camera camera && (on ? camera.startRecording() : camera.stopRecording());
+        };
+    }
+
+    /**
+     * Reads one attribute of a camera or light.
+     *
+     * @param device    Device to read.
+     * @param attribute 0 for power, 1 for charging, 2 for recording.
+     * @return The value of the attribute.
+     */
+    private static boolean value(SmartDevice device, int attribute) {
+        return switch (attribute) {
+            case 0 -> device.isOn();
+            case 1 -> ((Chargeable) device).isCharging();
+            default -> device instanceof Camera camera && camera.isRecording();
+        };
+    }
+
+    /**
+     * Body of a benchmark thread.
+     */
+    private interface Worker {
+        void run(int thread);
+    }
+
+    /**
+     * Runs a worker on the given number of threads and waits for all of them.
+     *
+     * @param threads Number of threads.
+     * @param worker  Work to run, given the index of its thread.
+     * @throws InterruptedException If interrupted while waiting for the threads.
+     */
+    private static void runThreads(int threads, Worker worker) throws InterruptedException {
+        List<Thread> started = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            int thread = i;
+            Thread t = new Thread(() -> worker.run(thread));
+            t.start();
+            started.add(t);
+        }
+        for (Thread t : started) {
+            t.join();
+        }
+    }
+}
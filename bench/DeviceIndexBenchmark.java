@@ -0,0 +1,300 @@
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Check and benchmark of the bitmap indexes answering device queries.
+ *
+ * <p>Verifies that the indexes give the same answers as a scan of all devices after random changes,
+ * removals and additions, for a registry of device objects and for a columnar one, with battery levels
+ * spread by a clock that advances between the changes. Then measures
+ * the example queries on a million devices against a scan, and the cost the indexes add to a change.</p>
+ *
+ * <p>Run with: {@code javac -d out src/*.java bench/*.java && java -cp out DeviceIndexBenchmark}</p>
+ */
+public final class DeviceIndexBenchmark {
+    private static final long SEED = 42;  // Seed of the generated devices and changes
+    private static final int DEVICES = 1_000_000;  // Devices of the benchmark registry
+    private static final int CHECKED_DEVICES = 50_000;  // Devices of the check
+    private static final int CHECKED_CHANGES = 300_000;  // Random changes of the check
+    private static final int CHANGES = 1_000_000;  // Changes per round of the change benchmark
+    private static final int POLL_INTERVAL = 1_000;  // Changes between two polls of the index
+    private static final int MAX_STEP_MILLIS = 100;  // Largest advance of the battery clock between two changes
+    private static final Brightnesslevel[] BRIGHTNESS_LEVELS = Brightnesslevel.values();
+    private static final LightColor[] LIGHT_COLORS = LightColor.values();
+
+    private DeviceIndexBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        checkQueries(new DeviceRegistry(), "device objects");
+        checkQueries(new DeviceRegistry(new DeviceStateStore(CHECKED_DEVICES)), "columnar store");
+
+        DeviceRegistry registry = populate(new DeviceRegistry(), DEVICES, new Random(SEED));
+        DeviceEventBus bus = RuleEngine.newEventBus();
+        registry.setEventBus(bus);
+        DeviceIndex index = new DeviceIndex(registry, bus);
+        System.out.printf("indexes of %d devices: %.1f MB%n", DEVICES, index.footprintBytes() / 1e6);
+        DeviceQuery[] queries = {
+                new DeviceQuery(DeviceType.LIGHT, 0, Integer.MAX_VALUE).and(DeviceAttribute.STATUS, Comparison.EQUAL, 1)
+                        .and(DeviceAttribute.BRIGHTNESS, Comparison.EQUAL, Brightnesslevel.HIGH.ordinal())
+                        .and(DeviceAttribute.COLOR, Comparison.EQUAL, LightColor.YELLOW.ordinal()),
+                new DeviceQuery(DeviceType.CAMERA, 0, Integer.MAX_VALUE)
+                        .and(DeviceAttribute.RECORDING, Comparison.EQUAL, 1)
+                        .and(DeviceAttribute.ANGLE, Comparison.GREATER, 30),
+                new DeviceQuery(DeviceType.HEATER, 0, Integer.MAX_VALUE).and(DeviceAttribute.STATUS, Comparison.EQUAL, 0)
+        };
+        String[] names = {"ON, HIGH and YELLOW lights", "recording cameras above 30 degrees", "heaters that are OFF"};
+        for (int i = 0; i < queries.length; i++) {
+            DeviceQuery query = queries[i];
+            Bench.run("indexed count of " + names[i], 1, () -> index.count(query));
+            Bench.run("scan count of " + names[i], 1, () -> scanCount(registry, query));
+        }
+        Bench.run("indexed find of " + names[1], 1, () -> index.select(queries[1]).cardinality());
+
+        int[] heaters = new int[CHANGES];
+        Random random = new Random(SEED + 1);
+        for (int i = 0; i < CHANGES; i++) {
+            heaters[i] = random.nextInt(DEVICES / 3) * 3 + 2;
+        }
+        Bench.run("change with indexes", CHANGES, () -> change(registry, index, heaters));
+        DeviceRegistry plain = populate(new DeviceRegistry(), DEVICES, new Random(SEED));
+        Bench.run("change without indexes", CHANGES, () -> change(plain, null, heaters));
+    }
+
+    /**
+     * Checks that the indexes answer queries like a scan after random changes, removals and additions.
+     *
+     * @param registry Empty registry.
+     * @param name     Description of the registry.
+     */
+    private static void checkQueries(DeviceRegistry registry, String name) {
+        Random random = new Random(SEED);
+        long now = 0;
+        Battery.setClock(Clock.fixed(Instant.ofEpochMilli(now), ZoneOffset.UTC));
+        populate(registry, CHECKED_DEVICES, random);
+        DeviceEventBus bus = RuleEngine.newEventBus();
+        registry.setEventBus(bus);
+        DeviceIndex index = new DeviceIndex(registry, bus);
+        for (int i = 0; i < CHECKED_CHANGES; i++) {
+            int id = random.nextInt(CHECKED_DEVICES + 100);
+            if (i % 1000 == 0) {
+                // Replace a device by one of a random type, or add one past the initial IDs
+                registry.remove(id);
+                registry.add(id, newDevice(random.nextInt(3), random));
+            } else if (registry.contains(id)) {
+                changeRandomly(registry.get(id), random);
+            }
+            now += random.nextInt(MAX_STEP_MILLIS);
+            Battery.setClock(Clock.fixed(Instant.ofEpochMilli(now), ZoneOffset.UTC));
+            if (i % POLL_INTERVAL == 0) {
+                index.poll();
+            }
+        }
+        boolean ok = true;
+        for (int i = 0; i < 500; i++) {
+            DeviceQuery query = randomQuery(random);
+            BitSet expected = scan(registry, query);
+            ok &= index.count(query) == expected.cardinality() && index.select(query).equals(expected);
+        }
+        Battery.setClock(Clock.systemUTC());
+        Bench.check("indexed queries match a scan, " + name, ok);
+    }
+
+    /**
+     * Generates a query of a random type and ID range with up to three random conditions.
+     *
+     * @param random Source of randomness.
+     * @return The query.
+     */
+    private static DeviceQuery randomQuery(Random random) {
+        int type = random.nextInt(4);
+        int first = random.nextBoolean() ? 0 : random.nextInt(CHECKED_DEVICES);
+        int last = random.nextBoolean() ? Integer.MAX_VALUE : first + random.nextInt(CHECKED_DEVICES);
+        DeviceQuery query = new DeviceQuery(type < 3 ? DeviceType.values()[type] : null, first, last);
+        DeviceAttribute[] attributes = DeviceAttribute.values();
+        Comparison[] comparisons = Comparison.values();
+        for (int conditions = random.nextInt(4); conditions > 0; conditions--) {
+            DeviceAttribute attribute = attributes[random.nextInt(attributes.length)];
+            switch (attribute) {
+                case ANGLE -> query.and(attribute, comparisons[random.nextInt(comparisons.length)],
+                        random.nextInt(121) - 60);
+                case TEMPERATURE -> query.and(attribute, comparisons[random.nextInt(comparisons.length)],
+                        15 + random.nextInt(16));
+                case BRIGHTNESS -> query.and(attribute, comparisons[random.nextInt(2)],
+                        random.nextInt(BRIGHTNESS_LEVELS.length));
+                case COLOR -> query.and(attribute, comparisons[random.nextInt(2)], random.nextInt(LIGHT_COLORS.length));
+                case BATTERY -> query.and(attribute, comparisons[random.nextInt(comparisons.length)],
+                        random.nextInt(Battery.FULL_LEVEL + 1));
+                default -> query.and(attribute, comparisons[random.nextInt(2)], random.nextInt(2));
+            }
+        }
+        return query;
+    }
+
+    /**
+     * Changes heaters, polling the indexes regularly if given.
+     *
+     * @param registry Devices to change.
+     * @param index    Indexes of the registry, or null.
+     * @param heaters  IDs of the heaters to change.
+     * @return Number of effective changes, to be consumed by the harness.
+     */
+    private static long change(DeviceRegistry registry, DeviceIndex index, int[] heaters) {
+        long changed = 0;
+        for (int i = 0; i < CHANGES; i++) {
+            changed += ((Heater) registry.get(heaters[i])).setTemperature(15 + (i & 15)) ? 1 : 0;
+            if (index != null && i % POLL_INTERVAL == 0) {
+                index.poll();
+            }
+        }
+        if (index != null) {
+            index.poll();
+        }
+        return changed;
+    }
+
+    /**
+     * Counts the devices of a query by checking every device.
+     *
+     * @param registry Devices to scan.
+     * @param query    Query to answer.
+     * @return Number of matching devices.
+     */
+    private static long scanCount(DeviceRegistry registry, DeviceQuery query) {
+        return scan(registry, query).cardinality();
+    }
+
+    /**
+     * Finds the devices of a query by checking every device.
+     *
+     * @param registry Devices to scan.
+     * @param query    Query to answer.
+     * @return The IDs of the matching devices.
+     */
+    private static BitSet scan(DeviceRegistry registry, DeviceQuery query) {
+        BitSet matches = new BitSet();
+        int first = query.getFirstDeviceId();
+        for (int id = registry.nextId(first); id >= 0 && id <= query.getLastDeviceId(); id = registry.nextId(id + 1)) {
+            SmartDevice device = registry.get(id);
+            if (query.getDeviceType() != null && device.getType() != query.getDeviceType()) {
+                continue;
+            }
+            boolean met = true;
+            for (int i = 0; i < query.conditionCount() && met; i++) {
+                Integer value = valueOf(device, query.getAttribute(i));
+                met = value != null && query.getComparison(i).test(value, query.getOperand(i));
+            }
+            if (met) {
+                matches.set(id);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Reads an attribute of a device, encoded as in DeviceEvent.
+     *
+     * @param device    Device.
+     * @param attribute Attribute to read.
+     * @return The value, or null if the device does not have the attribute.
+     */
+    private static Integer valueOf(SmartDevice device, DeviceAttribute attribute) {
+        return switch (attribute) {
+            case STATUS -> device.isOn() ? 1 : 0;
+            case CHARGING -> device instanceof Chargeable chargeable ? (chargeable.isCharging() ? 1 : 0) : null;
+            case RECORDING -> device instanceof Camera camera ? (camera.isRecording() ? 1 : 0) : null;
+            case ANGLE -> device instanceof Camera camera ? camera.getAngle() : null;
+            case TEMPERATURE -> device instanceof Heater heater ? heater.getTemperature() : null;
+            case BRIGHTNESS -> device instanceof Light light ? light.getBrightnessLevel().ordinal() : null;
+            case COLOR -> device instanceof Light light ? light.getLightColor().ordinal() : null;
+            case BATTERY -> device instanceof Chargeable chargeable ? chargeable.getBatteryLevel() : null;
+        };
+    }
+
+    /**
+     * Makes a random change of a device.
+     *
+     * @param device Device to change.
+     * @param random Source of randomness.
+     */
+    private static void changeRandomly(SmartDevice device, Random random) {
+        if (random.nextInt(4) == 0) {
+            device.setStatus(random.nextBoolean() ? Status.ON : Status.OFF);
+            return;
+        }
+        switch (device.getType()) {
+            case LIGHT -> {
+                Light light = (Light) device;
+                switch (random.nextInt(3)) {
+                    case 0 -> light.setBrightnessLevel(BRIGHTNESS_LEVELS[random.nextInt(BRIGHTNESS_LEVELS.length)]);
+                    case 1 -> light.setLightColor(LIGHT_COLORS[random.nextInt(LIGHT_COLORS.length)]);
+                    default -> toggleCharging(light, random);
+                }
+            }
+            case CAMERA -> {
+                Camera camera = (Camera) device;
+                switch (random.nextInt(3)) {
+                    case 0 -> camera.setCameraAngle(random.nextInt(121) - 60);
+                    case 1 -> toggleCharging(camera, random);
+                    default -> {
+                        if (random.nextBoolean()) {
+                            camera.startRecording();
+                        } else {
+                            camera.stopRecording();
+                        }
+                    }
+                }
+            }
+            case HEATER -> ((Heater) device).setTemperature(15 + random.nextInt(16));
+        }
+    }
+
+    /**
+     * Starts or stops charging a device at random.
+     *
+     * @param device Chargeable device.
+     * @param random Source of randomness.
+     */
+    private static void toggleCharging(Chargeable device, Random random) {
+        if (random.nextBoolean()) {
+            device.startCharging();
+        } else {
+            device.stopCharging();
+        }
+    }
+
+    /**
+     * Adds devices of random types and states under the IDs 0 to count - 1.
+     *
+     * @param registry Empty registry.
+     * @param count    Number of devices.
+     * @param random   Source of randomness.
+     * @return The registry.
+     */
+    private static DeviceRegistry populate(DeviceRegistry registry, int count, Random random) {
+        for (int id = 0; id < count; id++) {
+            registry.add(id, newDevice(id % 3, random));
+        }
+        return registry;
+    }
+
+    /**
+     * Creates a device in a random state.
+     *
+     * @param type   0 for a light, 1 for a camera, 2 for a heater.
+     * @param random Source of randomness.
+     * @return The device.
+     */
+    private static SmartDevice newDevice(int type, Random random) {
+        Status status = random.nextBoolean() ? Status.ON : Status.OFF;
+        return switch (type) {
+            case 0 -> new Light(status, random.nextBoolean(), BRIGHTNESS_LEVELS[random.nextInt(BRIGHTNESS_LEVELS.length)],
+                    LIGHT_COLORS[random.nextInt(LIGHT_COLORS.length)]);
+            case 1 -> new Camera(status, random.nextBoolean(), random.nextBoolean(), random.nextInt(121) - 60);
+            default -> new Heater(status, 15 + random.nextInt(16));
+        };
+    }
+}
@@ -0,0 +1,100 @@
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+/**
+ * Reports the heap footprint of a million devices kept as objects in a DeviceRegistry versus
+ * columns in a DeviceStateStore, and times a bulk scan over both representations. Both are measured
+ * after displaying the status of every device once, so the cached status lines are included.
+ *
+ * <p>Run with: {@code javac -d out src/*.java bench/*.java && java -Xmx2g -cp out DeviceStateStoreBenchmark}</p>
+ */
+public final class DeviceStateStoreBenchmark {
+    private static final int DEVICES = 1_000_000;  // Number of devices in each representation
+
+    private DeviceStateStoreBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        // Battery levels follow the clock, so stop it for both representations to display the same lines
+        Battery.setClock(Clock.fixed(Instant.now(), ZoneOffset.UTC));
+        long before = usedHeap();
+        DeviceRegistry objects = new DeviceRegistry();
+        fill(objects);
+        long objectLines = displayAll(objects);
+        long objectBytes = usedHeap() - before;
+
+        before = usedHeap();
+        DeviceStateStore store = new DeviceStateStore(DEVICES);
+        long storeLines = displayAll(fill(new DeviceRegistry(store)));
+        long storeBytes = usedHeap() - before;
+
+        System.out.printf("objects: %,d bytes (%.1f per device)%n", objectBytes, (double) objectBytes / DEVICES);
+        System.out.printf("store:   %,d bytes (%.1f per device), columns %,d bytes%n", storeBytes,
+                (double) storeBytes / DEVICES, store.footprintBytes());
+        System.out.printf("footprint ratio: %.1fx%n", (double) objectBytes / storeBytes);
+        if (objectLines != storeLines) {
+            throw new AssertionError("The representations display different status lines");
+        }
+
+        double scan = Bench.run("count Heaters ON, objects", DEVICES, () -> {
+            long on = 0;
+            for (int id = objects.nextId(0); id >= 0; id = objects.nextId(id + 1)) {
+                SmartDevice device = objects.get(id);
+                if (device.getType() == DeviceType.HEATER && device.isOn()) {
+                    on++;
+                }
+            }
+            return on;
+        });
+        double columns = Bench.run("count Heaters ON, store", DEVICES,
+                () -> store.count(DeviceType.HEATER, Status.ON));
+        System.out.printf("scan speedup: %.1fx%n", scan / columns);
+    }
+
+    /**
+     * Adds a mix of lights, cameras and heaters with varying state.
+     *
+     * @param registry Registry to fill.
+     * @return The registry.
+     */
+    private static DeviceRegistry fill(DeviceRegistry registry) {
+        for (int id = 0; id < DEVICES; id++) {
+            Status status = id % 3 == 0 ? Status.OFF : Status.ON;
+            SmartDevice device = switch (id % 5) {
+                case 0, 1 -> new Light(status, id % 2 == 0, Brightnesslevel.LOW, LightColor.YELLOW);
+                case 2 -> new Camera(status, false, id % 7 == 0, Main.INITIAL_CAMERA_ANGLE);
+                default -> new Heater(status, Main.INITIAL_HEATER_TEMP);
+            };
+            registry.add(id, device);
+        }
+        return registry;
+    }
+
+    /**
+     * Displays the status of every device, as DisplayAllStatus does, caching the lines.
+     *
+     * @param registry Devices to display.
+     * @return Total length of the lines.
+     */
+    private static long displayAll(DeviceRegistry registry) {
+        long length = 0;
+        for (int id = registry.nextId(0); id >= 0; id = registry.nextId(id + 1)) {
+            length += registry.get(id).displayStatus().length();
+        }
+        return length;
+    }
+
+    /**
+     * Measures the used heap after requesting garbage collection.
+     *
+     * @return Used heap in bytes.
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,233 @@
+import com.sun.management.ThreadMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Stress check and benchmark of the device event bus.
+ *
+ * <p>A producer changes random attributes of a few devices while subscriptions with each overflow
+ * policy consume on their own threads. The check verifies that the BLOCK subscription receives
+ * every change exactly once, in order per device, ending with the current value of every
+ * attribute, and that publishing does not allocate. The benchmark measures the cost that an
+ * attached bus adds to a device change.</p>
+ *
+ * <p>Run with: {@code javac -d out src/*.java bench/*.java && java -cp out EventBusBenchmark}</p>
+ */
+public final class EventBusBenchmark {
+    private static final int DEVICES = 64;  // Devices changed by the producer
+    private static final int CHANGES = 2_000_000;  // Change attempts of the producer in the stress check
+    private static final int CAPACITY = 1024;  // Slots of the ring
+    private static final int ATTRIBUTES = DeviceAttribute.values().length;
+    private static final int BENCH_CHANGES = 1_000_000;  // Changes per benchmark round
+    private static final Brightnesslevel[] LEVELS = Brightnesslevel.values();
+    private static final LightColor[] COLORS = LightColor.values();
+
+    private EventBusBenchmark() {
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        stress("standalone devices", new DeviceRegistry());
+        stress("store views", new DeviceRegistry(new DeviceStateStore(DEVICES)));
+        checkNoAllocation();
+
+        for (boolean attached : new boolean[] {false, true}) {
+            DeviceRegistry registry = new DeviceRegistry();
+            populate(registry);
+            DeviceEventBus bus = new DeviceEventBus(CAPACITY);
+            DeviceEventBus.Subscription subscription = bus.subscribe(OverflowPolicy.DROP);
+            if (attached) {
+                registry.setEventBus(bus);
+            }
+            Heater heater = (Heater) registry.get(2);
+            Bench.run(attached ? "setTemperature, bus attached" : "setTemperature, no bus", BENCH_CHANGES, () -> {
+                for (int i = 0; i < BENCH_CHANGES; i++) {
+                    heater.setTemperature(15 + (i & 7));
+                }
+                return subscription.poll(event -> { });
+            });
+        }
+    }
+
+    /**
+     * Races a producer against one consumer thread per overflow policy and verifies the BLOCK subscription.
+     *
+     * @param name     Name of the representation.
+     * @param registry Empty registry.
+     * @throws InterruptedException If interrupted while waiting for the threads.
+     */
+    private static void stress(String name, DeviceRegistry registry) throws InterruptedException {
+        populate(registry);
+        DeviceEventBus bus = new DeviceEventBus(CAPACITY);
+        registry.setEventBus(bus);
+        AtomicBoolean producing = new AtomicBoolean(true);
+        int[][] latest = new int[DEVICES][ATTRIBUTES];
+        for (int id = 0; id < DEVICES; id++) {
+            for (DeviceAttribute attribute : DeviceAttribute.values()) {
+                latest[id][attribute.ordinal()] = valueOf(registry.get(id), attribute);
+            }
+        }
+        long[] lastSequence = new long[DEVICES];
+        Arrays.fill(lastSequence, -1);
+        long[] received = new long[OverflowPolicy.values().length];
+        boolean[] ordered = {true};
+        Thread[] consumers = new Thread[OverflowPolicy.values().length];
+        for (OverflowPolicy policy : OverflowPolicy.values()) {
+            DeviceEventBus.Subscription subscription = bus.subscribe(policy);
+            DeviceEventBus.Handler handler = policy != OverflowPolicy.BLOCK ? event -> { } : event -> {
+                ordered[0] &= event.getSequence() > lastSequence[event.getDeviceId()];
+                lastSequence[event.getDeviceId()] = event.getSequence();
+                latest[event.getDeviceId()][event.getAttribute().ordinal()] = event.getValue();
+            };
+            consumers[policy.ordinal()] = new Thread(() -> {
+                boolean slow = policy != OverflowPolicy.BLOCK;
+                while (producing.get() || subscription.lag() > 0) {
+                    received[policy.ordinal()] += subscription.poll(handler);
+                    if (slow) {
+                        Thread.yield();
+                    }
+                }
+                received[policy.ordinal()] += subscription.poll(handler);
+                if (slow) {
+                    System.out.printf("stress %-19s %-8s received %d, dropped or coalesced %d%n", name, policy,
+                            received[policy.ordinal()], subscription.getDropped());
+                }
+                subscription.close();
+            });
+            consumers[policy.ordinal()].start();
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long changes = 0;
+        for (int i = 0; i < CHANGES; i++) {
+            if (change(registry.get(random.nextInt(DEVICES)), random)) {
+                changes++;
+            }
+        }
+        producing.set(false);
+        for (Thread consumer : consumers) {
+            consumer.join();
+        }
+        boolean current = true;
+        for (int id = 0; id < DEVICES; id++) {
+            SmartDevice device = registry.get(id);
+            for (DeviceAttribute attribute : DeviceAttribute.values()) {
+                current &= latest[id][attribute.ordinal()] == valueOf(device, attribute);
+            }
+        }
+        boolean ok = received[OverflowPolicy.BLOCK.ordinal()] == changes && ordered[0] && current;
+        System.out.printf("stress %-19s BLOCK    received %d of %d changes in order: %s%n", name,
+                received[OverflowPolicy.BLOCK.ordinal()], changes, ok ? "OK" : "FAILED");
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Verifies that changing devices with an attached bus allocates nothing.
+     */
+    private static void checkNoAllocation() {
+        DeviceRegistry standalone = new DeviceRegistry();
+        DeviceRegistry columnar = new DeviceRegistry(new DeviceStateStore(DEVICES));
+        populate(standalone);
+        populate(columnar);
+        DeviceEventBus bus = new DeviceEventBus(CAPACITY);
+        DeviceEventBus.Subscription subscription = bus.subscribe(OverflowPolicy.DROP);
+        standalone.setEventBus(bus);
+        columnar.setEventBus(bus);
+        SmartDevice[] devices = {standalone.get(0), standalone.get(1), standalone.get(2),
+            columnar.get(0), columnar.get(1), columnar.get(2)};
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long allocated = 0;
+        for (int round = 0; round < 5; round++) {
+            long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            for (int i = 0; i < BENCH_CHANGES; i++) {
+                ((Light) devices[0]).setBrightnessLevel(LEVELS[i % 3]);
+                ((Camera) devices[1]).setCameraAngle(i % 60);
+                ((Heater) devices[2]).setTemperature(15 + (i & 7));
+                ((Light) devices[3]).setLightColor(COLORS[i & 1]);
+                ((Camera) devices[4]).setCameraAngle(i % 60);
+                devices[5].setStatus((i & 1) == 0 ? Status.OFF : Status.ON);
+            }
+            allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+        }
+        subscription.close();
+        System.out.printf("publishing %d events allocated %d bytes: %s%n", 6L * BENCH_CHANGES, allocated,
+                allocated < 1024 ? "OK" : "FAILED");
+        if (allocated >= 1024) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Changes a random attribute of a device.
+     *
+     * @param device Device to change.
+     * @param random Source of randomness.
+     * @return true if the device changed.
+     */
+    private static boolean change(SmartDevice device, ThreadLocalRandom random) {
+        int choice = random.nextInt(3);
+        if (choice == 0) {
+            return random.nextBoolean() ? device.turnOn() : device.turnOff();
+        }
+        if (device instanceof Light light) {
+            if (choice == 1) {
+                return random.nextBoolean() ? light.startCharging() : light.stopCharging();
+            }
+            Brightnesslevel level = LEVELS[random.nextInt(3)];
+            boolean changed = light.getBrightnessLevel() != level;
+            light.setBrightnessLevel(level);
+            return changed;
+        }
+        if (device instanceof Camera camera) {
+            if (choice == 1) {
+                return random.nextBoolean() ? camera.startRecording() : camera.stopRecording();
+            }
+            int angle = random.nextInt(-60, 61);
+            boolean changed = camera.getAngle() != angle;
+            camera.setCameraAngle(angle);
+            return changed;
+        }
+        Heater heater = (Heater) device;
+        int temperature = random.nextInt(15, 31);
+        boolean changed = heater.getTemperature() != temperature;
+        heater.setTemperature(temperature);
+        return changed;
+    }
+
+    /**
+     * Reads an attribute of a device, encoded as in DeviceEvent.
+     *
+     * @param device    Device to read.
+     * @param attribute Attribute to read.
+     * @return The value, or Integer.MIN_VALUE if the device does not have the attribute.
+     */
+    private static int valueOf(SmartDevice device, DeviceAttribute attribute) {
+        return switch (attribute) {
+            case STATUS -> device.isOn() ? 1 : 0;
+            case CHARGING -> device instanceof Chargeable c ? (c.isCharging() ? 1 : 0) : Integer.MIN_VALUE;
+            case RECORDING -> device instanceof Camera c ? (c.isRecording() ? 1 : 0) : Integer.MIN_VALUE;
+            case ANGLE -> device instanceof Camera c ? c.getAngle() : Integer.MIN_VALUE;
+            case TEMPERATURE -> device instanceof Heater h ? h.getTemperature() : Integer.MIN_VALUE;
+            case BRIGHTNESS -> device instanceof Light l ? l.getBrightnessLevel().ordinal() : Integer.MIN_VALUE;
+            case COLOR -> device instanceof Light l ? l.getLightColor().ordinal() : Integer.MIN_VALUE;
+            case BATTERY -> Integer.MIN_VALUE;  // Not published by the changes of the devices
+        };
+    }
+
+    /**
+     * Fills a registry with lights, cameras and heaters in turn.
+     *
+     * @param registry Registry to fill.
+     */
+    private static void populate(DeviceRegistry registry) {
+        for (int id = 0; id < DEVICES; id++) {
+            registry.add(id, switch (id % 3) {
+                case 0 -> new Light(Status.ON, false, Brightnesslevel.LOW, LightColor.YELLOW);
+                case 1 -> new Camera(Status.ON, false, false, 0);
+                default -> new Heater(Status.ON, 20);
+            });
+        }
+    }
+}
@@ -0,0 +1,181 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+/**
+ * Benchmark and round-trip check of device snapshots and the command log with a million devices.
+ *
+ * <p>Writes a snapshot, restores it into empty registries of both representations, and appends and
+ * replays one logged command per device. Before timing, it checks that a restored registry with the
+ * log replayed shows exactly the status lines of the original, battery levels included, and that a
+ * snapshot of format version 1 is still restored, with full batteries.</p>
+ *
+ * <p>Run with: {@code javac -d out src/*.java bench/*.java && java -cp out PersistenceBenchmark}</p>
+ */
+public final class PersistenceBenchmark {
+    private static final int DEVICES = 1 << 20;  // Devices in the registry
+
+    private PersistenceBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        // Stop the clock for the levels to be compared, and move it on once for the batteries to drain
+        Instant start = Instant.now();
+        Battery.setClock(Clock.fixed(start, ZoneOffset.UTC));
+        Path directory = Files.createTempDirectory("persistence");
+        Path snapshot = directory.resolve("devices.snapshot");
+        Path logFile = directory.resolve("commands.log");
+        DeviceRegistry registry = new DeviceRegistry();
+        for (int id = 0; id < DEVICES; id++) {
+            registry.add(id, switch (id % 3) {
+                case 0 -> new Light(Status.ON, id % 2 == 0, Brightnesslevel.values()[id % 3], LightColor.WHITE);
+                case 1 -> new Camera(Status.ON, false, id % 5 == 0, id % 61 - 30);
+                default -> new Heater(id % 7 == 0 ? Status.OFF : Status.ON, 15 + id % 16);
+            });
+        }
+        Battery.setClock(Clock.fixed(start.plus(Duration.ofHours(3)), ZoneOffset.UTC));
+        DeviceSnapshot.write(registry, snapshot);
+        try (CommandLog log = new CommandLog(logFile)) {
+            for (int id = 0; id < DEVICES; id++) {
+                SmartDevice device = registry.get(id);
+                if (device instanceof Heater heater) {
+                    heater.setTemperature(30 - id % 16);
+                    log.append(Verb.SET_TEMPERATURE, DeviceType.HEATER, id, heater.getTemperature());
+                } else {
+                    device.turnOff();
+                    log.append(Verb.TURN_OFF, device.getType(), id, 0);
+                }
+            }
+        }
+        check("standalone devices", registry, new DeviceRegistry(), snapshot, logFile);
+        check("store views", registry, new DeviceRegistry(new DeviceStateStore(DEVICES)), snapshot, logFile);
+        checkVersion1(directory.resolve("version1.snapshot"));
+
+        Bench.run("write snapshot", DEVICES, () -> write(registry, snapshot));
+        Bench.run("restore snapshot (standalone devices)", DEVICES, () -> read(snapshot, new DeviceRegistry()));
+        Bench.run("restore snapshot (store views)", DEVICES,
+                () -> read(snapshot, new DeviceRegistry(new DeviceStateStore(DEVICES))));
+        Bench.run("replay log (standalone devices)", DEVICES, () -> replay(logFile, registry));
+        Bench.run("append log", DEVICES, () -> append(directory.resolve("append.log")));
+        System.out.println("ns/op above equals ms per million devices or commands");
+    }
+
+    /**
+     * Verifies that restoring the snapshot and replaying the log reproduces the original devices.
+     *
+     * @param name     Name of the representation.
+     * @param original Devices that were saved and logged.
+     * @param restored Empty registry to restore into.
+     * @param snapshot Snapshot file.
+     * @param logFile  Log file.
+     * @throws IOException If reading fails.
+     */
+    private static void check(String name, DeviceRegistry original, DeviceRegistry restored, Path snapshot,
+                              Path logFile) throws IOException {
+        DeviceSnapshot.read(snapshot, restored);
+        CommandLog.replay(logFile, restored);
+        boolean ok = restored.size() == original.size();
+        for (int id = original.nextId(0); ok && id >= 0; id = original.nextId(id + 1)) {
+            ok = original.get(id).displayStatus().equals(restored.get(id).displayStatus());
+        }
+        System.out.println((ok ? "PASS" : "FAIL") + " snapshot and log round trip, " + name);
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Verifies that a snapshot of format version 1, whose records have no battery anchor, is restored
+     * with the state it holds and a full battery.
+     *
+     * @param snapshot Snapshot file to write.
+     * @throws IOException If writing or reading fails.
+     */
+    private static void checkVersion1(Path snapshot) throws IOException {
+        ByteBuffer file = ByteBuffer.allocate(16 + 12).order(ByteOrder.LITTLE_ENDIAN);
+        file.putInt(0x53485353).putInt(1).putInt(1).putInt(0);
+        file.putInt(7).put((byte) DeviceType.LIGHT.ordinal()).put((byte) 1)
+                .put((byte) Brightnesslevel.HIGH.ordinal()).put((byte) LightColor.WHITE.ordinal()).putInt(0);
+        Files.write(snapshot, file.array());
+        DeviceRegistry restored = new DeviceRegistry();
+        DeviceSnapshot.read(snapshot, restored);
+        boolean ok = restored.size() == 1 && restored.get(7) instanceof Light light && light.isOn()
+                && light.getBrightnessLevel() == Brightnesslevel.HIGH && light.getBatteryLevel() == 100;
+        System.out.println((ok ? "PASS" : "FAIL") + " version 1 snapshot restored with full batteries");
+        if (!ok) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Writes a snapshot.
+     *
+     * @param registry Devices to save.
+     * @param snapshot Snapshot file.
+     * @return Number of devices written.
+     */
+    private static long write(DeviceRegistry registry, Path snapshot) {
+        try {
+            return DeviceSnapshot.write(registry, snapshot);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Restores a snapshot.
+     *
+     * @param snapshot Snapshot file.
+     * @param registry Empty registry.
+     * @return Number of devices restored.
+     */
+    private static long read(Path snapshot, DeviceRegistry registry) {
+        try {
+            return DeviceSnapshot.read(snapshot, registry);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Replays a log.
+     *
+     * @param logFile  Log file.
+     * @param registry Devices to apply the commands to.
+     * @return Number of commands replayed.
+     */
+    private static long replay(Path logFile, DeviceRegistry registry) {
+        try {
+            return CommandLog.replay(logFile, registry);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Appends one command per device to a new log.
+     *
+     * @param logFile Log file, replaced.
+     * @return Size of the log in bytes.
+     */
+    private static long append(Path logFile) {
+        try {
+            Files.deleteIfExists(logFile);
+            try (CommandLog log = new CommandLog(logFile)) {
+                for (int id = 0; id < DEVICES; id++) {
+                    log.append(Verb.TURN_ON, DeviceType.LIGHT, id, 0);
+                }
+            }
+            return Files.size(logFile);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,250 @@
+import com.sun.management.ThreadMXBean;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Check and benchmark of the camera recording pipeline.
+ *
+ * <p>Verifies for both registry kinds that every camera that is on and recording gets one frame per
+ * capture in segments of its own, numbered without gaps, carrying the angle of the camera at the
+ * time and the synthetic payload, that segments stay within their size, that StopRecording and
+ * TurnOff end a recording and a camera recording again starts a new segment, and that capturing
+ * and writing allocate nothing. Then measures the frames per second one thread can capture and
+ * write, and the number of cameras recording at FRAMES_PER_SECOND that rate sustains. The files
+ * are written to the page cache, so a slower disk lowers the sustained rate.</p>
+ *
+ * <p>Run with: {@code javac -d out src/*.java bench/*.java && java -cp out RecordingBenchmark}</p>
+ */
+public final class RecordingBenchmark {
+    private static final int FRAME_FILE_BYTES = CameraRecorder.HEADER_BYTES + CameraRecorder.FRAME_BYTES;
+    private static final long CHECK_SEGMENT_BYTES = 5L * FRAME_FILE_BYTES + 100;  // Segments of five frames
+    private static final int ALLOCATION_CAPTURES = 1_000;  // Captures whose allocations are measured
+    private static final int[] CAMERAS = {16, 256};  // Recording cameras of the benchmark rounds
+    private static final int CAPTURES = 25;  // Captures per round, a second of recording
+
+    private RecordingBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path directory = Files.createTempDirectory("recordings");
+        check(new DeviceRegistry(), directory.resolve("objects"), "device objects");
+        check(new DeviceRegistry(new DeviceStateStore(16)), directory.resolve("store"), "columnar store");
+        checkAllocations(directory.resolve("allocations"));
+
+        for (int cameras : CAMERAS) {
+            DeviceRegistry registry = new DeviceRegistry();
+            for (int id = 0; id < cameras; id++) {
+                registry.add(id, new Camera(Status.ON, false, true, id % 61 - 30));
+            }
+            DeviceEventBus bus = RuleEngine.newEventBus();
+            registry.setEventBus(bus);
+            Path segments = directory.resolve("cameras-" + cameras);
+            try (CameraRecorder recorder = new CameraRecorder(registry, bus, segments,
+                    CameraRecorder.DEFAULT_SEGMENT_BYTES)) {
+                double nanos = Bench.run("capture and write a frame, " + cameras + " cameras",
+                        (long) CAPTURES * cameras, () -> record(recorder, segments));
+                double frames = 1e9 / nanos;
+                System.out.printf("%,.0f frames/s, %,.0f MB/s: %,.0f cameras at %d frames/s%n", frames,
+                        frames * FRAME_FILE_BYTES / 1e6, frames / CameraRecorder.FRAMES_PER_SECOND,
+                        CameraRecorder.FRAMES_PER_SECOND);
+            }
+            delete(segments);
+        }
+        delete(directory);
+    }
+
+    /**
+     * Records cameras through angle changes, stops and restarts, and verifies the segments.
+     *
+     * @param registry  Empty registry.
+     * @param directory Directory of the segments.
+     * @param name      Description of the registry.
+     * @throws IOException If recording or reading the segments fails.
+     */
+    private static void check(DeviceRegistry registry, Path directory, String name) throws IOException {
+        registry.add(0, new Camera(Status.ON, false, true, 10));
+        registry.add(1, new Camera(Status.ON, false, true, 20));
+        registry.add(2, new Camera(Status.ON, false, true, 30));
+        registry.add(3, new Camera(Status.ON, false, false, 40));
+        registry.add(4, new Light(Status.ON, false, Brightnesslevel.LOW, LightColor.WHITE));
+        registry.add(5, new Camera(Status.OFF, false, true, 50));
+        DeviceEventBus bus = RuleEngine.newEventBus();
+        registry.setEventBus(bus);
+        List<List<Integer>> angles = new ArrayList<>();
+        List<List<Integer>> sessions = new ArrayList<>();
+        for (int id = 0; id < 6; id++) {
+            angles.add(new ArrayList<>());
+            sessions.add(new ArrayList<>(List.of(0)));
+        }
+        Camera zero = (Camera) registry.get(0);
+        Camera one = (Camera) registry.get(1);
+        boolean ok;
+        try (CameraRecorder recorder = new CameraRecorder(registry, bus, directory, CHECK_SEGMENT_BYTES)) {
+            ok = recorder.activeCount() == 3;
+            capture(recorder, registry, angles, sessions, 7);
+            zero.setCameraAngle(-15);
+            capture(recorder, registry, angles, sessions, 3);
+            one.stopRecording();
+            registry.get(2).turnOff();
+            ((Camera) registry.get(3)).startRecording();
+            capture(recorder, registry, angles, sessions, 4);
+            ok &= recorder.activeCount() == 2;
+            sessions.get(1).add(0);
+            one.startRecording();
+            capture(recorder, registry, angles, sessions, 2);
+            ok &= recorder.droppedFrames() == 0;
+            ok &= recorder.capturedFrames() == 7 * 3 + 3 * 3 + 4 * 2 + 2 * 3;
+        }
+        for (int id = 0; id < 6; id++) {
+            ok &= verify(directory, id, angles.get(id), sessions.get(id));
+        }
+        delete(directory);
+        Bench.check("cameras are recorded while on and recording, in segments of their own, " + name, ok);
+    }
+
+    /**
+     * Captures and writes frames, noting the expected angle of every frame.
+     *
+     * @param recorder Recorder of the registry.
+     * @param registry Recorded devices.
+     * @param angles   Expected angles of the frames of every camera, by ID.
+     * @param sessions Frames of every recording of every camera so far, by ID.
+     * @param count    Number of captures.
+     * @throws IOException If writing fails.
+     */
+    private static void capture(CameraRecorder recorder, DeviceRegistry registry, List<List<Integer>> angles,
+                                List<List<Integer>> sessions, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            recorder.capture();
+            recorder.drain();
+            for (int id = 0; id < angles.size(); id++) {
+                if (registry.get(id) instanceof Camera camera && camera.isOn() && camera.isRecording()) {
+                    angles.get(id).add(camera.getAngle());
+                    List<Integer> frames = sessions.get(id);
+                    frames.set(frames.size() - 1, frames.get(frames.size() - 1) + 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the segments of a camera back and compares them to the expected frames.
+     *
+     * @param directory Directory of the segments.
+     * @param deviceId  ID of the device.
+     * @param angles    Expected angle of every frame.
+     * @param sessions  Frames of every recording, possibly 0.
+     * @return Whether the segments hold exactly the expected frames within the segment size.
+     * @throws IOException If reading fails.
+     */
+    private static boolean verify(Path directory, int deviceId, List<Integer> angles, List<Integer> sessions)
+            throws IOException {
+        int expectedSegments = 0;
+        for (int frames : sessions) {
+            expectedSegments += (frames + 4) / 5;
+        }
+        boolean ok = true;
+        int frame = 0;
+        int segment = 0;
+        for (Path file = directory.resolve(CameraRecorder.segmentName(deviceId, 0)); Files.exists(file);
+             file = directory.resolve(CameraRecorder.segmentName(deviceId, ++segment))) {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file)).order(ByteOrder.LITTLE_ENDIAN);
+            ok &= buffer.limit() <= CHECK_SEGMENT_BYTES && buffer.limit() % FRAME_FILE_BYTES == 0;
+            while (ok && buffer.hasRemaining() && frame < angles.size()) {
+                ok = buffer.getInt() == CameraRecorder.FRAME_MAGIC && buffer.getInt() == deviceId
+                        && buffer.getLong() == frame && buffer.getLong() > 0 && buffer.getInt() == angles.get(frame)
+                        && buffer.getInt() == CameraRecorder.FRAME_BYTES;
+                long pattern = CameraRecorder.patternOf(deviceId, frame);
+                for (int offset = 0; ok && offset < CameraRecorder.FRAME_BYTES; offset += Long.BYTES) {
+                    ok = buffer.getLong() == pattern + offset;
+                }
+                frame++;
+            }
+            ok &= !buffer.hasRemaining();
+        }
+        return ok && frame == angles.size() && segment == expectedSegments;
+    }
+
+    /**
+     * Checks that capturing and writing frames allocates nothing once the segments are open.
+     *
+     * @param directory Directory of the segments.
+     * @throws IOException If recording fails.
+     */
+    private static void checkAllocations(Path directory) throws IOException {
+        DeviceRegistry registry = new DeviceRegistry();
+        for (int id = 0; id < 4; id++) {
+            registry.add(id, new Camera(Status.ON, false, true, id));
+        }
+        DeviceEventBus bus = RuleEngine.newEventBus();
+        registry.setEventBus(bus);
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long allocated = 0;
+        try (CameraRecorder recorder = new CameraRecorder(registry, bus, directory,
+                CameraRecorder.DEFAULT_SEGMENT_BYTES * 8)) {
+            for (int round = 0; round < 5; round++) {
+                long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+                for (int i = 0; i < ALLOCATION_CAPTURES; i++) {
+                    recorder.capture();
+                    recorder.drain();
+                }
+                allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+            }
+        }
+        delete(directory);
+        Bench.check("recording " + 4 * ALLOCATION_CAPTURES + " frames allocated " + allocated + " bytes",
+                allocated < 1024);
+    }
+
+    /**
+     * Captures and writes a second of frames of all cameras, then deletes the segments to bound the
+     * disk space of the benchmark.
+     *
+     * @param recorder Recorder of the cameras.
+     * @param segments Directory of the segments.
+     * @return Number of frames written.
+     */
+    private static long record(CameraRecorder recorder, Path segments) {
+        long written = 0;
+        try {
+            for (int i = 0; i < CAPTURES; i++) {
+                recorder.capture();
+                written += recorder.drain();
+            }
+            try (Stream<Path> files = Files.list(segments)) {
+                for (Path file : files.toList()) {
+                    Files.delete(file);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return written;
+    }
+
+    /**
+     * Deletes a directory and the files in it.
+     *
+     * @param directory Directory without subdirectories, or a directory of such directories.
+     * @throws IOException If deleting fails.
+     */
+    private static void delete(Path directory) throws IOException {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted((a, b) -> b.compareTo(a)).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,351 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Random;
+
+/**
+ * Checks and benchmark of the replication of the device state from a primary to followers.
+ *
+ * <p>The first check starts a follower in a second JVM, runs a random script of single device,
+ * bulk and transaction commands on the primary and polls the DisplayAllStatus of the follower over
+ * its command server until it matches, and checks that the follower refuses changes. The in-process
+ * checks then run a random script on registries of both kinds and compare every device of the
+ * follower with the primary once it caught up; break the connection and check that the follower
+ * resumes without a resync; let a follower fall further behind than a small backlog and check
+ * that it is resynced and converges again; and check that a follower joining after the batteries
+ * drained gets their levels with the resync and keeps them equal as the clock moves on.</p>
+ *
+ * <p>The benchmark runs a stream of commands without replication and with one follower, waiting
+ * until the follower applied every change, and reports the records per frame the follower got.</p>
+ *
+ * <p>Run with: {@code javac -d out src/*.java bench/*.java && java -cp out ReplicationBenchmark}</p>
+ */
+public final class ReplicationBenchmark {
+    private static final long SEED = 23;  // Seed of the generated scripts
+    private static final int CHECK_LINES = 20_000;  // Lines of a check script
+    private static final int BENCH_LINES = 400_000;  // Lines of the benchmark script
+    private static final int DEVICES = 1200;  // Devices of the in-process registries
+    private static final int SMALL_BACKLOG = 64;  // Backlog of the primary a follower falls behind
+    private static final long TIMEOUT_MILLIS = 20_000;  // Longest wait for a follower to catch up
+    private static final String[] TYPES = {"Light", "Camera", "Heater"};
+
+    private ReplicationBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        // The follower process computes battery levels from its own clock, so this check runs on the real one
+        checkProcess();
+
+        // Battery levels follow the clock, so stop it for the devices of both sides to compare equal
+        Instant time = Instant.now();
+        Battery.setClock(Clock.fixed(time, ZoneOffset.UTC));
+        for (boolean columnar : new boolean[] {false, true}) {
+            String kind = columnar ? "store" : "objects";
+            DeviceRegistry primaryDevices = registry(columnar, DEVICES);
+            DeviceRegistry followerDevices = registry(columnar, DEVICES);
+            try (ReplicationPrimary primary = primary(primaryDevices, ReplicationPrimary.DEFAULT_BACKLOG);
+                 ReplicationFollower follower = new ReplicationFollower(followerDevices, primary.getPort())) {
+                follower.start();
+                run(primaryDevices, script(CHECK_LINES, 0, DEVICES, true));
+                Bench.check(kind + ": the follower converges to the primary",
+                        caughtUp(primary, follower) && same(primaryDevices, followerDevices));
+
+                follower.disconnect();
+                run(primaryDevices, script(CHECK_LINES, 1, DEVICES, true));
+                Bench.check(kind + ": a reconnected follower resumes without a resync",
+                        caughtUp(primary, follower) && same(primaryDevices, followerDevices)
+                                && follower.getResyncs() == 1 && primary.getResyncs() == 1);
+            }
+
+            primaryDevices = registry(columnar, DEVICES);
+            followerDevices = registry(columnar, DEVICES);
+            try (ReplicationPrimary primary = primary(primaryDevices, SMALL_BACKLOG);
+                 ReplicationFollower follower = new ReplicationFollower(followerDevices, primary.getPort())) {
+                follower.start();
+                boolean first = caughtUp(primary, follower);
+                follower.disconnect();
+                run(primaryDevices, script(CHECK_LINES, 2, DEVICES, false));
+                Bench.check(kind + ": a follower behind the backlog is resynced and converges",
+                        first && caughtUp(primary, follower) && same(primaryDevices, followerDevices)
+                                && follower.getResyncs() == 2);
+            }
+
+            primaryDevices = registry(columnar, DEVICES);
+            try (ReplicationPrimary primary = primary(primaryDevices, ReplicationPrimary.DEFAULT_BACKLOG)) {
+                run(primaryDevices, script(CHECK_LINES, 5, DEVICES, true));
+                time = time.plus(Duration.ofHours(3));
+                Battery.setClock(Clock.fixed(time, ZoneOffset.UTC));
+                followerDevices = registry(columnar, DEVICES);
+                try (ReplicationFollower follower = new ReplicationFollower(followerDevices, primary.getPort())) {
+                    follower.start();
+                    boolean resynced = caughtUp(primary, follower) && same(primaryDevices, followerDevices);
+                    run(primaryDevices, script(CHECK_LINES, 6, DEVICES, true));
+                    boolean followed = caughtUp(primary, follower);
+                    time = time.plus(Duration.ofHours(2));
+                    Battery.setClock(Clock.fixed(time, ZoneOffset.UTC));
+                    Bench.check(kind + ": a resync carries the battery levels, which the follower keeps",
+                            resynced && followed && same(primaryDevices, followerDevices));
+                }
+            }
+        }
+
+        String stream = script(BENCH_LINES, 3, DEVICES, false);
+        DeviceRegistry plain = registry(false, DEVICES);
+        Bench.run("commands without replication", BENCH_LINES, () -> run(plain, stream));
+        DeviceRegistry primaryDevices = registry(false, DEVICES);
+        DeviceRegistry followerDevices = registry(false, DEVICES);
+        try (ReplicationPrimary primary = primary(primaryDevices, ReplicationPrimary.DEFAULT_BACKLOG);
+             ReplicationFollower follower = new ReplicationFollower(followerDevices, primary.getPort())) {
+            follower.start();
+            caughtUp(primary, follower);
+            long applied = follower.getApplied();
+            long frames = follower.getFrames();
+            Bench.run("commands replicated to a follower, until caught up", BENCH_LINES, () -> {
+                long changes = run(primaryDevices, stream);
+                if (!caughtUp(primary, follower)) {
+                    throw new IllegalStateException("The follower did not catch up");
+                }
+                return changes;
+            });
+            System.out.printf("changes replicated: %d, records per frame: %.1f%n", primary.getSequence(),
+                    (double) (follower.getApplied() - applied) / Math.max(1, follower.getFrames() - frames));
+        }
+    }
+
+    /**
+     * Checks a follower running in a second JVM, serving commands, against a primary in this one.
+     *
+     * @throws IOException If starting or talking to the follower process fails.
+     */
+    private static void checkProcess() throws IOException {
+        DeviceRegistry devices = registry(false, Main.DEFAULT_DEVICE_COUNT);
+        try (ReplicationPrimary primary = primary(devices, ReplicationPrimary.DEFAULT_BACKLOG)) {
+            Process process = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                    "-cp", System.getProperty("java.class.path"), "Main",
+                    "--follow", String.valueOf(primary.getPort()), "--server", "0")
+                    .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            try {
+                BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream(),
+                        StandardCharsets.UTF_8));
+                String line;
+                while ((line = output.readLine()) != null && !line.startsWith("Listening on localhost:")) {
+                    // Skip anything printed before the server is up
+                }
+                Bench.check("the follower process serves commands", line != null);
+                int port = Integer.parseInt(line.substring(line.indexOf(':') + 1));
+                run(devices, script(CHECK_LINES, 4, Main.DEFAULT_DEVICE_COUNT, true));
+                String expected = respond(devices, "DisplayAllStatus", false);
+                try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                            StandardCharsets.UTF_8));
+                    Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+                    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+                    boolean same = false;
+                    while (!same && System.currentTimeMillis() < deadline) {
+                        same = expected.equals(ask(in, out, "DisplayAllStatus", expected));
+                        if (!same) {
+                            sleep(50);
+                        }
+                    }
+                    Bench.check("the follower process converges to the primary", same);
+                    String refusal = respond(devices, "TurnOff Light 0", true);
+                    Bench.check("the follower process refuses changes",
+                            refusal.equals(ask(in, out, "TurnOff Light 0", refusal))
+                                    && expected.equals(ask(in, out, "DisplayAllStatus", expected)));
+                }
+            } finally {
+                process.destroy();
+            }
+        }
+    }
+
+    /**
+     * Sends one command to a command server and reads as many lines as an expected response has.
+     *
+     * @param in       Responses of the server.
+     * @param out      Requests to the server.
+     * @param line     Command line.
+     * @param expected Expected response, giving the number of lines to read.
+     * @return The lines read.
+     * @throws IOException If talking to the server fails.
+     */
+    private static String ask(BufferedReader in, Writer out, String line, String expected) throws IOException {
+        out.write(line + "\n");
+        out.flush();
+        StringBuilder response = new StringBuilder();
+        for (int i = expected.split("\n", -1).length - 1; i > 0; i--) {
+            response.append(in.readLine()).append('\n');
+        }
+        return response.toString();
+    }
+
+    /**
+     * Handles one command line and returns its response.
+     *
+     * @param registry Devices the command applies to.
+     * @param line     Command line.
+     * @param follower Whether to handle it like a follower, which refuses changes.
+     * @return The response.
+     * @throws IOException If handling fails.
+     */
+    private static String respond(DeviceRegistry registry, String line, boolean follower) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        ResponseWriter out = new ResponseWriter(stream);
+        CommandDispatcher dispatcher = new CommandDispatcher(registry, out);
+        if (follower) {
+            // A follower that is never started only marks the dispatcher as one of a follower
+            dispatcher.setFollower(new ReplicationFollower(registry, 0));
+        }
+        dispatcher.run(new CommandLexer(new StringReader(line + "\n")));
+        out.flush();
+        return stream.toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Creates and starts a primary replicating a registry on any free port.
+     *
+     * @param registry Devices to replicate; an event bus is attached to them.
+     * @param backlog  Number of changes kept for catching up.
+     * @return The primary.
+     * @throws IOException If the port cannot be bound.
+     */
+    private static ReplicationPrimary primary(DeviceRegistry registry, int backlog) throws IOException {
+        DeviceEventBus events = RuleEngine.newEventBus();
+        registry.setEventBus(events);
+        ReplicationPrimary primary = new ReplicationPrimary(registry, events, 0, backlog);
+        primary.start();
+        return primary;
+    }
+
+    /**
+     * Waits until a follower applied every change the primary got so far.
+     *
+     * @param primary  Primary of the follower.
+     * @param follower Follower to wait for.
+     * @return Whether the follower caught up before the timeout.
+     */
+    private static boolean caughtUp(ReplicationPrimary primary, ReplicationFollower follower) {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            // Read the lag first: once it is 0, the sequence includes every change published before
+            if (primary.lag() == 0 && follower.getEpoch() != 0 && follower.getSequence() == primary.getSequence()) {
+                return true;
+            }
+            Thread.yield();
+        }
+        return false;
+    }
+
+    /**
+     * Compares the status of every device of two registries.
+     *
+     * @param expected Devices of the primary.
+     * @param actual   Devices of the follower.
+     * @return Whether all devices have the same status.
+     */
+    private static boolean same(DeviceRegistry expected, DeviceRegistry actual) {
+        for (int id = expected.nextId(0); id >= 0; id = expected.nextId(id + 1)) {
+            if (actual.get(id) == null || !expected.get(id).displayStatus().equals(actual.get(id).displayStatus())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Generates a random command script for the devices of registry().
+     *
+     * @param lines   Number of lines.
+     * @param salt    Distinguishes the scripts of one run.
+     * @param count   Number of devices.
+     * @param awkward Whether to mix in bulk, transaction and invalid commands.
+     * @return The script.
+     */
+    private static String script(int lines, int salt, int count, boolean awkward) {
+        Random random = new Random(SEED + salt);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            String type = TYPES[random.nextInt(TYPES.length)];
+            int id = random.nextInt(count);
+            int kind = random.nextInt(awkward ? 12 : 9);
+            text.append(switch (kind) {
+                case 0, 1 -> "TurnOn " + type + " " + id;
+                case 2, 3 -> "TurnOff " + type + " " + id;
+                case 4 -> "SetAngle " + type + " " + id + " " + (random.nextInt(150) - 75);
+                case 5 -> "SetTemperature " + type + " " + id + " " + (10 + random.nextInt(25));
+                case 6 -> "SetColor " + type + " " + id + (random.nextBoolean() ? " WHITE" : " YELLOW");
+                case 7 -> "SetBrightness " + type + " " + id + (random.nextBoolean() ? " HIGH" : " LOW");
+                case 8 -> (random.nextBoolean() ? "StartRecording " : "StopRecording ") + type + " " + id;
+                case 9 -> (random.nextBoolean() ? "TurnOff " : "TurnOn ") + type + " " + id + "-"
+                        + (id + random.nextInt(50));
+                case 10 -> "Transaction TurnOn " + type + " " + id + " and SetTemperature Heater "
+                        + random.nextInt(count) + " " + (10 + random.nextInt(25));
+                default -> "nonsense " + id;
+            }).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Runs a script on the devices of a primary.
+     *
+     * @param registry Devices the commands apply to.
+     * @param script   Command script.
+     * @return The number of response bytes.
+     */
+    private static long run(DeviceRegistry registry, String script) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        ResponseWriter out = new ResponseWriter(stream);
+        try {
+            new CommandDispatcher(registry, out).run(new CommandLexer(new StringReader(script)));
+            out.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return stream.size();
+    }
+
+    /**
+     * Creates a registry laid out like the default devices: lights, then cameras, then heaters.
+     *
+     * @param columnar Whether the registry is backed by the columnar store.
+     * @param devices  Number of devices, a multiple of Main.DEFAULT_DEVICE_COUNT.
+     * @return The registry.
+     */
+    private static DeviceRegistry registry(boolean columnar, int devices) {
+        DeviceRegistry registry = columnar ? new DeviceRegistry(new DeviceStateStore(devices)) : new DeviceRegistry();
+        for (int id = 0; id < devices; id++) {
+            int slot = id % Main.DEFAULT_DEVICE_COUNT;
+            registry.add(id, slot < 4 ? new Light(Status.ON, false, Brightnesslevel.LOW, LightColor.YELLOW)
+                    : slot < 6 ? new Camera(Status.ON, false, false, Main.INITIAL_CAMERA_ANGLE)
+                    : new Heater(Status.ON, Main.INITIAL_HEATER_TEMP));
+        }
+        return registry;
+    }
+
+    /**
+     * Pauses the calling thread.
+     *
+     * @param millis Pause in milliseconds.
+     */
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
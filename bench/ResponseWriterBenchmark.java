@@ -0,0 +1,42 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Compares writing command responses with an auto-flushing PrintStream.printf, as Main used to,
+ * against the buffered ResponseWriter.
+ *
+ * <p>Run with: {@code javac -d out src/*.java bench/*.java && java -cp out ResponseWriterBenchmark}</p>
+ */
+public final class ResponseWriterBenchmark {
+    private static final int MESSAGES = 100_000;  // Messages written per measured call
+
+    private ResponseWriterBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        PrintStream printStream = new PrintStream(OutputStream.nullOutputStream(), true);
+        ResponseWriter writer = new ResponseWriter(OutputStream.nullOutputStream());
+
+        double printf = Bench.run("PrintStream.printf", MESSAGES, () -> {
+            for (int i = 0; i < MESSAGES; i++) {
+                printStream.printf("%s %d is on\n", "Light", i);
+                printStream.printf("Camera %d angle should be in the range [-60, 60]\n", i);
+            }
+            return MESSAGES;
+        });
+        double buffered = Bench.run("ResponseWriter", MESSAGES, () -> {
+            try {
+                for (int i = 0; i < MESSAGES; i++) {
+                    writer.append("Light").append(' ').append(i).append(" is on").newLine();
+                    writer.append("Camera ").append(i).append(" angle should be in the range [-60, 60]").newLine();
+                }
+                writer.flush();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return MESSAGES;
+        });
+        System.out.printf("speedup: %.1fx%n", printf / buffered);
+    }
+}
@@ -0,0 +1,273 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.util.Random;
+
+/**
+ * Check and benchmark of the automation rules.
+ *
+ * <p>Verifies that rules forming a cycle are rejected, that a chain of rules longer than the
+ * depth limit is cut at the limit, and that the example rules of the feature react as expected.
+ * Then measures the cost of a device change plus the evaluation of the rules it triggers as the
+ * number of rules grows, against evaluating every rule for every change.</p>
+ *
+ * <p>Run with: {@code javac -d out src/*.java bench/*.java && java -cp out RuleEngineBenchmark}</p>
+ */
+public final class RuleEngineBenchmark {
+    private static final long SEED = 42;  // Seed of the generated rules and changes
+    private static final int DEVICES = 100_000;  // Devices of the benchmark registry, a third of them heaters
+    private static final int[] RULE_COUNTS = {10, 1_000, 100_000};  // Rules per benchmark
+    private static final int TYPE_RULES = 10;  // Rules on every heater among them
+    private static final int CHANGES = 100_000;  // Device changes per benchmark round
+    private static final long SCAN_BUDGET = 100_000_000;  // Conditions evaluated per round of the full scan
+    private static final int CHAIN = RuleEngine.MAX_DEPTH + 4;  // Lights of the chain check
+
+    private RuleEngineBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        checkCycles();
+        checkChain();
+        checkExamples();
+
+        for (int rules : RULE_COUNTS) {
+            DeviceRegistry registry = populate();
+            DeviceEventBus bus = RuleEngine.newEventBus();
+            registry.setEventBus(bus);
+            RuleEngine engine = new RuleEngine(registry, bus, new ResponseWriter(OutputStream.nullOutputStream()));
+            String script = ruleScript(rules);
+            handle(registry, engine, script);
+            Command[] parsed = parseAll(script, rules);
+            int[] heaters = changedHeaters();
+            long evaluated = engine.getEvaluated();
+            changeAndPoll(registry, engine, heaters);
+            System.out.printf("%d rules: %.2f conditions evaluated per change%n", rules,
+                    (double) (engine.getEvaluated() - evaluated) / CHANGES);
+            Bench.run("change and indexed rules, " + rules + " rules", CHANGES,
+                    () -> changeAndPoll(registry, engine, heaters));
+            DeviceEventBus.Subscription subscription = bus.subscribe(OverflowPolicy.COALESCE);
+            int scanned = (int) Math.min(CHANGES, SCAN_BUDGET / rules);
+            Bench.run("change and scan of all rules, " + rules + " rules", scanned,
+                    () -> changeAndScan(registry, subscription, parsed, heaters, scanned));
+        }
+    }
+
+    /**
+     * Checks that rules closing a cycle are rejected and that other rules are accepted.
+     *
+     * @throws IOException If handling a command fails.
+     */
+    private static void checkCycles() throws IOException {
+        DeviceRegistry registry = populate(10);
+        DeviceEventBus bus = RuleEngine.newEventBus();
+        registry.setEventBus(bus);
+        RuleEngine engine = new RuleEngine(registry, bus, new ResponseWriter(OutputStream.nullOutputStream()));
+        handle(registry, engine, "When Light 0 Status = OFF TurnOn Light 0\n"
+                + "When Light 0 Status = ON TurnOff Light 1\n"
+                + "When Light 1 Status = OFF TurnOff Light 0\n"
+                + "When Light * Status = OFF TurnOn Light 0-3\n"
+                + "When Heater * Temperature > 28 SetTemperature Heater 5 20\n"
+                + "When Heater * Temperature < 18 SetTemperature Heater 5 20\n"
+                + "When Heater 5 Temperature = 20 SetTemperature Heater 8 28\n"
+                + "When Heater 8 Temperature >= 28 SetTemperature Heater 5 20\n");
+        Bench.check("rules closing a cycle are rejected", engine.size() == 5);
+    }
+
+    /**
+     * Checks that a chain of rules, each turning on the next light, is cut at the depth limit.
+     *
+     * @throws IOException If handling a command fails.
+     */
+    private static void checkChain() throws IOException {
+        DeviceRegistry registry = new DeviceRegistry();
+        for (int id = 0; id < CHAIN; id++) {
+            registry.add(id, new Light(Status.OFF, false, Brightnesslevel.LOW, LightColor.YELLOW));
+        }
+        DeviceEventBus bus = RuleEngine.newEventBus();
+        registry.setEventBus(bus);
+        RuleEngine engine = new RuleEngine(registry, bus, new ResponseWriter(OutputStream.nullOutputStream()));
+        StringBuilder script = new StringBuilder();
+        for (int id = 0; id + 1 < CHAIN; id++) {
+            script.append("When Light ").append(id).append(" Status = ON TurnOn Light ").append(id + 1).append('\n');
+        }
+        handle(registry, engine, script + "TurnOn Light 0\n");
+        while (engine.poll() > 0) {
+            // Run the chain until it stops
+        }
+        boolean ok = engine.size() == CHAIN - 1 && registry.get(RuleEngine.MAX_DEPTH).isOn()
+                && !registry.get(RuleEngine.MAX_DEPTH + 1).isOn() && engine.getSuppressed() == 1;
+        Bench.check("a chain of " + (CHAIN - 1) + " rules stops after " + RuleEngine.MAX_DEPTH + " actions", ok);
+    }
+
+    /**
+     * Checks the example rules: recording cameras turn lights on at HIGH, hot heaters stop charging.
+     *
+     * @throws IOException If handling a command fails.
+     */
+    private static void checkExamples() throws IOException {
+        DeviceRegistry registry = populate(12);
+        DeviceEventBus bus = RuleEngine.newEventBus();
+        registry.setEventBus(bus);
+        RuleEngine engine = new RuleEngine(registry, bus, new ResponseWriter(OutputStream.nullOutputStream()));
+        handle(registry, engine, "When Camera * Recording = true TurnOn Light 0-3\n"
+                + "When Camera * Recording = true SetBrightness Light 0-3 HIGH\n"
+                + "When Heater * Temperature > 28 StopCharging Light *\n"
+                + "TurnOff Light 0\nStartCharging Light 3\nStartRecording Camera 1\nSetTemperature Heater 2 29\n");
+        engine.poll();
+        Light light = (Light) registry.get(0);
+        boolean ok = light.isOn() && light.getBrightnessLevel() == Brightnesslevel.HIGH
+                && !((Light) registry.get(3)).isCharging();
+        Bench.check("example rules react to recording and temperature", ok);
+    }
+
+    /**
+     * Changes heaters and runs the rules after every change.
+     *
+     * @param registry Devices with an attached bus.
+     * @param engine   Rule engine of the bus.
+     * @param heaters  IDs of the heaters to change.
+     * @return Number of rule actions, to be consumed by the harness.
+     */
+    private static long changeAndPoll(DeviceRegistry registry, RuleEngine engine, int[] heaters) {
+        try {
+            long ran = 0;
+            for (int i = 0; i < CHANGES; i++) {
+                ((Heater) registry.get(heaters[i])).setTemperature(20 + (i & 7));
+                ran += engine.poll();
+            }
+            return ran;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Changes heaters and evaluates every rule condition after every change, without an index.
+     *
+     * @param registry     Devices with an attached bus.
+     * @param subscription Subscription to the bus.
+     * @param rules        Parsed rules.
+     * @param heaters      IDs of the heaters to change.
+     * @param changes      Number of changes.
+     * @return Number of matched conditions, to be consumed by the harness.
+     */
+    private static long changeAndScan(DeviceRegistry registry, DeviceEventBus.Subscription subscription,
+                                      Command[] rules, int[] heaters, int changes) {
+        long[] matched = {0};
+        DeviceEventBus.Handler scan = event -> {
+            for (Command rule : rules) {
+                if (rule.getAttribute() == event.getAttribute() && rule.matchesType(event.getDeviceType())
+                        && event.getDeviceId() >= rule.getDeviceId() && event.getDeviceId() <= rule.getLastDeviceId()
+                        && rule.getComparison().test(event.getValue(), rule.getArgument())) {
+                    matched[0]++;
+                }
+            }
+        };
+        for (int i = 0; i < changes; i++) {
+            ((Heater) registry.get(heaters[i])).setTemperature(20 + (i & 7));
+            subscription.poll(scan);
+        }
+        return matched[0];
+    }
+
+    /**
+     * Generates rules on single heaters that no change of the benchmark meets, plus a few rules
+     * on every heater.
+     *
+     * @param count Number of rules.
+     * @return Rule script.
+     */
+    private static String ruleScript(int count) {
+        Random random = new Random(SEED);
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            int light = random.nextInt(DEVICES / 3) * 3;
+            if (i < TYPE_RULES) {
+                script.append("When Heater * Temperature > 29 TurnOn Light ").append(light).append('\n');
+            } else {
+                int heater = random.nextInt(DEVICES / 3) * 3 + 2;
+                script.append("When Heater ").append(heater).append(" Temperature = ").append(15 + random.nextInt(5))
+                        .append(" TurnOff Light ").append(light).append('\n');
+            }
+        }
+        return script.toString();
+    }
+
+    /**
+     * Parses the rules of a script.
+     *
+     * @param script Rule script.
+     * @param count  Number of rules in the script.
+     * @return The parsed rules.
+     */
+    private static Command[] parseAll(String script, int count) {
+        try {
+            CommandLexer lexer = new CommandLexer(new StringReader(script));
+            Command[] rules = new Command[count];
+            for (int i = 0; lexer.nextLine(); i++) {
+                rules[i] = new Command();
+                CommandParser.parse(lexer, rules[i]);
+            }
+            return rules;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Picks the heaters changed by the benchmark.
+     *
+     * @return Random heater IDs, one per change.
+     */
+    private static int[] changedHeaters() {
+        Random random = new Random(SEED + 1);
+        int[] heaters = new int[CHANGES];
+        for (int i = 0; i < CHANGES; i++) {
+            heaters[i] = random.nextInt(DEVICES / 3) * 3 + 2;
+        }
+        return heaters;
+    }
+
+    /**
+     * Handles a command script with a dispatcher that adds rules to the engine, discarding the responses.
+     *
+     * @param registry Devices the commands apply to.
+     * @param engine   Rule engine.
+     * @param script   Command script.
+     * @throws IOException If handling a command fails.
+     */
+    private static void handle(DeviceRegistry registry, RuleEngine engine, String script) throws IOException {
+        CommandDispatcher dispatcher = new CommandDispatcher(registry,
+                new ResponseWriter(OutputStream.nullOutputStream()));
+        dispatcher.setRuleEngine(engine);
+        dispatcher.run(new CommandLexer(new StringReader(script)));
+    }
+
+    /**
+     * Creates the benchmark registry.
+     *
+     * @return A registry of DEVICES devices.
+     */
+    private static DeviceRegistry populate() {
+        return populate(DEVICES);
+    }
+
+    /**
+     * Creates lights, cameras and heaters in turn, starting with a light.
+     *
+     * @param count Number of devices.
+     * @return A registry with the devices under the IDs 0 to count - 1.
+     */
+    private static DeviceRegistry populate(int count) {
+        DeviceRegistry registry = new DeviceRegistry();
+        for (int id = 0; id < count; id++) {
+            registry.add(id, switch (id % 3) {
+                case 0 -> new Light(Status.ON, false, Brightnesslevel.LOW, LightColor.YELLOW);
+                case 1 -> new Camera(Status.ON, false, false, Main.INITIAL_CAMERA_ANGLE);
+                default -> new Heater(Status.ON, Main.INITIAL_HEATER_TEMP);
+            });
+        }
+        return registry;
+    }
+}
@@ -0,0 +1,190 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Random;
+
+/**
+ * Check and benchmark of the timing wheel and the command scheduler.
+ *
+ * <p>Verifies that timers with random deadlines up to beyond the range of the wheel expire exactly
+ * at their deadlines and in deadline order, that cancelled timers never expire, and that scheduled
+ * commands run at the right virtual times through the dispatcher. Then measures adding, cancelling
+ * and expiring a million timers.</p>
+ *
+ * <p>Run with: {@code javac -d out src/*.java bench/*.java && java -cp out SchedulerBenchmark}</p>
+ */
+public final class SchedulerBenchmark {
+    private static final long SEED = 42;  // Seed of the random deadlines
+    private static final int TIMERS = 1_000_000;  // Timers per benchmark round
+    private static final int CHECKED_TIMERS = 200_000;  // Timers of the expiry check
+    private static final long START = 1_760_000_000_000L;  // Virtual start time, in October 2025
+    private static final long HOUR = 3_600_000;  // Milliseconds per hour
+    private static final long DAY = 24 * HOUR;  // Milliseconds per day
+
+    private SchedulerBenchmark() {
+    }
+
+    /**
+     * Timer remembering when it expired.
+     */
+    private static final class TestTimer extends TimingWheel.Timer {
+        private long expiredAt = -1;  // Tick at which the timer was polled, or -1
+    }
+
+    /**
+     * Clock whose time only changes when it is set.
+     */
+    private static final class VirtualClock extends Clock {
+        private long millis;  // Current time in milliseconds
+
+        VirtualClock(long millis) {
+            this.millis = millis;
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long millis() {
+            return millis;
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(millis);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        checkExpiry();
+        checkScheduler();
+
+        Random random = new Random(SEED);
+        long[] delays = new long[TIMERS];
+        for (int i = 0; i < TIMERS; i++) {
+            delays[i] = 1 + random.nextInt((int) DAY);
+        }
+        TestTimer[] timers = new TestTimer[TIMERS];
+        for (int i = 0; i < TIMERS; i++) {
+            timers[i] = new TestTimer();
+        }
+        long[] round = {0};
+        Bench.run("add and cancel", 2L * TIMERS, () -> {
+            TimingWheel wheel = new TimingWheel(START + round[0]++ * DAY);
+            for (int i = 0; i < TIMERS; i++) {
+                wheel.add(timers[i], wheel.currentTick() + delays[i]);
+            }
+            for (int i = 0; i < TIMERS; i++) {
+                wheel.remove(timers[i]);
+            }
+            return wheel.size();
+        });
+        Bench.run("add and expire over a day", 2L * TIMERS, () -> {
+            TimingWheel wheel = new TimingWheel(START + round[0]++ * DAY);
+            long end = wheel.currentTick() + DAY;
+            for (int i = 0; i < TIMERS; i++) {
+                wheel.add(timers[i], wheel.currentTick() + delays[i]);
+            }
+            long expired = 0;
+            for (long tick = wheel.currentTick(); tick <= end; tick += 1000) {
+                wheel.advanceTo(tick);
+                while (wheel.pollExpired() != null) {
+                    expired++;
+                }
+            }
+            return expired;
+        });
+    }
+
+    /**
+     * Checks that timers expire at their deadlines and in order, advancing in random steps, and
+     * that cancelled timers do not expire.
+     */
+    private static void checkExpiry() {
+        Random random = new Random(SEED);
+        TimingWheel wheel = new TimingWheel(START);
+        TestTimer[] timers = new TestTimer[CHECKED_TIMERS];
+        for (int i = 0; i < CHECKED_TIMERS; i++) {
+            timers[i] = new TestTimer();
+            long delay = switch (i % 4) {
+                case 0 -> random.nextInt(100);
+                case 1 -> random.nextInt((int) HOUR);
+                case 2 -> (long) (random.nextDouble() * 400 * DAY);
+                default -> (long) (random.nextDouble() * 3000 * DAY);
+            };
+            wheel.add(timers[i], START + delay);
+        }
+        for (int i = 0; i < CHECKED_TIMERS; i += 7) {
+            wheel.remove(timers[i]);
+        }
+        boolean ordered = true;
+        long lastDeadline = Long.MIN_VALUE;
+        long end = START + 3001 * DAY;
+        while (wheel.currentTick() < end) {
+            long step = switch (random.nextInt(3)) {
+                case 0 -> 1 + random.nextInt(50);
+                case 1 -> 1 + random.nextInt((int) HOUR);
+                default -> 1 + (long) (random.nextDouble() * 30 * DAY);
+            };
+            long previous = wheel.currentTick();
+            wheel.advanceTo(Math.min(end, previous + step));
+            for (TimingWheel.Timer timer = wheel.pollExpired(); timer != null; timer = wheel.pollExpired()) {
+                ((TestTimer) timer).expiredAt = wheel.currentTick();
+                // A timer expires in the first advanceTo() reaching its deadline
+                ordered &= timer.getDeadline() > previous || timer.getDeadline() <= START;
+                ordered &= timer.getDeadline() >= lastDeadline;
+                lastDeadline = timer.getDeadline();
+            }
+        }
+        boolean exact = true;
+        for (int i = 0; i < CHECKED_TIMERS; i++) {
+            TestTimer timer = timers[i];
+            if (i % 7 == 0) {
+                exact &= timer.expiredAt < 0;
+            } else {
+                exact &= timer.expiredAt >= timer.getDeadline() && !timer.isScheduled();
+            }
+        }
+        Bench.check("timers expire at their deadlines, in order", ordered && exact && wheel.size() == 0);
+    }
+
+    /**
+     * Checks one-shot, recurring and cancelled schedules against a virtual clock.
+     *
+     * @throws IOException If handling a command fails.
+     */
+    private static void checkScheduler() throws IOException {
+        VirtualClock clock = new VirtualClock(START - START % DAY + 22 * HOUR);
+        DeviceRegistry registry = new DeviceRegistry();
+        registry.add(0, new Light(Status.ON, false, Brightnesslevel.HIGH, LightColor.YELLOW));
+        registry.add(6, new Heater(Status.ON, Main.INITIAL_HEATER_TEMP));
+        ByteArrayOutputStream responses = new ByteArrayOutputStream();
+        ResponseWriter out = new ResponseWriter(responses);
+        CommandScheduler scheduler = new CommandScheduler(registry, out, clock);
+        CommandDispatcher dispatcher = new CommandDispatcher(registry, out);
+        dispatcher.setScheduler(scheduler);
+        dispatcher.run(new CommandLexer(new StringReader("After 2h TurnOff Heater 6\n"
+                + "Daily 23:00 SetBrightness Light 0 LOW\nEvery 30m TurnOn Light 0\nAfter 1h TurnOn Heater 6\n"
+                + "CancelSchedule 4\nAfter 1h TurnOff Lamp 3\nEvery 0s TurnOn Light 0\nAfter 1h end\n")));
+        boolean ok = scheduler.size() == 4 && scheduler.runDue() == 0;
+
+        clock.millis += HOUR;
+        ok &= scheduler.runDue() == 3 && ((Light) registry.get(0)).getBrightnessLevel() == Brightnesslevel.LOW;
+        clock.millis += HOUR;
+        ok &= scheduler.runDue() == 2 && !registry.get(6).isOn() && scheduler.size() == 2;
+        clock.millis += DAY;
+        ok &= scheduler.runDue() == 2 && scheduler.size() == 2;
+        Bench.check("scheduled commands run at their virtual times", ok);
+    }
+}
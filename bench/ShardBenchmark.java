@@ -0,0 +1,231 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Equivalence checks and benchmark of the sharded execution of commands.
+ *
+ * <p>The first check runs a random script of valid, invalid, bulk, status and transaction commands
+ * through the sequential loop and through sharded dispatchers with 1 to 4 shards, homes of 1 and
+ * 3 IDs and rings of 1 and 1024 records, over device objects and over the columnar store, and
+ * compares the responses and the final device states byte for byte. The second runs one session
+ * per home concurrently and compares the responses of each with a sequential run of its script.</p>
+ *
+ * <p>The benchmark measures one command stream with growing shard counts, where parsing on the
+ * session thread bounds the throughput, and one session per home with as many shards as homes,
+ * which scales with the cores. With fewer cores than threads the shards take turns, so it then
+ * measures the hand-off overhead instead of a speedup.</p>
+ *
+ * <p>Run with: {@code javac -d out src/*.java bench/*.java && java -cp out ShardBenchmark}</p>
+ */
+public final class ShardBenchmark {
+    private static final long SEED = 17;  // Seed of the generated scripts
+    private static final int CHECK_LINES = 20_000;  // Lines of the check script
+    private static final int[] CHECK_SHARDS = {1, 2, 3, 4};  // Shard counts of the check
+    private static final int[] CHECK_HOME_SIZES = {1, 3};  // Home sizes of the check
+    private static final int[] CHECK_CAPACITIES = {1, 1024};  // Ring sizes of the check
+    private static final int HOMES = 4;  // Homes of the concurrent check and benchmark
+    private static final int BENCH_LINES = 400_000;  // Lines of the benchmark script of one stream
+    private static final int DEVICES = 1200;  // Devices of the registry, a multiple of HOMES
+    private static final String[] TYPES = {"Light", "Camera", "Heater", "Lamp"};
+
+    private ShardBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        // Battery levels follow the clock, so stop it for responses of different runs to compare equal
+        Battery.setClock(Clock.fixed(Instant.now(), ZoneOffset.UTC));
+        String check = script(CHECK_LINES, 0, DEVICES, true) + "end\nTurnOn Light 1\n";
+        for (boolean columnar : new boolean[] {false, true}) {
+            String kind = columnar ? "store" : "objects";
+            byte[] expected = handle(check, columnar, 0, 1, 1);
+            boolean same = true;
+            for (int shards : CHECK_SHARDS) {
+                for (int homeSize : CHECK_HOME_SIZES) {
+                    for (int capacity : CHECK_CAPACITIES) {
+                        same &= Arrays.equals(expected, handle(check, columnar, shards, homeSize, capacity));
+                    }
+                }
+            }
+            Bench.check(kind + ": sharded dispatchers answer like the sequential loop", same);
+        }
+
+        int homeSize = DEVICES / HOMES;
+        String[] scripts = new String[HOMES];
+        byte[][] expected = new byte[HOMES][];
+        for (int home = 0; home < HOMES; home++) {
+            scripts[home] = script(CHECK_LINES, home * homeSize, homeSize, false);
+            expected[home] = run(scripts[home], registry(false), 0, 1)[0];
+        }
+        byte[][] responses = run(scripts, registry(false), HOMES, homeSize);
+        boolean same = true;
+        for (int home = 0; home < HOMES; home++) {
+            same &= Arrays.equals(expected[home], responses[home]);
+        }
+        Bench.check("concurrent sessions of separate homes answer like sequential runs", same);
+
+        System.out.println("available processors: " + Runtime.getRuntime().availableProcessors());
+        String stream = script(BENCH_LINES, 0, DEVICES, false);
+        Bench.run("one stream, sequential loop", BENCH_LINES, () -> run(stream, registry(false), 0, 1)[0].length);
+        for (int shards = 1; shards <= HOMES; shards *= 2) {
+            int count = shards;
+            Bench.run("one stream, " + shards + (shards == 1 ? " shard" : " shards"), BENCH_LINES,
+                    () -> run(stream, registry(false), count, 1)[0].length);
+        }
+        for (int homes = 1; homes <= HOMES; homes *= 2) {
+            String[] homeScripts = new String[homes];
+            for (int home = 0; home < homes; home++) {
+                homeScripts[home] = script(BENCH_LINES / homes, home * homeSize, homeSize, false);
+            }
+            int count = homes;
+            String name = homes == 1 ? "1 stream of one home, 1 shard" : homes + " streams of separate homes, "
+                    + homes + " shards";
+            Bench.run(name, BENCH_LINES, () -> run(homeScripts, registry(false), count, homeSize)[0].length);
+        }
+    }
+
+    /**
+     * Generates a random command script for an ID range.
+     *
+     * @param lines   Number of lines.
+     * @param first   First device ID of the range.
+     * @param count   Number of device IDs of the range.
+     * @param awkward Whether to mix in invalid lines, unknown devices, bulk, status and transaction commands.
+     * @return The script.
+     */
+    private static String script(int lines, int first, int count, boolean awkward) {
+        Random random = new Random(SEED + first);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            String type = TYPES[random.nextInt(awkward ? TYPES.length : TYPES.length - 1)];
+            int id = first + random.nextInt(awkward ? count + 10 : count);
+            int kind = random.nextInt(awkward ? 13 : 8);
+            text.append(switch (kind) {
+                case 0, 1 -> "TurnOn " + type + " " + id;
+                case 2, 3 -> "TurnOff " + type + " " + id;
+                case 4 -> "SetAngle " + type + " " + id + " " + (random.nextInt(150) - 75);
+                case 5 -> "SetTemperature " + type + " " + id + " " + (10 + random.nextInt(25));
+                case 6 -> "SetColor " + type + " " + id + (random.nextBoolean() ? " WHITE" : " YELLOW");
+                case 7 -> "StartRecording " + type + " " + id;
+                case 8 -> "TurnOff " + type + " " + id + "-" + (id + random.nextInt(50));
+                case 9 -> random.nextInt(100) == 0 ? "DisplayAllStatus" : "TurnOn * *";
+                case 10 -> "SetBrightness " + type + " " + id + " LOUD";
+                case 11 -> "Transaction TurnOff " + type + " " + id + " and SetTemperature Heater "
+                        + (id + 2) + " " + (10 + random.nextInt(25));
+                default -> "nonsense " + id;
+            }).append('\n');
+        }
+        return text.toString();
+    }
+
+    /**
+     * Handles a script with fresh devices and appends their final status to the responses.
+     *
+     * @param script   Command script.
+     * @param columnar Whether the registry is backed by the columnar store.
+     * @param shards   Number of shards, or 0 for the sequential loop.
+     * @param homeSize Number of consecutive IDs kept in one shard.
+     * @param capacity Records in flight per session and per mailbox.
+     * @return The responses.
+     * @throws IOException If handling fails.
+     */
+    private static byte[] handle(String script, boolean columnar, int shards, int homeSize, int capacity)
+            throws IOException {
+        DeviceRegistry registry = registry(columnar);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        ResponseWriter out = new ResponseWriter(stream);
+        if (shards == 0) {
+            new CommandDispatcher(registry, out).run(new CommandLexer(new StringReader(script)));
+        } else {
+            try (ShardedDispatcher sharded = new ShardedDispatcher(registry, shards, homeSize, capacity)) {
+                sharded.start();
+                ShardedDispatcher.Session session = sharded.newSession(out);
+                session.run(new CommandLexer(new StringReader(script), session));
+            }
+        }
+        for (int id = registry.nextId(0); id >= 0; id = registry.nextId(id + 1)) {
+            out.println(registry.get(id).displayStatus());
+        }
+        out.flush();
+        return stream.toByteArray();
+    }
+
+    /**
+     * Runs one script, sequentially or in a session of a sharded dispatcher.
+     *
+     * @param script   Command script.
+     * @param registry Devices the commands apply to.
+     * @param shards   Number of shards, or 0 for the sequential loop.
+     * @param homeSize Number of consecutive IDs kept in one shard.
+     * @return The responses, as the only element.
+     */
+    private static byte[][] run(String script, DeviceRegistry registry, int shards, int homeSize) {
+        if (shards > 0) {
+            return run(new String[] {script}, registry, shards, homeSize);
+        }
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        ResponseWriter out = new ResponseWriter(stream);
+        try {
+            new CommandDispatcher(registry, out).run(new CommandLexer(new StringReader(script)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new byte[][] {stream.toByteArray()};
+    }
+
+    /**
+     * Runs several scripts concurrently, each in its own session of a sharded dispatcher.
+     *
+     * @param scripts  Command scripts.
+     * @param registry Devices the commands apply to.
+     * @param shards   Number of shards.
+     * @param homeSize Number of consecutive IDs kept in one shard.
+     * @return The responses of each script.
+     */
+    private static byte[][] run(String[] scripts, DeviceRegistry registry, int shards, int homeSize) {
+        byte[][] responses = new byte[scripts.length][];
+        Thread[] threads = new Thread[scripts.length];
+        try (ShardedDispatcher sharded = new ShardedDispatcher(registry, shards, homeSize)) {
+            sharded.start();
+            for (int i = 0; i < scripts.length; i++) {
+                int index = i;
+                threads[i] = new Thread(() -> {
+                    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+                    ShardedDispatcher.Session session = sharded.newSession(new ResponseWriter(stream));
+                    try {
+                        session.run(new CommandLexer(new StringReader(scripts[index]), session));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    responses[index] = stream.toByteArray();
+                });
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+        return responses;
+    }
+
+    /**
+     * Creates a registry of lights, cameras and heaters in turn.
+     *
+     * @param columnar Whether the registry is backed by the columnar store.
+     * @return A registry with DEVICES devices.
+     */
+    private static DeviceRegistry registry(boolean columnar) {
+        return Bench.devicesInTurn(columnar ? new DeviceRegistry(new DeviceStateStore(DEVICES))
+                : new DeviceRegistry(), DEVICES);
+    }
+}
@@ -0,0 +1,143 @@
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Benchmark of full status dumps with the cached status lines of the devices.
+ *
+ * <p>Dumps the status of every device the way DisplayAllStatus does, for a mostly idle registry
+ * where one device in a hundred changes between dumps and for a heavily mutating one where every
+ * device changes between dumps, and compares both with formatting every line with String.format
+ * as before. Before and after the runs it verifies that the cached lines match freshly formatted ones.</p>
+ *
+ * <p>Run with: {@code javac -d out src/*.java bench/*.java && java -cp out StatusCacheBenchmark}</p>
+ */
+public final class StatusCacheBenchmark {
+    private static final int DEVICES = 1 << 14;  // Devices in the registry
+    private static final int IDLE_STRIDE = 100;  // One device in this many changes between idle dumps
+
+    private StatusCacheBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        for (boolean columnar : new boolean[] {false, true}) {
+            DeviceRegistry registry = columnar ? new DeviceRegistry(new DeviceStateStore(DEVICES))
+                    : new DeviceRegistry();
+            for (int id = 0; id < DEVICES; id++) {
+                registry.add(id, switch (id % 3) {
+                    case 0 -> new Light(Status.ON, false, Brightnesslevel.LOW, LightColor.YELLOW);
+                    case 1 -> new Camera(Status.ON, false, false, 0);
+                    default -> new Heater(Status.ON, 20);
+                });
+            }
+            String name = columnar ? " (store views)" : " (standalone devices)";
+            ResponseWriter out = new ResponseWriter(OutputStream.nullOutputStream());
+            int[] round = new int[1];
+            verify(registry, name);
+            Bench.run("String.format dump" + name, DEVICES, () -> formatDump(registry));
+            Bench.run("cached dump, idle" + name, DEVICES, () -> {
+                mutate(registry, round[0]++, IDLE_STRIDE);
+                return dump(registry, out);
+            });
+            Bench.run("cached dump, mutating" + name, DEVICES, () -> {
+                mutate(registry, round[0]++, 1);
+                return dump(registry, out);
+            });
+            verify(registry, name);
+        }
+    }
+
+    /**
+     * Writes the status line of every device.
+     *
+     * @param registry Devices to dump.
+     * @param out      Destination of the lines.
+     * @return Number of bytes dumped, to be consumed by the harness.
+     */
+    private static long dump(DeviceRegistry registry, ResponseWriter out) {
+        long length = 0;
+        try {
+            for (int id = registry.nextId(0); id >= 0; id = registry.nextId(id + 1)) {
+                String line = registry.get(id).displayStatus();
+                out.println(line);
+                length += line.length();
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return length;
+    }
+
+    /**
+     * Formats the status line of every device with String.format, as displayStatus() did before the cache.
+     *
+     * @param registry Devices to format.
+     * @return Number of characters formatted, to be consumed by the harness.
+     */
+    private static long formatDump(DeviceRegistry registry) {
+        long length = 0;
+        for (int id = registry.nextId(0); id >= 0; id = registry.nextId(id + 1)) {
+            length += format(registry.get(id)).length();
+        }
+        return length;
+    }
+
+    /**
+     * Formats the status line of a device with String.format.
+     *
+     * @param device Device to format.
+     * @return The status line.
+     */
+    private static String format(SmartDevice device) {
+        if (device instanceof Light light) {
+            return String.format("Light %d is %s, the color is %s, the charging status is %s, the battery level is "
+                            + "%d%%, and the brightness level is %s.", light.getDeviceId(), light.getStatus(),
+                    light.getLightColor(), light.isCharging(), light.getBatteryLevel(), light.getBrightnessLevel());
+        }
+        if (device instanceof Camera camera) {
+            return String.format("Camera %d is %s, the angle is %d, the charging status is %s, the battery level is "
+                            + "%d%%, and the recording status is %s.", camera.getDeviceId(), camera.getStatus(),
+                    camera.getAngle(), camera.isCharging(), camera.getBatteryLevel(), camera.isRecording());
+        }
+        Heater heater = (Heater) device;
+        return String.format("Heater %d is %s and the temperature is %d.", heater.getDeviceId(),
+                heater.getStatus(), heater.getTemperature());
+    }
+
+    /**
+     * Changes one device in every stride, choosing different devices and values in every round.
+     *
+     * @param registry Devices to change.
+     * @param round    Number of the round.
+     * @param stride   Distance between changed device IDs.
+     */
+    private static void mutate(DeviceRegistry registry, int round, int stride) {
+        for (int id = round % stride; id < DEVICES; id += stride) {
+            SmartDevice device = registry.get(id);
+            if (device instanceof Light light) {
+                light.setBrightnessLevel(Brightnesslevel.values()[round % 3]);
+            } else if (device instanceof Camera camera) {
+                camera.setCameraAngle(round % 60);
+            } else {
+                ((Heater) device).setTemperature(15 + round % 16);
+            }
+        }
+    }
+
+    /**
+     * Checks that the cached status lines equal freshly formatted ones.
+     *
+     * @param registry Devices to check.
+     * @param name     Name of the representation.
+     */
+    private static void verify(DeviceRegistry registry, String name) {
+        for (int id = registry.nextId(0); id >= 0; id = registry.nextId(id + 1)) {
+            SmartDevice device = registry.get(id);
+            if (!device.displayStatus().equals(format(device))) {
+                System.out.println("FAIL stale status line" + name + ": " + device.displayStatus());
+                System.exit(1);
+            }
+        }
+        System.out.println("PASS cached status lines are current" + name);
+    }
+}
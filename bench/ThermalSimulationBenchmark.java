@@ -0,0 +1,87 @@
+/**
+ * Check and benchmark of the thermal simulation.
+ *
+ * <p>Verifies that a seed gives bitwise identical temperatures however the ticks are grouped into
+ * calls and whichever registry holds the heaters, and that rooms settle at the setpoint of a heater
+ * that is on and cool down towards the outdoor temperature otherwise. Then measures stepping a
+ * million rooms.</p>
+ *
+ * <p>Run with: {@code javac -d out src/*.java bench/*.java && java -cp out ThermalSimulationBenchmark}</p>
+ */
+public final class ThermalSimulationBenchmark {
+    private static final long SEED = 42;  // Seed of the simulations
+    private static final int ROOMS = 1_000_000;  // Heaters of the benchmark registry
+    private static final int CHECKED_ROOMS = 100_000;  // Heaters of the determinism check
+    private static final int CHECKED_TICKS = 3_600;  // Ticks of the determinism check
+    private static final int[] TICK_COUNTS = {1, 60};  // Ticks per call of the benchmark
+
+    private ThermalSimulationBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        checkDeterminism();
+        checkSettling();
+
+        ThermalSimulation simulation = new ThermalSimulation(populate(new DeviceRegistry(), ROOMS), SEED);
+        for (int ticks : TICK_COUNTS) {
+            double nanos = Bench.run("advance " + ROOMS + " rooms by " + ticks + " ticks, per room and tick",
+                    (long) ROOMS * ticks, () -> {
+                        simulation.advance(ticks);
+                        return simulation.elapsedMillis();
+                    });
+            System.out.printf("  %.0f times faster than real time%n",
+                    ThermalSimulation.TICK_MILLIS * 1e6 / (nanos * ROOMS));
+        }
+    }
+
+    /**
+     * Checks that the temperatures only depend on the seed and the number of ticks.
+     */
+    private static void checkDeterminism() {
+        ThermalSimulation whole = new ThermalSimulation(populate(new DeviceRegistry(), CHECKED_ROOMS), SEED);
+        whole.advance(CHECKED_TICKS);
+        ThermalSimulation steps = new ThermalSimulation(
+                populate(new DeviceRegistry(new DeviceStateStore(CHECKED_ROOMS)), CHECKED_ROOMS), SEED);
+        for (int done = 0, step = 1; done < CHECKED_TICKS; done += step, step++) {
+            steps.advance(Math.min(step, CHECKED_TICKS - done));
+        }
+        ThermalSimulation other = new ThermalSimulation(populate(new DeviceRegistry(), CHECKED_ROOMS), SEED + 1);
+        other.advance(CHECKED_TICKS);
+        boolean same = whole.elapsedMillis() == steps.elapsedMillis();
+        boolean differs = false;
+        for (int id = 0; id < CHECKED_ROOMS; id++) {
+            same &= Double.compare(whole.temperatureOf(id), steps.temperatureOf(id)) == 0;
+            differs |= whole.temperatureOf(id) != other.temperatureOf(id);
+        }
+        Bench.check("a seed gives the same temperatures however the ticks are grouped", same && differs);
+    }
+
+    /**
+     * Checks that rooms follow the setpoint of a heater that is on and cool down otherwise.
+     */
+    private static void checkSettling() {
+        DeviceRegistry registry = new DeviceRegistry();
+        registry.add(0, new Heater(Status.ON, 22));
+        registry.add(1, new Heater(Status.OFF, 22));
+        ThermalSimulation simulation = new ThermalSimulation(registry, SEED);
+        simulation.advance(24 * 3_600_000 / ThermalSimulation.TICK_MILLIS);
+        boolean ok = Math.abs(simulation.temperatureOf(0) - 22) < 0.5
+                && Math.abs(simulation.temperatureOf(1) - ThermalSimulation.OUTDOOR_TEMPERATURE) < 0.5
+                && Double.isNaN(simulation.temperatureOf(2));
+        Bench.check("rooms settle at the setpoint, or at the outdoor temperature when off", ok);
+    }
+
+    /**
+     * Adds heaters with setpoints from 15 to 30 under the IDs 0 to count - 1, every fifth one off.
+     *
+     * @param registry Empty registry.
+     * @param count    Number of heaters.
+     * @return The registry.
+     */
+    private static DeviceRegistry populate(DeviceRegistry registry, int count) {
+        for (int id = 0; id < count; id++) {
+            registry.add(id, new Heater(id % 5 == 0 ? Status.OFF : Status.ON, 15 + id % 16));
+        }
+        return registry;
+    }
+}
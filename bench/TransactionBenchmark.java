@@ -0,0 +1,360 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Check and benchmark of transactions changing several devices all or nothing.
+ *
+ * <p>Verifies for both registry kinds that a committed scene gives the responses and final state
+ * of its steps run as single commands, that a transaction with any rejected step changes nothing,
+ * including a color or brightness ordinal beyond its enum,
+ * that steps see the changes of the steps before them, that malformed transactions are invalid,
+ * and that the log of a transaction replays to the same state. A stress check races threads
+ * passing the power status between lights with conflicting transactions, while other threads
+ * change the lights with single commands, and verifies that exactly one light is on at the end.
+ * Then measures transactions against the same steps as single transitions, and the throughput of
+ * transactions on disjoint devices as the number of threads grows.</p>
+ *
+ * <p>Run with: {@code javac -d out src/*.java bench/*.java && java -cp out TransactionBenchmark}</p>
+ */
+public final class TransactionBenchmark {
+    private static final String SCENE = "Transaction TurnOn Light 0-3 and SetColor Light 0-3 WHITE"
+            + " and SetBrightness Light 0-3 HIGH and StartRecording Camera 4";
+    private static final String[] SCENE_STEPS = {"TurnOn Light %d", "SetColor Light %d WHITE",
+        "SetBrightness Light %d HIGH"};
+    private static final String[][] ABORTED = {
+        {"Transaction TurnOn Light 0 and SetColor Light 6 WHITE", "SetColor Light 6 WHITE"},
+        {"Transaction TurnOn Light 0 and SetAngle Camera 4 61", "SetAngle Camera 4 61"},
+        {"Transaction SetTemperature Heater 5 25 and TurnOn Light 42", "TurnOn Light 42"},
+        {"Transaction TurnOn Light 0 and StartRecording Light 1", "StartRecording Light 1"},
+        {"Transaction TurnOn Light 0-3 and SetColor Light 0-3 BLUE", "SetColor Light 0 BLUE"},
+        {"Transaction TurnOn Light 6 and TurnOff Light 6 and SetBrightness Light 6 HIGH",
+            "SetBrightness Light 6 HIGH"}
+    };
+    private static final String[] INVALID = {
+        "Transaction", "Transaction Stats", "Transaction TurnOn Light 0 and", "Transaction and TurnOn Light 0",
+        "Transaction TurnOn Light 0 and Transaction TurnOn Light 1", "Transaction RoomTemperature Heater 5",
+        "Transaction TurnOn Light 0 and and TurnOn Light 1", "Transaction After 1m TurnOn Light 0"
+    };
+    private static final int STRESS_LIGHTS = 8;  // Lights passing the power status around
+    private static final int STRESS_TRANSACTIONS = 50_000;  // Transactions per passing thread
+    private static final int BENCH_TRANSACTIONS = 200_000;  // Transactions per thread and round
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    private TransactionBenchmark() {
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Battery.setClock(Clock.fixed(Instant.now(), ZoneOffset.UTC));
+        for (boolean columnar : new boolean[] {false, true}) {
+            String name = columnar ? "columnar store" : "device objects";
+            checkScene(columnar, name);
+            checkAborted(columnar, name);
+            checkLog(columnar, name);
+            stress(registry(columnar, STRESS_LIGHTS), name);
+        }
+        checkInvalid();
+
+        for (boolean columnar : new boolean[] {false, true}) {
+            String name = columnar ? ", columnar store" : ", device objects";
+            DeviceRegistry registry = registry(columnar, 4);
+            CommandDispatcher dispatcher = new CommandDispatcher(registry, null);
+            Bench.run("transaction of 4 steps" + name, BENCH_TRANSACTIONS, () -> transactions(dispatcher, 0));
+            Bench.run("4 single transitions" + name, BENCH_TRANSACTIONS, () -> transitions(registry));
+        }
+        for (int threads = 1; threads <= THREADS; threads *= 2) {
+            scale(false, threads);
+            scale(true, threads);
+        }
+    }
+
+    /**
+     * Commits a scene and compares it with its steps run as single commands on an identical registry.
+     *
+     * @param columnar Whether the registries are backed by a store.
+     * @param name     Description of the registries.
+     * @throws IOException If executing fails.
+     */
+    private static void checkScene(boolean columnar, String name) throws IOException {
+        DeviceRegistry registry = populate(columnar);
+        DeviceRegistry expected = populate(columnar);
+        StringBuilder singles = new StringBuilder();
+        for (String step : SCENE_STEPS) {
+            for (int id = 0; id < 4; id++) {
+                singles.append(String.format(step, id)).append('\n');
+            }
+        }
+        singles.append("StartRecording Camera 4\n");
+        String response = run(registry, SCENE);
+        boolean ok = response.equals(run(expected, singles.toString())
+                + "Transaction: 13 steps committed, 5 devices changed\n");
+        ok &= run(registry, "DisplayAllStatus").equals(run(expected, "DisplayAllStatus"));
+        String again = run(registry, SCENE);
+        ok &= again.endsWith("Transaction: 13 steps committed, 0 devices changed\n");
+        ok &= run(registry, "Transaction TurnOn Light 6 and SetColor Light 6 WHITE").endsWith(
+                "Transaction: 2 steps committed, 1 devices changed\n");
+        Bench.check("a scene commits like its steps run one by one, " + name, ok);
+    }
+
+    /**
+     * Runs transactions with a rejected step and verifies that they change nothing.
+     *
+     * @param columnar Whether the registries are backed by a store.
+     * @param name     Description of the registries.
+     * @throws IOException If executing fails.
+     */
+    private static void checkAborted(boolean columnar, String name) throws IOException {
+        DeviceRegistry registry = populate(columnar);
+        DeviceRegistry reference = populate(columnar);
+        run(reference, "TurnOn Light 0");
+        String status = run(registry, "DisplayAllStatus");
+        boolean ok = true;
+        for (String[] line : ABORTED) {
+            String response = run(registry, line[0]);
+            ok &= response.equals(run(reference, line[1]) + "Transaction: aborted, no device was changed\n");
+            ok &= run(registry, "DisplayAllStatus").equals(status);
+        }
+        // Ordinals beyond the enums, as a binary request could carry them, abort instead of throwing
+        ResponseWriter discard = new ResponseWriter(OutputStream.nullOutputStream());
+        CommandDispatcher dispatcher = new CommandDispatcher(registry, discard);
+        for (Verb verb : new Verb[] {Verb.SET_COLOR, Verb.SET_BRIGHTNESS}) {
+            Transaction transaction = dispatcher.newTransaction().add(Verb.TURN_ON, DeviceType.LIGHT, 0, 0)
+                    .add(verb, DeviceType.LIGHT, 0, Short.MAX_VALUE);
+            ok &= !commit(transaction) && transaction.getRejection() == (verb == Verb.SET_COLOR
+                    ? ResponseCode.UNKNOWN_COLOR : ResponseCode.UNKNOWN_BRIGHTNESS);
+            ok &= run(registry, "DisplayAllStatus").equals(status);
+        }
+        Bench.check("a transaction with a rejected step changes nothing, " + name, ok);
+    }
+
+    /**
+     * Logs committed and aborted transactions and replays the log into a fresh registry.
+     *
+     * @param columnar Whether the registries are backed by a store.
+     * @param name     Description of the registries.
+     * @throws IOException If executing or replaying fails.
+     */
+    private static void checkLog(boolean columnar, String name) throws IOException {
+        Path file = Files.createTempFile("transactions", ".log");
+        DeviceRegistry registry = populate(columnar);
+        try (CommandLog log = new CommandLog(file)) {
+            ResponseWriter out = new ResponseWriter(ByteArrayOutputStream.nullOutputStream());
+            CommandDispatcher dispatcher = new CommandDispatcher(registry, out);
+            dispatcher.setLog(log);
+            dispatcher.run(new CommandLexer(new StringReader(SCENE + "\n" + ABORTED[0][0]
+                    + "\nTransaction SetAngle Camera 4 -20 and SetTemperature Heater 5 28 and TurnOff Light 2\n")));
+        }
+        DeviceRegistry replayed = populate(columnar);
+        int records = CommandLog.replay(file, replayed);
+        Files.delete(file);
+        Bench.check("the log of transactions replays to the same state, " + name,
+                records == 16 && run(replayed, "DisplayAllStatus").equals(run(registry, "DisplayAllStatus")));
+    }
+
+    /**
+     * Checks that malformed transactions are invalid and that a transaction can be scheduled.
+     *
+     * @throws IOException If executing fails.
+     */
+    private static void checkInvalid() throws IOException {
+        boolean ok = true;
+        for (String line : INVALID) {
+            ok &= run(populate(false), line).equals("Invalid command\n");
+        }
+        CommandLexer lexer = new CommandLexer(new StringReader("After 1m " + SCENE));
+        Command command = new Command();
+        ok &= lexer.nextLine() && CommandParser.parse(lexer, command)
+                && command.getDeferred().getVerb() == Verb.TRANSACTION && command.getDeferred().getSteps().length == 4;
+        Bench.check("malformed transactions are invalid", ok);
+    }
+
+    /**
+     * Races threads passing the power status between lights with transactions that require the
+     * source light to be on, against threads changing the color of the lights, and verifies that
+     * exactly one light is on at the end.
+     *
+     * @param registry Registry of STRESS_LIGHTS lights, light 0 on.
+     * @param name     Description of the registry.
+     * @throws InterruptedException If interrupted while waiting for the threads.
+     */
+    private static void stress(DeviceRegistry registry, String name) throws InterruptedException {
+        CommandDispatcher dispatcher = new CommandDispatcher(registry, null);
+        int passing = Math.max(4, THREADS * 2);
+        AtomicLong committed = new AtomicLong();
+        AtomicLong retries = new AtomicLong();
+        List<Thread> started = new ArrayList<>();
+        for (int i = 0; i < passing + 2; i++) {
+            boolean passer = i < passing;
+            Thread thread = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int n = 0; n < STRESS_TRANSACTIONS; n++) {
+                    int from = random.nextInt(STRESS_LIGHTS);
+                    int to = (from + 1 + random.nextInt(STRESS_LIGHTS - 1)) % STRESS_LIGHTS;
+                    if (!passer) {
+                        ((Light) registry.get(from)).setLightColor(LightColor.values()[n & 1]);
+                        continue;
+                    }
+                    Transaction transaction = dispatcher.newTransaction()
+                            .add(Verb.SET_BRIGHTNESS, DeviceType.LIGHT, from, n % 3)
+                            .add(Verb.TURN_OFF, DeviceType.LIGHT, from, 0)
+                            .add(Verb.TURN_ON, DeviceType.LIGHT, to, 0);
+                    if (commit(transaction)) {
+                        committed.incrementAndGet();
+                    }
+                    retries.addAndGet(transaction.getRetries());
+                }
+            });
+            thread.start();
+            started.add(thread);
+        }
+        for (Thread thread : started) {
+            thread.join();
+        }
+        int on = 0;
+        for (int id = 0; id < STRESS_LIGHTS; id++) {
+            on += registry.get(id).isOn() ? 1 : 0;
+        }
+        System.out.printf("%d of %d transactions committed, %d retries%n", committed.get(),
+                (long) passing * STRESS_TRANSACTIONS, retries.get());
+        Bench.check("conflicting transactions keep exactly one light on, " + passing + " threads, " + name,
+                on == 1 && committed.get() > 0);
+    }
+
+    /**
+     * Measures transactions on disjoint devices, one set of four lights per thread.
+     *
+     * @param columnar Whether the registry is backed by a store.
+     * @param threads  Number of threads.
+     * @throws InterruptedException If interrupted while waiting for the threads.
+     */
+    private static void scale(boolean columnar, int threads) throws InterruptedException {
+        CommandDispatcher dispatcher = new CommandDispatcher(registry(columnar, threads * 4), null);
+        List<Thread> started = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            int first = i * 4;
+            Thread thread = new Thread(() -> transactions(dispatcher, first));
+            thread.start();
+            started.add(thread);
+        }
+        for (Thread thread : started) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("scale  %-15s %2d threads: %8.2f M transactions/s%n",
+                columnar ? "columnar store" : "device objects", threads,
+                (double) threads * BENCH_TRANSACTIONS / seconds / 1e6);
+    }
+
+    /**
+     * Commits BENCH_TRANSACTIONS transactions of four steps on four lights.
+     *
+     * @param dispatcher Dispatcher of the lights.
+     * @param first      ID of the first of the lights.
+     * @return Number of steps that changed a light.
+     */
+    private static long transactions(CommandDispatcher dispatcher, int first) {
+        long changes = 0;
+        for (int n = 0; n < BENCH_TRANSACTIONS; n++) {
+            Transaction transaction = dispatcher.newTransaction()
+                    .add(Verb.TURN_ON, DeviceType.LIGHT, first + (n & 3), 0)
+                    .add(Verb.TURN_OFF, DeviceType.LIGHT, first + ((n + 1) & 3), 0)
+                    .add(Verb.SET_BRIGHTNESS, DeviceType.LIGHT, first + (n & 3), n % 3)
+                    .add(Verb.SET_COLOR, DeviceType.LIGHT, first + (n & 3), n & 1);
+            commit(transaction);
+            changes += transaction.changes();
+        }
+        return changes;
+    }
+
+    /**
+     * Applies the steps of transactions() as single transitions, without validating them together.
+     *
+     * @param registry Registry of four lights.
+     * @return Number of transitions that changed a light.
+     */
+    private static long transitions(DeviceRegistry registry) {
+        long changes = 0;
+        for (int n = 0; n < BENCH_TRANSACTIONS; n++) {
+            Light light = (Light) registry.get(n & 3);
+            changes += light.turnOn() ? 1 : 0;
+            changes += registry.get((n + 1) & 3).turnOff() ? 1 : 0;
+            light.setBrightnessLevel(Brightnesslevel.values()[n % 3]);
+            light.setLightColor(LightColor.values()[n & 1]);
+        }
+        return changes;
+    }
+
+    /**
+     * Commits a transaction without a log.
+     *
+     * @param transaction Transaction to commit.
+     * @return Whether it committed.
+     */
+    private static boolean commit(Transaction transaction) {
+        try {
+            return transaction.commit();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Adds four lights, Light 0-3, off, a camera 4 that is on, a heater 5 that is on and a light 6 that is off.
+     *
+     * @param columnar Whether the registry is backed by a store.
+     * @return The registry.
+     */
+    private static DeviceRegistry populate(boolean columnar) {
+        DeviceRegistry registry = columnar ? new DeviceRegistry(new DeviceStateStore(8)) : new DeviceRegistry();
+        for (int id = 0; id < 4; id++) {
+            registry.add(id, new Light(Status.OFF, false, Brightnesslevel.LOW, LightColor.YELLOW));
+        }
+        registry.add(4, new Camera(Status.ON, false, false, 0));
+        registry.add(5, new Heater(Status.ON, 20));
+        registry.add(6, new Light(Status.OFF, false, Brightnesslevel.MEDIUM, LightColor.YELLOW));
+        return registry;
+    }
+
+    /**
+     * Creates a registry of lights, only the first of them on.
+     *
+     * @param columnar Whether the registry is backed by a store.
+     * @param lights   Number of lights.
+     * @return The registry.
+     */
+    private static DeviceRegistry registry(boolean columnar, int lights) {
+        DeviceRegistry registry = columnar ? new DeviceRegistry(new DeviceStateStore(lights)) : new DeviceRegistry();
+        for (int id = 0; id < lights; id++) {
+            registry.add(id, new Light(id == 0 ? Status.ON : Status.OFF, false, Brightnesslevel.LOW,
+                    LightColor.YELLOW));
+        }
+        return registry;
+    }
+
+    /**
+     * Runs a script and collects the responses.
+     *
+     * @param registry Devices the commands apply to.
+     * @param script   Command lines.
+     * @return The responses.
+     * @throws IOException If executing fails.
+     */
+    private static String run(DeviceRegistry registry, String script) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new CommandDispatcher(registry, new ResponseWriter(bytes)).run(new CommandLexer(new StringReader(script)));
+        return bytes.toString(StandardCharsets.UTF_8);
+    }
+}
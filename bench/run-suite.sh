@@ -0,0 +1,9 @@
+#!/bin/sh
+# Compiles the sources and benchmarks and runs the regression suite with a fixed heap,
+# writing the results as JSON to the given file (bench-results.json by default).
+set -e
+root=$(cd "$(dirname "$0")/.." && pwd)
+out=$(mktemp -d)
+trap 'rm -rf "$out"' EXIT
+javac -d "$out" "$root"/src/*.java "$root"/bench/*.java
+java -Xms2g -Xmx2g -XX:+AlwaysPreTouch -cp "$out" BenchmarkSuite "${1:-bench-results.json}"
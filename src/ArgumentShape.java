@@ -0,0 +1,37 @@
+/**
+ * Enumeration for the arguments a command expects after its verb.
+ */
+public enum ArgumentShape {
+    NONE(false),              // No arguments at all
+    NUMBER(false),            // A non-negative number, e.g. the ID of a schedule
+    DURATION(false),          // A duration such as "90m"
+    DELAY_COMMAND(false),     // A duration such as "90m", then a command to schedule
+    TIME_COMMAND(false),      // A time of day such as "23:00", then a command to schedule
+    CONDITION_COMMAND(false), // Devices, an attribute, a comparison and a value, then a command to run
+    QUERY(false),             // Devices, then any conditions on their attributes joined by "and"
+    STEPS(false),             // Commands changing devices joined by "and"
+    DEVICE(true),             // Device name and device ID
+    DEVICE_NUMBER(true),      // Device name, device ID and a non-negative number
+    DEVICE_SIGNED(true),      // Device name, device ID and a possibly negative number
+    DEVICE_WORD(true);        // Device name, device ID and a word without digits
+
+    private final boolean addressesDevice;  // Whether the arguments start with a device name and ID
+
+    /**
+     * Constructor to initialize an argument shape.
+     *
+     * @param addressesDevice Whether the arguments start with a device name and ID.
+     */
+    ArgumentShape(boolean addressesDevice) {
+        this.addressesDevice = addressesDevice;
+    }
+
+    /**
+     * Checks whether the arguments start with a device name and ID.
+     *
+     * @return true for the device shapes, false for commands without a device.
+     */
+    public boolean addressesDevice() {
+        return addressesDevice;
+    }
+}
@@ -0,0 +1,90 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Batch mode executing a command file through the same dispatcher as the console and writing
+ * the responses to an output file, which gets exactly the bytes the console would print for the
+ * file on standard input.
+ *
+ * <p>The input is memory-mapped in windows and the responses pass through a fixed buffer, so
+ * memory use does not grow with the size of the files. Progress and throughput are reported
+ * periodically while the replay runs and once at the end.</p>
+ */
+public final class BatchReplay {
+    private static final int OUTPUT_BUFFER = 1 << 20;  // Response buffer, in bytes
+    private static final long PROGRESS_SECONDS = 2;  // Period of the progress reports
+    private static final double MEGABYTE = 1 << 20;  // Bytes per megabyte in the reports
+
+    private BatchReplay() {
+    }
+
+    /**
+     * Executes all commands of a file until its end or an "end" line.
+     *
+     * @param registry  Devices the commands apply to.
+     * @param input     Command file.
+     * @param output    File receiving the responses, replaced if it exists.
+     * @param log       Write-ahead log of the commands that change a device, or null.
+     * @param stats     Statistics of the handled commands, or null.
+     * @param pipelined Whether to parse, execute and write in a CommandPipeline instead of one thread.
+     * @param progress  Destination of the progress reports, e.g. System.err.
+     * @return Number of lines read.
+     * @throws IOException If a file cannot be read or written.
+     */
+    public static long run(DeviceRegistry registry, Path input, Path output, CommandLog log, CommandStats stats,
+                           boolean pipelined, PrintStream progress) throws IOException {
+        ScheduledExecutorService reports = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "replay-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long start = System.nanoTime();
+        try (MappedCommandLexer lexer = new MappedCommandLexer(input);
+             OutputStream stream = Files.newOutputStream(output)) {
+            ResponseWriter out = new ResponseWriter(stream, OUTPUT_BUFFER);
+            CommandDispatcher dispatcher = new CommandDispatcher(registry, out);
+            dispatcher.setLog(log);
+            dispatcher.setStats(stats);
+            reports.scheduleAtFixedRate(() -> report(progress, lexer, start, false),
+                    PROGRESS_SECONDS, PROGRESS_SECONDS, TimeUnit.SECONDS);
+            if (pipelined) {
+                new CommandPipeline(dispatcher, out).run(lexer);
+            } else {
+                dispatcher.run(lexer);
+            }
+            reports.shutdownNow();
+            lexer.publishProgress();
+            report(progress, lexer, start, true);
+            return lexer.getProgressLines();
+        } finally {
+            reports.shutdownNow();
+        }
+    }
+
+    /**
+     * Prints how far the replay got and how fast it is, e.g.
+     * "Replayed 42% (512.0 of 1219.3 MB), 30000000 lines, 180.4 MB/s, 10.6 M lines/s".
+     *
+     * @param progress Destination of the report.
+     * @param lexer    Lexer of the running replay.
+     * @param start    System.nanoTime() when the replay started.
+     * @param done     Whether the replay has finished.
+     */
+    private static void report(PrintStream progress, MappedCommandLexer lexer, long start, boolean done) {
+        long bytes = lexer.getProgressBytes();
+        long lines = lexer.getProgressLines();
+        double seconds = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+        long size = lexer.size();
+        progress.println(String.format(Locale.ROOT, "%s %d%% (%.1f of %.1f MB), %d lines, %.1f MB/s, %.1f M lines/s%s",
+                done ? "Replayed" : "Replaying", size == 0 ? 100 : bytes * 100 / size, bytes / MEGABYTE,
+                size / MEGABYTE, lines, bytes / MEGABYTE / seconds, lines / 1e6 / seconds,
+                done ? String.format(Locale.ROOT, " in %.2f s", seconds) : ""));
+    }
+}
@@ -0,0 +1,163 @@
+import java.time.Clock;
+
+/**
+ * Battery model of the chargeable devices, and layout of the anchor word from which the level of
+ * a battery is computed lazily.
+ *
+ * <p>A battery charges while its device is charging and drains while the device is on, a camera
+ * faster while it records; see ratePerHour(). The rate only changes with these transitions, so a
+ * device keeps the level it had at its last transition and the time of that transition in one
+ * anchor word, and the level at any later time follows from the anchor and the rate of the current
+ * state. Nothing runs while nobody reads a level: reading costs a clock read and a multiplication,
+ * and every transition that changes the rate settles the anchor to the level at that moment.</p>
+ *
+ * <pre>
+ * bits  0-19   level in units of 1/1000 percent, 0 to 100000
+ * bits 20-63   milliseconds since the epoch of the clock when the level was settled
+ * </pre>
+ */
+public final class Battery {
+    public static final int FULL_LEVEL = 100;  // Level of a full battery, in percent
+    public static final int LOW_LEVEL = 15;  // Highest level reported as low, in percent
+    public static final int LIGHT_DRAIN_PER_HOUR = 10;  // Percent a light uses per hour while on
+    public static final int CAMERA_DRAIN_PER_HOUR = 6;  // Percent a camera uses per hour while on
+    public static final int RECORDING_DRAIN_PER_HOUR = 14;  // Percent a camera uses per hour on top while recording
+    public static final int CHARGE_PER_HOUR = 50;  // Percent gained per hour while charging
+    public static final long RATE_BITS = DeviceState.ON | DeviceState.CHARGING | DeviceState.RECORDING;
+    private static final int UNITS_PER_PERCENT = 1000;  // Resolution of the stored level
+    private static final int FULL_UNITS = FULL_LEVEL * UNITS_PER_PERCENT;  // Stored level of a full battery
+    private static final long MILLIS_PER_HOUR = 3_600_000;
+    private static final int TIME_SHIFT = 20;  // Position of the settling time in an anchor
+    private static final long LEVEL = (1L << TIME_SHIFT) - 1;  // Level bits of an anchor
+    private static volatile Clock clock = Clock.systemUTC();  // Source of the time of all batteries
+
+    private Battery() {
+    }
+
+    /**
+     * Replaces the clock of all batteries, e.g. with a fixed or offset clock in a test. Levels are
+     * computed against the new clock from now on, so it should only be replaced before devices are
+     * created or move forward.
+     *
+     * @param clock Source of the current time.
+     */
+    public static void setClock(Clock clock) {
+        Battery.clock = clock;
+    }
+
+    /**
+     * Gets the current time of the batteries.
+     *
+     * @return Milliseconds since the epoch of the clock.
+     */
+    public static long now() {
+        return clock.millis();
+    }
+
+    /**
+     * Creates the anchor of a full battery at the current time.
+     *
+     * @return The anchor word.
+     */
+    public static long full() {
+        return anchor(FULL_UNITS, now());
+    }
+
+    /**
+     * Gets the rate at which the battery of a device charges or drains in a state.
+     *
+     * @param type  Type of the device.
+     * @param state State word, or the RATE_BITS of the device in the layout of DeviceState.
+     * @return Percent gained per hour, negative while draining.
+     */
+    public static int ratePerHour(DeviceType type, long state) {
+        int rate = (state & DeviceState.CHARGING) != 0 ? CHARGE_PER_HOUR : 0;
+        if ((state & DeviceState.ON) != 0) {
+            rate -= type == DeviceType.CAMERA ? CAMERA_DRAIN_PER_HOUR : LIGHT_DRAIN_PER_HOUR;
+        }
+        if ((state & DeviceState.RECORDING) != 0) {
+            rate -= RECORDING_DRAIN_PER_HOUR;
+        }
+        return rate;
+    }
+
+    /**
+     * Gets the level of a battery at a time.
+     *
+     * @param anchor      Anchor word of the battery.
+     * @param ratePerHour Rate of the current state of the device.
+     * @param now         Time in milliseconds, not before the anchor for an exact level.
+     * @return The level in percent, rounded down.
+     */
+    public static int level(long anchor, int ratePerHour, long now) {
+        return units(anchor, ratePerHour, now) / UNITS_PER_PERCENT;
+    }
+
+    /**
+     * Settles an anchor to the level reached at a time, before the rate changes.
+     *
+     * @param anchor      Anchor word of the battery.
+     * @param ratePerHour Rate of the state the device is leaving.
+     * @param now         Time of the transition in milliseconds.
+     * @return The anchor word holding the level at that time.
+     */
+    public static long settle(long anchor, int ratePerHour, long now) {
+        return anchor(units(anchor, ratePerHour, now), Math.max(now, anchor >>> TIME_SHIFT));
+    }
+
+    /**
+     * Computes how long it takes a draining battery to fall to a level.
+     *
+     * @param anchor      Anchor word of the battery.
+     * @param ratePerHour Rate of the current state of the device.
+     * @param level       Level in percent the battery must reach.
+     * @return Milliseconds from the time of the anchor until level() first returns the level or
+     *         less, 0 if it already does, or -1 if the battery never gets there at this rate.
+     */
+    public static long millisUntil(long anchor, int ratePerHour, int level) {
+        long excess = (anchor & LEVEL) - ((long) (level + 1) * UNITS_PER_PERCENT - 1);
+        if (excess <= 0) {
+            return 0;
+        }
+        if (ratePerHour >= 0) {
+            return -1;
+        }
+        long drainPerHour = (long) -ratePerHour * UNITS_PER_PERCENT;
+        return (excess * MILLIS_PER_HOUR + drainPerHour - 1) / drainPerHour;
+    }
+
+    /**
+     * Gets the time an anchor was settled.
+     *
+     * @param anchor Anchor word of the battery.
+     * @return Milliseconds since the epoch of the clock.
+     */
+    public static long settledAt(long anchor) {
+        return anchor >>> TIME_SHIFT;
+    }
+
+    /**
+     * Gets the stored level of a battery at a time.
+     *
+     * @param anchor      Anchor word of the battery.
+     * @param ratePerHour Rate of the current state of the device.
+     * @param now         Time in milliseconds.
+     * @return The level in units of 1/1000 percent, between 0 and a full battery.
+     */
+    private static int units(long anchor, int ratePerHour, long now) {
+        long elapsed = Math.max(0, now - (anchor >>> TIME_SHIFT));
+        long units = (anchor & LEVEL) + (long) ratePerHour * UNITS_PER_PERCENT * elapsed / MILLIS_PER_HOUR;
+        return (int) Math.max(0, Math.min(FULL_UNITS, units));
+    }
+
+    /**
+     * Packs a level and a time into an anchor word.
+     *
+     * @param units  Level in units of 1/1000 percent.
+     * @param millis Time in milliseconds.
+     * @return The anchor word.
+     */
+    private static long anchor(int units, long millis) {
+        return millis << TIME_SHIFT | units;
+    }
+}
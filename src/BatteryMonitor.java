@@ -0,0 +1,170 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Publishes a BATTERY event on the event bus of a registry when the battery of a chargeable
+ * device falls to Battery.LOW_LEVEL, e.g. for a rule such as
+ * "When Camera * Battery &lt;= 15 StartCharging Camera *".
+ *
+ * <p>Battery levels are computed lazily, so nothing would notice a level crossing the threshold.
+ * Instead, the monitor computes the time at which a draining battery reaches the low level and
+ * sets an alarm for it on a TimingWheel. A change of the power, charging or recording status
+ * changes the rate, so the monitor follows these changes through a COALESCE subscription of the
+ * bus, which always keeps the last change of a device, and sets the alarm of the device again.
+ * The cost is proportional to the changes and the alarms, not to the number of devices; only
+ * creating the monitor visits every device once.</p>
+ *
+ * <p>A battery that is already low when it starts draining is not reported again. The monitor
+ * checks the alarms on poll(), which start() calls in the background every POLL_MILLIS; all
+ * state is guarded by the lock of the monitor.</p>
+ */
+public final class BatteryMonitor {
+    public static final long POLL_MILLIS = 10;  // Interval of the background polls
+    private final DeviceRegistry registry;  // Monitored devices
+    private final DeviceEventBus bus;  // Bus receiving the low battery events
+    private final DeviceEventBus.Subscription subscription;  // Changes of the devices
+    private final DeviceEventBus.Handler rescheduler = this::reschedule;  // Sets the alarm of a changed device
+    private final TimingWheel wheel;  // Alarms by the time a battery becomes low
+    private final Map<Integer, Alarm> alarms = new HashMap<>();  // Alarm of every draining device, by ID
+    private long reported;  // Low battery events published so far
+
+    /**
+     * Alarm of a device at the time its battery becomes low.
+     */
+    private static final class Alarm extends TimingWheel.Timer {
+        private final int deviceId;  // ID of the device
+
+        /**
+         * Constructor to create the alarm of a device.
+         *
+         * @param deviceId ID of the device.
+         */
+        Alarm(int deviceId) {
+            this.deviceId = deviceId;
+        }
+    }
+
+    /**
+     * Constructor to create a monitor of the devices of a registry, with alarms for the batteries
+     * draining now.
+     *
+     * @param registry Devices to monitor.
+     * @param bus      Event bus attached to the registry.
+     */
+    public BatteryMonitor(DeviceRegistry registry, DeviceEventBus bus) {
+        this.registry = registry;
+        this.bus = bus;
+        this.subscription = bus.subscribe(OverflowPolicy.COALESCE);
+        this.wheel = new TimingWheel(Battery.now());
+        for (int id = registry.nextId(0); id >= 0; id = registry.nextId(id + 1)) {
+            schedule(id);
+        }
+    }
+
+    /**
+     * Follows the changes published since the last poll and reports the batteries that became low.
+     *
+     * @return Number of low battery events published.
+     */
+    public synchronized int poll() {
+        subscription.poll(rescheduler);
+        wheel.advanceTo(Battery.now());
+        int published = 0;
+        for (TimingWheel.Timer timer = wheel.pollExpired(); timer != null; timer = wheel.pollExpired()) {
+            int deviceId = ((Alarm) timer).deviceId;
+            alarms.remove(deviceId);
+            SmartDevice device = registry.get(deviceId);
+            if (!(device instanceof Chargeable chargeable)) {
+                continue;
+            }
+            int level = chargeable.getBatteryLevel();
+            if (level <= Battery.LOW_LEVEL) {
+                bus.publish(deviceId, device.getType(), DeviceAttribute.BATTERY, level);
+                published++;
+            } else {
+                schedule(deviceId);
+            }
+        }
+        reported += published;
+        return published;
+    }
+
+    /**
+     * Polls in the background every POLL_MILLIS until the program ends.
+     */
+    public void start() {
+        Thread thread = new Thread(() -> {
+            while (true) {
+                poll();
+                LockSupport.parkNanos(POLL_MILLIS * 1_000_000);
+            }
+        }, "battery");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Gets the number of pending alarms.
+     *
+     * @return Number of draining batteries not yet low, as of the last poll.
+     */
+    public synchronized int pendingAlarms() {
+        return wheel.size();
+    }
+
+    /**
+     * Gets the number of low battery events published so far.
+     *
+     * @return Number of events.
+     */
+    public synchronized long reportedCount() {
+        return reported;
+    }
+
+    /**
+     * Sets the alarm of a device again after a change that may have changed its rate.
+     *
+     * @param event Change of a device.
+     */
+    private void reschedule(DeviceEvent event) {
+        switch (event.getAttribute()) {
+            case STATUS, CHARGING, RECORDING -> {
+                if (event.getDeviceType().supports(Capability.CHARGEABLE)) {
+                    schedule(event.getDeviceId());
+                }
+            }
+            default -> {
+            }
+        }
+    }
+
+    /**
+     * Sets the alarm of a device to the time its battery becomes low, or clears it if the battery
+     * is not draining, is already low, or the device has no battery.
+     *
+     * @param deviceId Device ID.
+     */
+    private void schedule(int deviceId) {
+        Alarm alarm = alarms.get(deviceId);
+        if (alarm != null) {
+            wheel.remove(alarm);
+        }
+        SmartDevice device = registry.get(deviceId);
+        if (device == null || !device.getType().supports(Capability.CHARGEABLE)) {
+            alarms.remove(deviceId);
+            return;
+        }
+        long anchor = device.getBatteryAnchor();
+        long millis = Battery.millisUntil(anchor, device.batteryRate(), Battery.LOW_LEVEL);
+        if (millis <= 0) {
+            alarms.remove(deviceId);
+            return;
+        }
+        if (alarm == null) {
+            alarm = new Alarm(deviceId);
+            alarms.put(deviceId, alarm);
+        }
+        wheel.add(alarm, Battery.settledAt(anchor) + millis);
+    }
+}
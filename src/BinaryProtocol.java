@@ -0,0 +1,190 @@
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed-layout binary encoding of the commands addressing a single device and of their responses,
+ * for clients that send commands at rates where tokenising and formatting text dominates.
+ *
+ * <p>A request is REQUEST_BYTES little-endian bytes: the verb ordinal as opcode, the device type
+ * ordinal or UNKNOWN_TYPE for a name that is no device type, the argument as a signed 16-bit
+ * number and the device ID. A response has the same layout: the ordinal of its ResponseCode, the
+ * device type and a value of the code, and the device ID of the request. Arguments beyond 16 bits
+ * are saturated, which keeps them out of the range of every verb, so they get the same response
+ * as in text. Buffers are read and written at their position and must be in little-endian order.</p>
+ *
+ * <p>Only the verbs of supports() have a binary form. Bulk commands, schedules, rules, queries,
+ * listings and RoomTemperature answer with variable-length text, so they stay text only, and a
+ * binary request of any other opcode gets ResponseCode.INVALID. The command server switches a
+ * connection to the binary protocol when its first byte is MAGIC.</p>
+ */
+public final class BinaryProtocol {
+    public static final int MAGIC = 0xB1;  // First byte of a binary connection, never the start of a text line
+    public static final int REQUEST_BYTES = 8;  // Opcode, type, argument, device ID
+    public static final int RESPONSE_BYTES = 8;  // Code, type, value, device ID
+    public static final int UNKNOWN_TYPE = 0xFF;  // Type code of a name that is no device type
+    static final int ID_OFFSET = 4;  // Offset of the device ID in requests and responses
+    private static final Verb[] VERBS = Verb.values();
+    private static final DeviceType[] TYPES = DeviceType.values();
+    private static final ResponseCode[] CODES = ResponseCode.values();
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * Checks whether a verb has a binary form.
+     *
+     * @param verb Verb to check.
+     * @return true for the verbs addressing a device whose responses are a ResponseCode.
+     */
+    public static boolean supports(Verb verb) {
+        return verb.getShape().addressesDevice() && verb != Verb.ROOM_TEMPERATURE;
+    }
+
+    /**
+     * Encodes a parsed command as a request.
+     *
+     * @param command Parsed, syntactically valid command.
+     * @param out     Buffer with room for REQUEST_BYTES at its position, which is advanced.
+     * @return true if the request was encoded, false if the command has no binary form.
+     */
+    public static boolean encode(Command command, ByteBuffer out) {
+        if (!supports(command.getVerb()) || command.isBulk()) {
+            return false;
+        }
+        DeviceType type = command.getDeviceType();
+        int argument = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, command.getArgument()));
+        put(out, command.getVerb().ordinal(), type != null ? type.ordinal() : UNKNOWN_TYPE, argument,
+                command.getDeviceId());
+        return true;
+    }
+
+    /**
+     * Encodes a command line of the text protocol as a request.
+     *
+     * @param line Command line, e.g. "SetTemperature Heater 7 25".
+     * @param out  Buffer with room for REQUEST_BYTES at its position, which is advanced.
+     * @return true if the request was encoded, false if the line is invalid or has no binary form.
+     */
+    public static boolean encode(String line, ByteBuffer out) {
+        CommandLexer lexer = new CommandLexer(new StringReader(line));
+        Command command = new Command();
+        try {
+            return lexer.nextLine() && CommandParser.parse(lexer, command) && encode(command, out);
+        } catch (IOException e) {
+            throw new IllegalStateException("Reading a string failed", e);
+        }
+    }
+
+    /**
+     * Decodes a request into a command.
+     *
+     * @param in      Buffer with a request at its position, which is advanced past it.
+     * @param command Command to fill in.
+     * @return true if the request is valid, false if its opcode has no binary form.
+     */
+    public static boolean decode(ByteBuffer in, Command command) {
+        int position = in.position();
+        int opcode = in.get(position) & 0xFF;
+        int typeCode = in.get(position + 1) & 0xFF;
+        int argument = in.getShort(position + 2);
+        int deviceId = in.getInt(position + ID_OFFSET);
+        in.position(position + REQUEST_BYTES);
+        if (opcode >= VERBS.length || !supports(VERBS[opcode])) {
+            return false;
+        }
+        command.set(VERBS[opcode], typeCode < TYPES.length ? TYPES[typeCode] : null, deviceId, argument);
+        return true;
+    }
+
+    /**
+     * Writes a request as the command line of the text protocol, e.g. "SetColor Light 3 WHITE".
+     * An unknown word argument is written as "?", which the text protocol rejects the same way.
+     *
+     * @param in  Buffer with a request at its position, which is advanced past it.
+     * @param out Sink for the command line.
+     * @return true if the request was written, false if it is invalid and nothing was written.
+     * @throws IOException If writing fails.
+     */
+    public static boolean writeRequest(ByteBuffer in, ResponseWriter out) throws IOException {
+        Command command = new Command();
+        if (!decode(in, command)) {
+            return false;
+        }
+        Verb verb = command.getVerb();
+        DeviceType type = command.getDeviceType();
+        out.append(verb.getKeyword()).append(' ').append(type != null ? type.getDisplayName() : "?").append(' ')
+                .append(command.getDeviceId());
+        int argument = command.getArgument();
+        switch (verb.getShape()) {
+            case DEVICE_NUMBER, DEVICE_SIGNED -> out.append(' ').append(argument);
+            case DEVICE_WORD -> {
+                Enum<?>[] words = verb == Verb.SET_COLOR ? LightColor.values() : Brightnesslevel.values();
+                out.append(' ').append(argument >= 0 && argument < words.length ? words[argument].name() : "?");
+            }
+            default -> {
+            }
+        }
+        out.newLine();
+        return true;
+    }
+
+    /**
+     * Encodes a response.
+     *
+     * @param out      Buffer with room for RESPONSE_BYTES at its position, which is advanced.
+     * @param code     Response code.
+     * @param type     Type of the device, or null if the request named no device type.
+     * @param deviceId ID of the device of the request.
+     * @param value    Value of the code, within 16 bits.
+     */
+    public static void putResponse(ByteBuffer out, ResponseCode code, DeviceType type, int deviceId, int value) {
+        put(out, code.ordinal(), type != null ? type.ordinal() : UNKNOWN_TYPE, value, deviceId);
+    }
+
+    /**
+     * Decodes the code of a response without moving the buffer position.
+     *
+     * @param in Buffer with a response at its position.
+     * @return The response code, or null if the code is unknown.
+     */
+    public static ResponseCode codeOf(ByteBuffer in) {
+        int code = in.get(in.position()) & 0xFF;
+        return code < CODES.length ? CODES[code] : null;
+    }
+
+    /**
+     * Writes a response as the text protocol prints it.
+     *
+     * @param in  Buffer with a response at its position, which is advanced past it.
+     * @param out Sink for the response.
+     * @return The response code, or null if it is unknown or malformed and nothing was written.
+     * @throws IOException If writing fails.
+     */
+    public static ResponseCode writeResponse(ByteBuffer in, ResponseWriter out) throws IOException {
+        int position = in.position();
+        ResponseCode code = codeOf(in);
+        int typeCode = in.get(position + 1) & 0xFF;
+        DeviceType type = typeCode < TYPES.length ? TYPES[typeCode] : null;
+        int value = in.getShort(position + 2);
+        in.position(position + RESPONSE_BYTES);
+        if (code == null || !code.isWritable(type, value)) {
+            return null;
+        }
+        code.writeTo(out, type, in.getInt(position + ID_OFFSET), value);
+        return code;
+    }
+
+    /**
+     * Writes a request or response at the buffer position and advances it.
+     *
+     * @param out      Destination buffer.
+     * @param first    Opcode or response code.
+     * @param typeCode Ordinal of the device type, or UNKNOWN_TYPE.
+     * @param value    Argument or value, within 16 bits.
+     * @param deviceId Device ID.
+     */
+    private static void put(ByteBuffer out, int first, int typeCode, int value, int deviceId) {
+        out.put((byte) first).put((byte) typeCode).putShort((short) value).putInt(deviceId);
+    }
+}
@@ -1,12 +1,10 @@
 /**
  * Represents a camera device, extending SmartDevice and implementing Chargeable.
+ * All state lives in the packed state word of SmartDevice, or in the store of a view.
  */
 public final class Camera extends SmartDevice implements Chargeable {
     private static final int MAX_CAMERA_ANGLE = 60;  // Maximum camera angle
     private static final int MIN_CAMERA_ANGLE = -60; // Minimum camera angle
-    private boolean charging;  // Charging status
-    private boolean recording;  // Recording status
-    private int angle;  // Camera angle
 
     /**
      * Constructor to initialize a camera device.
@@ -17,10 +15,20 @@ public final class Camera extends SmartDevice implements Chargeable {
      * @param angle     Initial camera angle.
      */
     public Camera(Status status, boolean charging, boolean recording, int angle) {
-        super(status);
-        this.charging = charging;
-        this.recording = recording;
-        this.angle = angle;
+        super(status, DeviceType.CAMERA);
+        initState(DeviceState.CHARGING | DeviceState.RECORDING | DeviceState.VALUE,
+                (charging ? DeviceState.CHARGING : 0) | (recording ? DeviceState.RECORDING : 0)
+                        | DeviceState.valueBits(angle));
+    }
+
+    /**
+     * Constructor to create a view of a camera whose state lives in a columnar store.
+     *
+     * @param store    Store holding the state of the camera.
+     * @param deviceId ID of the camera in the store.
+     */
+    Camera(DeviceStateStore store, int deviceId) {
+        super(store, deviceId, DeviceType.CAMERA);
     }
 
     /**
@@ -29,7 +37,8 @@ public final class Camera extends SmartDevice implements Chargeable {
      * @return The current angle of the camera.
      */
     public int getAngle() {
-        return angle;
+        DeviceStateStore store = getStore();
+        return store != null ? store.getAngle(getDeviceId()) : DeviceState.value(getState());
     }
 
     /**
@@ -39,24 +48,44 @@ public final class Camera extends SmartDevice implements Chargeable {
      * @return true if the angle was successfully set, false if out of range.
      */
     public boolean setCameraAngle(int angle) {
-        if (angle >= MIN_CAMERA_ANGLE && angle <= MAX_CAMERA_ANGLE) {
-            this.angle = angle;
+        if (isValidAngle(angle)) {
+            changeAngle(angle);
             return true;
         }
         return false;
     }
 
+    /**
+     * Sets a camera angle the caller validated with isValidAngle().
+     *
+     * @param angle New angle for the camera.
+     * @return true if the angle changed, false if the camera already had it.
+     */
+    boolean changeAngle(int angle) {
+        DeviceStateStore store = getStore();
+        if (store != null) {
+            return store.setAngle(getDeviceId(), angle);
+        }
+        return updateState(DeviceState.VALUE, DeviceState.valueBits(angle));
+    }
+
+    /**
+     * Checks whether an angle is within the range a camera accepts.
+     *
+     * @param angle Angle to check.
+     * @return true if setCameraAngle() accepts the angle, false otherwise.
+     */
+    static boolean isValidAngle(int angle) {
+        return angle >= MIN_CAMERA_ANGLE && angle <= MAX_CAMERA_ANGLE;
+    }
+
     /**
      * Starts recording if the camera is not already recording.
      *
      * @return true if recording started, false if already recording.
      */
     public boolean startRecording() {
-        if (!recording) {
-            this.recording = true;
-            return true;
-        }
-        return false;
+        return changeRecording(true);
     }
 
     /**
@@ -65,11 +94,7 @@ public final class Camera extends SmartDevice implements Chargeable {
      * @return true if recording stopped, false if not recording.
      */
     public boolean stopRecording() {
-        if (recording) {
-            this.recording = false;
-            return true;
-        }
-        return false;
+        return changeRecording(false);
     }
 
     /**
@@ -78,36 +103,63 @@ public final class Camera extends SmartDevice implements Chargeable {
      * @return true if the camera is recording, false otherwise.
      */
     public boolean isRecording() {
-        return recording;
+        DeviceStateStore store = getStore();
+        return store != null ? store.isRecording(getDeviceId()) : (getState() & DeviceState.RECORDING) != 0;
+    }
+
+    /**
+     * Atomically sets the recording status.
+     *
+     * @param recording New recording status.
+     * @return true if the status changed, false if it already had this value.
+     */
+    private boolean changeRecording(boolean recording) {
+        DeviceStateStore store = getStore();
+        if (store != null) {
+            return store.setRecording(getDeviceId(), recording);
+        }
+        return updateState(DeviceState.RECORDING, recording ? DeviceState.RECORDING : 0);
     }
 
     @Override
     public boolean isCharging() {
-        return charging;
+        DeviceStateStore store = getStore();
+        return store != null ? store.isCharging(getDeviceId()) : (getState() & DeviceState.CHARGING) != 0;
     }
 
     @Override
     public boolean startCharging() {
-        if (!charging) {
-            charging = true;
-            return true;
-        }
-        return false;
+        return changeCharging(true);
     }
 
     @Override
     public boolean stopCharging() {
-        if (charging) {
-            charging = false;
-            return true;
+        return changeCharging(false);
+    }
+
+    @Override
+    public int getBatteryLevel() {
+        return batteryLevel();
+    }
+
+    /**
+     * Atomically sets the charging status.
+     *
+     * @param charging New charging status.
+     * @return true if the status changed, false if it already had this value.
+     */
+    private boolean changeCharging(boolean charging) {
+        DeviceStateStore store = getStore();
+        if (store != null) {
+            return store.setCharging(getDeviceId(), charging);
         }
-        return false;
+        return updateState(DeviceState.CHARGING, charging ? DeviceState.CHARGING : 0);
     }
 
     @Override
-    public String displayStatus() {
-        return String.format("Camera %d is %s, the angle is %d, the charging status is %s, and the recording "
-                        + "status is %s.", this.getDeviceId(), this.getStatus(), this.getAngle(),
-                this.isCharging(), this.isRecording());
+    String renderStatus() {
+        return "Camera " + getDeviceId() + " is " + getStatus() + ", the angle is " + getAngle()
+                + ", the charging status is " + isCharging() + ", the battery level is " + getBatteryLevel()
+                + "%, and the recording status is " + isRecording() + ".";
     }
 }
@@ -0,0 +1,449 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Simulated capture pipeline of the cameras that are on and recording, writing their frames to
+ * rolling segment files of every camera.
+ *
+ * <p>capture() produces one synthetic frame per recording camera straight into the next slot of
+ * a preallocated ring of direct buffers, and drain() writes the frames of every camera to its
+ * current segment with one gathering write per camera and batch, from the very same buffers. A
+ * frame is never copied or allocated on the way: the header and payload of every slot are views
+ * of one direct slab created with the recorder, and a slot is only reused after it was written.
+ * A frame is a HEADER_BYTES little-endian header (magic, camera ID, frame number, capture time
+ * in nanoseconds, camera angle, payload length) followed by FRAME_BYTES of payload; a segment
+ * holds whole frames and is replaced by the next one before it would exceed the segment size.
+ * Segments are named "camera-ID-NUMBER.seg", numbered per camera from 0.</p>
+ *
+ * <p>The recorder follows StartRecording, StopRecording, TurnOn and TurnOff through a COALESCE
+ * subscription of the event bus of the registry, and checks every camera before capturing its
+ * frame, so a camera stops with the frame before the change. The frames of a stopped camera are
+ * written and its segment closed in ring order, so a camera recording again starts a new segment.
+ * If the writer falls a full ring behind, capture() drops frames instead of waiting.</p>
+ *
+ * <p>capture() and drain() may run on two threads, as start() does, but each on one thread at a time.</p>
+ */
+public final class CameraRecorder implements Closeable {
+    public static final int FRAMES_PER_SECOND = 25;  // Frames per second of a recording camera
+    public static final int FRAME_BYTES = 64 * 1024;  // Payload of a frame
+    public static final int HEADER_BYTES = 32;  // Header of a frame
+    public static final int FRAME_MAGIC = 0x4D415246;  // "FRAM" in little-endian order
+    public static final long DEFAULT_SEGMENT_BYTES = 64L << 20;  // Largest segment file
+    private static final int RING_FRAMES = 256;  // Frames the writer may lag behind, a power of two
+    private static final int MASK = RING_FRAMES - 1;  // Maps a sequence to its slot
+    private static final int GATHER_FRAMES = 32;  // Largest number of frames of one gathering write
+    private static final long IDLE_PARK_NANOS = 1_000_000;  // Sleep of the writer thread when no frame arrived
+    private final DeviceRegistry registry;  // Devices whose cameras are recorded
+    private final DeviceEventBus.Subscription subscription;  // Changes of the devices
+    private final DeviceEventBus.Handler follower = this::follow;  // Starts and stops recordings
+    private final Path directory;  // Directory of the segment files
+    private final long segmentBytes;  // Largest segment file
+    private final ByteBuffer[] headers = new ByteBuffer[RING_FRAMES];  // Header of every slot
+    private final ByteBuffer[] payloads = new ByteBuffer[RING_FRAMES];  // Payload of every slot
+    private final Recording[] owners = new Recording[RING_FRAMES];  // Recording of the frame of every slot
+    private final Map<Integer, Recording> recordings = new HashMap<>();  // Every camera recorded so far, by ID
+    private final List<Recording> active = new ArrayList<>();  // Cameras recording now
+    private final ConcurrentLinkedQueue<Stop> stops = new ConcurrentLinkedQueue<>();  // Stops not yet written
+    private final List<Recording> pending = new ArrayList<>();  // Recordings with gathered frames, of drain()
+    private volatile long produced;  // Frames put into the ring so far
+    private volatile long consumed;  // Frames written so far, whose slots may be reused
+    private volatile long dropped;  // Frames dropped because the ring was full
+    private volatile long bytesWritten;  // Bytes written to segments
+    private volatile int segments;  // Segment files opened
+    private volatile boolean running;  // Whether the threads of start() keep running
+    private Thread[] threads = new Thread[0];  // Threads of start()
+
+    /**
+     * Recording of one camera. The capture fields are only used by capture(), the segment fields
+     * only by drain(); frames and stops pass from one to the other through the ring and the queue.
+     */
+    private static final class Recording {
+        private final int deviceId;  // ID of the camera
+        private final ByteBuffer[] gather = new ByteBuffer[2 * GATHER_FRAMES];  // Buffers of the next write
+        private Camera camera;  // Camera read by capture()
+        private boolean active;  // Whether capture() produces frames of the camera
+        private long nextFrame;  // Number of the next frame of the camera
+        private int gathered;  // Buffers gathered for the next write
+        private FileChannel channel;  // Current segment, or null while none is open
+        private long segmentSize;  // Bytes of the current segment
+        private int nextSegment;  // Number of the next segment
+
+        /**
+         * Constructor to create the recording of a camera.
+         *
+         * @param deviceId ID of the camera.
+         */
+        Recording(int deviceId) {
+            this.deviceId = deviceId;
+        }
+    }
+
+    /**
+     * Stop of a recording after the frames put into the ring before it.
+     *
+     * @param recording Stopped recording.
+     * @param sequence  Frames put into the ring before the stop.
+     */
+    private record Stop(Recording recording, long sequence) {
+    }
+
+    /**
+     * Constructor to create a recorder of the cameras of a registry that are on and recording.
+     *
+     * @param registry     Devices whose cameras are recorded.
+     * @param events       Event bus attached to the registry.
+     * @param directory    Directory of the segment files, created if necessary.
+     * @param segmentBytes Largest segment file, at least one frame.
+     * @throws IOException If the directory cannot be created.
+     */
+    public CameraRecorder(DeviceRegistry registry, DeviceEventBus events, Path directory, long segmentBytes)
+            throws IOException {
+        if (segmentBytes < HEADER_BYTES + FRAME_BYTES) {
+            throw new IllegalArgumentException("A segment must hold a frame: " + segmentBytes);
+        }
+        Files.createDirectories(directory);
+        this.registry = registry;
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.subscription = events.subscribe(OverflowPolicy.COALESCE);
+        ByteBuffer slab = ByteBuffer.allocateDirect(RING_FRAMES * (HEADER_BYTES + FRAME_BYTES));
+        for (int slot = 0; slot < RING_FRAMES; slot++) {
+            headers[slot] = slab.slice(slot * HEADER_BYTES, HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            payloads[slot] = slab.slice(RING_FRAMES * HEADER_BYTES + slot * FRAME_BYTES, FRAME_BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        }
+        for (int id = registry.nextId(0); id >= 0; id = registry.nextId(id + 1)) {
+            update(id);
+        }
+    }
+
+    /**
+     * Captures one frame of every camera that is recording.
+     *
+     * @return Number of frames put into the ring.
+     */
+    public int capture() {
+        subscription.poll(follower);
+        long now = System.nanoTime();
+        long sequence = produced;
+        int count = 0;
+        for (int i = active.size() - 1; i >= 0; i--) {
+            Recording recording = active.get(i);
+            Camera camera = recording.camera;
+            if (!camera.isOn() || !camera.isRecording()) {
+                stop(recording);
+                continue;
+            }
+            if (sequence - consumed == RING_FRAMES) {
+                dropped++;
+                continue;
+            }
+            int slot = (int) sequence & MASK;
+            fill(slot, recording, camera.getAngle(), now);
+            owners[slot] = recording;
+            produced = ++sequence;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Writes every frame in the ring to the segment of its camera and closes the segments of the
+     * stopped cameras.
+     *
+     * @return Number of frames written.
+     * @throws IOException If writing or opening a segment fails.
+     */
+    public int drain() throws IOException {
+        long first = consumed;
+        long end = produced;
+        for (long sequence = first; sequence < end; sequence++) {
+            closeStopped(sequence);
+            int slot = (int) sequence & MASK;
+            Recording recording = owners[slot];
+            if (recording.channel == null) {
+                openSegment(recording);
+            } else if (recording.segmentSize + HEADER_BYTES + FRAME_BYTES > segmentBytes) {
+                write(recording);
+                recording.channel.close();
+                openSegment(recording);
+            }
+            if (recording.gathered == 0) {
+                pending.add(recording);
+            }
+            recording.gather[recording.gathered++] = headers[slot];
+            recording.gather[recording.gathered++] = payloads[slot];
+            recording.segmentSize += HEADER_BYTES + FRAME_BYTES;
+            if (recording.gathered == recording.gather.length) {
+                write(recording);
+            }
+        }
+        for (int i = 0; i < pending.size(); i++) {
+            write(pending.get(i));
+        }
+        pending.clear();
+        closeStopped(end);
+        consumed = end;
+        return (int) (end - first);
+    }
+
+    /**
+     * Captures FRAMES_PER_SECOND times per second and writes the frames in the background, until
+     * the recorder is closed.
+     */
+    public void start() {
+        running = true;
+        Thread capturer = new Thread(() -> {
+            long period = 1_000_000_000L / FRAMES_PER_SECOND;
+            long next = System.nanoTime();
+            while (running) {
+                capture();
+                next += period;
+                LockSupport.parkNanos(next - System.nanoTime());
+            }
+        }, "capture");
+        Thread writer = new Thread(() -> {
+            try {
+                while (running) {
+                    if (drain() == 0) {
+                        LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Recording failed: " + e.getMessage());
+            }
+        }, "recorder");
+        threads = new Thread[] {capturer, writer};
+        for (Thread thread : threads) {
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops the threads of start(), stops every recording, and writes and closes all segments.
+     *
+     * @throws IOException If writing or closing a segment fails.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while stopping the recorder", e);
+            }
+        }
+        for (int i = active.size() - 1; i >= 0; i--) {
+            stop(active.get(i));
+        }
+        drain();
+        subscription.close();
+    }
+
+    /**
+     * Gets the number of cameras recording now.
+     *
+     * @return Number of cameras capture() produces frames of, as of its last call.
+     */
+    public int activeCount() {
+        return active.size();
+    }
+
+    /**
+     * Gets the number of frames captured so far.
+     *
+     * @return Number of frames put into the ring.
+     */
+    public long capturedFrames() {
+        return produced;
+    }
+
+    /**
+     * Gets the number of frames written so far.
+     *
+     * @return Number of frames written to segments.
+     */
+    public long writtenFrames() {
+        return consumed;
+    }
+
+    /**
+     * Gets the number of frames dropped so far because the writer fell a full ring behind.
+     *
+     * @return Number of dropped frames.
+     */
+    public long droppedFrames() {
+        return dropped;
+    }
+
+    /**
+     * Gets the number of bytes written so far.
+     *
+     * @return Bytes written to segments.
+     */
+    public long writtenBytes() {
+        return bytesWritten;
+    }
+
+    /**
+     * Gets the number of segment files opened so far.
+     *
+     * @return Number of segments.
+     */
+    public int segmentCount() {
+        return segments;
+    }
+
+    /**
+     * Gets the name of a segment file.
+     *
+     * @param deviceId ID of the camera.
+     * @param segment  Number of the segment.
+     * @return The file name within the directory of the recorder.
+     */
+    public static String segmentName(int deviceId, int segment) {
+        return "camera-" + deviceId + "-" + segment + ".seg";
+    }
+
+    /**
+     * Starts or stops the recording of a changed camera.
+     *
+     * @param event Change of a device.
+     */
+    private void follow(DeviceEvent event) {
+        DeviceAttribute attribute = event.getAttribute();
+        if (event.getDeviceType() == DeviceType.CAMERA
+                && (attribute == DeviceAttribute.STATUS || attribute == DeviceAttribute.RECORDING)) {
+            update(event.getDeviceId());
+        }
+    }
+
+    /**
+     * Starts the recording of a device that is a camera that is on and recording.
+     *
+     * @param deviceId Device ID.
+     */
+    private void update(int deviceId) {
+        if (!(registry.get(deviceId) instanceof Camera camera) || !camera.isOn() || !camera.isRecording()) {
+            return;
+        }
+        Recording recording = recordings.computeIfAbsent(deviceId, Recording::new);
+        if (!recording.active) {
+            recording.camera = camera;
+            recording.active = true;
+            active.add(recording);
+        }
+    }
+
+    /**
+     * Stops the recording of a camera after the frames already in the ring.
+     *
+     * @param recording Active recording.
+     */
+    private void stop(Recording recording) {
+        recording.active = false;
+        active.remove(recording);
+        stops.add(new Stop(recording, produced));
+    }
+
+    /**
+     * Writes the header and the synthetic payload of a frame into a slot.
+     *
+     * @param slot      Slot of the ring.
+     * @param recording Recording of the camera.
+     * @param angle     Current angle of the camera.
+     * @param now       Capture time in nanoseconds.
+     */
+    private void fill(int slot, Recording recording, int angle, long now) {
+        long frame = recording.nextFrame++;
+        ByteBuffer header = headers[slot];
+        header.clear();
+        header.putInt(FRAME_MAGIC).putInt(recording.deviceId).putLong(frame).putLong(now).putInt(angle)
+                .putInt(FRAME_BYTES).flip();
+        ByteBuffer payload = payloads[slot];
+        long pattern = patternOf(recording.deviceId, frame);
+        for (int offset = 0; offset < FRAME_BYTES; offset += Long.BYTES) {
+            payload.putLong(offset, pattern + offset);
+        }
+        payload.clear();
+    }
+
+    /**
+     * Gets the first long of the synthetic payload of a frame; the long at every further offset
+     * is the pattern plus the offset.
+     *
+     * @param deviceId ID of the camera.
+     * @param frame    Number of the frame.
+     * @return The pattern of the frame.
+     */
+    public static long patternOf(int deviceId, long frame) {
+        return frame * 0x9E3779B97F4A7C15L ^ deviceId;
+    }
+
+    /**
+     * Writes the gathered frames of a recording with gathering writes.
+     *
+     * @param recording Recording with an open segment.
+     * @throws IOException If writing fails.
+     */
+    private void write(Recording recording) throws IOException {
+        ByteBuffer[] gather = recording.gather;
+        int first = 0;
+        long bytes = 0;
+        while (first < recording.gathered) {
+            bytes += recording.channel.write(gather, first, recording.gathered - first);
+            while (first < recording.gathered && !gather[first].hasRemaining()) {
+                first++;
+            }
+        }
+        recording.gathered = 0;
+        bytesWritten += bytes;
+    }
+
+    /**
+     * Writes and closes the segments of the cameras stopped before a frame.
+     *
+     * @param sequence Sequence of the frame.
+     * @throws IOException If writing or closing fails.
+     */
+    private void closeStopped(long sequence) throws IOException {
+        for (Stop stop = stops.peek(); stop != null && stop.sequence() <= sequence; stop = stops.peek()) {
+            Recording recording = stop.recording();
+            if (recording.channel != null) {
+                write(recording);
+                recording.channel.close();
+                recording.channel = null;
+            }
+            stops.poll();
+        }
+    }
+
+    /**
+     * Opens the next segment of a recording.
+     *
+     * @param recording Recording without an open segment.
+     * @throws IOException If the file cannot be created.
+     */
+    private void openSegment(Recording recording) throws IOException {
+        Path file = directory.resolve(segmentName(recording.deviceId, recording.nextSegment++));
+        recording.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        recording.segmentSize = 0;
+        segments++;
+    }
+}
@@ -0,0 +1,39 @@
+/**
+ * Enumeration for the capabilities a device must have for a command to apply to it.
+ */
+public enum Capability {
+    ANY(null),                  // Every device qualifies
+    CHARGEABLE("chargeable"),   // Device implements Chargeable
+    CAMERA("a camera"),         // Device is a camera
+    LIGHT("a light"),           // Device is a light
+    HEATER("a heater");         // Device is a heater
+
+    private final String description;  // Text used in "is not ..." messages
+
+    /**
+     * Constructor to initialize a capability.
+     *
+     * @param description Text used when a device lacks the capability, or null for ANY.
+     */
+    Capability(String description) {
+        this.description = description;
+    }
+
+    /**
+     * Gets the text used when a device lacks the capability.
+     *
+     * @return The description, e.g. "a camera".
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * Gets the bit representing this capability in a device type mask.
+     *
+     * @return The capability bit.
+     */
+    public int mask() {
+        return 1 << ordinal();
+    }
+}
@@ -1,5 +1,7 @@
 /**
- * Interface for chargeable devices, allowing them to be charged and checked for charging status.
+ * Interface for chargeable devices, allowing them to be charged and checked for charging status
+ * and battery level. The level rises while charging and drains while the device is on, as
+ * modelled by Battery, and is computed when read rather than updated periodically.
  */
 public interface Chargeable {
     /**
@@ -22,4 +24,20 @@ public interface Chargeable {
      * @return true if charging stopped, false if the device is not charging.
      */
     boolean stopCharging();
+
+    /**
+     * Gets the current battery level of the device.
+     *
+     * @return The level in percent, from 0 to Battery.FULL_LEVEL.
+     */
+    int getBatteryLevel();
+
+    /**
+     * Checks if the battery of the device is low.
+     *
+     * @return true if the level is at most Battery.LOW_LEVEL, false otherwise.
+     */
+    default boolean isBatteryLow() {
+        return getBatteryLevel() <= Battery.LOW_LEVEL;
+    }
 }
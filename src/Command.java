@@ -0,0 +1,245 @@
+/**
+ * Mutable holder for a parsed command line. A single instance is reused for every line.
+ */
+public final class Command {
+    private Verb verb;  // Verb of the command
+    private DeviceType deviceType;  // Recognised device type, or null for an unknown name
+    private int deviceId;  // Device ID argument
+    private int argument;  // Number argument, or ordinal of the word argument (-1 if unknown)
+    private int lastDeviceId;  // Last device ID of a bulk command (inclusive), deviceId otherwise
+    private boolean anyType;  // Whether a bulk command applies to devices of every type
+    private boolean bulk;  // Whether the command addresses a range of devices instead of one
+    private long time;  // Delay or period in milliseconds, or minute of the day, of a schedule or simulation
+    private DeviceAttribute attribute;  // Attribute compared by the condition of a rule
+    private Comparison comparison;  // Comparison of the condition of a rule with the argument
+    private DeviceQuery query;  // Devices selected by a query, or null
+    private Command deferred;  // Command run later by the scheduler or by a rule, or null
+    private Command[] steps;  // Commands of a transaction, or null
+    private String text;  // Text of a schedule or rule line, e.g. "After 2h TurnOff Heater 6"
+
+    /**
+     * Gets the verb of the command.
+     *
+     * @return The verb.
+     */
+    public Verb getVerb() {
+        return verb;
+    }
+
+    /**
+     * Gets the device type named by the command.
+     *
+     * @return The device type, or null if the name is not one of the known device types.
+     */
+    public DeviceType getDeviceType() {
+        return deviceType;
+    }
+
+    /**
+     * Gets the device ID of the command.
+     *
+     * @return The device ID.
+     */
+    public int getDeviceId() {
+        return deviceId;
+    }
+
+    /**
+     * Gets the last device ID addressed by the command.
+     *
+     * @return The inclusive upper bound of the ID range of a bulk command, or the device ID otherwise.
+     */
+    public int getLastDeviceId() {
+        return lastDeviceId;
+    }
+
+    /**
+     * Checks whether the command addresses a range of devices, e.g. "TurnOff Heater *".
+     *
+     * @return true for a bulk command, false for a command addressing a single device.
+     */
+    public boolean isBulk() {
+        return bulk;
+    }
+
+    /**
+     * Checks whether a bulk command applies to devices of every type, e.g. "TurnOff * *".
+     *
+     * @return true if the device name is "*", false otherwise.
+     */
+    public boolean isAnyType() {
+        return anyType;
+    }
+
+    /**
+     * Checks whether a device type is addressed by the command.
+     *
+     * @param type Device type to check.
+     * @return true if the command names this type, or is a bulk command for every type.
+     */
+    public boolean matchesType(DeviceType type) {
+        return anyType || type == deviceType;
+    }
+
+    /**
+     * Gets the extra argument of the command.
+     *
+     * @return The number argument, or the ordinal of the word argument (-1 if the word is unknown).
+     */
+    public int getArgument() {
+        return argument;
+    }
+
+    /**
+     * Gets the time of a schedule command.
+     *
+     * @return The delay or period in milliseconds for "After" and "Every", the minute of the day
+     *         for "At" and "Daily", or the simulated duration in milliseconds for "Simulate".
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * Gets the attribute compared by the condition of a rule, whose devices are those addressed by
+     * the command and whose operand is the argument.
+     *
+     * @return The attribute, or null for other verbs.
+     */
+    public DeviceAttribute getAttribute() {
+        return attribute;
+    }
+
+    /**
+     * Gets the comparison of the condition of a rule.
+     *
+     * @return The comparison, or null for other verbs.
+     */
+    public Comparison getComparison() {
+        return comparison;
+    }
+
+    /**
+     * Gets the devices selected by a query command.
+     *
+     * @return The query, or null for other verbs.
+     */
+    public DeviceQuery getQuery() {
+        return query;
+    }
+
+    /**
+     * Gets the command run later by the scheduler or by a rule.
+     *
+     * @return The deferred command, or null for other verbs.
+     */
+    public Command getDeferred() {
+        return deferred;
+    }
+
+    /**
+     * Gets the commands of a transaction.
+     *
+     * @return The steps in order, or null for other verbs.
+     */
+    public Command[] getSteps() {
+        return steps;
+    }
+
+    /**
+     * Gets the text of a schedule or rule command line.
+     *
+     * @return The whole line, e.g. "Daily 23:00 SetBrightness Light * LOW", or null for other verbs.
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Sets all fields of the command at once.
+     *
+     * @param verb       Verb of the command.
+     * @param deviceType Recognised device type, or null.
+     * @param deviceId   Device ID argument.
+     * @param argument   Extra argument.
+     */
+    void set(Verb verb, DeviceType deviceType, int deviceId, int argument) {
+        this.verb = verb;
+        this.deviceType = deviceType;
+        this.deviceId = deviceId;
+        this.argument = argument;
+        this.lastDeviceId = deviceId;
+        this.anyType = false;
+        this.bulk = false;
+        this.attribute = null;
+        this.comparison = null;
+        this.query = null;
+        this.deferred = null;
+        this.steps = null;
+        this.text = null;
+    }
+
+    /**
+     * Turns the command into a bulk command for a range of devices. Called after set().
+     *
+     * @param lastDeviceId Last device ID of the range (inclusive).
+     * @param anyType      Whether devices of every type are addressed.
+     */
+    void selectRange(int lastDeviceId, boolean anyType) {
+        this.lastDeviceId = lastDeviceId;
+        this.anyType = anyType;
+        this.bulk = true;
+    }
+
+    /**
+     * Turns the command into a schedule or a rule running another command. Called after set(),
+     * and for a rule after selectCondition().
+     *
+     * @param time     Delay or period in milliseconds, or minute of the day, of a schedule.
+     * @param deferred Command to run later, not modified afterwards.
+     * @param text     Text of the command line.
+     */
+    void selectDeferred(long time, Command deferred, String text) {
+        this.time = time;
+        this.deferred = deferred;
+        this.text = text;
+    }
+
+    /**
+     * Turns the command into a transaction. Called after set().
+     *
+     * @param steps Commands changing devices, not modified afterwards.
+     */
+    void selectSteps(Command[] steps) {
+        this.steps = steps;
+    }
+
+    /**
+     * Sets the duration of a command advancing the simulation. Called after set().
+     *
+     * @param time Duration in milliseconds.
+     */
+    void selectTime(long time) {
+        this.time = time;
+    }
+
+    /**
+     * Turns the command into the condition of a rule. Called after set() and selectRange().
+     *
+     * @param attribute  Attribute compared by the condition.
+     * @param comparison Comparison of the attribute with the argument.
+     */
+    void selectCondition(DeviceAttribute attribute, Comparison comparison) {
+        this.attribute = attribute;
+        this.comparison = comparison;
+    }
+
+    /**
+     * Turns the command into a query. Called after set().
+     *
+     * @param query Devices selected by the query, not modified afterwards.
+     */
+    void selectQuery(DeviceQuery query) {
+        this.query = query;
+    }
+}
@@ -0,0 +1,791 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.BitSet;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Table driven dispatcher executing parsed commands against the devices.
+ * Every verb maps to a CommandHandler; the lookup, type, capability and power checks shared by
+ * all verbs are done here once, so a handler only describes what is specific to its verb.
+ * Bulk commands apply a verb to every matching device of an ID range, split into chunks that run
+ * in parallel on the common fork-join pool; their responses are still written in ID order.
+ * The verbs addressing a single device can also arrive as requests of the BinaryProtocol, which
+ * pass the same checks and run the same built-in action, and get its ResponseCode in binary.
+ * A Transaction applies several such commands all or nothing, with the capability and power
+ * requirements of their handlers.
+ */
+public final class CommandDispatcher {
+    private static final LightColor[] LIGHT_COLORS = LightColor.values();
+    private static final Brightnesslevel[] BRIGHTNESS_LEVELS = Brightnesslevel.values();
+    private static final int CHUNK_IDS = 4096;  // Largest ID range applied sequentially by one bulk task
+    private static final int CHUNK_BUFFER = 4096;  // Response buffer of one bulk task, in bytes
+    private static final long MAX_SIMULATED_MILLIS = 86_400_000;  // Longest duration advanced by one command
+    private static final int BINARY_BUFFER = 4096;  // Request and response buffers of runBinary(), in bytes
+    private final CommandHandler[] handlers = new CommandHandler[Verb.values().length];  // Indexed by verb ordinal
+    private final DeviceRegistry devices;  // Devices the commands apply to
+    private final ResponseWriter out;  // Sink for the responses
+    private CommandLog log;  // Write-ahead log of the commands that changed a device, or null
+    private CommandStats stats;  // Statistics of the handled command lines, or null
+    private CommandScheduler scheduler;  // Scheduler of delayed and recurring commands, or null
+    private RuleEngine rules;  // Engine of the automation rules, or null
+    private DeviceIndex index;  // Indexes answering the queries, or null
+    private ThermalSimulation simulation;  // Simulation of the rooms of the heaters, or null
+    private ReplicationFollower follower;  // Replication changing the devices instead of commands, or null
+
+    /**
+     * Constructor to create a dispatcher with handlers for all built-in verbs.
+     *
+     * @param devices Devices the commands apply to.
+     * @param out     Sink for the responses.
+     */
+    public CommandDispatcher(DeviceRegistry devices, ResponseWriter out) {
+        this.devices = devices;
+        this.out = out;
+        registerBuiltins();
+    }
+
+    /**
+     * Registers a handler, replacing any previous handler of the same verb.
+     *
+     * @param handler Handler to register.
+     */
+    public void register(CommandHandler handler) {
+        handlers[handler.getVerb().ordinal()] = handler;
+    }
+
+    /**
+     * Logs every command that changes a device. A command and its log record are made atomic by
+     * holding the lock of the log, so the log order is the order in which the devices changed.
+     * The caller flushes the log before the responses.
+     *
+     * @param log Write-ahead log, or null to stop logging.
+     */
+    public void setLog(CommandLog log) {
+        this.log = log;
+    }
+
+    /**
+     * Counts the outcome and records the latency of every command line handled by run(), and
+     * answers the Stats command with them.
+     *
+     * @param stats Statistics, possibly shared with other dispatchers, or null to stop recording.
+     */
+    public void setStats(CommandStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * Answers the verbs of the scheduler, such as "After 2h TurnOff Heater 6", with the given scheduler.
+     *
+     * @param scheduler Scheduler, possibly shared with other dispatchers, or null to reject the verbs.
+     */
+    public void setScheduler(CommandScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Answers the verbs of the automation rules, such as "When Camera * Recording = true TurnOn
+     * Light 0-3", with the given engine.
+     *
+     * @param rules Rule engine, possibly shared with other dispatchers, or null to reject the verbs.
+     */
+    public void setRuleEngine(RuleEngine rules) {
+        this.rules = rules;
+    }
+
+    /**
+     * Answers queries, such as "Count Heater * Status = OFF", with the given indexes.
+     *
+     * @param index Indexes of the devices, possibly shared with other dispatchers, or null to reject queries.
+     */
+    public void setDeviceIndex(DeviceIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * Answers the verbs of the thermal simulation, such as "RoomTemperature Heater 6", with the given simulation.
+     *
+     * @param simulation Simulation, possibly shared with other dispatchers, or null to reject the verbs.
+     */
+    public void setSimulation(ThermalSimulation simulation) {
+        this.simulation = simulation;
+    }
+
+    /**
+     * Makes the devices follow a primary: while a follower is attached, the commands that change
+     * devices, directly, in a transaction or later through a schedule or rule, are refused with
+     * "Device changes are not enabled on a follower", and binary requests get ResponseCode.INVALID.
+     *
+     * @param follower Replication follower of the devices, or null to accept changes again.
+     */
+    public void setFollower(ReplicationFollower follower) {
+        this.follower = follower;
+    }
+
+    /**
+     * Creates a transaction on the devices of this dispatcher, logged to its log, if any.
+     *
+     * @return An empty transaction.
+     */
+    public Transaction newTransaction() {
+        return new Transaction(devices, handlers, log);
+    }
+
+    /**
+     * Executes command lines until "end" or the end of input, then flushes the responses.
+     *
+     * @param lexer Source of command lines.
+     * @throws IOException If reading commands or writing responses fails.
+     */
+    public void run(CommandInput lexer) throws IOException {
+        Command command = new Command();
+        while (lexer.nextLine()) {
+            long start = startTime();
+            boolean valid = CommandParser.parse(lexer, command);
+            if (valid && command.getVerb() == Verb.END) {
+                break;
+            }
+            execute(valid ? command : null, out, start);
+        }
+        if (log != null) {
+            log.flush();
+        }
+        out.flush();
+    }
+
+    /**
+     * Executes binary requests until the end of input. The responses are written whenever no
+     * further request is waiting, after the log.
+     *
+     * @param in  Source of requests of the BinaryProtocol.
+     * @param out Destination of the responses.
+     * @throws IOException If reading requests or writing responses fails.
+     */
+    public void runBinary(InputStream in, OutputStream out) throws IOException {
+        byte[] requestBytes = new byte[BINARY_BUFFER];
+        byte[] responseBytes = new byte[BINARY_BUFFER];
+        ByteBuffer requests = ByteBuffer.wrap(requestBytes).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer responses = ByteBuffer.wrap(responseBytes).order(ByteOrder.LITTLE_ENDIAN);
+        Command command = new Command();
+        int filled = 0;
+        int read;
+        while ((read = in.read(requestBytes, filled, BINARY_BUFFER - filled)) >= 0) {
+            filled += read;
+            requests.limit(filled).position(0);
+            while (requests.remaining() >= BinaryProtocol.REQUEST_BYTES) {
+                if (responses.remaining() < BinaryProtocol.RESPONSE_BYTES) {
+                    writeBinary(responses, out);
+                }
+                execute(requests, responses, command);
+            }
+            filled = requests.remaining();
+            System.arraycopy(requestBytes, requests.position(), requestBytes, 0, filled);
+            if (in.available() == 0) {
+                writeBinary(responses, out);
+                out.flush();
+            }
+        }
+        writeBinary(responses, out);
+        out.flush();
+    }
+
+    /**
+     * Executes a binary request, puts its response and records it in the statistics.
+     *
+     * @param request  Buffer with a request at its position, which is advanced past it.
+     * @param response Buffer with room for a response at its position, which is advanced.
+     * @param command  Command reused for decoding the request.
+     * @return The response code.
+     * @throws IOException If writing the log fails.
+     */
+    public ResponseCode execute(ByteBuffer request, ByteBuffer response, Command command) throws IOException {
+        long start = startTime();
+        int deviceId = request.getInt(request.position() + BinaryProtocol.ID_OFFSET);
+        if (!BinaryProtocol.decode(request, command)) {
+            BinaryProtocol.putResponse(response, ResponseCode.INVALID, null, deviceId, 0);
+            record(null, CommandOutcome.INVALID, start);
+            return ResponseCode.INVALID;
+        }
+        ResponseCode code = dispatchBinary(command, response);
+        record(command.getVerb(), code.getOutcome(), start);
+        return code;
+    }
+
+    /**
+     * Executes a parsed command and writes its outcome.
+     *
+     * @param command Parsed, syntactically valid command.
+     * @return The outcome of the command.
+     * @throws IOException If writing the response fails.
+     */
+    public CommandOutcome dispatch(Command command) throws IOException {
+        return dispatch(command, out);
+    }
+
+    /**
+     * Gets the handler registered for a verb.
+     *
+     * @param verb Verb of a command.
+     * @return The handler, or null if the verb has none.
+     */
+    CommandHandler getHandler(Verb verb) {
+        return handlers[verb.ordinal()];
+    }
+
+    /**
+     * Gets the write-ahead log set with setLog().
+     *
+     * @return The log, or null.
+     */
+    CommandLog getLog() {
+        return log;
+    }
+
+    /**
+     * Reads the clock for the latency of a command line, if statistics are attached.
+     *
+     * @return System.nanoTime(), or 0 without statistics.
+     */
+    long startTime() {
+        return stats != null ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Executes a command line other than "end", writes its responses and records it in the statistics.
+     *
+     * @param command Parsed command, or null if the line is invalid.
+     * @param out     Sink for the responses.
+     * @param start   Result of startTime() when the line was read.
+     * @throws IOException If writing the responses or the log fails.
+     */
+    void execute(Command command, ResponseWriter out, long start) throws IOException {
+        if (command == null) {
+            ResponseCode.INVALID.writeTo(out, null, 0, 0);
+            record(null, CommandOutcome.INVALID, start);
+        } else {
+            record(command.getVerb(), dispatch(command, out), start);
+        }
+    }
+
+    /**
+     * Executes a parsed command and writes its outcome to the given sink.
+     *
+     * @param command Parsed, syntactically valid command.
+     * @param out     Sink for the responses.
+     * @return The outcome of the command.
+     * @throws IOException If writing the response fails.
+     */
+    CommandOutcome dispatch(Command command, ResponseWriter out) throws IOException {
+        CommandHandler handler = handlers[command.getVerb().ordinal()];
+        if (handler == null) {
+            ResponseCode.INVALID.writeTo(out, null, 0, 0);
+            return CommandOutcome.INVALID;
+        }
+        if (follower != null && changesDevices(command.getVerb())) {
+            out.println("Device changes are not enabled on a follower");
+            return CommandOutcome.UNSUPPORTED;
+        }
+        if (!handler.getShape().addressesDevice()) {
+            return handler.getAction().execute(command, null, out) ? CommandOutcome.CHANGED : CommandOutcome.UNCHANGED;
+        }
+        if (command.isBulk()) {
+            return dispatchBulk(handler, command, out);
+        }
+        SmartDevice device = find(command);
+        if (device == null) {
+            ResponseCode.NOT_FOUND.writeTo(out, null, 0, 0);
+            return CommandOutcome.NOT_FOUND;
+        }
+        if (!device.getType().supports(handler.getCapability())) {
+            ResponseCode.NOT_CAPABLE.writeTo(out, device.getType(), device.getDeviceId(),
+                    handler.getCapability().ordinal());
+            return CommandOutcome.UNSUPPORTED;
+        }
+        return apply(handler, command, device, out);
+    }
+
+    /**
+     * Executes a decoded binary request with the built-in action of its verb and puts its response.
+     *
+     * @param command  Decoded command addressing a single device.
+     * @param response Buffer with room for a response at its position, which is advanced.
+     * @return The response code.
+     * @throws IOException If writing the log fails.
+     */
+    private ResponseCode dispatchBinary(Command command, ByteBuffer response) throws IOException {
+        CommandHandler handler = handlers[command.getVerb().ordinal()];
+        SmartDevice device = find(command);
+        int value = command.getArgument();
+        ResponseCode code;
+        if (follower != null) {
+            code = ResponseCode.INVALID;
+        } else if (device == null) {
+            code = ResponseCode.NOT_FOUND;
+        } else if (!device.getType().supports(handler.getCapability())) {
+            code = ResponseCode.NOT_CAPABLE;
+            value = handler.getCapability().ordinal();
+        } else if (handler.requiresOn() && !device.isOn()) {
+            code = ResponseCode.DEVICE_OFF;
+        } else if (log == null) {
+            code = act(command.getVerb(), device, value);
+        } else {
+            synchronized (log) {
+                code = act(command.getVerb(), device, value);
+                if (code.getOutcome() == CommandOutcome.CHANGED) {
+                    log.append(command.getVerb(), device.getType(), device.getDeviceId(), value);
+                }
+            }
+        }
+        BinaryProtocol.putResponse(response, code, command.getDeviceType(), command.getDeviceId(), value);
+        return code;
+    }
+
+    /**
+     * Writes the binary responses put so far, after the log.
+     *
+     * @param responses Buffer of the responses, cleared afterwards.
+     * @param out       Destination of the responses.
+     * @throws IOException If writing fails.
+     */
+    private void writeBinary(ByteBuffer responses, OutputStream out) throws IOException {
+        if (log != null) {
+            log.flush();
+        }
+        out.write(responses.array(), 0, responses.position());
+        responses.clear();
+    }
+
+    /**
+     * Checks whether a verb changes devices, now or later, which a follower must not do itself.
+     *
+     * @param verb Verb of a command.
+     * @return true for the verbs changing devices, transactions, schedules and rules.
+     */
+    private static boolean changesDevices(Verb verb) {
+        return BinaryProtocol.supports(verb) || switch (verb) {
+            case TRANSACTION, AFTER, AT, EVERY, DAILY, WHEN -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * Records a handled command line if statistics are attached.
+     *
+     * @param verb    Verb of the command, or null for an invalid line.
+     * @param outcome Outcome of the command.
+     * @param start   System.nanoTime() before the line was parsed.
+     */
+    private void record(Verb verb, CommandOutcome outcome, long start) {
+        if (stats != null) {
+            stats.record(verb, outcome, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Executes a bulk command on every device in its ID range that has the named type and the
+     * capability of the verb, then writes a summary line, e.g. "TurnOff: 3 of 4 devices changed".
+     * Devices without the capability are skipped silently; the others get the same response as
+     * for the single device form of the command.
+     *
+     * @param handler Handler of the verb.
+     * @param command Parsed bulk command.
+     * @param out     Sink for the responses.
+     * @return CHANGED if any device changed, UNCHANGED otherwise.
+     * @throws IOException If writing the responses fails.
+     */
+    private CommandOutcome dispatchBulk(CommandHandler handler, Command command, ResponseWriter out)
+            throws IOException {
+        int last = Math.min(command.getLastDeviceId(), devices.idBound() - 1);
+        BulkTask task = new BulkTask(handler, command, command.getDeviceId(), last);
+        if (last - command.getDeviceId() < CHUNK_IDS) {
+            task.compute();
+        } else {
+            ForkJoinPool.commonPool().invoke(task);
+        }
+        task.writeTo(out);
+        out.append(command.getVerb().getKeyword()).append(": ").append(task.changed).append(" of ")
+                .append(task.matched).append(" devices changed").newLine();
+        return task.changed > 0 ? CommandOutcome.CHANGED : CommandOutcome.UNCHANGED;
+    }
+
+    /**
+     * Runs the action of a verb on a device that exists and has the required capability,
+     * unless the verb needs the device to be on and it is off.
+     *
+     * @param handler Handler of the verb.
+     * @param command Parsed command.
+     * @param device  Addressed device.
+     * @param out     Sink for the response.
+     * @return CHANGED if the device was changed, OFF if it had to be on, UNCHANGED otherwise.
+     * @throws IOException If writing the response or the log fails.
+     */
+    private CommandOutcome apply(CommandHandler handler, Command command, SmartDevice device, ResponseWriter out)
+            throws IOException {
+        if (handler.requiresOn() && !device.isOn()) {
+            ResponseCode.DEVICE_OFF.writeTo(out, device.getType(), device.getDeviceId(), 0);
+            return CommandOutcome.OFF;
+        }
+        boolean changed;
+        if (log == null) {
+            changed = handler.getAction().execute(command, device, out);
+        } else {
+            synchronized (log) {
+                changed = handler.getAction().execute(command, device, out);
+                if (changed) {
+                    log.append(handler.getVerb(), device.getType(), device.getDeviceId(), command.getArgument());
+                }
+            }
+        }
+        return changed ? CommandOutcome.CHANGED : CommandOutcome.UNCHANGED;
+    }
+
+    /**
+     * Finds the device addressed by the command.
+     *
+     * @param command Parsed command.
+     * @return The device if it exists and has the named type, null otherwise.
+     */
+    private SmartDevice find(Command command) {
+        SmartDevice device = devices.get(command.getDeviceId());
+        return device != null && command.matchesType(device.getType()) ? device : null;
+    }
+
+    /**
+     * Fork-join task applying a bulk command to the devices of an ID range. Large ranges are split
+     * in halves; every chunk collects the responses of its devices in its own buffer, and the
+     * buffers are written in ID order once all chunks are done.
+     */
+    @SuppressWarnings("serial")  // Fork-join tasks only run in the pool and are never serialized
+    private final class BulkTask extends RecursiveAction {
+        private final CommandHandler handler;  // Handler of the verb
+        private final Command command;  // Parsed bulk command, not modified while the task runs
+        private final int first;  // First device ID of the range (inclusive)
+        private final int last;  // Last device ID of the range (inclusive)
+        private BulkTask left;  // Lower half of a split range, null for a chunk
+        private BulkTask right;  // Upper half of a split range, null for a chunk
+        private byte[] responses;  // Responses of a chunk
+        private int matched;  // Devices of the range the command applied to
+        private int changed;  // Devices of the range the command changed
+
+        /**
+         * Constructor to create a task for an ID range.
+         *
+         * @param handler Handler of the verb.
+         * @param command Parsed bulk command.
+         * @param first   First device ID of the range (inclusive).
+         * @param last    Last device ID of the range (inclusive).
+         */
+        BulkTask(CommandHandler handler, Command command, int first, int last) {
+            this.handler = handler;
+            this.command = command;
+            this.first = first;
+            this.last = last;
+        }
+
+        @Override
+        protected void compute() {
+            if (last - first < CHUNK_IDS) {
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                try {
+                    ResponseWriter chunkOut = new ResponseWriter(buffer, CHUNK_BUFFER);
+                    applyChunk(chunkOut);
+                    chunkOut.flush();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                responses = buffer.toByteArray();
+                return;
+            }
+            int middle = first + (last - first) / 2;
+            left = new BulkTask(handler, command, first, middle);
+            right = new BulkTask(handler, command, middle + 1, last);
+            invokeAll(left, right);
+            matched = left.matched + right.matched;
+            changed = left.changed + right.changed;
+        }
+
+        /**
+         * Applies the command to the matching devices of the range, in ID order.
+         *
+         * @param chunkOut Sink for the responses of the chunk.
+         * @throws IOException If writing a response fails.
+         */
+        private void applyChunk(ResponseWriter chunkOut) throws IOException {
+            for (int id = devices.nextId(first); id >= 0 && id <= last; id = devices.nextId(id + 1)) {
+                SmartDevice device = devices.get(id);
+                if (device == null || !command.matchesType(device.getType())
+                        || !device.getType().supports(handler.getCapability())) {
+                    continue;
+                }
+                matched++;
+                if (apply(handler, command, device, chunkOut) == CommandOutcome.CHANGED) {
+                    changed++;
+                }
+            }
+        }
+
+        /**
+         * Writes the collected responses of the range in ID order.
+         *
+         * @param sink Destination of the responses.
+         * @throws IOException If writing fails.
+         */
+        void writeTo(ResponseWriter sink) throws IOException {
+            if (left != null) {
+                left.writeTo(sink);
+                right.writeTo(sink);
+            } else {
+                sink.append(responses, 0, responses.length);
+            }
+        }
+    }
+
+    /**
+     * Registers the handlers of the built-in verbs.
+     */
+    private void registerBuiltins() {
+        register(new CommandHandler(Verb.DISPLAY_ALL_STATUS, Capability.ANY, false,
+                (command, device, out) -> displayAllStatus(out)));
+        register(new CommandHandler(Verb.STATS, Capability.ANY, false, (command, device, out) -> displayStats(out)));
+        for (Verb verb : new Verb[] {Verb.AFTER, Verb.AT, Verb.EVERY, Verb.DAILY}) {
+            register(new CommandHandler(verb, Capability.ANY, false, (command, device, out) -> schedule(command, out)));
+        }
+        register(new CommandHandler(Verb.LIST_SCHEDULES, Capability.ANY, false,
+                (command, device, out) -> listSchedules(out)));
+        register(new CommandHandler(Verb.CANCEL_SCHEDULE, Capability.ANY, false,
+                (command, device, out) -> cancelSchedule(command, out)));
+        register(new CommandHandler(Verb.WHEN, Capability.ANY, false, (command, device, out) -> addRule(command, out)));
+        register(new CommandHandler(Verb.LIST_RULES, Capability.ANY, false, (command, device, out) -> listRules(out)));
+        register(new CommandHandler(Verb.REMOVE_RULE, Capability.ANY, false,
+                (command, device, out) -> removeRule(command, out)));
+        register(new CommandHandler(Verb.FIND, Capability.ANY, false, (command, device, out) -> find(command, out)));
+        register(new CommandHandler(Verb.COUNT, Capability.ANY, false, (command, device, out) -> count(command, out)));
+        register(new CommandHandler(Verb.ROOM_TEMPERATURE, Capability.HEATER, false, this::roomTemperature));
+        register(new CommandHandler(Verb.SIMULATE, Capability.ANY, false,
+                (command, device, out) -> simulate(command, out)));
+        register(new CommandHandler(Verb.TRANSACTION, Capability.ANY, false,
+                (command, device, out) -> transact(command, out)));
+        registerAction(Verb.TURN_ON, Capability.ANY, false);
+        registerAction(Verb.TURN_OFF, Capability.ANY, false);
+        registerAction(Verb.START_CHARGING, Capability.CHARGEABLE, false);
+        registerAction(Verb.STOP_CHARGING, Capability.CHARGEABLE, false);
+        registerAction(Verb.START_RECORDING, Capability.CAMERA, true);
+        registerAction(Verb.STOP_RECORDING, Capability.CAMERA, true);
+        registerAction(Verb.SET_ANGLE, Capability.CAMERA, true);
+        registerAction(Verb.SET_TEMPERATURE, Capability.HEATER, true);
+        registerAction(Verb.SET_COLOR, Capability.LIGHT, true);
+        registerAction(Verb.SET_BRIGHTNESS, Capability.LIGHT, true);
+    }
+
+    /**
+     * Registers the handler of a verb changing a single device, which writes the response of act().
+     *
+     * @param verb       Verb changing a device.
+     * @param capability Capability the device must have.
+     * @param requiresOn Whether the device must be on.
+     */
+    private void registerAction(Verb verb, Capability capability, boolean requiresOn) {
+        register(new CommandHandler(verb, capability, requiresOn, (command, device, out) -> {
+            ResponseCode code = act(verb, device, command.getArgument());
+            code.writeTo(out, device.getType(), device.getDeviceId(), command.getArgument());
+            return code.getOutcome() == CommandOutcome.CHANGED;
+        }));
+    }
+
+    /**
+     * Runs the built-in action of a verb changing a single device, for both protocols.
+     *
+     * @param verb     Verb changing a device.
+     * @param device   Device with the capability of the verb, on if the verb requires it.
+     * @param argument Argument of the command.
+     * @return The response to the command.
+     */
+    private static ResponseCode act(Verb verb, SmartDevice device, int argument) {
+        return switch (verb) {
+            case TURN_ON -> device.turnOn() ? ResponseCode.ON : ResponseCode.ALREADY_ON;
+            case TURN_OFF -> device.turnOff() ? ResponseCode.OFF : ResponseCode.ALREADY_OFF;
+            case START_CHARGING -> ((Chargeable) device).startCharging() ? ResponseCode.CHARGING
+                    : ResponseCode.ALREADY_CHARGING;
+            case STOP_CHARGING -> ((Chargeable) device).stopCharging() ? ResponseCode.STOPPED_CHARGING
+                    : ResponseCode.NOT_CHARGING;
+            case START_RECORDING -> ((Camera) device).startRecording() ? ResponseCode.STARTED_RECORDING
+                    : ResponseCode.ALREADY_RECORDING;
+            case STOP_RECORDING -> ((Camera) device).stopRecording() ? ResponseCode.STOPPED_RECORDING
+                    : ResponseCode.NOT_RECORDING;
+            case SET_ANGLE -> !Camera.isValidAngle(argument) ? ResponseCode.ANGLE_OUT_OF_RANGE
+                    : ((Camera) device).changeAngle(argument) ? ResponseCode.ANGLE_SET : ResponseCode.ANGLE_ALREADY_SET;
+            case SET_TEMPERATURE -> !Heater.isValidTemperature(argument) ? ResponseCode.TEMPERATURE_OUT_OF_RANGE
+                    : ((Heater) device).changeTemperature(argument) ? ResponseCode.TEMPERATURE_SET
+                    : ResponseCode.TEMPERATURE_ALREADY_SET;
+            case SET_COLOR -> argument < 0 || argument >= LIGHT_COLORS.length ? ResponseCode.UNKNOWN_COLOR
+                    : ((Light) device).setLightColor(LIGHT_COLORS[argument]) ? ResponseCode.COLOR_SET
+                    : ResponseCode.COLOR_ALREADY_SET;
+            case SET_BRIGHTNESS -> argument < 0 || argument >= BRIGHTNESS_LEVELS.length
+                    ? ResponseCode.UNKNOWN_BRIGHTNESS
+                    : ((Light) device).setBrightnessLevel(BRIGHTNESS_LEVELS[argument]) ? ResponseCode.BRIGHTNESS_SET
+                    : ResponseCode.BRIGHTNESS_ALREADY_SET;
+            default -> throw new IllegalArgumentException("No built-in action changes a device for " + verb);
+        };
+    }
+
+    /**
+     * Appends the type name and ID of a device, e.g. "Light 3".
+     *
+     * @param out    Sink for the response.
+     * @param device Device to describe.
+     * @return The response writer.
+     * @throws IOException If writing fails.
+     */
+    private static ResponseWriter appendDevice(ResponseWriter out, SmartDevice device) throws IOException {
+        return out.append(device.getType().getDisplayName()).append(' ').append(device.getDeviceId());
+    }
+
+    private boolean displayAllStatus(ResponseWriter out) throws IOException {
+        for (int id = devices.nextId(0); id >= 0; id = devices.nextId(id + 1)) {
+            out.println(devices.get(id).displayStatus()); // Displays the status of each device
+        }
+        return false;
+    }
+
+    private boolean displayStats(ResponseWriter out) throws IOException {
+        if (stats == null) {
+            out.println("Statistics are not enabled");
+        } else {
+            stats.writeTo(out);
+        }
+        return false;
+    }
+
+    private boolean schedule(Command command, ResponseWriter out) throws IOException {
+        if (scheduler == null) {
+            out.println("Scheduling is not enabled");
+            return false;
+        }
+        scheduler.schedule(command, out);
+        return true;
+    }
+
+    private boolean listSchedules(ResponseWriter out) throws IOException {
+        if (scheduler == null) {
+            out.println("Scheduling is not enabled");
+        } else {
+            scheduler.writeTo(out);
+        }
+        return false;
+    }
+
+    private boolean cancelSchedule(Command command, ResponseWriter out) throws IOException {
+        if (scheduler == null) {
+            out.println("Scheduling is not enabled");
+            return false;
+        }
+        if (!scheduler.cancel(command.getArgument())) {
+            out.println("The schedule was not found");
+            return false;
+        }
+        out.append("Schedule ").append(command.getArgument()).append(" is cancelled").newLine();
+        return true;
+    }
+
+    private boolean addRule(Command command, ResponseWriter out) throws IOException {
+        if (rules == null) {
+            out.println("Rules are not enabled");
+            return false;
+        }
+        return rules.add(command, out);
+    }
+
+    private boolean listRules(ResponseWriter out) throws IOException {
+        if (rules == null) {
+            out.println("Rules are not enabled");
+        } else {
+            rules.writeTo(out);
+        }
+        return false;
+    }
+
+    private boolean removeRule(Command command, ResponseWriter out) throws IOException {
+        if (rules == null) {
+            out.println("Rules are not enabled");
+            return false;
+        }
+        if (!rules.remove(command.getArgument())) {
+            out.println("The rule was not found");
+            return false;
+        }
+        out.append("Rule ").append(command.getArgument()).append(" is removed").newLine();
+        return true;
+    }
+
+    private boolean find(Command command, ResponseWriter out) throws IOException {
+        if (index == null) {
+            out.println("Queries are not enabled");
+            return false;
+        }
+        BitSet matches = index.select(command.getQuery());
+        for (int id = matches.nextSetBit(0); id >= 0; id = matches.nextSetBit(id + 1)) {
+            SmartDevice device = devices.get(id);
+            if (device != null) {
+                out.println(device.displayStatus());
+            }
+        }
+        out.append("Find: ").append(matches.cardinality()).append(" devices match").newLine();
+        return false;
+    }
+
+    private boolean count(Command command, ResponseWriter out) throws IOException {
+        if (index == null) {
+            out.println("Queries are not enabled");
+        } else {
+            out.append("Count: ").append(index.count(command.getQuery())).append(" devices match").newLine();
+        }
+        return false;
+    }
+
+    private boolean roomTemperature(Command command, SmartDevice device, ResponseWriter out) throws IOException {
+        double temperature = simulation != null ? simulation.temperatureOf(device.getDeviceId()) : Double.NaN;
+        if (simulation == null) {
+            out.println("Simulation is not enabled");
+        } else if (Double.isNaN(temperature)) {
+            appendDevice(out, device).append(" is not simulated").newLine();
+        } else {
+            appendDevice(out, device).append(" room temperature is ")
+                    .append(String.format(Locale.ROOT, "%.1f", temperature)).append(" and the setpoint is ")
+                    .append(((Heater) device).getTemperature()).newLine();
+        }
+        return false;
+    }
+
+    private boolean simulate(Command command, ResponseWriter out) throws IOException {
+        if (simulation == null) {
+            out.println("Simulation is not enabled");
+            return false;
+        }
+        if (command.getTime() > MAX_SIMULATED_MILLIS) {
+            out.println("The simulated duration should be at most 1d");
+            return false;
+        }
+        long ticks = command.getTime() / ThermalSimulation.TICK_MILLIS;
+        simulation.advance(ticks);
+        out.append("Simulated ").append(ticks).append(" ticks of ").append(ThermalSimulation.TICK_MILLIS)
+                .append(" ms").newLine();
+        return false;
+    }
+
+    private boolean transact(Command command, ResponseWriter out) throws IOException {
+        Transaction transaction = newTransaction();
+        for (Command step : command.getSteps()) {
+            transaction.add(step);
+        }
+        boolean committed = transaction.commit();
+        transaction.writeTo(out);
+        return committed && transaction.changedDevices() > 0;
+    }
+}
@@ -0,0 +1,90 @@
+import java.io.IOException;
+
+/**
+ * Descriptor of a verb's handling: the devices it applies to and the action performed on them.
+ * The checks shared by all verbs are done by CommandDispatcher before the action runs.
+ */
+public final class CommandHandler {
+    private final Verb verb;  // Verb handled by this descriptor
+    private final Capability capability;  // Capability the addressed device must have
+    private final boolean requiresOn;  // Whether the device must be on for the action to run
+    private final Action action;  // Action performed on the device
+
+    /**
+     * Operation performed for a command that passed the common checks.
+     */
+    @FunctionalInterface
+    public interface Action {
+        /**
+         * Executes the command. Bulk commands run the action for many devices in parallel,
+         * so it must write only to the given sink.
+         *
+         * @param command Parsed command.
+         * @param device  Addressed device, or null for verbs without device arguments.
+         * @param out     Sink for the response.
+         * @return true if the device was changed, false if the command was rejected or already in effect.
+         * @throws IOException If writing the response fails.
+         */
+        boolean execute(Command command, SmartDevice device, ResponseWriter out) throws IOException;
+    }
+
+    /**
+     * Constructor to initialize a handler descriptor.
+     *
+     * @param verb       Verb handled by this descriptor.
+     * @param capability Capability the addressed device must have.
+     * @param requiresOn Whether the device must be on for the action to run.
+     * @param action     Action performed on the device.
+     */
+    public CommandHandler(Verb verb, Capability capability, boolean requiresOn, Action action) {
+        this.verb = verb;
+        this.capability = capability;
+        this.requiresOn = requiresOn;
+        this.action = action;
+    }
+
+    /**
+     * Gets the verb handled by this descriptor.
+     *
+     * @return The verb.
+     */
+    public Verb getVerb() {
+        return verb;
+    }
+
+    /**
+     * Gets the arguments expected after the verb.
+     *
+     * @return The argument shape of the verb.
+     */
+    public ArgumentShape getShape() {
+        return verb.getShape();
+    }
+
+    /**
+     * Gets the capability the addressed device must have.
+     *
+     * @return The required capability.
+     */
+    public Capability getCapability() {
+        return capability;
+    }
+
+    /**
+     * Checks whether the device must be on for the action to run.
+     *
+     * @return true if the device must be on, false otherwise.
+     */
+    public boolean requiresOn() {
+        return requiresOn;
+    }
+
+    /**
+     * Gets the action performed on the device.
+     *
+     * @return The action.
+     */
+    public Action getAction() {
+        return action;
+    }
+}
@@ -0,0 +1,417 @@
+import java.io.IOException;
+
+/**
+ * Source of command lines split into whitespace separated tokens, as read by CommandParser.
+ * Subclasses locate the lines in their storage and expose its characters by offset; the tokens of
+ * the current line are kept as offsets, so inspecting a line does not create any objects.
+ */
+public abstract class CommandInput {
+    private static final int MAX_TOKENS = 64;  // Number of token positions remembered per line
+    private static final long MAX_DURATION_MILLIS = 366L * 86_400_000;  // Longest duration accepted
+    private final int[] tokenStart = new int[MAX_TOKENS];  // Start offsets of the first tokens
+    private final int[] tokenEnd = new int[MAX_TOKENS];  // End offsets of the first tokens
+    private int lineEnd;  // End of the current line (exclusive)
+    private int tokenCount;  // Number of tokens in the current line
+    private int storedTokens;  // Number of tokens whose positions are remembered
+    private int fullLineEnd;  // End of the line before limitLine()
+    private int fullTokenCount;  // Number of tokens before limitLine()
+
+    /**
+     * Advances to the next line of input and splits it into tokens.
+     *
+     * @return true if a line was read, false if the input is exhausted.
+     * @throws IOException If reading the input fails.
+     */
+    public abstract boolean nextLine() throws IOException;
+
+    /**
+     * Gets a character of the storage holding the current line.
+     *
+     * @param offset Offset of the character, between the bounds passed to tokenize().
+     * @return The character.
+     */
+    protected abstract char charAt(int offset);
+
+    /**
+     * Splits the characters between the given offsets into whitespace separated tokens.
+     *
+     * @param start Start of the line (inclusive).
+     * @param end   End of the line (exclusive).
+     */
+    protected final void tokenize(int start, int end) {
+        lineEnd = end;
+        tokenCount = 0;
+        int i = start;
+        while (i < end) {
+            while (i < end && isWhitespace(charAt(i))) {
+                i++;
+            }
+            if (i == end) {
+                break;
+            }
+            int begin = i;
+            while (i < end && !isWhitespace(charAt(i))) {
+                i++;
+            }
+            if (tokenCount < MAX_TOKENS) {
+                tokenStart[tokenCount] = begin;
+                tokenEnd[tokenCount] = i;
+            }
+            tokenCount++;
+        }
+        storedTokens = Math.min(tokenCount, MAX_TOKENS);
+    }
+
+    /**
+     * Drops the first tokens of the current line, so that the rest can be parsed as a command of
+     * its own, e.g. the command after the time of a schedule.
+     *
+     * @param count Number of tokens to drop, at most the number of tokens.
+     */
+    final void skipTokens(int count) {
+        int kept = Math.max(0, storedTokens - count);
+        System.arraycopy(tokenStart, storedTokens - kept, tokenStart, 0, kept);
+        System.arraycopy(tokenEnd, storedTokens - kept, tokenEnd, 0, kept);
+        tokenCount = Math.max(0, tokenCount - count);
+        storedTokens = kept;
+    }
+
+    /**
+     * Lets the current line end after its first tokens, so that they can be parsed as a command of
+     * their own, e.g. a step of a transaction. restoreLine() brings back the rest of the line.
+     *
+     * @param count Number of tokens to keep, between 1 and the number of remembered tokens.
+     */
+    final void limitLine(int count) {
+        fullLineEnd = lineEnd;
+        fullTokenCount = tokenCount;
+        lineEnd = tokenEnd[count - 1];
+        tokenCount = count;
+    }
+
+    /**
+     * Undoes limitLine().
+     */
+    final void restoreLine() {
+        lineEnd = fullLineEnd;
+        tokenCount = fullTokenCount;
+    }
+
+    /**
+     * Copies the text of the current line from the start of a token to the end of the line.
+     *
+     * @param index Index of the token.
+     * @return The text, or an empty string if the line has no such token.
+     */
+    final String textFrom(int index) {
+        if (index >= storedTokens) {
+            return "";
+        }
+        StringBuilder text = new StringBuilder(lineEnd - tokenStart[index]);
+        for (int i = tokenStart[index]; i < lineEnd; i++) {
+            text.append(charAt(i));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Checks whether the character is whitespace as defined by Character.isWhitespace(), which is
+     * only consulted for control characters, the space and non-ASCII characters.
+     *
+     * @param c Character to check.
+     * @return true if the character separates tokens, false otherwise.
+     */
+    private static boolean isWhitespace(char c) {
+        return (c <= ' ' || c >= 0x80) && Character.isWhitespace(c);
+    }
+
+    /**
+     * Checks whether the character terminates a line, following the rules of Scanner.nextLine().
+     *
+     * @param c Character to check.
+     * @return true if the character is a line separator, false otherwise.
+     */
+    static boolean isLineSeparator(char c) {
+        return c == '\n' || c == '\r' || c == '\u2028' || c == '\u2029' || c == '\u0085';
+    }
+
+    /**
+     * Gets the number of tokens in the current line.
+     *
+     * @return Number of tokens.
+     */
+    public final int tokenCount() {
+        return tokenCount;
+    }
+
+    /**
+     * Checks whether the token is the last thing on the line, with no trailing whitespace after it.
+     *
+     * @param index Index of the token.
+     * @return true if the token ends the line, false otherwise.
+     */
+    public final boolean endsLine(int index) {
+        return index < storedTokens && tokenEnd[index] == lineEnd;
+    }
+
+    /**
+     * Compares the token with the given text.
+     *
+     * @param index Index of the token.
+     * @param text  Text to compare with.
+     * @return true if the token consists of exactly the given characters, false otherwise.
+     */
+    public final boolean tokenEquals(int index, String text) {
+        if (index >= storedTokens) {
+            return false;
+        }
+        int start = tokenStart[index];
+        int length = tokenEnd[index] - start;
+        if (length != text.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (charAt(start + i) != text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the text equal to the token among the given candidates.
+     *
+     * @param index      Index of the token.
+     * @param candidates Texts to compare with.
+     * @return Index of the matching candidate, or -1 if none matches.
+     */
+    public final int tokenIndexIn(int index, String[] candidates) {
+        for (int i = 0; i < candidates.length; i++) {
+            if (tokenEquals(index, candidates[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Checks whether the token consists only of decimal digits.
+     *
+     * @param index Index of the token.
+     * @return true if the token is an unsigned number, false otherwise.
+     */
+    public final boolean isDigits(int index) {
+        if (index >= storedTokens) {
+            return false;
+        }
+        return digitsBetween(tokenStart[index], tokenEnd[index]);
+    }
+
+    /**
+     * Checks whether the token is a number with an optional leading minus sign.
+     *
+     * @param index Index of the token.
+     * @return true if the token is a signed number, false otherwise.
+     */
+    public final boolean isSignedDigits(int index) {
+        if (index >= storedTokens) {
+            return false;
+        }
+        int start = tokenStart[index];
+        if (charAt(start) == '-') {
+            start++;
+        }
+        return digitsBetween(start, tokenEnd[index]);
+    }
+
+    /**
+     * Checks whether the token contains no decimal digits at all.
+     *
+     * @param index Index of the token.
+     * @return true if the token has no digits, false otherwise.
+     */
+    public final boolean hasNoDigits(int index) {
+        if (index >= storedTokens) {
+            return false;
+        }
+        for (int i = tokenStart[index]; i < tokenEnd[index]; i++) {
+            if (isDigit(charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses a token previously checked with isSignedDigits().
+     * Values that do not fit into an int are clamped to the int range.
+     *
+     * @param index Index of the token.
+     * @return The numeric value of the token.
+     */
+    public final int intValue(int index) {
+        return valueBetween(tokenStart[index], tokenEnd[index]);
+    }
+
+    /**
+     * Checks whether the token is an ID range of two unsigned numbers joined by a minus sign, e.g. "100-5000".
+     *
+     * @param index Index of the token.
+     * @return true if the token is a range, false otherwise.
+     */
+    public final boolean isRange(int index) {
+        if (index >= storedTokens) {
+            return false;
+        }
+        int separator = rangeSeparator(index);
+        return separator >= 0 && digitsBetween(tokenStart[index], separator)
+                && digitsBetween(separator + 1, tokenEnd[index]);
+    }
+
+    /**
+     * Parses the lower bound of a token previously checked with isRange().
+     *
+     * @param index Index of the token.
+     * @return The first number of the range, clamped to the int range.
+     */
+    public final int rangeStart(int index) {
+        return valueBetween(tokenStart[index], rangeSeparator(index));
+    }
+
+    /**
+     * Parses the upper bound of a token previously checked with isRange().
+     *
+     * @param index Index of the token.
+     * @return The second number of the range, clamped to the int range.
+     */
+    public final int rangeEnd(int index) {
+        return valueBetween(rangeSeparator(index) + 1, tokenEnd[index]);
+    }
+
+    /**
+     * Parses a token that is a duration, a number followed by one of the units "ms", "s", "m",
+     * "h" and "d", e.g. "90m".
+     *
+     * @param index Index of the token.
+     * @return The duration in milliseconds, or -1 if the token is not a duration or exceeds a year.
+     */
+    public final long durationMillis(int index) {
+        if (index >= storedTokens) {
+            return -1;
+        }
+        int start = tokenStart[index];
+        int unit = start;
+        while (unit < tokenEnd[index] && isDigit(charAt(unit))) {
+            unit++;
+        }
+        int unitLength = tokenEnd[index] - unit;
+        long millis;
+        if (unitLength == 2 && charAt(unit) == 'm' && charAt(unit + 1) == 's') {
+            millis = 1;
+        } else if (unitLength != 1) {
+            return -1;
+        } else {
+            millis = switch (charAt(unit)) {
+                case 's' -> 1000;
+                case 'm' -> 60_000;
+                case 'h' -> 3_600_000;
+                case 'd' -> 86_400_000;
+                default -> -1;
+            };
+        }
+        if (millis < 0 || !digitsBetween(start, unit) || unit - start > 9) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < unit; i++) {
+            value = value * 10 + (charAt(i) - '0');
+        }
+        return value * millis <= MAX_DURATION_MILLIS ? value * millis : -1;
+    }
+
+    /**
+     * Parses a token that is a time of day in the form "HH:MM", e.g. "23:00".
+     *
+     * @param index Index of the token.
+     * @return The minute of the day, or -1 if the token is not a valid time of day.
+     */
+    public final int minuteOfDay(int index) {
+        if (index >= storedTokens || tokenEnd[index] - tokenStart[index] != 5) {
+            return -1;
+        }
+        int start = tokenStart[index];
+        if (charAt(start + 2) != ':' || !digitsBetween(start, start + 2) || !digitsBetween(start + 3, start + 5)) {
+            return -1;
+        }
+        int hour = valueBetween(start, start + 2);
+        int minute = valueBetween(start + 3, start + 5);
+        return hour < 24 && minute < 60 ? hour * 60 + minute : -1;
+    }
+
+    /**
+     * Finds the minus sign separating the bounds of a range token.
+     *
+     * @param index Index of the token.
+     * @return Offset of the first minus sign in the token, or -1 if there is none.
+     */
+    private int rangeSeparator(int index) {
+        for (int i = tokenStart[index]; i < tokenEnd[index]; i++) {
+            if (charAt(i) == '-') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parses the characters between the given offsets as a number with an optional leading minus sign.
+     *
+     * @param start Start offset (inclusive).
+     * @param end   End offset (exclusive).
+     * @return The numeric value, clamped to the int range.
+     */
+    private int valueBetween(int start, int end) {
+        int i = start;
+        boolean negative = charAt(i) == '-';
+        if (negative) {
+            i++;
+        }
+        long value = 0;
+        for (; i < end && value <= Integer.MAX_VALUE; i++) {
+            value = value * 10 + (charAt(i) - '0');
+        }
+        if (negative) {
+            value = -value;
+        }
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, value));
+    }
+
+    /**
+     * Checks whether all characters between the given offsets are decimal digits.
+     *
+     * @param start Start offset (inclusive).
+     * @param end   End offset (exclusive).
+     * @return true if the range is non-empty and contains only digits, false otherwise.
+     */
+    private boolean digitsBetween(int start, int end) {
+        if (start >= end) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (!isDigit(charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether the character is an ASCII decimal digit, the same set as the regex class \d.
+     *
+     * @param c Character to check.
+     * @return true if the character is a digit, false otherwise.
+     */
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
@@ -0,0 +1,119 @@
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Line-oriented tokenizer that splits console commands into whitespace separated tokens.
+ * Characters are read into a single reusable buffer and tokens are exposed as offsets into it,
+ * so reading and inspecting a line does not create any objects.
+ */
+public final class CommandLexer extends CommandInput {
+    private static final int DEFAULT_BUFFER_SIZE = 8192;  // Default initial capacity of the character buffer
+    private final Reader reader;  // Source of characters
+    private final Flushable beforeWait;  // Flushed before a read that may block, or null
+    private char[] buffer;  // Reusable character buffer
+    private int position;  // Start of the unread part of the buffer
+    private int limit;  // End of the valid part of the buffer
+    private boolean endOfInput;  // Whether the reader has been exhausted
+    private boolean skipLineFeed;  // Whether a '\n' following a consumed '\r' should be skipped
+
+    /**
+     * Constructor to create a lexer reading lines from the given reader.
+     *
+     * @param reader Source of command lines.
+     */
+    public CommandLexer(Reader reader) {
+        this(reader, null);
+    }
+
+    /**
+     * Constructor to create a lexer that flushes pending output whenever it runs out of
+     * buffered input, so responses are written in batches but never held back while waiting.
+     *
+     * @param reader     Source of command lines.
+     * @param beforeWait Output to flush before a read that may block, or null.
+     */
+    public CommandLexer(Reader reader, Flushable beforeWait) {
+        this(reader, beforeWait, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Constructor to create a lexer with a buffer of the given initial size.
+     * The buffer still grows when a single line does not fit into it.
+     *
+     * @param reader     Source of command lines.
+     * @param beforeWait Output to flush before a read that may block, or null.
+     * @param bufferSize Initial capacity of the buffer in characters.
+     */
+    public CommandLexer(Reader reader, Flushable beforeWait, int bufferSize) {
+        this.reader = reader;
+        this.beforeWait = beforeWait;
+        this.buffer = new char[Math.max(1, bufferSize)];
+    }
+
+    @Override
+    public boolean nextLine() throws IOException {
+        int scan = position;
+        while (true) {
+            if (skipLineFeed && scan < limit) {
+                skipLineFeed = false;
+                if (buffer[scan] == '\n') {
+                    position = ++scan;
+                }
+            }
+            while (scan < limit && !isLineSeparator(buffer[scan])) {
+                scan++;
+            }
+            if (scan < limit) {
+                tokenize(position, scan);
+                skipLineFeed = buffer[scan] == '\r';
+                position = scan + 1;
+                return true;
+            }
+            if (endOfInput) {
+                if (position == limit) {
+                    return false;
+                }
+                tokenize(position, limit);
+                position = limit;
+                return true;
+            }
+            scan -= fill();
+        }
+    }
+
+    /**
+     * Reads more characters, compacting or growing the buffer as needed.
+     *
+     * @return The number of characters the unread part of the buffer was shifted left by.
+     * @throws IOException If reading from the underlying reader fails.
+     */
+    private int fill() throws IOException {
+        int shift = position;
+        if (shift > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= shift;
+            position = 0;
+        }
+        if (limit == buffer.length) {
+            char[] grown = new char[buffer.length * 2];
+            System.arraycopy(buffer, 0, grown, 0, limit);
+            buffer = grown;
+        }
+        if (beforeWait != null && !reader.ready()) {
+            beforeWait.flush();
+        }
+        int read = reader.read(buffer, limit, buffer.length - limit);
+        if (read < 0) {
+            endOfInput = true;
+        } else {
+            limit += read;
+        }
+        return shift;
+    }
+
+    @Override
+    protected char charAt(int offset) {
+        return buffer[offset];
+    }
+}
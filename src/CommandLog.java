@@ -0,0 +1,226 @@
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only write-ahead log of the commands that changed a device.
+ *
+ * <p>Every record is 16 little-endian bytes: the verb and device type ordinals, two reserved bytes,
+ * the device ID, the argument and a CRC32C of the first 12 bytes. Records are collected in a buffer
+ * that is written to the file by flush(), which the command loops call before their responses are
+ * flushed, so a response is only seen after its command reached the log. Replay stops at the first
+ * incomplete or damaged record, i.e. at the tail torn by a crash.</p>
+ *
+ * <p>Every logged command assigns one attribute of one device an absolute value. Replay applies
+ * the commands without the power check, since they were valid when they were logged, so replaying
+ * records whose effect is already contained in a snapshot does not change the result.</p>
+ */
+public final class CommandLog implements Flushable, Closeable {
+    private static final int RECORD_BYTES = 16;  // Verb, type, reserved, ID, argument, checksum
+    private static final int CHECKED_BYTES = 12;  // Bytes covered by the checksum
+    private static final int BUFFER_RECORDS = 4096;  // Records buffered between writes
+    private static final Verb[] VERBS = Verb.values();
+    private static final DeviceType[] TYPES = DeviceType.values();
+    private static final LightColor[] LIGHT_COLORS = LightColor.values();
+    private static final Brightnesslevel[] BRIGHTNESS_LEVELS = Brightnesslevel.values();
+    private final Path file;  // Log file
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_RECORDS * RECORD_BYTES)
+            .order(ByteOrder.LITTLE_ENDIAN);  // Records not yet written
+    private final CRC32C checksum = new CRC32C();  // Reused for every appended record
+    private FileChannel channel;  // Open log file
+
+    /**
+     * Constructor to open a log file for appending, creating it if necessary.
+     *
+     * @param file Log file.
+     * @throws IOException If the file cannot be opened.
+     */
+    public CommandLog(Path file) throws IOException {
+        this.file = file;
+        this.channel = open(file);
+    }
+
+    /**
+     * Appends a command that changed a device.
+     *
+     * @param verb     Verb of the command.
+     * @param type     Type of the device.
+     * @param deviceId ID of the device.
+     * @param argument Argument of the command.
+     * @throws IOException If the buffer had to be written and writing failed.
+     */
+    public synchronized void append(Verb verb, DeviceType type, int deviceId, int argument) throws IOException {
+        if (buffer.remaining() < RECORD_BYTES) {
+            drain();
+        }
+        int start = buffer.position();
+        buffer.put((byte) verb.ordinal()).put((byte) type.ordinal()).putShort((short) 0)
+                .putInt(deviceId).putInt(argument);
+        buffer.putInt(checksum(checksum, buffer, start));
+    }
+
+    /**
+     * Writes the buffered records to the file.
+     *
+     * @throws IOException If writing fails.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        drain();
+    }
+
+    /**
+     * Moves the records logged so far to another file and continues with an empty log, so that a
+     * snapshot taken afterwards contains every command of the moved file.
+     *
+     * @param previous File receiving the records logged so far; replaced if it exists.
+     * @throws IOException If the files cannot be written, moved or opened.
+     */
+    public synchronized void rotate(Path previous) throws IOException {
+        drain();
+        channel.force(false);
+        channel.close();
+        Files.move(file, previous, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = open(file);
+    }
+
+    /**
+     * Writes the buffered records, forces them to the storage device and closes the file.
+     *
+     * @throws IOException If writing or closing fails.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (!channel.isOpen()) {
+            return;
+        }
+        drain();
+        channel.force(false);
+        channel.close();
+    }
+
+    /**
+     * Applies the commands of a log file to the devices of a registry, in log order. Records of
+     * devices that do not exist or have another type are skipped.
+     *
+     * @param file     Log file.
+     * @param registry Devices to apply the commands to.
+     * @return Number of records applied, or -1 if the file does not exist.
+     * @throws IOException If the file cannot be read.
+     */
+    public static int replay(Path file, DeviceRegistry registry) throws IOException {
+        if (!Files.exists(file)) {
+            return -1;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            CRC32C checksum = new CRC32C();
+            int applied = 0;
+            while (map.remaining() >= RECORD_BYTES) {
+                int expected = checksum(checksum, map, map.position());
+                int verb = map.get();
+                int type = map.get();
+                map.getShort();
+                int deviceId = map.getInt();
+                int argument = map.getInt();
+                if (map.getInt() != expected || verb < 0 || verb >= VERBS.length
+                        || type < 0 || type >= TYPES.length) {
+                    break;
+                }
+                SmartDevice device = registry.get(deviceId);
+                if (device != null && device.getType() == TYPES[type]) {
+                    apply(VERBS[verb], device, argument);
+                    applied++;
+                }
+            }
+            return applied;
+        }
+    }
+
+    /**
+     * Applies a logged or replicated command to a device without the checks of the command line.
+     * A color or brightness outside its enum is skipped.
+     *
+     * @param verb     Verb of the command.
+     * @param device   Device of the command, of a type supporting the verb.
+     * @param argument Argument of the command.
+     */
+    static void apply(Verb verb, SmartDevice device, int argument) {
+        switch (verb) {
+            case TURN_ON -> device.turnOn();
+            case TURN_OFF -> device.turnOff();
+            case START_CHARGING -> ((Chargeable) device).startCharging();
+            case STOP_CHARGING -> ((Chargeable) device).stopCharging();
+            case START_RECORDING -> ((Camera) device).startRecording();
+            case STOP_RECORDING -> ((Camera) device).stopRecording();
+            case SET_ANGLE -> ((Camera) device).setCameraAngle(argument);
+            case SET_TEMPERATURE -> ((Heater) device).setTemperature(argument);
+            case SET_COLOR -> {
+                if (argument >= 0 && argument < LIGHT_COLORS.length) {
+                    ((Light) device).setLightColor(LIGHT_COLORS[argument]);
+                }
+            }
+            case SET_BRIGHTNESS -> {
+                if (argument >= 0 && argument < BRIGHTNESS_LEVELS.length) {
+                    ((Light) device).setBrightnessLevel(BRIGHTNESS_LEVELS[argument]);
+                }
+            }
+            default -> {
+                // Verbs without a device never change state and are not logged
+            }
+        }
+    }
+
+    /**
+     * Computes the checksum of the checked bytes of a record without moving the buffer position.
+     *
+     * @param crc   Checksum to reuse.
+     * @param bytes Buffer holding the record.
+     * @param start Offset of the record.
+     * @return The CRC32C of the first bytes of the record.
+     */
+    private static int checksum(CRC32C crc, ByteBuffer bytes, int start) {
+        int position = bytes.position();
+        int limit = bytes.limit();
+        crc.reset();
+        bytes.limit(start + CHECKED_BYTES).position(start);
+        crc.update(bytes);
+        bytes.limit(limit).position(position);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Writes the buffered records to the file.
+     *
+     * @throws IOException If writing fails.
+     */
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Opens a log file for appending.
+     *
+     * @param file Log file.
+     * @return The open channel.
+     * @throws IOException If the file cannot be opened.
+     */
+    private static FileChannel open(Path file) throws IOException {
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+    }
+}
@@ -0,0 +1,31 @@
+/**
+ * Enumeration for the outcomes of a command line, counted per verb by CommandStats.
+ */
+public enum CommandOutcome {
+    CHANGED("changed"),          // The command changed a device
+    UNCHANGED("unchanged"),      // The command ran but changed nothing, e.g. already in effect or out of range
+    INVALID("invalid"),          // The line was not a valid command
+    NOT_FOUND("not found"),      // No device with the ID and type exists
+    UNSUPPORTED("unsupported"),  // The device lacks the capability of the verb
+    OFF("off");                  // The verb needs the device to be on and it is off
+
+    private final String description;  // Name of the outcome in statistics
+
+    /**
+     * Constructor to initialize an outcome.
+     *
+     * @param description Name of the outcome in statistics.
+     */
+    CommandOutcome(String description) {
+        this.description = description;
+    }
+
+    /**
+     * Gets the name of the outcome in statistics.
+     *
+     * @return The description, e.g. "not found".
+     */
+    public String getDescription() {
+        return description;
+    }
+}
@@ -0,0 +1,399 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parser turning the tokens of a command line into a Command, with the same acceptance rules
+ * as the original Scanner based validation. In addition, the device ID of any device verb may be
+ * "*" for every ID or a range such as "100-5000", and the device name of such a bulk command may
+ * be "*" for every device type. The verbs of the scheduler take a duration such as "90m" or a
+ * time of day such as "23:00", followed by any other command, which is validated when the
+ * schedule is parsed. A rule names devices like a bulk command, then an attribute, a comparison
+ * and a value, followed by the command to run when a change meets the condition, e.g.
+ * "When Camera * Recording = true TurnOn Light 0-3". A query names a known device type or "*" and
+ * devices like a bulk command, followed by any number of such conditions joined by "and", e.g.
+ * "Count Camera * Recording = true and Angle > 30". "Simulate" takes a duration only. A transaction
+ * joins commands changing devices with "and", e.g. "Transaction TurnOn Light 0-3 and SetColor
+ * Light 0-3 WHITE and StartRecording Camera 4".
+ */
+public final class CommandParser {
+    private static final Verb[] VERBS = Verb.values();
+    private static final DeviceType[] DEVICE_TYPES = DeviceType.values();
+    private static final String[] DEVICE_NAMES = deviceNames();
+    private static final String[] COLOR_NAMES = enumNames(LightColor.values());
+    private static final String[] BRIGHTNESS_NAMES = enumNames(Brightnesslevel.values());
+    private static final String[] STATUS_NAMES = enumNames(Status.values());
+    private static final String[] BOOLEAN_NAMES = {"false", "true"};
+    private static final DeviceAttribute[] ATTRIBUTES = DeviceAttribute.values();
+    private static final String[] ATTRIBUTE_NAMES = attributeNames();
+    private static final Comparison[] COMPARISONS = Comparison.values();
+    private static final String[] COMPARISON_SYMBOLS = comparisonSymbols();
+    private static final String WILDCARD = "*";  // Selects every device ID or every device type
+    private static final String CONJUNCTION = "and";  // Joins the conditions of a query and the steps of a transaction
+
+    private CommandParser() {
+    }
+
+    /**
+     * Parses the current line of the lexer into the given command.
+     *
+     * @param lexer   Lexer positioned on the line to parse.
+     * @param command Command to fill in.
+     * @return true if the line is a syntactically valid command, false if it is an invalid command.
+     */
+    public static boolean parse(CommandInput lexer, Command command) {
+        Verb verb = findVerb(lexer);
+        if (verb == null) {
+            return false;
+        }
+        ArgumentShape shape = verb.getShape();
+        if (shape == ArgumentShape.NONE) {
+            command.set(verb, null, 0, 0);
+            return lexer.tokenCount() == 1;
+        }
+        if (shape == ArgumentShape.NUMBER) {
+            command.set(verb, null, 0, lexer.isDigits(1) ? lexer.intValue(1) : 0);
+            return lexer.isDigits(1) && lexer.endsLine(1);
+        }
+        if (shape == ArgumentShape.DURATION) {
+            command.set(verb, null, 0, 0);
+            command.selectTime(Math.max(0, lexer.durationMillis(1)));
+            return lexer.durationMillis(1) >= 0 && lexer.endsLine(1);
+        }
+        if (shape == ArgumentShape.DELAY_COMMAND || shape == ArgumentShape.TIME_COMMAND) {
+            return parseSchedule(lexer, command, verb);
+        }
+        if (shape == ArgumentShape.CONDITION_COMMAND) {
+            return parseRule(lexer, command, verb);
+        }
+        if (shape == ArgumentShape.QUERY) {
+            return parseQuery(lexer, command, verb);
+        }
+        if (shape == ArgumentShape.STEPS) {
+            return parseTransaction(lexer, command, verb);
+        }
+        if (!isDeviceSelector(lexer)) {
+            return false;
+        }
+        int argument;
+        switch (shape) {
+            case DEVICE -> {
+                if (!lexer.endsLine(2)) {
+                    return false;
+                }
+                argument = 0;
+            }
+            case DEVICE_NUMBER -> {
+                if (!lexer.isDigits(3) || !lexer.endsLine(3)) {
+                    return false;
+                }
+                argument = lexer.intValue(3);
+            }
+            case DEVICE_SIGNED -> {
+                if (!lexer.isSignedDigits(3) || !lexer.endsLine(3)) {
+                    return false;
+                }
+                argument = lexer.intValue(3);
+            }
+            default -> {
+                if (!lexer.hasNoDigits(3) || !lexer.endsLine(3)) {
+                    return false;
+                }
+                argument = lexer.tokenIndexIn(3, verb == Verb.SET_COLOR ? COLOR_NAMES : BRIGHTNESS_NAMES);
+            }
+        }
+        return selectDevices(lexer, command, verb, argument);
+    }
+
+    /**
+     * Checks whether the second and third token name devices: a device name and a device ID,
+     * or "*" or a range of IDs.
+     *
+     * @param lexer Lexer positioned on the line.
+     * @return true if the tokens name devices, false otherwise.
+     */
+    private static boolean isDeviceSelector(CommandInput lexer) {
+        return lexer.hasNoDigits(1) && (lexer.isDigits(2) || lexer.tokenEquals(2, WILDCARD) || lexer.isRange(2));
+    }
+
+    /**
+     * Fills in the verb, the devices named by the second and third token and the argument.
+     *
+     * @param lexer    Lexer positioned on a line accepted by isDeviceSelector().
+     * @param command  Command to fill in.
+     * @param verb     Verb of the command.
+     * @param argument Extra argument.
+     * @return true unless the range of IDs is empty.
+     */
+    private static boolean selectDevices(CommandInput lexer, Command command, Verb verb, int argument) {
+        boolean bulk = !lexer.isDigits(2);
+        int nameIndex = lexer.tokenIndexIn(1, DEVICE_NAMES);
+        DeviceType deviceType = nameIndex < 0 ? null : DEVICE_TYPES[nameIndex];
+        if (!bulk) {
+            command.set(verb, deviceType, lexer.intValue(2), argument);
+            return true;
+        }
+        boolean anyType = lexer.tokenEquals(1, WILDCARD);
+        if (lexer.isRange(2)) {
+            int first = lexer.rangeStart(2);
+            int last = lexer.rangeEnd(2);
+            command.set(verb, deviceType, first, argument);
+            command.selectRange(last, anyType);
+            return first <= last;
+        }
+        command.set(verb, deviceType, 0, argument);
+        command.selectRange(Integer.MAX_VALUE, anyType);
+        return true;
+    }
+
+    /**
+     * Parses a schedule, e.g. "Every 30m TurnOn Light 2", whose command must be valid and must
+     * neither end the program nor schedule another command.
+     *
+     * @param lexer   Lexer positioned on the line to parse.
+     * @param command Command to fill in.
+     * @param verb    Verb of the scheduler starting the line.
+     * @return true if the line is a valid schedule, false otherwise.
+     */
+    private static boolean parseSchedule(CommandInput lexer, Command command, Verb verb) {
+        long time = verb.getShape() == ArgumentShape.TIME_COMMAND ? lexer.minuteOfDay(1) : lexer.durationMillis(1);
+        if (time < 0 || time == 0 && verb == Verb.EVERY || lexer.tokenCount() < 3) {
+            return false;
+        }
+        String text = lexer.textFrom(0);
+        lexer.skipTokens(2);
+        Command scheduled = new Command();
+        if (!parse(lexer, scheduled) || scheduled.getVerb() == Verb.END
+                || scheduled.getVerb().getShape() == ArgumentShape.DELAY_COMMAND
+                || scheduled.getVerb().getShape() == ArgumentShape.TIME_COMMAND) {
+            return false;
+        }
+        command.set(verb, null, 0, 0);
+        command.selectDeferred(time, scheduled, text);
+        return true;
+    }
+
+    /**
+     * Parses a rule, e.g. "When Heater * Temperature > 28 StopCharging Light *". Numeric attributes
+     * are compared with a number, the others with the name of a value ("ON", "true", "HIGH", ...)
+     * for equality only. The command must be valid and must neither end the program nor add a rule.
+     *
+     * @param lexer   Lexer positioned on the line to parse.
+     * @param command Command to fill in.
+     * @param verb    Verb of the rule.
+     * @return true if the line is a valid rule, false otherwise.
+     */
+    private static boolean parseRule(CommandInput lexer, Command command, Verb verb) {
+        int attributeIndex = lexer.tokenIndexIn(3, ATTRIBUTE_NAMES);
+        int comparisonIndex = lexer.tokenIndexIn(4, COMPARISON_SYMBOLS);
+        if (attributeIndex < 0 || comparisonIndex < 0 || lexer.tokenCount() < 7 || !isDeviceSelector(lexer)) {
+            return false;
+        }
+        DeviceAttribute attribute = ATTRIBUTES[attributeIndex];
+        Comparison comparison = COMPARISONS[comparisonIndex];
+        if (!isConditionValue(lexer, 5, attribute, comparison)) {
+            return false;
+        }
+        int value = conditionValue(lexer, 5, attribute);
+        String text = lexer.textFrom(0);
+        if (!selectDevices(lexer, command, verb, value)) {
+            return false;
+        }
+        command.selectCondition(attribute, comparison);
+        lexer.skipTokens(6);
+        Command action = new Command();
+        if (!parse(lexer, action) || action.getVerb() == Verb.END || action.getVerb() == Verb.WHEN) {
+            return false;
+        }
+        command.selectDeferred(0, action, text);
+        return true;
+    }
+
+    /**
+     * Parses a query, e.g. "Find Light * Status = ON and Brightness = HIGH", whose conditions are
+     * written as in a rule. Unlike other commands, a query must name a known device type or "*".
+     *
+     * @param lexer   Lexer positioned on the line to parse.
+     * @param command Command to fill in.
+     * @param verb    Verb of the query.
+     * @return true if the line is a valid query, false otherwise.
+     */
+    private static boolean parseQuery(CommandInput lexer, Command command, Verb verb) {
+        int tokens = lexer.tokenCount();
+        int nameIndex = lexer.tokenIndexIn(1, DEVICE_NAMES);
+        boolean anyType = lexer.tokenEquals(1, WILDCARD);
+        if (nameIndex < 0 && !anyType || tokens > 3 && (tokens - 6) % 4 != 0 || !lexer.endsLine(tokens - 1)
+                || !isDeviceSelector(lexer) || !selectDevices(lexer, command, verb, 0)) {
+            return false;
+        }
+        DeviceQuery query = new DeviceQuery(anyType ? null : DEVICE_TYPES[nameIndex], command.getDeviceId(),
+                command.getLastDeviceId());
+        for (int index = 3; index < tokens; index += 4) {
+            int attributeIndex = lexer.tokenIndexIn(index, ATTRIBUTE_NAMES);
+            int comparisonIndex = lexer.tokenIndexIn(index + 1, COMPARISON_SYMBOLS);
+            if (attributeIndex < 0 || comparisonIndex < 0 || index > 3 && !lexer.tokenEquals(index - 1, CONJUNCTION)
+                    || !isConditionValue(lexer, index + 2, ATTRIBUTES[attributeIndex], COMPARISONS[comparisonIndex])) {
+                return false;
+            }
+            query.and(ATTRIBUTES[attributeIndex], COMPARISONS[comparisonIndex],
+                    conditionValue(lexer, index + 2, ATTRIBUTES[attributeIndex]));
+        }
+        command.selectQuery(query);
+        return true;
+    }
+
+    /**
+     * Parses a transaction, e.g. "Transaction TurnOn Light 2 and SetBrightness Light 2 HIGH", whose
+     * steps must be valid commands changing devices, each ending where the next "and" starts.
+     *
+     * @param lexer   Lexer positioned on the line to parse.
+     * @param command Command to fill in.
+     * @param verb    Verb of the transaction.
+     * @return true if the line is a valid transaction, false otherwise.
+     */
+    private static boolean parseTransaction(CommandInput lexer, Command command, Verb verb) {
+        List<Command> steps = new ArrayList<>();
+        lexer.skipTokens(1);
+        while (lexer.tokenCount() > 0 && lexer.endsLine(lexer.tokenCount() - 1)) {
+            int end = 1;
+            while (end < lexer.tokenCount() && !lexer.tokenEquals(end, CONJUNCTION)) {
+                end++;
+            }
+            Command step = new Command();
+            lexer.limitLine(end);
+            boolean valid = parse(lexer, step) && Transaction.supports(step.getVerb());
+            lexer.restoreLine();
+            if (!valid) {
+                return false;
+            }
+            steps.add(step);
+            if (end == lexer.tokenCount()) {
+                command.set(verb, null, 0, 0);
+                command.selectSteps(steps.toArray(new Command[0]));
+                return true;
+            }
+            lexer.skipTokens(end + 1);
+        }
+        return false;
+    }
+
+    /**
+     * Checks the value of a condition: a possibly negative number for the angle and the
+     * temperature, a number for the battery level, the name of a value compared for equality only
+     * for the other attributes.
+     *
+     * @param lexer      Lexer positioned on the line.
+     * @param index      Index of the value token.
+     * @param attribute  Compared attribute.
+     * @param comparison Comparison of the condition.
+     * @return true if the token is a valid value, false otherwise.
+     */
+    private static boolean isConditionValue(CommandInput lexer, int index, DeviceAttribute attribute,
+                                            Comparison comparison) {
+        if (attribute == DeviceAttribute.ANGLE || attribute == DeviceAttribute.TEMPERATURE) {
+            return lexer.isSignedDigits(index);
+        }
+        if (attribute == DeviceAttribute.BATTERY) {
+            return lexer.isDigits(index);
+        }
+        return !comparison.isOrdering() && lexer.tokenIndexIn(index, valueNames(attribute)) >= 0;
+    }
+
+    /**
+     * Gets the value of a condition checked with isConditionValue().
+     *
+     * @param lexer     Lexer positioned on the line.
+     * @param index     Index of the value token.
+     * @param attribute Compared attribute.
+     * @return The number, or the index of the value name.
+     */
+    private static int conditionValue(CommandInput lexer, int index, DeviceAttribute attribute) {
+        if (attribute == DeviceAttribute.ANGLE || attribute == DeviceAttribute.TEMPERATURE
+                || attribute == DeviceAttribute.BATTERY) {
+            return lexer.intValue(index);
+        }
+        return lexer.tokenIndexIn(index, valueNames(attribute));
+    }
+
+    /**
+     * Gets the names of the values of a non-numeric attribute, indexed by value.
+     *
+     * @param attribute Attribute other than the angle, the temperature and the battery level.
+     * @return The names of the values.
+     */
+    private static String[] valueNames(DeviceAttribute attribute) {
+        return switch (attribute) {
+            case STATUS -> STATUS_NAMES;
+            case BRIGHTNESS -> BRIGHTNESS_NAMES;
+            case COLOR -> COLOR_NAMES;
+            default -> BOOLEAN_NAMES;
+        };
+    }
+
+    /**
+     * Finds the verb matching the first token of the line.
+     *
+     * @param lexer Lexer positioned on the line.
+     * @return The matching verb, or null if the line is empty or the verb is unknown.
+     */
+    private static Verb findVerb(CommandInput lexer) {
+        for (Verb verb : VERBS) {
+            if (lexer.tokenEquals(0, verb.getKeyword())) {
+                return verb;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Collects the command line names of the device types.
+     *
+     * @return Display names of the device types in ordinal order.
+     */
+    private static String[] deviceNames() {
+        String[] names = new String[DEVICE_TYPES.length];
+        for (int i = 0; i < DEVICE_TYPES.length; i++) {
+            names[i] = DEVICE_TYPES[i].getDisplayName();
+        }
+        return names;
+    }
+
+    /**
+     * Collects the names of the device attributes in conditions.
+     *
+     * @return Keywords of the attributes in ordinal order.
+     */
+    private static String[] attributeNames() {
+        String[] names = new String[ATTRIBUTES.length];
+        for (int i = 0; i < ATTRIBUTES.length; i++) {
+            names[i] = ATTRIBUTES[i].getKeyword();
+        }
+        return names;
+    }
+
+    /**
+     * Collects the symbols of the comparisons.
+     *
+     * @return Symbols of the comparisons in ordinal order.
+     */
+    private static String[] comparisonSymbols() {
+        String[] symbols = new String[COMPARISONS.length];
+        for (int i = 0; i < COMPARISONS.length; i++) {
+            symbols[i] = COMPARISONS[i].getSymbol();
+        }
+        return symbols;
+    }
+
+    /**
+     * Collects the names of the given enum constants.
+     *
+     * @param constants Enum constants in ordinal order.
+     * @return Names of the constants in ordinal order.
+     */
+    private static String[] enumNames(Enum<?>[] constants) {
+        String[] names = new String[constants.length];
+        for (int i = 0; i < constants.length; i++) {
+            names[i] = constants[i].name();
+        }
+        return names;
+    }
+}
@@ -0,0 +1,328 @@
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+/**
+ * Pipelined alternative to CommandDispatcher.run(), executing command lines in three stages on
+ * three threads: reading and parsing on the calling thread, executing on a single writer thread
+ * that is the only one of the pipeline changing devices, and writing the responses on a third.
+ *
+ * <p>The stages pass reusable command records around a preallocated ring. Each hand-off is a
+ * bounded single-producer single-consumer queue without locks: a stage publishes the sequence of
+ * the last record it finished with a release store, and the next stage reads it with an acquire
+ * load. The parser reuses a record once the writer is done with it, so the ring bounds the number
+ * of lines in flight. Records travel in input order, so the responses do too.</p>
+ *
+ * <p>The executor formats the responses of a command into the buffer of its record while the
+ * device is at hand; the writer copies them to the output, and flushes the log and then the output
+ * when it runs out of records to write, so no response is seen before its command was logged.
+ * Waiting stages spin briefly, then yield, then park for growing periods while the input is idle.</p>
+ */
+public final class CommandPipeline {
+    public static final int DEFAULT_CAPACITY = 1024;  // Default number of records in flight
+    private static final VarHandle SEQUENCES = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final int PADDING = 16;  // Longs between two sequences, keeps them on separate cache lines
+    private static final int PARSED = PADDING;  // Index of the sequence of the last parsed record
+    private static final int EXECUTED = 2 * PADDING;  // Index of the sequence of the last executed record
+    private static final int WRITTEN = 3 * PADDING;  // Index of the sequence of the last written record
+    private static final int RECORD_BUFFER = 256;  // Response buffer of a record, in bytes
+    private static final int MAX_RETAINED = 1 << 16;  // Largest response array a record keeps for reuse
+    private final CommandDispatcher dispatcher;  // Executes the commands
+    private final ResponseWriter out;  // Sink for the responses
+    private final Flushable flush;  // Flushes the log, then the responses
+    private final Record[] records;  // Ring of reusable command records
+    private final int mask;  // Capacity - 1, maps a sequence to its record
+    private final long[] sequences = new long[4 * PADDING];  // Progress of the stages, accessed via SEQUENCES
+    private volatile Throwable failure;  // First failure of a stage, stops all stages
+
+    /**
+     * Constructor to create a pipeline with the default capacity.
+     *
+     * @param dispatcher Dispatcher executing the commands, with its log and statistics set.
+     * @param out        Sink for the responses.
+     */
+    public CommandPipeline(CommandDispatcher dispatcher, ResponseWriter out) {
+        this(dispatcher, out, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor to create a pipeline.
+     *
+     * @param dispatcher Dispatcher executing the commands, with its log and statistics set.
+     * @param out        Sink for the responses.
+     * @param capacity   Number of lines in flight, rounded up to a power of two.
+     */
+    public CommandPipeline(CommandDispatcher dispatcher, ResponseWriter out, int capacity) {
+        int size = Rings.size(capacity);
+        this.dispatcher = dispatcher;
+        this.out = out;
+        this.flush = CommandServer.flushBefore(dispatcher.getLog(), out);
+        this.records = new Record[size];
+        for (int i = 0; i < size; i++) {
+            records[i] = new Record();
+        }
+        this.mask = size - 1;
+        Arrays.fill(sequences, -1);
+    }
+
+    /**
+     * Executes command lines until "end" or the end of input, like CommandDispatcher.run(), and
+     * returns once all responses are flushed.
+     *
+     * @param lexer Source of command lines.
+     * @throws IOException If reading commands or writing responses fails.
+     */
+    public void run(CommandInput lexer) throws IOException {
+        Thread executor = new Thread(this::execute, "pipeline-execute");
+        Thread writer = new Thread(this::write, "pipeline-write");
+        executor.start();
+        writer.start();
+        try {
+            parse(lexer);
+        } catch (IOException | RuntimeException | Error e) {
+            fail(e);
+        }
+        join(executor);
+        join(writer);
+        Throwable thrown = failure;
+        if (thrown instanceof IOException) {
+            throw (IOException) thrown;
+        } else if (thrown instanceof RuntimeException) {
+            throw (RuntimeException) thrown;
+        } else if (thrown instanceof Error) {
+            throw (Error) thrown;
+        }
+    }
+
+    /**
+     * First stage: reads and parses lines into free records, then publishes a record marking the end.
+     *
+     * @param lexer Source of command lines.
+     * @throws IOException If reading commands fails.
+     */
+    private void parse(CommandInput lexer) throws IOException {
+        long sequence = 0;
+        try {
+            while (lexer.nextLine()) {
+                if (!await(WRITTEN, sequence - records.length)) {
+                    return;
+                }
+                Record record = records[(int) sequence & mask];
+                record.start = dispatcher.startTime();
+                record.valid = CommandParser.parse(lexer, record.command);
+                if (record.valid && record.command.getVerb() == Verb.END) {
+                    break;
+                }
+                record.end = false;
+                SEQUENCES.setRelease(sequences, PARSED, sequence++);
+            }
+        } finally {
+            if (await(WRITTEN, sequence - records.length)) {
+                records[(int) sequence & mask].end = true;
+                SEQUENCES.setRelease(sequences, PARSED, sequence);
+            }
+        }
+    }
+
+    /**
+     * Second stage: executes the parsed records in order, formatting their responses into them.
+     */
+    private void execute() {
+        try {
+            for (long sequence = 0; await(PARSED, sequence); sequence++) {
+                Record record = records[(int) sequence & mask];
+                if (!record.end) {
+                    dispatcher.execute(record.valid ? record.command : null, record.out, record.start);
+                    record.out.flush();
+                }
+                SEQUENCES.setRelease(sequences, EXECUTED, sequence);
+                if (record.end) {
+                    return;
+                }
+            }
+        } catch (IOException | RuntimeException | Error e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Third stage: copies the responses of the executed records to the output in order, flushing
+     * when it has caught up with the executor and is about to park.
+     */
+    private void write() {
+        try {
+            for (long sequence = 0; await(EXECUTED, sequence, flush); sequence++) {
+                Record record = records[(int) sequence & mask];
+                if (record.end) {
+                    flush.flush();
+                    return;
+                }
+                record.responses.writeTo(out);
+                SEQUENCES.setRelease(sequences, WRITTEN, sequence);
+            }
+        } catch (IOException | RuntimeException | Error e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Waits until a stage has finished the record with the given sequence.
+     *
+     * @param stage    Index of the sequence of the stage.
+     * @param sequence Sequence to wait for; negative sequences are finished from the start.
+     * @return true once the record is finished, false if another stage failed.
+     * @throws IOException Never; declared for the overload flushing an output.
+     */
+    private boolean await(int stage, long sequence) throws IOException {
+        return await(stage, sequence, null);
+    }
+
+    /**
+     * Waits until a stage has finished the record with the given sequence, flushing an output
+     * before the first time the wait parks.
+     *
+     * @param stage    Index of the sequence of the stage.
+     * @param sequence Sequence to wait for; negative sequences are finished from the start.
+     * @param idle     Output to flush once the wait gets long, or null.
+     * @return true once the record is finished, false if another stage failed.
+     * @throws IOException If flushing fails.
+     */
+    private boolean await(int stage, long sequence, Flushable idle) throws IOException {
+        for (int waits = 0; (long) SEQUENCES.getAcquire(sequences, stage) < sequence; waits++) {
+            if (failure != null) {
+                return false;
+            }
+            if (waits == Rings.FIRST_PARK && idle != null) {
+                idle.flush();
+            }
+            Rings.pause(waits);
+        }
+        return true;
+    }
+
+    /**
+     * Records the first failure of a stage; the other stages stop at their next wait.
+     *
+     * @param e Failure.
+     */
+    private synchronized void fail(Throwable e) {
+        if (failure == null) {
+            failure = e;
+        }
+    }
+
+    /**
+     * Waits for a stage thread to terminate.
+     *
+     * @param thread Stage thread.
+     */
+    private static void join(Thread thread) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                thread.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Reusable record of a command line travelling through the stages.
+     */
+    private static final class Record {
+        private final Command command = new Command();  // Parsed command
+        private final ResponseBuffer responses = new ResponseBuffer();  // Formatted responses
+        private final ResponseWriter out = new ResponseWriter(responses, RECORD_BUFFER);  // Fills responses
+        private long start;  // Start time of the line for the statistics
+        private boolean valid;  // Whether the line parsed as a command
+        private boolean end;  // Whether the record marks the end of input instead of a line
+    }
+
+    /**
+     * Growable byte array receiving the responses of one record, emptied by the writer stage.
+     * The ShardedDispatcher collects the responses of its records in the same way.
+     */
+    static final class ResponseBuffer extends OutputStream {
+        private byte[] bytes = new byte[RECORD_BUFFER];  // Response bytes
+        private int count;  // Number of response bytes
+
+        @Override
+        public void write(int b) {
+            ensureCapacity(1);
+            bytes[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            ensureCapacity(len);
+            System.arraycopy(b, off, bytes, count, len);
+            count += len;
+        }
+
+        /**
+         * Appends the responses to a writer and empties the buffer, releasing an array that grew large.
+         *
+         * @param sink Destination of the responses.
+         * @throws IOException If writing fails.
+         */
+        void writeTo(ResponseWriter sink) throws IOException {
+            sink.append(bytes, 0, count);
+            clear();
+        }
+
+        /**
+         * Appends a part of the responses to a writer, leaving the buffer as it is.
+         *
+         * @param sink Destination of the responses.
+         * @param from Offset of the first byte (inclusive).
+         * @param to   Offset of the last byte (exclusive).
+         * @throws IOException If writing fails.
+         */
+        void writeTo(ResponseWriter sink, int from, int to) throws IOException {
+            sink.append(bytes, from, to - from);
+        }
+
+        /**
+         * Gets the number of response bytes.
+         *
+         * @return Number of bytes written since the buffer was last emptied.
+         */
+        int size() {
+            return count;
+        }
+
+        /**
+         * Empties the buffer, releasing an array that grew large.
+         */
+        void clear() {
+            count = 0;
+            if (bytes.length > MAX_RETAINED) {
+                bytes = new byte[RECORD_BUFFER];
+            }
+        }
+
+        /**
+         * Grows the array to hold the given number of additional bytes.
+         *
+         * @param length Number of bytes about to be written.
+         */
+        private void ensureCapacity(int length) {
+            if (count + length > bytes.length) {
+                if (count + length < 0) {
+                    throw new UncheckedIOException(new IOException("Responses of a command exceed 2 GB"));
+                }
+                bytes = Arrays.copyOf(bytes, Math.max(count + length, (int) Math.min(Integer.MAX_VALUE - 8,
+                        2L * bytes.length)));
+            }
+        }
+    }
+}
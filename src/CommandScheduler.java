@@ -0,0 +1,296 @@
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scheduler of delayed and recurring commands, e.g. "After 2h TurnOff Heater 6" or
+ * "Daily 23:00 SetBrightness Light * LOW".
+ *
+ * <p>Pending schedules are timers of a TimingWheel, so adding and cancelling one takes constant
+ * time however many are pending, and are found by ID in a map kept in ID order. Time is read from
+ * a Clock: runDue() runs every command that is due at the time of the clock, so a test can drive
+ * the scheduler with a clock of its own, while start() calls it periodically in the background.</p>
+ *
+ * <p>Due commands run through a dispatcher of their own, so they pass the same lookup, capability
+ * and power checks as typed commands and are logged and counted the same way. Their responses
+ * follow a line naming the schedule, e.g. "Schedule 3: After 2h TurnOff Heater 6". Schedules are
+ * kept in memory only; a restart drops them.</p>
+ */
+public final class CommandScheduler {
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private final Clock clock;  // Source of the current time and of the time zone of the times of day
+    private final TimingWheel wheel;  // Pending schedules by deadline, guarded by this
+    private final Map<Integer, Schedule> schedules = new LinkedHashMap<>();  // Pending schedules by ID, guarded by this
+    private final CommandDispatcher dispatcher;  // Runs the due commands, guarded by itself
+    private final ResponseWriter out;  // Sink for the responses of the due commands
+    private int nextId = 1;  // ID of the next schedule, guarded by this
+
+    /**
+     * Pending command together with the time it is due.
+     */
+    private static final class Schedule extends TimingWheel.Timer {
+        private final int id;  // ID of the schedule
+        private final Verb verb;  // Verb of the scheduler that created the schedule
+        private final long time;  // Delay or period in milliseconds, or minute of the day
+        private final Command command;  // Command to run
+        private final String text;  // Text of the line that created the schedule
+
+        /**
+         * Constructor to create a schedule from a parsed schedule command.
+         *
+         * @param id       ID of the schedule.
+         * @param schedule Parsed command of one of the verbs of the scheduler.
+         */
+        Schedule(int id, Command schedule) {
+            this.id = id;
+            this.verb = schedule.getVerb();
+            this.time = schedule.getTime();
+            this.command = schedule.getDeferred();
+            this.text = schedule.getText();
+        }
+
+        /**
+         * Checks whether the command runs again after it was due.
+         *
+         * @return true for "Every" and "Daily", false otherwise.
+         */
+        boolean isRecurring() {
+            return verb == Verb.EVERY || verb == Verb.DAILY;
+        }
+    }
+
+    /**
+     * Constructor to create a scheduler without any schedules.
+     *
+     * @param registry Devices the scheduled commands apply to.
+     * @param out      Sink for the responses of the due commands.
+     * @param clock    Source of the time, e.g. Clock.systemDefaultZone().
+     */
+    public CommandScheduler(DeviceRegistry registry, ResponseWriter out, Clock clock) {
+        this.clock = clock;
+        this.out = out;
+        this.wheel = new TimingWheel(clock.millis());
+        this.dispatcher = new CommandDispatcher(registry, out);
+        dispatcher.setScheduler(this);
+    }
+
+    /**
+     * Logs every due command that changes a device.
+     *
+     * @param log Write-ahead log, or null to stop logging.
+     */
+    public void setLog(CommandLog log) {
+        dispatcher.setLog(log);
+    }
+
+    /**
+     * Lets scheduled commands use the thermal simulation, e.g. "Every 1h RoomTemperature Heater *".
+     *
+     * @param simulation Simulation, or null to reject its verbs.
+     */
+    public void setSimulation(ThermalSimulation simulation) {
+        dispatcher.setSimulation(simulation);
+    }
+
+    /**
+     * Lets scheduled commands run queries, e.g. "Daily 08:00 Count Heater * Status = OFF".
+     *
+     * @param index Indexes of the devices, or null to reject queries.
+     */
+    public void setDeviceIndex(DeviceIndex index) {
+        dispatcher.setDeviceIndex(index);
+    }
+
+    /**
+     * Records the outcome and latency of every due command.
+     *
+     * @param stats Statistics, possibly shared with other dispatchers, or null to stop recording.
+     */
+    public void setStats(CommandStats stats) {
+        dispatcher.setStats(stats);
+    }
+
+    /**
+     * Adds a schedule and writes when it is first due, e.g. "Schedule 3 is due at 2026-10-18 23:00:00".
+     *
+     * @param schedule Parsed command of one of the verbs of the scheduler.
+     * @param out      Sink for the response.
+     * @throws IOException If writing the response fails.
+     */
+    public void schedule(Command schedule, ResponseWriter out) throws IOException {
+        Schedule pending;
+        synchronized (this) {
+            pending = new Schedule(nextId++, schedule);
+            wheel.add(pending, firstDeadline(pending, clock.millis()));
+            schedules.put(pending.id, pending);
+        }
+        out.append("Schedule ").append(pending.id).append(" is due at ")
+                .append(format(pending.getDeadline())).newLine();
+    }
+
+    /**
+     * Cancels a pending schedule.
+     *
+     * @param id ID of the schedule.
+     * @return true if the schedule was pending, false otherwise.
+     */
+    public synchronized boolean cancel(int id) {
+        Schedule schedule = schedules.remove(id);
+        if (schedule == null) {
+            return false;
+        }
+        wheel.remove(schedule);
+        return true;
+    }
+
+    /**
+     * Gets the number of pending schedules.
+     *
+     * @return Number of schedules.
+     */
+    public synchronized int size() {
+        return schedules.size();
+    }
+
+    /**
+     * Writes a line per pending schedule in ID order, e.g.
+     * "Schedule 3 due at 2026-10-18 23:00:00: Daily 23:00 SetBrightness Light * LOW".
+     *
+     * @param out Sink for the list.
+     * @throws IOException If writing fails.
+     */
+    public synchronized void writeTo(ResponseWriter out) throws IOException {
+        if (schedules.isEmpty()) {
+            out.println("There are no schedules");
+            return;
+        }
+        for (Schedule schedule : schedules.values()) {
+            out.append("Schedule ").append(schedule.id).append(" due at ").append(format(schedule.getDeadline()))
+                    .append(": ").append(schedule.text).newLine();
+        }
+    }
+
+    /**
+     * Runs the commands that are due at the current time of the clock, in the order of their
+     * deadlines, then flushes the log and the responses. A recurring schedule is due again one
+     * period or one day later; runs it missed while the scheduler was late are skipped.
+     *
+     * @return Number of commands that ran.
+     * @throws IOException If writing the responses or the log fails.
+     */
+    public int runDue() throws IOException {
+        long now = clock.millis();
+        List<Schedule> due = null;
+        synchronized (this) {
+            wheel.advanceTo(now);
+            for (TimingWheel.Timer timer = wheel.pollExpired(); timer != null; timer = wheel.pollExpired()) {
+                Schedule schedule = (Schedule) timer;
+                if (due == null) {
+                    due = new ArrayList<>();
+                }
+                due.add(schedule);
+                if (schedule.isRecurring()) {
+                    wheel.add(schedule, nextDeadline(schedule, now));
+                } else {
+                    schedules.remove(schedule.id);
+                }
+            }
+        }
+        if (due == null) {
+            return 0;
+        }
+        synchronized (dispatcher) {
+            for (Schedule schedule : due) {
+                long start = dispatcher.startTime();
+                out.append("Schedule ").append(schedule.id).append(": ").append(schedule.text).newLine();
+                dispatcher.execute(schedule.command, out, start);
+            }
+            CommandServer.flushBefore(dispatcher.getLog(), out).flush();
+        }
+        return due.size();
+    }
+
+    /**
+     * Runs the due commands in the background at a fixed period.
+     *
+     * @param periodMillis Period in milliseconds, the largest delay of a due command.
+     */
+    public void start(long periodMillis) {
+        ScheduledExecutorService ticks = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticks.scheduleAtFixedRate(() -> {
+            try {
+                runDue();
+            } catch (IOException e) {
+                System.err.println("Scheduled command failed: " + e.getMessage());
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Computes when a new schedule is first due.
+     *
+     * @param schedule New schedule.
+     * @param now      Current time in milliseconds.
+     * @return The deadline in milliseconds.
+     */
+    private long firstDeadline(Schedule schedule, long now) {
+        return schedule.verb == Verb.AT || schedule.verb == Verb.DAILY
+                ? nextTimeOfDay(now, schedule.time) : now + schedule.time;
+    }
+
+    /**
+     * Computes when a recurring schedule is due again after it was due.
+     *
+     * @param schedule Recurring schedule that was due.
+     * @param now      Current time in milliseconds.
+     * @return The next deadline in milliseconds, after the current time.
+     */
+    private long nextDeadline(Schedule schedule, long now) {
+        if (schedule.verb == Verb.DAILY) {
+            return nextTimeOfDay(now, schedule.time);
+        }
+        long next = schedule.getDeadline() + schedule.time;
+        return next > now ? next : now + schedule.time;
+    }
+
+    /**
+     * Finds the next time a time of day occurs in the time zone of the clock.
+     *
+     * @param now         Current time in milliseconds.
+     * @param minuteOfDay Minute of the day.
+     * @return The first time after the current time at which the time of day occurs, in milliseconds.
+     */
+    private long nextTimeOfDay(long now, long minuteOfDay) {
+        ZonedDateTime current = Instant.ofEpochMilli(now).atZone(clock.getZone());
+        LocalTime time = LocalTime.ofSecondOfDay(minuteOfDay * 60);
+        ZonedDateTime next = current.toLocalDate().atTime(time).atZone(clock.getZone());
+        if (!next.isAfter(current)) {
+            next = current.toLocalDate().plusDays(1).atTime(time).atZone(clock.getZone());
+        }
+        return next.toInstant().toEpochMilli();
+    }
+
+    /**
+     * Formats a time in the time zone of the clock.
+     *
+     * @param millis Time in milliseconds.
+     * @return The date and time, e.g. "2026-10-18 23:00:00".
+     */
+    private String format(long millis) {
+        return TIME_FORMAT.format(Instant.ofEpochMilli(millis).atZone(clock.getZone()));
+    }
+}
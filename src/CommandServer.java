@@ -0,0 +1,218 @@
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PushbackInputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * TCP server accepting connections on localhost that speak the console command protocol.
+ * Every connection is a session with its own lexer, dispatcher and response buffer, running on its
+ * own virtual thread, and gets exactly the responses the console would print. "end" or closing the
+ * connection ends the session; the devices are shared by all sessions. A connection whose first
+ * byte is BinaryProtocol.MAGIC speaks the binary protocol instead, until it is closed.
+ */
+public final class CommandServer implements Closeable {
+    public static final int DEFAULT_PORT = 7070;
+    private static final int BACKLOG = 4096;  // Pending connections queued by the operating system
+    private static final int SESSION_INPUT_BUFFER = 256;  // Initial lexer buffer of a session, in chars
+    private static final int SESSION_OUTPUT_BUFFER = 4096;  // Response buffer of a session, in bytes
+    private final DeviceRegistry registry;  // Devices shared by all sessions
+    private final ServerSocket serverSocket;  // Listening socket
+    private final ExecutorService sessions;  // Runs one task per connection
+    private CommandLog log;  // Write-ahead log shared by all sessions, or null
+    private CommandStats stats;  // Command statistics shared by all sessions, or null
+    private CommandScheduler scheduler;  // Scheduler shared by all sessions, or null
+    private RuleEngine rules;  // Rule engine shared by all sessions, or null
+    private DeviceIndex index;  // Indexes answering the queries of all sessions, or null
+    private ThermalSimulation simulation;  // Thermal simulation shared by all sessions, or null
+    private ReplicationFollower follower;  // Replication the devices follow, or null
+
+    /**
+     * Constructor to create a server listening on the loopback interface. The setters attach what
+     * the dispatchers of its sessions use, before serve() is called.
+     *
+     * @param registry Devices shared by all sessions.
+     * @param port     Port to listen on, or 0 for any free port.
+     * @throws IOException If the port cannot be bound.
+     */
+    public CommandServer(DeviceRegistry registry, int port) throws IOException {
+        this.registry = registry;
+        this.serverSocket = new ServerSocket(port, BACKLOG, InetAddress.getLoopbackAddress());
+        this.sessions = newPerTaskExecutor();
+    }
+
+    /**
+     * Makes the sessions log the commands that change a device.
+     *
+     * @param log Write-ahead log shared by all sessions, or null.
+     */
+    public void setLog(CommandLog log) {
+        this.log = log;
+    }
+
+    /**
+     * Makes the sessions record statistics of all commands.
+     *
+     * @param stats Command statistics shared by all sessions, or null.
+     */
+    public void setStats(CommandStats stats) {
+        this.stats = stats;
+    }
+
+    /**
+     * Lets the sessions schedule commands.
+     *
+     * @param scheduler Scheduler of delayed and recurring commands shared by all sessions, or null.
+     */
+    public void setScheduler(CommandScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Lets the sessions add automation rules.
+     *
+     * @param rules Engine of the automation rules shared by all sessions, or null.
+     */
+    public void setRuleEngine(RuleEngine rules) {
+        this.rules = rules;
+    }
+
+    /**
+     * Lets the sessions answer queries.
+     *
+     * @param index Indexes of the devices answering the queries of all sessions, or null.
+     */
+    public void setDeviceIndex(DeviceIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * Lets the sessions use the thermal simulation.
+     *
+     * @param simulation Simulation of the rooms of the heaters shared by all sessions, or null.
+     */
+    public void setSimulation(ThermalSimulation simulation) {
+        this.simulation = simulation;
+    }
+
+    /**
+     * Makes the sessions only read devices that follow a replication primary.
+     *
+     * @param follower Replication the devices follow, making the sessions refuse changes, or null.
+     */
+    public void setFollower(ReplicationFollower follower) {
+        this.follower = follower;
+    }
+
+    /**
+     * Gets the port the server listens on.
+     *
+     * @return The local port.
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Accepts connections and starts a session for each, until the server is closed.
+     *
+     * @throws IOException If accepting a connection fails for a reason other than closing the server.
+     */
+    public void serve() throws IOException {
+        while (true) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (SocketException e) {
+                if (serverSocket.isClosed()) {
+                    return;
+                }
+                throw e;
+            }
+            sessions.execute(() -> session(socket));
+        }
+    }
+
+    /**
+     * Stops accepting connections and interrupts the running sessions.
+     *
+     * @throws IOException If closing the listening socket fails.
+     */
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        sessions.shutdownNow();
+    }
+
+    /**
+     * Runs the command loop of one connection.
+     *
+     * @param socket Connected client socket.
+     */
+    private void session(Socket socket) {
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            ResponseWriter out = new ResponseWriter(socket.getOutputStream(), SESSION_OUTPUT_BUFFER);
+            CommandDispatcher dispatcher = new CommandDispatcher(registry, out);
+            dispatcher.setLog(log);
+            dispatcher.setStats(stats);
+            dispatcher.setScheduler(scheduler);
+            dispatcher.setRuleEngine(rules);
+            dispatcher.setDeviceIndex(index);
+            dispatcher.setSimulation(simulation);
+            dispatcher.setFollower(follower);
+            PushbackInputStream in = new PushbackInputStream(socket.getInputStream());
+            int first = in.read();
+            if (first == BinaryProtocol.MAGIC) {
+                dispatcher.runBinary(in, socket.getOutputStream());
+                return;
+            }
+            if (first >= 0) {
+                in.unread(first);
+            }
+            CommandLexer lexer = new CommandLexer(new InputStreamReader(in), flushBefore(log, out),
+                    SESSION_INPUT_BUFFER);
+            dispatcher.run(lexer);
+        } catch (IOException e) {
+            // The client disconnected abruptly; there is nobody left to answer
+        }
+    }
+
+    /**
+     * Creates the flush performed whenever a command loop waits for input: the log first, so that
+     * no response is seen before its command was logged, then the responses.
+     *
+     * @param log Write-ahead log, or null.
+     * @param out Sink for the responses.
+     * @return A Flushable flushing both.
+     */
+    static Flushable flushBefore(CommandLog log, ResponseWriter out) {
+        if (log == null) {
+            return out;
+        }
+        return () -> {
+            log.flush();
+            out.flush();
+        };
+    }
+
+    /**
+     * Creates an executor that starts a virtual thread per task when the runtime supports them
+     * (Java 21 and later), and falls back to a cached pool of platform threads otherwise.
+     *
+     * @return A new executor running every task on its own thread.
+     */
+    static ExecutorService newPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool();
+        }
+    }
+}
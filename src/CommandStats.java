@@ -0,0 +1,219 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counters of the outcomes and histograms of the latencies of the command lines, per verb.
+ *
+ * <p>Latencies go into log-linear buckets: every power of two is split into 8 sub-buckets, so a
+ * reported percentile is at most 12.5% above the true value, while the exact maximum is kept
+ * separately. Recording only adds to preallocated counters and never allocates. The counters are
+ * striped by thread, so that the sessions of the server rarely update the same cache lines; a
+ * report sums the stripes.</p>
+ */
+public final class CommandStats {
+    private static final Verb[] VERBS = Verb.values();
+    private static final CommandOutcome[] OUTCOMES = CommandOutcome.values();
+    private static final int INVALID_ROW = VERBS.length;  // Row of the lines without a valid verb
+    private static final int ROWS = VERBS.length + 1;  // One row per verb plus the invalid lines
+    private static final int SUB_BUCKET_BITS = 3;  // Every power of two is split into 2^3 buckets
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40;  // Latencies of 2^40 ns (18 minutes) and more share the last bucket
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) << SUB_BUCKET_BITS;
+    private static final int MAX_CELL = OUTCOMES.length;  // Cell of a row holding the maximum latency
+    private static final int FIRST_BUCKET = MAX_CELL + 1;  // Cell of a row holding the first bucket
+    private static final int ROW_CELLS = FIRST_BUCKET + BUCKETS;  // Cells of one row
+    private static final int PADDING_CELLS = 16;  // Two cache lines between stripes
+    private static final int STRIPE_CELLS = ROWS * ROW_CELLS + PADDING_CELLS;  // Cells of one stripe
+    private static final int MAX_STRIPES = 64;  // Upper limit of the number of stripes
+    private static final double[] PERCENTILES = {0.5, 0.99, 0.999};  // Percentiles in a report
+    private static final String[] PERCENTILE_NAMES = {"p50", "p99", "p999"};
+    private static final VarHandle CELLS = MethodHandles.arrayElementVarHandle(long[].class);
+    private final long[] cells;  // Counters of all stripes, indexed by stripe, row and cell
+    private final int stripeMask;  // Number of stripes - 1, maps a thread to its stripe
+
+    /**
+     * Constructor to create empty statistics with a stripe per processor, roughly.
+     */
+    public CommandStats() {
+        int stripes = Math.min(MAX_STRIPES, Integer.highestOneBit(Runtime.getRuntime().availableProcessors()) << 1);
+        this.cells = new long[stripes * STRIPE_CELLS];
+        this.stripeMask = stripes - 1;
+    }
+
+    /**
+     * Records a command line that was handled.
+     *
+     * @param verb    Verb of the command, or null for an invalid line.
+     * @param outcome Outcome of the command.
+     * @param nanos   Time spent parsing and executing the command, in nanoseconds.
+     */
+    public void record(Verb verb, CommandOutcome outcome, long nanos) {
+        int row = ((int) Thread.currentThread().getId() & stripeMask) * STRIPE_CELLS
+                + (verb == null ? INVALID_ROW : verb.ordinal()) * ROW_CELLS;
+        CELLS.getAndAdd(cells, row + outcome.ordinal(), 1L);
+        CELLS.getAndAdd(cells, row + FIRST_BUCKET + bucket(nanos), 1L);
+        long max = (long) CELLS.getOpaque(cells, row + MAX_CELL);
+        while (nanos > max && !CELLS.weakCompareAndSet(cells, row + MAX_CELL, max, nanos)) {
+            max = (long) CELLS.getOpaque(cells, row + MAX_CELL);
+        }
+    }
+
+    /**
+     * Gets the number of commands of a verb with the given outcome.
+     *
+     * @param verb    Verb of the commands, or null for the invalid lines.
+     * @param outcome Outcome to count.
+     * @return Number of recorded commands.
+     */
+    public long getCount(Verb verb, CommandOutcome outcome) {
+        return sum(verb == null ? INVALID_ROW : verb.ordinal())[outcome.ordinal()];
+    }
+
+    /**
+     * Writes a line per verb that was used, with the count of every outcome that occurred and the
+     * latency percentiles, e.g. "TurnOn: 3 commands (2 changed, 1 unchanged), p50 420 ns, p99 910 ns,
+     * p999 910 ns, max 917 ns".
+     *
+     * @param out Sink for the report.
+     * @throws IOException If writing fails.
+     */
+    public void writeTo(ResponseWriter out) throws IOException {
+        long total = 0;
+        long[][] rows = new long[ROWS][];
+        for (int row = 0; row < ROWS; row++) {
+            rows[row] = sum(row);
+            for (int outcome = 0; outcome < OUTCOMES.length; outcome++) {
+                total += rows[row][outcome];
+            }
+        }
+        out.append("Commands: ").append(total).newLine();
+        for (int row = 0; row < ROWS; row++) {
+            long[] cells = rows[row];
+            long count = 0;
+            for (int outcome = 0; outcome < OUTCOMES.length; outcome++) {
+                count += cells[outcome];
+            }
+            if (count == 0) {
+                continue;
+            }
+            if (row == INVALID_ROW) {
+                out.append("Invalid lines: ").append(count);
+            } else {
+                out.append(VERBS[row].getKeyword()).append(": ").append(count).append(" commands (");
+                boolean first = true;
+                for (int outcome = 0; outcome < OUTCOMES.length; outcome++) {
+                    if (cells[outcome] > 0) {
+                        out.append(first ? "" : ", ").append(cells[outcome]).append(' ')
+                                .append(OUTCOMES[outcome].getDescription());
+                        first = false;
+                    }
+                }
+                out.append(')');
+            }
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                out.append(", ").append(PERCENTILE_NAMES[i]).append(' ')
+                        .append(percentile(cells, count, PERCENTILES[i])).append(" ns");
+            }
+            out.append(", max ").append(cells[MAX_CELL]).append(" ns").newLine();
+        }
+    }
+
+    /**
+     * Writes a report to a stream in the background at a fixed period.
+     *
+     * @param stream  Destination of the reports, e.g. System.err.
+     * @param seconds Period in seconds.
+     */
+    public void startPeriodicDump(OutputStream stream, long seconds) {
+        ScheduledExecutorService dumps = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "stats");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ResponseWriter out = new ResponseWriter(stream);
+        dumps.scheduleAtFixedRate(() -> {
+            try {
+                writeTo(out);
+                out.flush();
+            } catch (IOException e) {
+                System.err.println("Statistics dump failed: " + e.getMessage());
+            }
+        }, seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Sums the cells of a row over all stripes.
+     *
+     * @param row Row of a verb, or INVALID_ROW.
+     * @return The summed cells, with the maximum of the stripes in the maximum cell.
+     */
+    private long[] sum(int row) {
+        long[] total = new long[ROW_CELLS];
+        for (int stripe = 0; stripe <= stripeMask; stripe++) {
+            int base = stripe * STRIPE_CELLS + row * ROW_CELLS;
+            for (int cell = 0; cell < ROW_CELLS; cell++) {
+                long value = (long) CELLS.getOpaque(cells, base + cell);
+                total[cell] = cell == MAX_CELL ? Math.max(total[cell], value) : total[cell] + value;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Finds a latency percentile of a row.
+     *
+     * @param row      Summed cells of the row.
+     * @param count    Number of latencies in the row.
+     * @param quantile Quantile between 0 and 1.
+     * @return The upper bound of the bucket holding the percentile, at most the maximum latency.
+     */
+    private static long percentile(long[] row, long count, double quantile) {
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += row[FIRST_BUCKET + bucket];
+            if (seen >= rank) {
+                return Math.min(upperBound(bucket), row[MAX_CELL]);
+            }
+        }
+        return row[MAX_CELL];
+    }
+
+    /**
+     * Maps a latency to its bucket. Latencies below 16 ns get a bucket each; above, the bucket is
+     * given by the position of the highest bit and the 3 bits below it.
+     *
+     * @param nanos Latency in nanoseconds.
+     * @return Index of the bucket.
+     */
+    static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) Math.max(0, nanos);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS
+                + (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) % SUB_BUCKETS;
+    }
+
+    /**
+     * Gets the largest latency of a bucket.
+     *
+     * @param bucket Index of the bucket.
+     * @return The upper bound in nanoseconds.
+     */
+    static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        return ((long) (SUB_BUCKETS + bucket % SUB_BUCKETS + 1) << shift) - 1;
+    }
+}
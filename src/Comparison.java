@@ -0,0 +1,58 @@
+/**
+ * Enumeration for the comparisons of an attribute with a value in the condition of a rule.
+ */
+public enum Comparison {
+    EQUAL("="),             // The attribute has the value
+    NOT_EQUAL("!="),        // The attribute has another value
+    LESS("<"),              // The attribute is below the value
+    LESS_OR_EQUAL("<="),    // The attribute is at most the value
+    GREATER(">"),           // The attribute is above the value
+    GREATER_OR_EQUAL(">="); // The attribute is at least the value
+
+    private final String symbol;  // Text of the comparison on the command line
+
+    /**
+     * Constructor to initialize a comparison.
+     *
+     * @param symbol Text of the comparison on the command line.
+     */
+    Comparison(String symbol) {
+        this.symbol = symbol;
+    }
+
+    /**
+     * Gets the text of the comparison on the command line.
+     *
+     * @return The symbol, e.g. "&gt;=".
+     */
+    public String getSymbol() {
+        return symbol;
+    }
+
+    /**
+     * Checks whether the comparison orders values, which only makes sense for numeric attributes.
+     *
+     * @return true for the comparisons other than EQUAL and NOT_EQUAL.
+     */
+    public boolean isOrdering() {
+        return this != EQUAL && this != NOT_EQUAL;
+    }
+
+    /**
+     * Compares a value of an attribute with the operand of a condition.
+     *
+     * @param value   Value of the attribute.
+     * @param operand Operand of the condition.
+     * @return true if the condition holds, false otherwise.
+     */
+    public boolean test(int value, int operand) {
+        return switch (this) {
+            case EQUAL -> value == operand;
+            case NOT_EQUAL -> value != operand;
+            case LESS -> value < operand;
+            case LESS_OR_EQUAL -> value <= operand;
+            case GREATER -> value > operand;
+            case GREATER_OR_EQUAL -> value >= operand;
+        };
+    }
+}
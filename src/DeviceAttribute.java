@@ -0,0 +1,34 @@
+/**
+ * Enumeration for the attributes of a device that can change, as reported by state-change events.
+ * Boolean attributes have the values 0 and 1, enum attributes the ordinal of the constant.
+ */
+public enum DeviceAttribute {
+    STATUS("Status"),            // Power status, 1 when on
+    CHARGING("Charging"),        // Charging status of a chargeable device, 1 when charging
+    RECORDING("Recording"),      // Recording status of a camera, 1 when recording
+    ANGLE("Angle"),              // Angle of a camera
+    TEMPERATURE("Temperature"),  // Temperature of a heater
+    BRIGHTNESS("Brightness"),    // Brightness level ordinal of a light
+    COLOR("Color"),              // Color ordinal of a light
+    BATTERY("Battery");          // Battery level of a chargeable device in percent, reported when low
+
+    private final String keyword;  // Name of the attribute in the condition of a rule
+
+    /**
+     * Constructor to initialize an attribute.
+     *
+     * @param keyword Name of the attribute in the condition of a rule.
+     */
+    DeviceAttribute(String keyword) {
+        this.keyword = keyword;
+    }
+
+    /**
+     * Gets the name of the attribute in the condition of a rule.
+     *
+     * @return The keyword, e.g. "Temperature".
+     */
+    public String getKeyword() {
+        return keyword;
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * State-change event of a device. Events are reusable slots: the ring buffer of a DeviceEventBus
+ * owns one instance per slot and every subscription one instance it copies them into, so an event
+ * passed to a handler is only valid until the handler returns.
+ */
+public final class DeviceEvent {
+    private long sequence;  // Position of the event in the stream of the bus
+    private int deviceId;  // ID of the changed device
+    private DeviceType deviceType;  // Type of the changed device
+    private DeviceAttribute attribute;  // Changed attribute
+    private int value;  // New value of the attribute
+    private int depth;  // Number of chained rule actions that led to the change
+
+    /**
+     * Gets the position of the event in the stream of the bus.
+     *
+     * @return The sequence number, starting at 0.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Gets the ID of the changed device.
+     *
+     * @return The device ID.
+     */
+    public int getDeviceId() {
+        return deviceId;
+    }
+
+    /**
+     * Gets the type of the changed device.
+     *
+     * @return The device type.
+     */
+    public DeviceType getDeviceType() {
+        return deviceType;
+    }
+
+    /**
+     * Gets the changed attribute.
+     *
+     * @return The attribute.
+     */
+    public DeviceAttribute getAttribute() {
+        return attribute;
+    }
+
+    /**
+     * Gets the new value of the attribute: 0 or 1 for boolean attributes, the ordinal for enum
+     * attributes, and the number for the angle and the temperature.
+     *
+     * @return The new value.
+     */
+    public int getValue() {
+        return value;
+    }
+
+    /**
+     * Gets the number of chained rule actions that led to the change.
+     *
+     * @return 0 for a change made by a command, n + 1 for a change made by a rule reacting to a
+     *         change of depth n.
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Fills in all fields of the event.
+     *
+     * @param sequence   Position of the event in the stream of the bus.
+     * @param deviceId   ID of the changed device.
+     * @param deviceType Type of the changed device.
+     * @param attribute  Changed attribute.
+     * @param value      New value of the attribute.
+     * @param depth      Number of chained rule actions that led to the change.
+     */
+    void set(long sequence, int deviceId, DeviceType deviceType, DeviceAttribute attribute, int value, int depth) {
+        this.sequence = sequence;
+        this.deviceId = deviceId;
+        this.deviceType = deviceType;
+        this.attribute = attribute;
+        this.value = value;
+        this.depth = depth;
+    }
+
+    /**
+     * Copies all fields of another event into this one.
+     *
+     * @param other Event to copy.
+     */
+    void copyFrom(DeviceEvent other) {
+        set(other.sequence, other.deviceId, other.deviceType, other.attribute, other.value, other.depth);
+    }
+
+    @Override
+    public String toString() {
+        return deviceType.getDisplayName() + " " + deviceId + " " + attribute + " " + value;
+    }
+}
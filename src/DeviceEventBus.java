@@ -0,0 +1,310 @@
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Stream of device state-change events backed by a preallocated ring buffer, with one publisher
+ * at a time and any number of subscriptions reading at their own pace.
+ *
+ * <p>Publishing fills a reusable slot and never allocates. Publishers are serialized by the lock
+ * of the bus; the device mutators read the new value of the attribute while holding it, so the
+ * events of a device are in the order of its changes and the last event of an attribute always
+ * carries its current value. Every subscription picks an OverflowPolicy for the case that it
+ * falls a full ring behind.</p>
+ *
+ * <p>A thread running the actions of rules declares the depth of the changes it causes with
+ * setCause(); its events carry that depth, all others depth 0.</p>
+ *
+ * <p>A handler must not change devices of a bus it is subscribed to with the BLOCK policy: the
+ * publisher would wait for the very subscription whose handler it runs in.</p>
+ */
+public final class DeviceEventBus {
+    private static final int MIN_CAPACITY = 2;  // Smallest number of slots
+    private static final int SPIN_LIMIT = 100;  // Busy spins of a blocked publisher before yielding
+    private static final int YIELD_LIMIT = 200;  // Yields of a blocked publisher before parking
+    private static final long PARK_NANOS = 10_000;  // Parking time of a blocked publisher
+    private static final Subscription[] NO_SUBSCRIPTIONS = new Subscription[0];
+    private final DeviceEvent[] slots;  // Ring of reusable events
+    private final int mask;  // Capacity - 1, maps a sequence to its slot
+    private volatile long claimed = -1;  // Sequence of the slot being written, or the last one written
+    private volatile long published = -1;  // Sequence of the last completely written slot
+    private volatile Subscription[] subscriptions = NO_SUBSCRIPTIONS;  // Copied on change
+    private long nextSequence;  // Sequence of the next event, guarded by the lock of the bus
+    private Thread causeThread;  // Thread whose changes are caused by rule actions, or null
+    private int causeDepth;  // Depth of the changes of the cause thread
+
+    /**
+     * Handler receiving the events of a subscription.
+     */
+    @FunctionalInterface
+    public interface Handler {
+        /**
+         * Handles an event.
+         *
+         * @param event Event, only valid until the method returns.
+         */
+        void onEvent(DeviceEvent event);
+    }
+
+    /**
+     * Constructor to create a bus with a ring of at least the given size.
+     *
+     * @param capacity Number of events a subscription may lag behind, rounded up to a power of two.
+     */
+    public DeviceEventBus(int capacity) {
+        int size = Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, capacity - 1)) << 1);
+        this.slots = new DeviceEvent[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new DeviceEvent();
+        }
+        this.mask = size - 1;
+    }
+
+    /**
+     * Gets the number of slots of the ring.
+     *
+     * @return The capacity.
+     */
+    public int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * Publishes an event. Waits while a BLOCK subscription is a full ring behind.
+     *
+     * @param deviceId   ID of the changed device.
+     * @param deviceType Type of the changed device.
+     * @param attribute  Changed attribute.
+     * @param value      New value of the attribute.
+     */
+    public synchronized void publish(int deviceId, DeviceType deviceType, DeviceAttribute attribute, int value) {
+        long sequence = nextSequence++;
+        awaitBlockingSubscriptions(sequence - slots.length);
+        claimed = sequence;
+        VarHandle.storeStoreFence();
+        int depth = Thread.currentThread() == causeThread ? causeDepth : 0;
+        slots[(int) sequence & mask].set(sequence, deviceId, deviceType, attribute, value, depth);
+        published = sequence;
+    }
+
+    /**
+     * Declares that the changes the current thread makes from now on are caused by rule actions.
+     * Other threads only compare the cause thread with themselves, so no lock is needed.
+     *
+     * @param depth Depth of the events of the changes, or 0 when the thread stops running actions.
+     */
+    void setCause(int depth) {
+        causeDepth = depth;
+        causeThread = depth > 0 ? Thread.currentThread() : null;
+    }
+
+    /**
+     * Subscribes to the events published from now on.
+     *
+     * @param policy What happens when the subscription falls a full ring behind.
+     * @return The new subscription.
+     */
+    public synchronized Subscription subscribe(OverflowPolicy policy) {
+        Subscription subscription = new Subscription(policy, nextSequence);
+        Subscription[] current = subscriptions;
+        Subscription[] grown = Arrays.copyOf(current, current.length + 1);
+        grown[current.length] = subscription;
+        subscriptions = grown;
+        return subscription;
+    }
+
+    /**
+     * Waits until no BLOCK subscription still has to read the given sequence.
+     *
+     * @param overwritten Sequence whose slot is about to be reused.
+     */
+    private void awaitBlockingSubscriptions(long overwritten) {
+        if (overwritten < 0) {
+            return;
+        }
+        for (Subscription subscription : subscriptions) {
+            if (subscription.policy != OverflowPolicy.BLOCK) {
+                continue;
+            }
+            for (int waits = 0; subscription.next <= overwritten && !subscription.closed; waits++) {
+                if (waits < SPIN_LIMIT) {
+                    Thread.onSpinWait();
+                } else if (waits < YIELD_LIMIT) {
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(PARK_NANOS);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes a subscription.
+     *
+     * @param subscription Subscription to remove.
+     */
+    private synchronized void unsubscribe(Subscription subscription) {
+        Subscription[] current = subscriptions;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == subscription) {
+                Subscription[] shrunk = new Subscription[current.length - 1];
+                System.arraycopy(current, 0, shrunk, 0, i);
+                System.arraycopy(current, i + 1, shrunk, i, shrunk.length - i);
+                subscriptions = shrunk;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reader of the events of a bus, polled by one consumer thread.
+     */
+    public final class Subscription implements AutoCloseable {
+        private final OverflowPolicy policy;  // What happens when the subscription falls behind
+        private final DeviceEvent event = new DeviceEvent();  // Copy of the slot handed to the handler
+        private final long[] pending;  // Sequences selected for delivery by coalescing, in reverse order
+        private final long[] keys;  // Open addressing set of the device attributes seen while coalescing
+        private final int[] keyStamps;  // Stamp of the coalescing pass that filled each key slot
+        private int stamp;  // Current coalescing pass
+        private volatile long next;  // Sequence of the next event to read
+        private volatile boolean closed;  // Whether the subscription was closed
+        private long dropped;  // Events overwritten before they were read, or coalesced away
+
+        /**
+         * Constructor to create a subscription starting at the given sequence.
+         *
+         * @param policy What happens when the subscription falls a full ring behind.
+         * @param next   Sequence of the first event to read.
+         */
+        private Subscription(OverflowPolicy policy, long next) {
+            this.policy = policy;
+            this.next = next;
+            boolean coalescing = policy == OverflowPolicy.COALESCE;
+            this.pending = coalescing ? new long[slots.length] : null;
+            this.keys = coalescing ? new long[slots.length * 2] : null;
+            this.keyStamps = coalescing ? new int[slots.length * 2] : null;
+        }
+
+        /**
+         * Passes all events published since the last poll to a handler, in publication order.
+         * A COALESCE subscription that lags more than half a ring passes only the latest event of
+         * every device attribute among them.
+         *
+         * @param handler Handler of the events.
+         * @return Number of events passed to the handler.
+         */
+        public int poll(Handler handler) {
+            long last = published;
+            long sequence = next;
+            if (sequence > last) {
+                return 0;
+            }
+            if (last - sequence >= slots.length) {
+                long oldest = last - slots.length + 1;
+                dropped += oldest - sequence;
+                sequence = oldest;
+            }
+            if (policy == OverflowPolicy.COALESCE && last - sequence >= slots.length / 2) {
+                return pollCoalesced(handler, sequence, last);
+            }
+            int delivered = 0;
+            for (; sequence <= last; sequence++) {
+                if (read(sequence)) {
+                    handler.onEvent(event);
+                    delivered++;
+                } else {
+                    dropped++;
+                }
+                next = sequence + 1;
+            }
+            return delivered;
+        }
+
+        /**
+         * Passes the latest event of every device attribute of a range of sequences to a handler.
+         *
+         * @param handler Handler of the events.
+         * @param first   First sequence of the range.
+         * @param last    Last sequence of the range.
+         * @return Number of events passed to the handler.
+         */
+        private int pollCoalesced(Handler handler, long first, long last) {
+            stamp++;
+            int count = 0;
+            for (long sequence = last; sequence >= first; sequence--) {
+                if (read(sequence) && firstSeen(event)) {
+                    pending[count++] = sequence;
+                }
+            }
+            int delivered = 0;
+            while (count > 0) {
+                if (read(pending[--count])) {
+                    handler.onEvent(event);
+                    delivered++;
+                }
+            }
+            dropped += last - first + 1 - delivered;
+            next = last + 1;
+            return delivered;
+        }
+
+        /**
+         * Records the device attribute of an event in the set of the current coalescing pass.
+         *
+         * @param seen Event to record.
+         * @return true if no later event of the same device attribute was seen in this pass.
+         */
+        private boolean firstSeen(DeviceEvent seen) {
+            long key = (long) seen.getDeviceId() << 8 | seen.getAttribute().ordinal();
+            int slot = (int) (key * 0x9E3779B97F4A7C15L >>> 40) & (keys.length - 1);
+            while (keyStamps[slot] == stamp) {
+                if (keys[slot] == key) {
+                    return false;
+                }
+                slot = (slot + 1) & (keys.length - 1);
+            }
+            keyStamps[slot] = stamp;
+            keys[slot] = key;
+            return true;
+        }
+
+        /**
+         * Copies the event of a sequence out of the ring and checks that it was not overwritten meanwhile.
+         *
+         * @param sequence Sequence to read.
+         * @return true if the copy is the event of the sequence, false if the slot was reused.
+         */
+        private boolean read(long sequence) {
+            event.copyFrom(slots[(int) sequence & mask]);
+            VarHandle.loadLoadFence();
+            return claimed - sequence < slots.length && event.getSequence() == sequence;
+        }
+
+        /**
+         * Gets the number of events this subscription missed because it fell behind.
+         *
+         * @return Number of dropped or coalesced events.
+         */
+        public long getDropped() {
+            return dropped;
+        }
+
+        /**
+         * Gets the number of events published but not yet read.
+         *
+         * @return The lag of the subscription.
+         */
+        public long lag() {
+            return Math.max(0, published + 1 - next);
+        }
+
+        /**
+         * Stops the subscription; a publisher waiting for it continues.
+         */
+        @Override
+        public void close() {
+            closed = true;
+            unsubscribe(this);
+        }
+    }
+}
@@ -0,0 +1,526 @@
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bitmap indexes over the attributes of all devices of a registry, answering a DeviceQuery such as
+ * "the Cameras that are recording with an angle above 30" without visiting the devices.
+ *
+ * <p>Every device type and every value of an attribute has a bitset of device IDs: power status,
+ * charging and recording have one per boolean value, brightness and color one per ordinal. The
+ * angle and the temperature are bucketed into ranges of BUCKET_WIDTH values, and their exact
+ * values are kept in a byte column that is only read for the devices of a bucket the comparison
+ * splits. A query combines the bitsets one word of 64 devices at a time, so a condition costs a
+ * few word operations per 64 devices and a word is dropped as soon as no device of it is left.
+ * The battery level changes with time rather than through events and is not indexed: a battery
+ * condition is checked last, by reading the level of each device the other conditions left.</p>
+ *
+ * <p>The indexes follow the changes of the devices incrementally through a BLOCK subscription of
+ * the event bus of the registry, which never loses a change. The subscription is read in the
+ * background after start(), and always before a query is answered, so a query sees every change
+ * published before it. The registry reports added and removed devices directly. All state is
+ * guarded by the lock of the index.</p>
+ */
+public final class DeviceIndex {
+    private static final DeviceAttribute[] ATTRIBUTES = DeviceAttribute.values();
+    private static final DeviceType[] TYPES = DeviceType.values();
+    private static final int BUCKET_SHIFT = 3;  // log2 of the values per bucket of a numeric attribute
+    private static final int BUCKET_WIDTH = 1 << BUCKET_SHIFT;  // Values per bucket of a numeric attribute
+    private static final int MIN_CAPACITY = 64;  // Smallest number of device IDs indexed
+    private static final long IDLE_PARK_NANOS = 1_000_000;  // Sleep of the index thread when no change arrived
+    private final DeviceEventBus.Subscription subscription;  // Changes of the devices
+    private final DeviceEventBus.Handler updater = this::apply;  // Applies a change to the indexes
+    private final DeviceRegistry registry;  // Indexed devices, read for the conditions on the battery
+    private long[][] typeBits;  // One bitset of device IDs per DeviceType
+    private final long[][][] keyBits;  // Bitsets per attribute and value or bucket, null while empty
+    private final byte[][] numbers;  // Exact values of the numeric attributes by device ID, null for the others
+    private int capacity;  // Number of device IDs the bitsets can hold, a multiple of 64
+    private long[] scratch;  // Matches of the last count(), reused
+
+    /**
+     * Condition of a query resolved against the bitsets of its attribute.
+     */
+    private static final class Plan {
+        private final long[][] all;  // Bitsets whose devices all meet the condition
+        private final long[][] some;  // Bitsets whose devices must be checked one by one
+        private final byte[] values;  // Exact values of the attribute, for the checked devices
+        private final Comparison comparison;  // Comparison of the condition
+        private final int operand;  // Operand of the condition
+
+        /**
+         * Constructor to create a plan.
+         *
+         * @param all        Bitsets whose devices all meet the condition.
+         * @param some       Bitsets whose devices must be checked one by one.
+         * @param values     Exact values of the attribute, or null if some is empty.
+         * @param comparison Comparison of the condition.
+         * @param operand    Operand of the condition.
+         */
+        Plan(long[][] all, long[][] some, byte[] values, Comparison comparison, int operand) {
+            this.all = all;
+            this.some = some;
+            this.values = values;
+            this.comparison = comparison;
+            this.operand = operand;
+        }
+
+        /**
+         * Finds the devices of a word meeting the condition.
+         *
+         * @param word       Index of the bitset word.
+         * @param candidates Devices of the word still selected; only they are checked one by one.
+         * @return Bits of the devices meeting the condition, possibly more than the candidates.
+         */
+        long match(int word, long candidates) {
+            long matches = 0;
+            for (long[] bits : all) {
+                matches |= bits[word];
+            }
+            for (long[] bits : some) {
+                for (long left = bits[word] & candidates & ~matches; left != 0; left &= left - 1) {
+                    int bit = Long.numberOfTrailingZeros(left);
+                    if (comparison.test(values[word << 6 | bit], operand)) {
+                        matches |= 1L << bit;
+                    }
+                }
+            }
+            return matches;
+        }
+    }
+
+    /**
+     * Constructor to create the indexes of the devices of a registry, kept up to date from now on.
+     *
+     * @param registry Devices to index, which report added and removed devices to the index.
+     * @param events   Event bus attached to the registry.
+     */
+    public DeviceIndex(DeviceRegistry registry, DeviceEventBus events) {
+        this.subscription = events.subscribe(OverflowPolicy.BLOCK);
+        this.registry = registry;
+        this.keyBits = new long[ATTRIBUTES.length][][];
+        this.numbers = new byte[ATTRIBUTES.length][];
+        for (DeviceAttribute attribute : ATTRIBUTES) {
+            keyBits[attribute.ordinal()] = new long[keyCount(attribute)][];
+        }
+        allocate(Math.max(MIN_CAPACITY, registry.idBound()));
+        for (int id = registry.nextId(0); id >= 0; id = registry.nextId(id + 1)) {
+            add(id, registry.get(id));
+        }
+        registry.setIndex(this);
+    }
+
+    /**
+     * Counts the devices selected by a query.
+     *
+     * @param query Query to answer.
+     * @return Number of matching devices.
+     */
+    public synchronized int count(DeviceQuery query) {
+        poll();
+        if (scratch == null || scratch.length < capacity >>> 6) {
+            scratch = new long[capacity >>> 6];
+        }
+        return evaluate(query, scratch);
+    }
+
+    /**
+     * Finds the devices selected by a query.
+     *
+     * @param query Query to answer.
+     * @return The IDs of the matching devices.
+     */
+    public synchronized BitSet select(DeviceQuery query) {
+        poll();
+        long[] matches = new long[capacity >>> 6];
+        evaluate(query, matches);
+        return BitSet.valueOf(matches);
+    }
+
+    /**
+     * Applies the changes published since the last poll to the indexes.
+     *
+     * @return Number of applied changes.
+     */
+    public synchronized int poll() {
+        return subscription.poll(updater);
+    }
+
+    /**
+     * Polls for changes in the background until the program ends, so that publishers waiting for
+     * the index are released even while no query arrives.
+     */
+    public void start() {
+        Thread thread = new Thread(() -> {
+            while (true) {
+                if (poll() == 0 && subscription.lag() == 0) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            }
+        }, "index");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Estimates the heap used by the bitsets and value columns, excluding array headers.
+     *
+     * @return Approximate size of the indexes in bytes.
+     */
+    public synchronized long footprintBytes() {
+        long bitsets = TYPES.length;
+        for (long[][] keys : keyBits) {
+            for (long[] bits : keys) {
+                bitsets += bits != null ? 1 : 0;
+            }
+        }
+        long columns = 0;
+        for (byte[] values : numbers) {
+            columns += values != null ? values.length : 0;
+        }
+        return bitsets * (capacity >>> 3) + columns;
+    }
+
+    /**
+     * Indexes a device added to the registry. Pending changes are applied first, so that changes of
+     * a device previously registered under the same ID cannot reach the new one.
+     *
+     * @param deviceId Device ID.
+     * @param device   Added device.
+     */
+    synchronized void add(int deviceId, SmartDevice device) {
+        poll();
+        if (deviceId >= capacity) {
+            grow(deviceId);
+        }
+        DeviceType type = device.getType();
+        setBit(typeBits[type.ordinal()], deviceId, true);
+        for (DeviceAttribute attribute : ATTRIBUTES) {
+            if (has(type, attribute) && attribute != DeviceAttribute.BATTERY) {
+                setValue(deviceId, attribute, valueOf(device, attribute));
+            }
+        }
+    }
+
+    /**
+     * Removes a device removed from the registry from all indexes.
+     *
+     * @param deviceId Device ID.
+     */
+    synchronized void remove(int deviceId) {
+        poll();
+        if (deviceId >= capacity) {
+            return;
+        }
+        for (long[] bits : typeBits) {
+            setBit(bits, deviceId, false);
+        }
+        for (long[][] keys : keyBits) {
+            for (long[] bits : keys) {
+                if (bits != null) {
+                    setBit(bits, deviceId, false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies a change to the indexes, unless the device is no longer indexed with its type or the
+     * event reports a battery level.
+     *
+     * @param event Change of a device.
+     */
+    private void apply(DeviceEvent event) {
+        int deviceId = event.getDeviceId();
+        if (deviceId < capacity && getBit(typeBits[event.getDeviceType().ordinal()], deviceId)
+                && event.getAttribute() != DeviceAttribute.BATTERY) {
+            setValue(deviceId, event.getAttribute(), event.getValue());
+        }
+    }
+
+    /**
+     * Moves a device to the bitset of a new value of an attribute.
+     *
+     * @param deviceId  Device ID.
+     * @param attribute Changed attribute.
+     * @param value     New value, encoded as in DeviceEvent.
+     */
+    private void setValue(int deviceId, DeviceAttribute attribute, int value) {
+        long[][] keys = keyBits[attribute.ordinal()];
+        byte[] values = numbers[attribute.ordinal()];
+        if (values != null) {
+            long[] previous = keys[keyOf(attribute, values[deviceId])];
+            if (previous != null) {
+                setBit(previous, deviceId, false);
+            }
+            values[deviceId] = (byte) value;
+        } else {
+            for (long[] bits : keys) {
+                if (bits != null) {
+                    setBit(bits, deviceId, false);
+                }
+            }
+        }
+        int key = keyOf(attribute, value);
+        if (keys[key] == null) {
+            keys[key] = new long[capacity >>> 6];
+        }
+        setBit(keys[key], deviceId, true);
+    }
+
+    /**
+     * Selects the devices of a query into the words of its ID range.
+     *
+     * @param query   Query to answer.
+     * @param matches Bitset receiving the matching devices in the words of the ID range; other
+     *                words are left unchanged.
+     * @return Number of matching devices.
+     */
+    private int evaluate(DeviceQuery query, long[] matches) {
+        int first = query.getFirstDeviceId();
+        int last = Math.min(query.getLastDeviceId(), capacity - 1);
+        if (first > last) {
+            return 0;
+        }
+        Plan[] plans = new Plan[query.conditionCount()];
+        int batteryConditions = 0;
+        for (int i = 0; i < plans.length; i++) {
+            if (query.getAttribute(i) == DeviceAttribute.BATTERY) {
+                batteryConditions++;  // Checked last; here it keeps the devices having a charging status
+                plans[i] = plan(DeviceAttribute.CHARGING, Comparison.NOT_EQUAL, -1);
+            } else {
+                plans[i] = plan(query.getAttribute(i), query.getComparison(i), query.getOperand(i));
+            }
+        }
+        DeviceType type = query.getDeviceType();
+        long[] selected = type != null ? typeBits[type.ordinal()] : null;
+        int firstWord = first >>> 6;
+        int lastWord = last >>> 6;
+        int count = 0;
+        for (int word = firstWord; word <= lastWord; word++) {
+            long bits = selected != null ? selected[word] : presentWord(word);
+            if (word == firstWord) {
+                bits &= -1L << first;
+            }
+            if (word == lastWord) {
+                bits &= -1L >>> ~last;
+            }
+            for (int i = 0; i < plans.length && bits != 0; i++) {
+                bits &= plans[i].match(word, bits);
+            }
+            if (batteryConditions > 0) {
+                bits = matchBattery(query, word, bits);
+            }
+            matches[word] = bits;
+            count += Long.bitCount(bits);
+        }
+        return count;
+    }
+
+    /**
+     * Checks the battery conditions of a query for the devices of a word left by the other conditions.
+     *
+     * @param query      Query to answer.
+     * @param word       Index of the bitset word.
+     * @param candidates Chargeable devices of the word meeting the other conditions.
+     * @return Bits of the candidates whose battery level meets all battery conditions.
+     */
+    private long matchBattery(DeviceQuery query, int word, long candidates) {
+        long matches = candidates;
+        for (long left = candidates; left != 0; left &= left - 1) {
+            int bit = Long.numberOfTrailingZeros(left);
+            int level = ((Chargeable) registry.get(word << 6 | bit)).getBatteryLevel();
+            for (int i = 0; i < query.conditionCount(); i++) {
+                if (query.getAttribute(i) == DeviceAttribute.BATTERY
+                        && !query.getComparison(i).test(level, query.getOperand(i))) {
+                    matches &= ~(1L << bit);
+                }
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Sorts the bitsets of an attribute by whether all, some or none of their devices meet a condition.
+     *
+     * @param attribute  Compared attribute.
+     * @param comparison Comparison of the condition.
+     * @param operand    Operand of the condition.
+     * @return The plan of the condition.
+     */
+    private Plan plan(DeviceAttribute attribute, Comparison comparison, int operand) {
+        long[][] keys = keyBits[attribute.ordinal()];
+        byte[] values = numbers[attribute.ordinal()];
+        int width = values != null ? BUCKET_WIDTH : 1;
+        long[][] all = new long[keys.length][];
+        long[][] some = new long[keys.length][];
+        int allCount = 0;
+        int someCount = 0;
+        for (int key = 0; key < keys.length; key++) {
+            if (keys[key] == null) {
+                continue;
+            }
+            int low = values != null ? (key << BUCKET_SHIFT) + Byte.MIN_VALUE : key;
+            int met = 0;
+            for (int value = low; value < low + width; value++) {
+                met += comparison.test(value, operand) ? 1 : 0;
+            }
+            if (met == width) {
+                all[allCount++] = keys[key];
+            } else if (met > 0) {
+                some[someCount++] = keys[key];
+            }
+        }
+        return new Plan(Arrays.copyOf(all, allCount), Arrays.copyOf(some, someCount), values,
+                comparison, operand);
+    }
+
+    /**
+     * Combines the type bitsets into the bits of the indexed devices of one word.
+     *
+     * @param word Index of the bitset word.
+     * @return Bits of the indexed device IDs.
+     */
+    private long presentWord(int word) {
+        long bits = 0;
+        for (long[] typeWords : typeBits) {
+            bits |= typeWords[word];
+        }
+        return bits;
+    }
+
+    /**
+     * Allocates empty bitsets and columns for the given number of device IDs.
+     *
+     * @param slots Number of device IDs, rounded up to a multiple of 64.
+     */
+    private void allocate(int slots) {
+        capacity = (slots + 63) & ~63;
+        typeBits = new long[TYPES.length][capacity >>> 6];
+        for (DeviceAttribute attribute : ATTRIBUTES) {
+            if (attribute == DeviceAttribute.ANGLE || attribute == DeviceAttribute.TEMPERATURE) {
+                numbers[attribute.ordinal()] = new byte[capacity];
+            }
+        }
+    }
+
+    /**
+     * Grows all bitsets and columns so that they can hold the given device ID.
+     *
+     * @param deviceId Device ID that must fit.
+     */
+    private void grow(int deviceId) {
+        long[][] oldTypes = typeBits;
+        byte[][] oldNumbers = numbers.clone();
+        allocate((int) Math.min(Integer.MAX_VALUE - 63, Math.max((long) capacity * 2, (long) deviceId + 1)));
+        int words = capacity >>> 6;
+        for (int t = 0; t < oldTypes.length; t++) {
+            System.arraycopy(oldTypes[t], 0, typeBits[t], 0, oldTypes[t].length);
+        }
+        for (int a = 0; a < ATTRIBUTES.length; a++) {
+            if (oldNumbers[a] != null) {
+                System.arraycopy(oldNumbers[a], 0, numbers[a], 0, oldNumbers[a].length);
+            }
+            long[][] keys = keyBits[a];
+            for (int key = 0; key < keys.length; key++) {
+                if (keys[key] != null) {
+                    keys[key] = Arrays.copyOf(keys[key], words);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the number of bitsets of an attribute.
+     *
+     * @param attribute Attribute.
+     * @return One per bucket for the angle and the temperature, none for the battery, one per value
+     *         for the others.
+     */
+    private static int keyCount(DeviceAttribute attribute) {
+        return switch (attribute) {
+            case ANGLE, TEMPERATURE -> (1 << Byte.SIZE) >>> BUCKET_SHIFT;
+            case BRIGHTNESS -> Brightnesslevel.values().length;
+            case COLOR -> LightColor.values().length;
+            case BATTERY -> 0;
+            default -> 2;
+        };
+    }
+
+    /**
+     * Gets the bitset of a value of an attribute.
+     *
+     * @param attribute Attribute.
+     * @param value     Value, encoded as in DeviceEvent; numbers must fit into a byte.
+     * @return Index of the bitset: the bucket of a number, the value otherwise.
+     */
+    private static int keyOf(DeviceAttribute attribute, int value) {
+        if (attribute == DeviceAttribute.ANGLE || attribute == DeviceAttribute.TEMPERATURE) {
+            return ((byte) value - Byte.MIN_VALUE) >>> BUCKET_SHIFT;
+        }
+        return value;
+    }
+
+    /**
+     * Checks whether devices of a type have an attribute.
+     *
+     * @param type      Device type.
+     * @param attribute Attribute.
+     * @return true if the devices of the type have the attribute, false otherwise.
+     */
+    private static boolean has(DeviceType type, DeviceAttribute attribute) {
+        return switch (attribute) {
+            case STATUS -> true;
+            case CHARGING -> type.supports(Capability.CHARGEABLE);
+            case RECORDING, ANGLE -> type.supports(Capability.CAMERA);
+            case TEMPERATURE -> type.supports(Capability.HEATER);
+            case BRIGHTNESS, COLOR -> type.supports(Capability.LIGHT);
+            case BATTERY -> type.supports(Capability.CHARGEABLE);
+        };
+    }
+
+    /**
+     * Reads an attribute of a device, encoded as in DeviceEvent.
+     *
+     * @param device    Device having the attribute.
+     * @param attribute Attribute to read.
+     * @return 0 or 1 for boolean attributes, the ordinal for enum attributes, the number otherwise.
+     */
+    private static int valueOf(SmartDevice device, DeviceAttribute attribute) {
+        return switch (attribute) {
+            case STATUS -> device.isOn() ? 1 : 0;
+            case CHARGING -> ((Chargeable) device).isCharging() ? 1 : 0;
+            case RECORDING -> ((Camera) device).isRecording() ? 1 : 0;
+            case ANGLE -> ((Camera) device).getAngle();
+            case TEMPERATURE -> ((Heater) device).getTemperature();
+            case BRIGHTNESS -> ((Light) device).getBrightnessLevel().ordinal();
+            case COLOR -> ((Light) device).getLightColor().ordinal();
+            case BATTERY -> ((Chargeable) device).getBatteryLevel();
+        };
+    }
+
+    /**
+     * Reads a bit of a bitset.
+     *
+     * @param bits  Bitset words.
+     * @param index Index of the bit.
+     * @return The value of the bit.
+     */
+    private static boolean getBit(long[] bits, int index) {
+        return (bits[index >>> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * Writes a bit of a bitset.
+     *
+     * @param bits  Bitset words.
+     * @param index Index of the bit.
+     * @param value New value of the bit.
+     */
+    private static void setBit(long[] bits, int index, boolean value) {
+        if (value) {
+            bits[index >>> 6] |= 1L << index;
+        } else {
+            bits[index >>> 6] &= ~(1L << index);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+import java.util.Arrays;
+
+/**
+ * Selection of devices by type, ID range and conditions on their attributes, all of which must
+ * hold, e.g. the Lights that are ON and HIGH and YELLOW. Answered by a DeviceIndex.
+ */
+public final class DeviceQuery {
+    private final DeviceType deviceType;  // Selected device type, or null for every type
+    private final int firstDeviceId;  // First selected device ID (inclusive)
+    private final int lastDeviceId;  // Last selected device ID (inclusive)
+    private DeviceAttribute[] attributes = new DeviceAttribute[0];  // Compared attribute of each condition
+    private Comparison[] comparisons = new Comparison[0];  // Comparison of each condition
+    private int[] operands = new int[0];  // Value each attribute is compared with
+
+    /**
+     * Constructor to create a query selecting the devices of a type and ID range, without conditions.
+     *
+     * @param deviceType    Device type, or null for every type.
+     * @param firstDeviceId First device ID (inclusive).
+     * @param lastDeviceId  Last device ID (inclusive), Integer.MAX_VALUE for every ID from the first.
+     */
+    public DeviceQuery(DeviceType deviceType, int firstDeviceId, int lastDeviceId) {
+        this.deviceType = deviceType;
+        this.firstDeviceId = firstDeviceId;
+        this.lastDeviceId = lastDeviceId;
+    }
+
+    /**
+     * Adds a condition the selected devices must meet. Devices without the attribute never meet it.
+     *
+     * @param attribute  Attribute to compare.
+     * @param comparison Comparison of the attribute with the operand.
+     * @param operand    Value encoded as in DeviceEvent: 0 or 1 for boolean attributes, the
+     *                   ordinal for enum attributes, the number for the angle and the temperature.
+     * @return This query.
+     */
+    public DeviceQuery and(DeviceAttribute attribute, Comparison comparison, int operand) {
+        int count = attributes.length;
+        attributes = Arrays.copyOf(attributes, count + 1);
+        comparisons = Arrays.copyOf(comparisons, count + 1);
+        operands = Arrays.copyOf(operands, count + 1);
+        attributes[count] = attribute;
+        comparisons[count] = comparison;
+        operands[count] = operand;
+        return this;
+    }
+
+    /**
+     * Gets the selected device type.
+     *
+     * @return The device type, or null if devices of every type are selected.
+     */
+    public DeviceType getDeviceType() {
+        return deviceType;
+    }
+
+    /**
+     * Gets the first selected device ID.
+     *
+     * @return The inclusive lower bound of the ID range.
+     */
+    public int getFirstDeviceId() {
+        return firstDeviceId;
+    }
+
+    /**
+     * Gets the last selected device ID.
+     *
+     * @return The inclusive upper bound of the ID range.
+     */
+    public int getLastDeviceId() {
+        return lastDeviceId;
+    }
+
+    /**
+     * Gets the number of conditions.
+     *
+     * @return Number of conditions added with and().
+     */
+    public int conditionCount() {
+        return attributes.length;
+    }
+
+    /**
+     * Gets the attribute of a condition.
+     *
+     * @param index Index of the condition, in the order they were added.
+     * @return The compared attribute.
+     */
+    public DeviceAttribute getAttribute(int index) {
+        return attributes[index];
+    }
+
+    /**
+     * Gets the comparison of a condition.
+     *
+     * @param index Index of the condition, in the order they were added.
+     * @return The comparison.
+     */
+    public Comparison getComparison(int index) {
+        return comparisons[index];
+    }
+
+    /**
+     * Gets the operand of a condition.
+     *
+     * @param index Index of the condition, in the order they were added.
+     * @return The value the attribute is compared with.
+     */
+    public int getOperand(int index) {
+        return operands[index];
+    }
+}
@@ -0,0 +1,241 @@
+/**
+ * Registry of smart devices keyed by their int device ID.
+ * Devices are kept in fixed-size pages that are allocated only for ID ranges in use, so lookups are
+ * two array reads, sparse IDs cost memory only for the pages they touch, and iteration in ID order
+ * skips empty pages entirely.
+ *
+ * <p>A registry can instead be backed by a DeviceStateStore. It then keeps no device objects:
+ * added devices are copied into the store and lookups return views of it.</p>
+ *
+ * <p>Added and removed devices are reported to the DeviceIndex of the registry, if one is attached.</p>
+ */
+public final class DeviceRegistry {
+    private static final int PAGE_SHIFT = 10;  // log2 of the number of devices per page
+    private static final int PAGE_SIZE = 1 << PAGE_SHIFT;  // Number of devices per page
+    private static final int PAGE_MASK = PAGE_SIZE - 1;  // Mask extracting the index within a page
+    private static final int INITIAL_PAGES = 16;  // Initial length of the page directory
+    private SmartDevice[][] pages = new SmartDevice[INITIAL_PAGES][];  // Page directory
+    private int[] pageCounts = new int[INITIAL_PAGES];  // Number of devices stored in each page
+    private int size;  // Total number of devices
+    private final DeviceStateStore store;  // Columnar store backing the registry, or null
+    private DeviceEventBus events;  // Bus receiving the changes of all devices, or null
+    private DeviceIndex index;  // Indexes of the attributes of all devices, or null
+
+    /**
+     * Constructor to create a registry keeping device objects in pages.
+     */
+    public DeviceRegistry() {
+        this.store = null;
+    }
+
+    /**
+     * Constructor to create a registry backed by a columnar store.
+     *
+     * @param store Store holding the state of all devices.
+     */
+    public DeviceRegistry(DeviceStateStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Gets the device with the given ID.
+     *
+     * @param deviceId Device ID.
+     * @return The device, or null if no device has this ID.
+     */
+    public SmartDevice get(int deviceId) {
+        if (store != null) {
+            return store.view(deviceId);
+        }
+        int page = deviceId >>> PAGE_SHIFT;
+        if (deviceId < 0 || page >= pages.length) {
+            return null;
+        }
+        SmartDevice[] devices = pages[page];
+        return devices == null ? null : devices[deviceId & PAGE_MASK];
+    }
+
+    /**
+     * Checks whether a device with the given ID is registered.
+     *
+     * @param deviceId Device ID.
+     * @return true if the ID is in use, false otherwise.
+     */
+    public boolean contains(int deviceId) {
+        if (store != null) {
+            return store.typeOf(deviceId) != null;
+        }
+        return get(deviceId) != null;
+    }
+
+    /**
+     * Registers a device under the given ID and assigns the ID to the device.
+     * A store backed registry copies the state of the device instead of keeping it.
+     *
+     * @param deviceId Non-negative device ID.
+     * @param device   Device to register.
+     * @throws IllegalArgumentException If the ID is negative or already in use.
+     */
+    public void add(int deviceId, SmartDevice device) {
+        if (deviceId < 0) {
+            throw new IllegalArgumentException("Device ID must not be negative: " + deviceId);
+        }
+        if (store != null) {
+            store.add(deviceId, device);
+        } else {
+            addToPage(deviceId, device);
+        }
+        if (index != null) {
+            index.add(deviceId, device);
+        }
+    }
+
+    /**
+     * Stores a device in the page of its ID, allocating the page if needed.
+     *
+     * @param deviceId Non-negative device ID.
+     * @param device   Device to register.
+     * @throws IllegalArgumentException If the ID is already in use.
+     */
+    private void addToPage(int deviceId, SmartDevice device) {
+        int page = deviceId >>> PAGE_SHIFT;
+        if (page >= pages.length) {
+            growDirectory(page);
+        }
+        SmartDevice[] devices = pages[page];
+        if (devices == null) {
+            devices = new SmartDevice[PAGE_SIZE];
+            pages[page] = devices;
+        }
+        if (devices[deviceId & PAGE_MASK] != null) {
+            throw new IllegalArgumentException("Device ID is already in use: " + deviceId);
+        }
+        device.setDeviceId(deviceId);
+        device.setEventBus(events);
+        devices[deviceId & PAGE_MASK] = device;
+        pageCounts[page]++;
+        size++;
+    }
+
+    /**
+     * Unregisters the device with the given ID. Pages that become empty are released.
+     *
+     * @param deviceId Device ID.
+     * @return The removed device, or null if no device had this ID. For a store backed registry
+     *         this is a view that no longer reflects any state.
+     */
+    public SmartDevice remove(int deviceId) {
+        SmartDevice device = get(deviceId);
+        if (store != null) {
+            if (device != null) {
+                store.remove(deviceId);
+            }
+        } else if (device != null) {
+            int page = deviceId >>> PAGE_SHIFT;
+            pages[page][deviceId & PAGE_MASK] = null;
+            device.setEventBus(null);
+            if (--pageCounts[page] == 0) {
+                pages[page] = null;
+            }
+            size--;
+        }
+        if (device != null && index != null) {
+            index.remove(deviceId);
+        }
+        return device;
+    }
+
+    /**
+     * Publishes every change of a registered device to an event bus from now on, including devices
+     * registered later. Must not be called concurrently with changes of the devices.
+     *
+     * @param events Event bus, or null to stop publishing.
+     */
+    public void setEventBus(DeviceEventBus events) {
+        this.events = events;
+        if (store != null) {
+            store.setEventBus(events);
+            return;
+        }
+        for (int id = nextId(0); id >= 0; id = nextId(id + 1)) {
+            get(id).setEventBus(events);
+        }
+    }
+
+    /**
+     * Reports the devices added and removed from now on to the given indexes.
+     *
+     * @param index Indexes, or null to stop reporting.
+     */
+    void setIndex(DeviceIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * Gets the number of registered devices.
+     *
+     * @return Number of devices.
+     */
+    public int size() {
+        return store != null ? store.size() : size;
+    }
+
+    /**
+     * Gets an upper bound of the registered device IDs, so that ID ranges can be split into
+     * chunks without visiting the unallocated rest of the ID space.
+     *
+     * @return A value greater than every registered device ID.
+     */
+    public int idBound() {
+        return store != null ? store.capacity() : pages.length << PAGE_SHIFT;
+    }
+
+    /**
+     * Finds the smallest registered device ID that is not below the given one.
+     * Iterate all devices in ID order with
+     * {@code for (int id = registry.nextId(0); id >= 0; id = registry.nextId(id + 1))}.
+     *
+     * @param fromId ID to start searching from (inclusive); negative values, such as the overflow of
+     *               Integer.MAX_VALUE + 1, lie past the last possible ID.
+     * @return The next registered ID, or -1 if there is none.
+     */
+    public int nextId(int fromId) {
+        if (fromId < 0) {
+            return -1;
+        }
+        if (store != null) {
+            return store.nextId(fromId);
+        }
+        for (int page = fromId >>> PAGE_SHIFT; page < pages.length; page++) {
+            if (pageCounts[page] == 0) {
+                continue;
+            }
+            SmartDevice[] devices = pages[page];
+            int start = page == fromId >>> PAGE_SHIFT ? fromId & PAGE_MASK : 0;
+            for (int i = start; i < PAGE_SIZE; i++) {
+                if (devices[i] != null) {
+                    return (page << PAGE_SHIFT) | i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Enlarges the page directory so that it contains the given page.
+     *
+     * @param page Index of the page that must fit.
+     */
+    private void growDirectory(int page) {
+        int length = pages.length;
+        while (length <= page) {
+            length *= 2;
+        }
+        SmartDevice[][] grownPages = new SmartDevice[length][];
+        System.arraycopy(pages, 0, grownPages, 0, pages.length);
+        int[] grownCounts = new int[length];
+        System.arraycopy(pageCounts, 0, grownCounts, 0, pageCounts.length);
+        pages = grownPages;
+        pageCounts = grownCounts;
+    }
+}
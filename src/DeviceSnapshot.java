@@ -0,0 +1,170 @@
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Compact binary snapshot of the state of all devices, written and read through a memory-mapped file.
+ *
+ * <p>The file holds a 16 byte header (magic, format version, device count, reserved) followed by
+ * one 20 byte little-endian record per device in ID order: the ID, the type ordinal, a flags byte
+ * (on, charging, recording), the brightness and color ordinals of a light, the angle of a camera
+ * or the temperature of a heater, and the battery anchor of a chargeable device (see Battery), so
+ * a restored battery goes on from the level and time it was settled at. A snapshot is written to a
+ * temporary file and moved over the previous one, so a crash while writing leaves the previous
+ * snapshot intact.</p>
+ *
+ * <p>Files of format version 1 have 12 byte records without the anchor; they are still read, with
+ * full batteries as they were restored before.</p>
+ */
+public final class DeviceSnapshot {
+    private static final int MAGIC = 0x53485353;  // "SHSS" in little-endian order
+    private static final int FORMAT_VERSION = 2;  // Version of the record layout
+    private static final int UNANCHORED_VERSION = 1;  // Version of the records without the battery anchor
+    private static final int HEADER_BYTES = 16;  // Magic, format version, device count, reserved
+    private static final int RECORD_BYTES = 20;  // ID, type, flags, brightness, color, value, battery anchor
+    private static final int UNANCHORED_RECORD_BYTES = 12;  // Record of version 1, without the anchor
+    private static final int ON = 1;  // Flag bit of the power status
+    private static final int CHARGING = 1 << 1;  // Flag bit of the charging status
+    private static final int RECORDING = 1 << 2;  // Flag bit of the recording status
+    private static final DeviceType[] TYPES = DeviceType.values();
+    private static final Brightnesslevel[] BRIGHTNESS_LEVELS = Brightnesslevel.values();
+    private static final LightColor[] LIGHT_COLORS = LightColor.values();
+
+    private DeviceSnapshot() {
+    }
+
+    /**
+     * Writes the state of every device of a registry to a snapshot file, replacing it atomically.
+     * Devices may change while the snapshot is written; every record holds values the device had.
+     *
+     * @param registry Devices to save; devices must not be added or removed meanwhile.
+     * @param file     Snapshot file.
+     * @return Number of devices written.
+     * @throws IOException If writing the file fails.
+     */
+    public static int write(DeviceRegistry registry, Path file) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        int count = registry.size();
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    HEADER_BYTES + (long) count * RECORD_BYTES);
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            map.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(count).putInt(0);
+            int written = 0;
+            for (int id = registry.nextId(0); id >= 0 && written < count; id = registry.nextId(id + 1)) {
+                putRecord(map, registry.get(id));
+                written++;
+            }
+            map.putInt(8, written);
+            map.force();
+            count = written;
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count;
+    }
+
+    /**
+     * Adds the devices saved in a snapshot file to a registry.
+     *
+     * @param file     Snapshot file.
+     * @param registry Registry to add the devices to; it must not contain their IDs yet.
+     * @return Number of devices restored, or -1 if the file does not exist.
+     * @throws IOException If the file cannot be read or is not a valid snapshot.
+     */
+    public static int read(Path file, DeviceRegistry registry) throws IOException {
+        if (!Files.exists(file)) {
+            return -1;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            if (map.remaining() < HEADER_BYTES || map.getInt() != MAGIC) {
+                throw new IOException("Not a device snapshot: " + file);
+            }
+            int version = map.getInt();
+            if (version != FORMAT_VERSION && version != UNANCHORED_VERSION) {
+                throw new IOException("Unsupported device snapshot version " + version + ": " + file);
+            }
+            int recordBytes = version == FORMAT_VERSION ? RECORD_BYTES : UNANCHORED_RECORD_BYTES;
+            int count = map.getInt();
+            map.getInt();
+            if (count < 0 || map.remaining() < (long) count * recordBytes) {
+                throw new IOException("Truncated device snapshot: " + file);
+            }
+            for (int i = 0; i < count; i++) {
+                int id = map.getInt();
+                registry.add(id, getDevice(map, recordBytes == RECORD_BYTES, file));
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Encodes the state of a device as a record.
+     *
+     * @param map    Buffer positioned at the record.
+     * @param device Device to encode.
+     */
+    private static void putRecord(MappedByteBuffer map, SmartDevice device) {
+        int flags = device.isOn() ? ON : 0;
+        int brightness = 0;
+        int color = 0;
+        int value = 0;
+        switch (device.getType()) {
+            case LIGHT -> {
+                Light light = (Light) device;
+                flags |= light.isCharging() ? CHARGING : 0;
+                brightness = light.getBrightnessLevel().ordinal();
+                color = light.getLightColor().ordinal();
+            }
+            case CAMERA -> {
+                Camera camera = (Camera) device;
+                flags |= (camera.isCharging() ? CHARGING : 0) | (camera.isRecording() ? RECORDING : 0);
+                value = camera.getAngle();
+            }
+            default -> value = ((Heater) device).getTemperature();
+        }
+        long anchor = device.getType().supports(Capability.CHARGEABLE) ? device.getBatteryAnchor() : 0;
+        map.putInt(device.getDeviceId()).put((byte) device.getType().ordinal()).put((byte) flags)
+                .put((byte) brightness).put((byte) color).putInt(value).putLong(anchor);
+    }
+
+    /**
+     * Decodes the rest of a record into a new device.
+     *
+     * @param map      Buffer positioned after the ID of the record.
+     * @param anchored Whether the record ends with a battery anchor.
+     * @param file     Snapshot file, for error messages.
+     * @return The decoded device.
+     * @throws IOException If the record holds an unknown type or ordinal.
+     */
+    private static SmartDevice getDevice(MappedByteBuffer map, boolean anchored, Path file) throws IOException {
+        int type = map.get();
+        int flags = map.get();
+        int brightness = map.get();
+        int color = map.get();
+        int value = map.getInt();
+        long anchor = anchored ? map.getLong() : Battery.full();
+        if (type < 0 || type >= TYPES.length || brightness < 0 || brightness >= BRIGHTNESS_LEVELS.length
+                || color < 0 || color >= LIGHT_COLORS.length) {
+            throw new IOException("Corrupt device snapshot: " + file);
+        }
+        Status status = (flags & ON) != 0 ? Status.ON : Status.OFF;
+        SmartDevice device = switch (TYPES[type]) {
+            case LIGHT -> new Light(status, (flags & CHARGING) != 0, BRIGHTNESS_LEVELS[brightness],
+                    LIGHT_COLORS[color]);
+            case CAMERA -> new Camera(status, (flags & CHARGING) != 0, (flags & RECORDING) != 0, value);
+            case HEATER -> new Heater(status, value);
+        };
+        if (device.getType().supports(Capability.CHARGEABLE)) {
+            device.setBatteryAnchor(anchor);
+        }
+        return device;
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * Layout of the packed state word that holds the whole state of a standalone SmartDevice.
+ * Keeping every attribute in one long lets a state transition be a single compare-and-set,
+ * and the version counter changes with every transition that changes the state. A Transaction
+ * sets the lock bit of every device it writes while it commits; transitions wait for it to clear.
+ *
+ * <pre>
+ * bit  0       power status (1 = ON)
+ * bit  1       charging
+ * bit  2       recording
+ * bits 3-4     brightness level ordinal
+ * bit  5       light color ordinal
+ * bit  6       locked by a committing Transaction
+ * bit  7       reserved
+ * bits 8-31    version, incremented (and wrapping) on every change
+ * bits 32-63   int value: camera angle or heater temperature
+ * </pre>
+ */
+public final class DeviceState {
+    public static final long ON = 1L;  // Power status bit
+    public static final long CHARGING = 1L << 1;  // Charging bit
+    public static final long RECORDING = 1L << 2;  // Recording bit
+    public static final int BRIGHTNESS_SHIFT = 3;  // Position of the brightness ordinal
+    public static final long BRIGHTNESS = 3L << BRIGHTNESS_SHIFT;  // Brightness ordinal bits
+    public static final int COLOR_SHIFT = 5;  // Position of the color ordinal
+    public static final long COLOR = 1L << COLOR_SHIFT;  // Color ordinal bit
+    public static final long LOCKED = 1L << 6;  // Lock bit of a committing transaction
+    public static final int VERSION_SHIFT = 8;  // Position of the version counter
+    public static final long VERSION = 0xFFFFFFL << VERSION_SHIFT;  // Version counter bits
+    public static final int VALUE_SHIFT = 32;  // Position of the int value
+    public static final long VALUE = 0xFFFFFFFFL << VALUE_SHIFT;  // Int value bits
+    static final long[] ATTRIBUTES = {ON, CHARGING, RECORDING, BRIGHTNESS, COLOR, VALUE};  // Bits of each attribute
+    private static final Brightnesslevel[] BRIGHTNESS_LEVELS = Brightnesslevel.values();
+    private static final LightColor[] LIGHT_COLORS = LightColor.values();
+
+    private DeviceState() {
+    }
+
+    /**
+     * Replaces some bits of a state word and advances its version if anything changed.
+     *
+     * @param state Current state word.
+     * @param mask  Bits to replace.
+     * @param bits  New values of the masked bits.
+     * @return The new state word, identical to the given one if the masked bits already had these values.
+     */
+    public static long with(long state, long mask, long bits) {
+        long next = (state & ~mask) | (bits & mask);
+        if (next == state) {
+            return state;
+        }
+        return (next & ~VERSION) | ((state + (1L << VERSION_SHIFT)) & VERSION);
+    }
+
+    /**
+     * Gets the attribute stored in the given bits of a state word.
+     *
+     * @param mask Bits of exactly one attribute.
+     * @param type Type of the device, which decides what the int value means.
+     * @return The attribute.
+     */
+    public static DeviceAttribute attribute(long mask, DeviceType type) {
+        if (mask == ON) {
+            return DeviceAttribute.STATUS;
+        } else if (mask == CHARGING) {
+            return DeviceAttribute.CHARGING;
+        } else if (mask == RECORDING) {
+            return DeviceAttribute.RECORDING;
+        } else if (mask == BRIGHTNESS) {
+            return DeviceAttribute.BRIGHTNESS;
+        } else if (mask == COLOR) {
+            return DeviceAttribute.COLOR;
+        }
+        return type == DeviceType.CAMERA ? DeviceAttribute.ANGLE : DeviceAttribute.TEMPERATURE;
+    }
+
+    /**
+     * Gets the value of an attribute in a state word, encoded as in DeviceEvent.
+     *
+     * @param state     State word.
+     * @param attribute Attribute to read.
+     * @return 0 or 1 for boolean attributes, the ordinal for enum attributes, the number otherwise.
+     */
+    public static int attributeValue(long state, DeviceAttribute attribute) {
+        return switch (attribute) {
+            case STATUS -> (int) (state & ON);
+            case CHARGING -> (state & CHARGING) != 0 ? 1 : 0;
+            case RECORDING -> (state & RECORDING) != 0 ? 1 : 0;
+            case BRIGHTNESS -> (int) ((state & BRIGHTNESS) >>> BRIGHTNESS_SHIFT);
+            case COLOR -> (int) ((state & COLOR) >>> COLOR_SHIFT);
+            case ANGLE, TEMPERATURE -> value(state);
+            case BATTERY -> throw new IllegalArgumentException("The battery level is not in the state word");
+        };
+    }
+
+    /**
+     * Gets the version counter of a state word.
+     *
+     * @param state State word.
+     * @return The version, between 0 and 2^24 - 1.
+     */
+    public static int version(long state) {
+        return (int) ((state & VERSION) >>> VERSION_SHIFT);
+    }
+
+    /**
+     * Gets the int value (angle or temperature) of a state word.
+     *
+     * @param state State word.
+     * @return The value.
+     */
+    public static int value(long state) {
+        return (int) (state >> VALUE_SHIFT);
+    }
+
+    /**
+     * Encodes an int value (angle or temperature) into its state word bits.
+     *
+     * @param value Value to encode.
+     * @return The bits of the value.
+     */
+    public static long valueBits(int value) {
+        return (long) value << VALUE_SHIFT;
+    }
+
+    /**
+     * Gets the brightness level of a state word.
+     *
+     * @param state State word.
+     * @return The brightness level.
+     */
+    public static Brightnesslevel brightnessLevel(long state) {
+        return BRIGHTNESS_LEVELS[(int) ((state & BRIGHTNESS) >>> BRIGHTNESS_SHIFT)];
+    }
+
+    /**
+     * Encodes a brightness level into its state word bits.
+     *
+     * @param brightnessLevel Brightness level to encode.
+     * @return The bits of the brightness level.
+     */
+    public static long brightnessBits(Brightnesslevel brightnessLevel) {
+        return (long) brightnessLevel.ordinal() << BRIGHTNESS_SHIFT;
+    }
+
+    /**
+     * Gets the light color of a state word.
+     *
+     * @param state State word.
+     * @return The light color.
+     */
+    public static LightColor lightColor(long state) {
+        return LIGHT_COLORS[(int) ((state & COLOR) >>> COLOR_SHIFT)];
+    }
+
+    /**
+     * Encodes a light color into its state word bits.
+     *
+     * @param lightColor Light color to encode.
+     * @return The bits of the light color.
+     */
+    public static long colorBits(LightColor lightColor) {
+        return (long) lightColor.ordinal() << COLOR_SHIFT;
+    }
+}
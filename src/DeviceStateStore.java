@@ -0,0 +1,934 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+/**
+ * Columnar (struct-of-arrays) storage for the state of many devices, indexed by device ID.
+ * Device kinds, power status, charging and recording are bitsets; angle, temperature and the
+ * brightness/color codes of lights are byte columns. A device costs a few bytes instead of an
+ * object with enum references, and bulk queries run as word-wide bit operations.
+ *
+ * <p>Light, Camera and Heater objects returned by view() read and write this store directly.
+ * Their state transitions are atomic and lock-free among themselves: bits are flipped with
+ * compare-and-set on the bitset word and bytes are written with atomic access, so views may be
+ * used from many threads at once. Adding and removing devices is not synchronized and must not run
+ * concurrently with other access.</p>
+ *
+ * <p>Every change of a device also advances its version, which marks the cached status line of
+ * the device as dirty; displayStatus() of a view renders the line again only in that case, and is
+ * published to the DeviceEventBus attached to the store, if any. The version also counts the
+ * transitions in flight, which only register there and never wait for each other. A Transaction
+ * reads a consistent snapshot of a device by reading its version before and after the columns,
+ * and sets the lock bit of all its devices, once no transition is in flight, while it writes
+ * them; only then do transitions of these devices wait.</p>
+ *
+ * <p>The battery of a chargeable device is an anchor word (see Battery), settled when the power,
+ * charging or recording status changes, so levels are only computed when read. Anchors are kept
+ * per bitset word, for its chargeable devices only and in ID order, so devices without a battery
+ * cost no anchor.</p>
+ */
+public final class DeviceStateStore {
+    private static final VarHandle LONGS = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle BYTES = MethodHandles.arrayElementVarHandle(byte[].class);
+    private static final VarHandle INTS = MethodHandles.arrayElementVarHandle(int[].class);
+    private static final VarHandle LINES = MethodHandles.arrayElementVarHandle(StatusLine[].class);
+    private static final DeviceType[] TYPES = DeviceType.values();
+    private static final int[] CHARGEABLE_TYPES = Arrays.stream(TYPES)
+            .filter(type -> type.supports(Capability.CHARGEABLE)).mapToInt(DeviceType::ordinal).toArray();
+    private static final Brightnesslevel[] BRIGHTNESS_LEVELS = Brightnesslevel.values();
+    private static final LightColor[] LIGHT_COLORS = LightColor.values();
+    private static final int MIN_CAPACITY = 64;  // Smallest number of slots allocated
+    private static final int MAX_CAPACITY = 1 << 30;  // Largest number of slots allocated
+    private static final int COLOR_SHIFT = 2;  // Position of the color code in a light settings byte
+    private static final int BRIGHTNESS_MASK = (1 << COLOR_SHIFT) - 1;  // Brightness bits of the settings
+    private static final int LOCKED = 1;  // Version bit held while a transaction writes a device
+    private static final int WRITER = 1 << 1;  // Version increment of a transition in flight
+    private static final int WRITERS = 0x7F << 1;  // Version bits counting the transitions in flight
+    private static final int VERSION_STEP = 1 << 8;  // Version increment of a change, above the lock and writers
+    private static final int LINE_CACHE_SLOTS = 1 << 14;  // Status lines cached, one slot per device ID modulo
+    private static final int LINE_BYTES = 72;  // Estimated bytes of a cached line besides its characters
+    private static final int ARRAY_HEADER_BYTES = 16;  // Estimated header of a page of battery anchors
+    private long[][] typeBits;  // One bitset of device IDs per DeviceType
+    private long[] statusBits;  // Bit set when the device is on
+    private long[] chargingBits;  // Bit set when the device is charging
+    private long[] recordingBits;  // Bit set when the camera is recording
+    private byte[] angles;  // Camera angles
+    private byte[] temperatures;  // Heater temperatures
+    private byte[] lightSettings;  // Brightness ordinal | color ordinal << COLOR_SHIFT
+    private long[][] batteries;  // Per bitset word, the anchors of its chargeable devices by ID, or null
+    private int[] versions;  // Advanced (and wrapping) by every change, plus the WRITERS and LOCKED bits
+    private final StatusLine[] lineCache = new StatusLine[LINE_CACHE_SLOTS];  // Direct-mapped status lines
+    private DeviceEventBus events;  // Bus receiving the changes of all devices, or null
+    private int capacity;  // Number of device IDs the columns can hold
+    private int size;  // Number of stored devices
+
+    /**
+     * Constructor to create a store with room for device IDs below the given capacity.
+     * The store grows automatically when larger IDs are added.
+     *
+     * @param initialCapacity Expected number of device IDs.
+     */
+    public DeviceStateStore(int initialCapacity) {
+        allocate(Math.max(MIN_CAPACITY, initialCapacity));
+    }
+
+    /**
+     * Adds a device by copying the state of the given device into the store.
+     *
+     * @param deviceId Non-negative device ID.
+     * @param device   Device whose state is copied; it is not retained.
+     * @throws IllegalArgumentException If the ID is negative, too large or in use, or an angle or
+     *                                  temperature does not fit into a byte column.
+     */
+    public void add(int deviceId, SmartDevice device) {
+        if (deviceId < 0 || deviceId >= MAX_CAPACITY) {
+            throw new IllegalArgumentException("Device ID is outside of the store range: " + deviceId);
+        }
+        if (deviceId >= capacity) {
+            grow(deviceId);
+        }
+        if (typeOf(deviceId) != null) {
+            throw new IllegalArgumentException("Device ID is already in use: " + deviceId);
+        }
+        switch (device.getType()) {
+            case LIGHT -> {
+                Light light = (Light) device;
+                lightSettings[deviceId] = (byte) (light.getBrightnessLevel().ordinal()
+                        | light.getLightColor().ordinal() << COLOR_SHIFT);
+                setBit(chargingBits, deviceId, light.isCharging());
+                insertBattery(deviceId, light.getBatteryAnchor());
+            }
+            case CAMERA -> {
+                Camera camera = (Camera) device;
+                angles[deviceId] = toByte(camera.getAngle(), "angle");
+                setBit(chargingBits, deviceId, camera.isCharging());
+                setBit(recordingBits, deviceId, camera.isRecording());
+                insertBattery(deviceId, camera.getBatteryAnchor());
+            }
+            default -> temperatures[deviceId] = toByte(((Heater) device).getTemperature(), "temperature");
+        }
+        setBit(statusBits, deviceId, device.isOn());
+        setBit(typeBits[device.getType().ordinal()], deviceId, true);
+        versions[deviceId] += VERSION_STEP;
+        size++;
+    }
+
+    /**
+     * Removes a device and clears its state.
+     *
+     * @param deviceId Device ID.
+     * @return true if a device was removed, false if the ID was not in use.
+     */
+    public boolean remove(int deviceId) {
+        DeviceType type = typeOf(deviceId);
+        if (type == null) {
+            return false;
+        }
+        if (type.supports(Capability.CHARGEABLE)) {
+            removeBattery(deviceId);
+        }
+        setBit(typeBits[type.ordinal()], deviceId, false);
+        setBit(statusBits, deviceId, false);
+        setBit(chargingBits, deviceId, false);
+        setBit(recordingBits, deviceId, false);
+        size--;
+        return true;
+    }
+
+    /**
+     * Gets the kind of the device with the given ID.
+     *
+     * @param deviceId Device ID.
+     * @return The device type, or null if the ID is not in use.
+     */
+    public DeviceType typeOf(int deviceId) {
+        if (deviceId < 0 || deviceId >= capacity) {
+            return null;
+        }
+        for (DeviceType type : TYPES) {
+            if (getBit(typeBits[type.ordinal()], deviceId)) {
+                return type;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Creates a device object reading and writing the state of the given ID in this store.
+     * Views are cheap and not cached; two views of the same ID always agree.
+     *
+     * @param deviceId Device ID.
+     * @return A view of the device, or null if the ID is not in use.
+     */
+    public SmartDevice view(int deviceId) {
+        DeviceType type = typeOf(deviceId);
+        if (type == null) {
+            return null;
+        }
+        return switch (type) {
+            case LIGHT -> new Light(this, deviceId);
+            case CAMERA -> new Camera(this, deviceId);
+            case HEATER -> new Heater(this, deviceId);
+        };
+    }
+
+    /**
+     * Gets the number of stored devices.
+     *
+     * @return Number of devices.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the number of device IDs the columns currently hold.
+     *
+     * @return One more than the largest ID that could be stored without growing.
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Finds the smallest device ID in use that is not below the given one.
+     *
+     * @param fromId ID to start searching from (inclusive); negative values lie past the last ID.
+     * @return The next ID in use, or -1 if there is none.
+     */
+    public int nextId(int fromId) {
+        if (fromId < 0 || fromId >= capacity) {
+            return -1;
+        }
+        int word = fromId >>> 6;
+        long bits = presentWord(word) & (-1L << (fromId & 63));
+        while (bits == 0) {
+            if (++word == statusBits.length) {
+                return -1;
+            }
+            bits = presentWord(word);
+        }
+        return (word << 6) + Long.numberOfTrailingZeros(bits);
+    }
+
+    /**
+     * Counts the devices of a type that have the given power status, one bitset word at a time.
+     *
+     * @param type   Device type to count.
+     * @param status Power status to count.
+     * @return Number of matching devices.
+     */
+    public int count(DeviceType type, Status status) {
+        long[] typeWords = typeBits[type.ordinal()];
+        long flip = status == Status.ON ? 0 : -1L;
+        int count = 0;
+        for (int i = 0; i < typeWords.length; i++) {
+            count += Long.bitCount(typeWords[i] & (statusBits[i] ^ flip));
+        }
+        return count;
+    }
+
+    /**
+     * Counts the devices of a type that are charging.
+     *
+     * @param type Device type to count.
+     * @return Number of charging devices.
+     */
+    public int countCharging(DeviceType type) {
+        long[] typeWords = typeBits[type.ordinal()];
+        int count = 0;
+        for (int i = 0; i < typeWords.length; i++) {
+            count += Long.bitCount(typeWords[i] & chargingBits[i]);
+        }
+        return count;
+    }
+
+    /**
+     * Counts the cameras that are recording.
+     *
+     * @return Number of recording cameras.
+     */
+    public int countRecording() {
+        int count = 0;
+        for (long word : recordingBits) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /**
+     * Estimates the heap used by the state columns, the battery anchors and the cached status lines,
+     * excluding the headers of the columns.
+     *
+     * @return Approximate size of the store in bytes.
+     */
+    public long footprintBytes() {
+        long words = (long) statusBits.length * (TYPES.length + 3);
+        long anchors = (long) batteries.length * Integer.BYTES;  // Compressed references
+        for (long[] page : batteries) {
+            if (page != null) {
+                anchors += ARRAY_HEADER_BYTES + (long) page.length * Long.BYTES;
+            }
+        }
+        long lines = (long) LINE_CACHE_SLOTS * Integer.BYTES;  // Compressed references
+        for (int slot = 0; slot < LINE_CACHE_SLOTS; slot++) {
+            StatusLine line = (StatusLine) LINES.getAcquire(lineCache, slot);
+            if (line != null) {
+                lines += LINE_BYTES + line.getText().length();
+            }
+        }
+        return words * Long.BYTES + (long) capacity * (3 + Integer.BYTES) + anchors + lines;
+    }
+
+    /**
+     * Checks if the device is on.
+     *
+     * @param deviceId Device ID.
+     * @return true if the device is on, false otherwise.
+     */
+    boolean isOn(int deviceId) {
+        return getBit(statusBits, deviceId);
+    }
+
+    /**
+     * Atomically sets the power status of the device.
+     *
+     * @param deviceId Device ID.
+     * @param on       Whether the device is on.
+     * @return true if the status changed, false if it already had this value.
+     */
+    boolean setOn(int deviceId, boolean on) {
+        if (getBit(statusBits, deviceId) == on) {
+            return false;
+        }
+        enter(deviceId);
+        return leave(deviceId, changed(deviceId, compareAndSetBit(statusBits, deviceId, on), DeviceAttribute.STATUS));
+    }
+
+    /**
+     * Checks if the device is charging.
+     *
+     * @param deviceId Device ID.
+     * @return true if the device is charging, false otherwise.
+     */
+    boolean isCharging(int deviceId) {
+        return getBit(chargingBits, deviceId);
+    }
+
+    /**
+     * Atomically sets the charging status of the device.
+     *
+     * @param deviceId Device ID.
+     * @param charging Whether the device is charging.
+     * @return true if the status changed, false if it already had this value.
+     */
+    boolean setCharging(int deviceId, boolean charging) {
+        if (getBit(chargingBits, deviceId) == charging) {
+            return false;
+        }
+        enter(deviceId);
+        return leave(deviceId,
+                changed(deviceId, compareAndSetBit(chargingBits, deviceId, charging), DeviceAttribute.CHARGING));
+    }
+
+    /**
+     * Checks if the camera is recording.
+     *
+     * @param deviceId Device ID.
+     * @return true if the camera is recording, false otherwise.
+     */
+    boolean isRecording(int deviceId) {
+        return getBit(recordingBits, deviceId);
+    }
+
+    /**
+     * Atomically sets the recording status of the camera.
+     *
+     * @param deviceId  Device ID.
+     * @param recording Whether the camera is recording.
+     * @return true if the status changed, false if it already had this value.
+     */
+    boolean setRecording(int deviceId, boolean recording) {
+        if (getBit(recordingBits, deviceId) == recording) {
+            return false;
+        }
+        enter(deviceId);
+        return leave(deviceId,
+                changed(deviceId, compareAndSetBit(recordingBits, deviceId, recording), DeviceAttribute.RECORDING));
+    }
+
+    /**
+     * Gets the battery level of a chargeable device.
+     *
+     * @param deviceId Device ID.
+     * @return The level in percent.
+     */
+    int getBatteryLevel(int deviceId) {
+        int rate = Battery.ratePerHour(typeOf(deviceId), rateBits(deviceId));
+        return Battery.level(getBatteryAnchor(deviceId), rate, Battery.now());
+    }
+
+    /**
+     * Gets the battery anchor of a chargeable device.
+     *
+     * @param deviceId Device ID.
+     * @return The anchor word.
+     */
+    long getBatteryAnchor(int deviceId) {
+        return (long) LONGS.getVolatile(batteries[deviceId >>> 6], batteryIndex(deviceId));
+    }
+
+    /**
+     * Replaces the battery anchor of a chargeable device.
+     *
+     * @param deviceId Device ID.
+     * @param anchor   Anchor word.
+     */
+    void setBatteryAnchor(int deviceId, long anchor) {
+        LONGS.setVolatile(batteries[deviceId >>> 6], batteryIndex(deviceId), anchor);
+    }
+
+    /**
+     * Finds the anchor of a chargeable device in the page of its bitset word.
+     *
+     * @param deviceId Device ID of a chargeable device, or of one about to be added.
+     * @return The number of chargeable devices with lower IDs in the same word.
+     */
+    private int batteryIndex(int deviceId) {
+        int word = deviceId >>> 6;
+        long chargeable = 0;
+        for (int type : CHARGEABLE_TYPES) {
+            chargeable |= typeBits[type][word];
+        }
+        return Long.bitCount(chargeable & ((1L << deviceId) - 1));
+    }
+
+    /**
+     * Inserts the anchor of a chargeable device that is being added, before its type bit is set.
+     *
+     * @param deviceId Device ID.
+     * @param anchor   Battery anchor of the device.
+     */
+    private void insertBattery(int deviceId, long anchor) {
+        int word = deviceId >>> 6;
+        int index = batteryIndex(deviceId);
+        long[] page = batteries[word];
+        int length = page == null ? 0 : page.length;
+        long[] grown = new long[length + 1];
+        if (page != null) {
+            System.arraycopy(page, 0, grown, 0, index);
+            System.arraycopy(page, index, grown, index + 1, length - index);
+        }
+        grown[index] = anchor;
+        batteries[word] = grown;
+    }
+
+    /**
+     * Removes the anchor of a chargeable device that is being removed, before its type bit is cleared.
+     *
+     * @param deviceId Device ID.
+     */
+    private void removeBattery(int deviceId) {
+        int word = deviceId >>> 6;
+        int index = batteryIndex(deviceId);
+        long[] page = batteries[word];
+        if (page.length == 1) {
+            batteries[word] = null;
+            return;
+        }
+        long[] shrunk = new long[page.length - 1];
+        System.arraycopy(page, 0, shrunk, 0, index);
+        System.arraycopy(page, index + 1, shrunk, index, shrunk.length - index);
+        batteries[word] = shrunk;
+    }
+
+    /**
+     * Gets the angle of the camera.
+     *
+     * @param deviceId Device ID.
+     * @return The camera angle.
+     */
+    int getAngle(int deviceId) {
+        return (byte) BYTES.getVolatile(angles, deviceId);
+    }
+
+    /**
+     * Sets the angle of the camera; the caller validates the range.
+     *
+     * @param deviceId Device ID.
+     * @param angle    New camera angle.
+     * @return true if the angle changed, false if the camera already had it.
+     */
+    boolean setAngle(int deviceId, int angle) {
+        enter(deviceId);
+        byte previous = (byte) BYTES.getAndSet(angles, deviceId, (byte) angle);
+        return leave(deviceId, changed(deviceId, previous != (byte) angle, DeviceAttribute.ANGLE));
+    }
+
+    /**
+     * Gets the temperature of the heater.
+     *
+     * @param deviceId Device ID.
+     * @return The heater temperature.
+     */
+    int getTemperature(int deviceId) {
+        return (byte) BYTES.getVolatile(temperatures, deviceId);
+    }
+
+    /**
+     * Sets the temperature of the heater; the caller validates the range.
+     *
+     * @param deviceId    Device ID.
+     * @param temperature New heater temperature.
+     * @return true if the temperature changed, false if the heater already had it.
+     */
+    boolean setTemperature(int deviceId, int temperature) {
+        enter(deviceId);
+        byte previous = (byte) BYTES.getAndSet(temperatures, deviceId, (byte) temperature);
+        return leave(deviceId, changed(deviceId, previous != (byte) temperature, DeviceAttribute.TEMPERATURE));
+    }
+
+    /**
+     * Gets the brightness level of the light.
+     *
+     * @param deviceId Device ID.
+     * @return The brightness level.
+     */
+    Brightnesslevel getBrightnessLevel(int deviceId) {
+        return BRIGHTNESS_LEVELS[(byte) BYTES.getVolatile(lightSettings, deviceId) & BRIGHTNESS_MASK];
+    }
+
+    /**
+     * Atomically sets the brightness level of the light, keeping its color.
+     *
+     * @param deviceId        Device ID.
+     * @param brightnessLevel New brightness level.
+     * @return true if the brightness level changed, false if the light already had it.
+     */
+    boolean setBrightnessLevel(int deviceId, Brightnesslevel brightnessLevel) {
+        return updateLightSettings(deviceId, BRIGHTNESS_MASK, brightnessLevel.ordinal(), DeviceAttribute.BRIGHTNESS);
+    }
+
+    /**
+     * Gets the color of the light.
+     *
+     * @param deviceId Device ID.
+     * @return The light color.
+     */
+    LightColor getLightColor(int deviceId) {
+        return LIGHT_COLORS[(byte) BYTES.getVolatile(lightSettings, deviceId) >>> COLOR_SHIFT];
+    }
+
+    /**
+     * Atomically sets the color of the light, keeping its brightness level.
+     *
+     * @param deviceId   Device ID.
+     * @param lightColor New light color.
+     * @return true if the color changed, false if the light already had it.
+     */
+    boolean setLightColor(int deviceId, LightColor lightColor) {
+        return updateLightSettings(deviceId, ~BRIGHTNESS_MASK, lightColor.ordinal() << COLOR_SHIFT,
+                DeviceAttribute.COLOR);
+    }
+
+    /**
+     * Replaces some bits of the settings byte of a light with compare-and-set.
+     *
+     * @param deviceId  Device ID.
+     * @param mask      Bits to replace.
+     * @param bits      New values of the masked bits.
+     * @param attribute Attribute stored in the masked bits.
+     * @return true if the bits changed, false if they already had these values.
+     */
+    private boolean updateLightSettings(int deviceId, int mask, int bits, DeviceAttribute attribute) {
+        enter(deviceId);
+        while (true) {
+            byte current = (byte) BYTES.getVolatile(lightSettings, deviceId);
+            byte next = (byte) ((current & ~mask) | (bits & mask));
+            if (next == current || BYTES.compareAndSet(lightSettings, deviceId, current, next)) {
+                return leave(deviceId, changed(deviceId, next != current, attribute));
+            }
+        }
+    }
+
+    /**
+     * Gets the version of the device, which changes with every change of its state.
+     *
+     * @param deviceId Device ID.
+     * @return The current version, with the WRITERS in flight and the LOCKED bit of a transaction.
+     */
+    int version(int deviceId) {
+        return (int) INTS.getVolatile(versions, deviceId);
+    }
+
+    /**
+     * Reads the whole state of a device as a state word, see SmartDevice.snapshot(). The columns
+     * are read again if the version changed, was locked or had transitions in flight meanwhile.
+     *
+     * @param deviceId Device ID.
+     * @return The state word in the layout of DeviceState, with the version of the device.
+     */
+    long snapshot(int deviceId) {
+        for (int spins = 0; ; spins++) {
+            int version = version(deviceId);
+            if ((version & (LOCKED | WRITERS)) == 0) {
+                long state = rateBits(deviceId);
+                int value = 0;
+                switch (typeOf(deviceId)) {
+                    case LIGHT -> state |= DeviceState.brightnessBits(getBrightnessLevel(deviceId))
+                            | DeviceState.colorBits(getLightColor(deviceId));
+                    case CAMERA -> value = getAngle(deviceId);
+                    case HEATER -> value = getTemperature(deviceId);
+                }
+                if (version(deviceId) == version) {
+                    return state | DeviceState.valueBits(value) | versionBits(version);
+                }
+            }
+            Transaction.backOff(spins);
+        }
+    }
+
+    /**
+     * Locks a device for a transaction if it has not changed since the snapshot, see SmartDevice.lock().
+     * Waits until the transitions in flight are done, which cannot start again once it is locked.
+     *
+     * @param deviceId Device ID.
+     * @param snapshot Result of snapshot().
+     * @return true if the device is locked, false if its version changed.
+     */
+    boolean lock(int deviceId, long snapshot) {
+        for (int spins = 0; ; spins++) {
+            int version = version(deviceId);
+            if ((version & (LOCKED | WRITERS)) != 0) {
+                Transaction.backOff(spins);
+            } else if (versionBits(version) != (snapshot & DeviceState.VERSION)) {
+                return false;
+            } else if (INTS.compareAndSet(versions, deviceId, version, version | LOCKED)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Writes the state a transaction computed for a device locked with lock(deviceId, snapshot)
+     * and releases the lock, see SmartDevice.commit().
+     *
+     * @param deviceId Device ID.
+     * @param snapshot Result of snapshot() the lock was taken with.
+     * @param next     New state word, equal to the snapshot to release the lock without a change.
+     */
+    void commit(int deviceId, long snapshot, long next) {
+        long changed = (snapshot ^ next) & ~DeviceState.VERSION;
+        if ((changed & DeviceState.ON) != 0) {
+            changed(deviceId, compareAndSetBit(statusBits, deviceId, (next & DeviceState.ON) != 0),
+                    DeviceAttribute.STATUS);
+        }
+        if ((changed & DeviceState.CHARGING) != 0) {
+            changed(deviceId, compareAndSetBit(chargingBits, deviceId, (next & DeviceState.CHARGING) != 0),
+                    DeviceAttribute.CHARGING);
+        }
+        if ((changed & DeviceState.RECORDING) != 0) {
+            changed(deviceId, compareAndSetBit(recordingBits, deviceId, (next & DeviceState.RECORDING) != 0),
+                    DeviceAttribute.RECORDING);
+        }
+        if ((changed & (DeviceState.BRIGHTNESS | DeviceState.COLOR)) != 0) {
+            BYTES.setVolatile(lightSettings, deviceId, (byte) (DeviceState.brightnessLevel(next).ordinal()
+                    | DeviceState.lightColor(next).ordinal() << COLOR_SHIFT));
+            changed(deviceId, (changed & DeviceState.BRIGHTNESS) != 0, DeviceAttribute.BRIGHTNESS);
+            changed(deviceId, (changed & DeviceState.COLOR) != 0, DeviceAttribute.COLOR);
+        }
+        if ((changed & DeviceState.VALUE) != 0) {
+            boolean camera = typeOf(deviceId) == DeviceType.CAMERA;
+            BYTES.setVolatile(camera ? angles : temperatures, deviceId, (byte) DeviceState.value(next));
+            changed(deviceId, true, camera ? DeviceAttribute.ANGLE : DeviceAttribute.TEMPERATURE);
+        }
+        int version = version(deviceId) & ~LOCKED;
+        INTS.setRelease(versions, deviceId, changed != 0 ? version + VERSION_STEP : version);
+    }
+
+    /**
+     * Registers a single transition of a device as in flight. Transitions do not wait for each
+     * other; a failed compare-and-set means another one registered first and is retried. Only a
+     * transaction holding the lock bit, or a full writers count, makes the transition wait.
+     *
+     * @param deviceId Device ID.
+     */
+    private void enter(int deviceId) {
+        for (int spins = 0; ; spins++) {
+            int version = version(deviceId);
+            if ((version & LOCKED) == 0 && (version & WRITERS) != WRITERS) {
+                if (INTS.compareAndSet(versions, deviceId, version, version + WRITER)) {
+                    return;
+                }
+            } else {
+                Transaction.backOff(spins);
+            }
+        }
+    }
+
+    /**
+     * Ends a transition registered with enter(), advancing the version if it changed the device.
+     *
+     * @param deviceId Device ID.
+     * @param changed  Whether the transition changed the device.
+     * @return The given changed flag.
+     */
+    private boolean leave(int deviceId, boolean changed) {
+        INTS.getAndAdd(versions, deviceId, changed ? VERSION_STEP - WRITER : -WRITER);
+        return changed;
+    }
+
+    /**
+     * Places a version of the versions column into the version bits of a state word.
+     *
+     * @param version Version without transitions in flight and unlocked.
+     * @return The version bits, wrapping like those of a standalone device.
+     */
+    private static long versionBits(int version) {
+        return ((long) (version >>> 8) << DeviceState.VERSION_SHIFT) & DeviceState.VERSION;
+    }
+
+    /**
+     * Gets the status line of a device, rendering it only if the device changed since the
+     * cached line was rendered. The version is read before rendering, so a change that races
+     * with the rendering leaves a line that is already stale for the next caller.
+     *
+     * <p>Lines are cached in LINE_CACHE_SLOTS slots indexed by the low bits of the device ID, so
+     * the cache does not grow with the store: of devices sharing a slot, only the line of the
+     * last one rendered is kept, and the others are rendered again.</p>
+     *
+     * @param deviceId Device ID.
+     * @param view     View of the device used to render the line.
+     * @return The status line.
+     */
+    String statusLine(int deviceId, SmartDevice view) {
+        long stamp = (long) deviceId << Integer.SIZE | Integer.toUnsignedLong(version(deviceId));
+        int level = view.getType().supports(Capability.CHARGEABLE) ? getBatteryLevel(deviceId) : -1;
+        int slot = deviceId & (LINE_CACHE_SLOTS - 1);
+        StatusLine cached = (StatusLine) LINES.getAcquire(lineCache, slot);
+        if (cached == null || !cached.isValidFor(stamp, level)) {
+            cached = new StatusLine(stamp, level, view.renderStatus());
+            LINES.setRelease(lineCache, slot, cached);
+        }
+        return cached.getText();
+    }
+
+    /**
+     * Publishes the change of a device in a transition or a commit if it changed, after settling
+     * the battery of a chargeable device whose rate the change affects; leave() or commit() then
+     * marks the device as dirty. The new value is read while holding the lock of the bus, so the events of a device
+     * follow the order of its changes.
+     *
+     * @param deviceId  Device ID.
+     * @param changed   Whether the update changed the device.
+     * @param attribute Attribute the update wrote.
+     * @return The given changed flag.
+     */
+    private boolean changed(int deviceId, boolean changed, DeviceAttribute attribute) {
+        if (!changed) {
+            return false;
+        }
+        long rateBit = switch (attribute) {
+            case STATUS -> DeviceState.ON;
+            case CHARGING -> DeviceState.CHARGING;
+            case RECORDING -> DeviceState.RECORDING;
+            default -> 0;
+        };
+        DeviceType type = rateBit != 0 ? typeOf(deviceId) : null;
+        if (type != null && type.supports(Capability.CHARGEABLE)) {
+            settleBattery(deviceId, Battery.ratePerHour(type, rateBits(deviceId) ^ rateBit));
+        }
+        DeviceEventBus bus = events;
+        if (bus != null) {
+            synchronized (bus) {
+                bus.publish(deviceId, typeOf(deviceId), attribute, attributeValue(deviceId, attribute));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Settles the battery anchor of a device at the current time.
+     *
+     * @param deviceId    Device ID.
+     * @param ratePerHour Rate of the state the device left.
+     */
+    private void settleBattery(int deviceId, int ratePerHour) {
+        long now = Battery.now();
+        while (true) {
+            long[] page = batteries[deviceId >>> 6];
+            int index = batteryIndex(deviceId);
+            long anchor = (long) LONGS.getVolatile(page, index);
+            if (LONGS.compareAndSet(page, index, anchor, Battery.settle(anchor, ratePerHour, now))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Collects the bits of a device that decide the rate of its battery.
+     *
+     * @param deviceId Device ID.
+     * @return The power, charging and recording bits in the layout of DeviceState.
+     */
+    long rateBits(int deviceId) {
+        return (isOn(deviceId) ? DeviceState.ON : 0) | (isCharging(deviceId) ? DeviceState.CHARGING : 0)
+                | (isRecording(deviceId) ? DeviceState.RECORDING : 0);
+    }
+
+    /**
+     * Reads an attribute of a device, encoded as in DeviceEvent.
+     *
+     * @param deviceId  Device ID.
+     * @param attribute Attribute to read.
+     * @return 0 or 1 for boolean attributes, the ordinal for enum attributes, the number otherwise.
+     */
+    private int attributeValue(int deviceId, DeviceAttribute attribute) {
+        return switch (attribute) {
+            case STATUS -> isOn(deviceId) ? 1 : 0;
+            case CHARGING -> isCharging(deviceId) ? 1 : 0;
+            case RECORDING -> isRecording(deviceId) ? 1 : 0;
+            case ANGLE -> getAngle(deviceId);
+            case TEMPERATURE -> getTemperature(deviceId);
+            case BRIGHTNESS -> getBrightnessLevel(deviceId).ordinal();
+            case COLOR -> getLightColor(deviceId).ordinal();
+            case BATTERY -> getBatteryLevel(deviceId);
+        };
+    }
+
+    /**
+     * Publishes every change of a stored device to an event bus from now on.
+     *
+     * @param events Event bus, or null to stop publishing.
+     */
+    void setEventBus(DeviceEventBus events) {
+        this.events = events;
+    }
+
+    /**
+     * Combines the type bitsets into the presence bits of one word.
+     *
+     * @param word Index of the bitset word.
+     * @return Bits of the device IDs in use.
+     */
+    private long presentWord(int word) {
+        long bits = 0;
+        for (long[] typeWords : typeBits) {
+            bits |= typeWords[word];
+        }
+        return bits;
+    }
+
+    /**
+     * Allocates empty columns for the given number of device IDs.
+     *
+     * @param slots Number of device IDs, rounded up to a multiple of 64.
+     */
+    private void allocate(int slots) {
+        capacity = (slots + 63) & ~63;
+        int words = capacity >>> 6;
+        typeBits = new long[TYPES.length][words];
+        statusBits = new long[words];
+        chargingBits = new long[words];
+        recordingBits = new long[words];
+        angles = new byte[capacity];
+        temperatures = new byte[capacity];
+        lightSettings = new byte[capacity];
+        batteries = new long[words][];
+        versions = new int[capacity];
+    }
+
+    /**
+     * Grows all columns so that they can hold the given device ID.
+     *
+     * @param deviceId Device ID that must fit.
+     */
+    private void grow(int deviceId) {
+        int wanted = (int) Math.min(MAX_CAPACITY, Math.max((long) capacity * 2, (long) deviceId + 1));
+        long[][] oldTypes = typeBits;
+        long[] oldStatus = statusBits;
+        long[] oldCharging = chargingBits;
+        long[] oldRecording = recordingBits;
+        byte[] oldAngles = angles;
+        byte[] oldTemperatures = temperatures;
+        byte[] oldSettings = lightSettings;
+        long[][] oldBatteries = batteries;
+        int[] oldVersions = versions;
+        allocate(wanted);
+        for (int t = 0; t < oldTypes.length; t++) {
+            System.arraycopy(oldTypes[t], 0, typeBits[t], 0, oldTypes[t].length);
+        }
+        System.arraycopy(oldStatus, 0, statusBits, 0, oldStatus.length);
+        System.arraycopy(oldCharging, 0, chargingBits, 0, oldCharging.length);
+        System.arraycopy(oldRecording, 0, recordingBits, 0, oldRecording.length);
+        System.arraycopy(oldAngles, 0, angles, 0, oldAngles.length);
+        System.arraycopy(oldTemperatures, 0, temperatures, 0, oldTemperatures.length);
+        System.arraycopy(oldSettings, 0, lightSettings, 0, oldSettings.length);
+        System.arraycopy(oldBatteries, 0, batteries, 0, oldBatteries.length);
+        System.arraycopy(oldVersions, 0, versions, 0, oldVersions.length);
+    }
+
+    /**
+     * Converts an int attribute to the byte column representation.
+     *
+     * @param value     Value to convert.
+     * @param attribute Attribute name used in the error message.
+     * @return The value as a byte.
+     * @throws IllegalArgumentException If the value does not fit into a byte.
+     */
+    private static byte toByte(int value, String attribute) {
+        if (value < Byte.MIN_VALUE || value > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("The " + attribute + " does not fit into the store: " + value);
+        }
+        return (byte) value;
+    }
+
+    /**
+     * Reads a bit of a bitset.
+     *
+     * @param bits  Bitset words.
+     * @param index Index of the bit.
+     * @return The value of the bit.
+     */
+    private static boolean getBit(long[] bits, int index) {
+        return ((long) LONGS.getVolatile(bits, index >>> 6) & (1L << index)) != 0;
+    }
+
+    /**
+     * Atomically writes a bit of a bitset with compare-and-set on its word.
+     *
+     * @param bits  Bitset words.
+     * @param index Index of the bit.
+     * @param value New value of the bit.
+     * @return true if the bit changed, false if it already had this value.
+     */
+    private static boolean compareAndSetBit(long[] bits, int index, boolean value) {
+        int word = index >>> 6;
+        long mask = 1L << index;
+        while (true) {
+            long current = (long) LONGS.getVolatile(bits, word);
+            if (((current & mask) != 0) == value) {
+                return false;
+            }
+            long next = value ? current | mask : current & ~mask;
+            if (LONGS.compareAndSet(bits, word, current, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Writes a bit of a bitset without synchronization, for adding and removing devices.
+     *
+     * @param bits  Bitset words.
+     * @param index Index of the bit.
+     * @param value New value of the bit.
+     */
+    private static void setBit(long[] bits, int index, boolean value) {
+        if (value) {
+            bits[index >>> 6] |= 1L << index;
+        } else {
+            bits[index >>> 6] &= ~(1L << index);
+        }
+    }
+}
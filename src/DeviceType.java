@@ -0,0 +1,46 @@
+/**
+ * Enumeration for the kinds of smart devices. The constant is stored on every device
+ * so commands can check a device's kind without reflection.
+ */
+public enum DeviceType {
+    LIGHT("Light", Capability.CHARGEABLE, Capability.LIGHT),     // Light device
+    CAMERA("Camera", Capability.CHARGEABLE, Capability.CAMERA),  // Camera device
+    HEATER("Heater", Capability.HEATER);                         // Heater device
+
+    private final String displayName;  // Name of the type on the command line and in messages
+    private final int capabilities;  // Bit mask of the capabilities of the type
+
+    /**
+     * Constructor to initialize a device type.
+     *
+     * @param displayName  Name of the type on the command line and in messages.
+     * @param capabilities Capabilities of the type.
+     */
+    DeviceType(String displayName, Capability... capabilities) {
+        this.displayName = displayName;
+        int mask = Capability.ANY.mask();
+        for (Capability capability : capabilities) {
+            mask |= capability.mask();
+        }
+        this.capabilities = mask;
+    }
+
+    /**
+     * Gets the name of the type on the command line and in messages.
+     *
+     * @return The display name, e.g. "Light".
+     */
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    /**
+     * Checks whether devices of this type have the given capability.
+     *
+     * @param capability Capability to check.
+     * @return true if the type has the capability, false otherwise.
+     */
+    public boolean supports(Capability capability) {
+        return (capabilities & capability.mask()) != 0;
+    }
+}
@@ -1,8 +1,8 @@
 /**
  * Represents a heater device, extending SmartDevice.
+ * The temperature lives in the packed state word of SmartDevice, or in the store of a view.
  */
 public final class Heater extends SmartDevice {
-    private int temperature;  // Current temperature setting
     private static final int MAX_HEATER_TEMP = 30;  // Maximum temperature
     private static final int MIN_HEATER_TEMP = 15;  // Minimum temperature
 
@@ -13,8 +13,18 @@ public final class Heater extends SmartDevice {
      * @param temperature Initial temperature setting for the heater.
      */
     public Heater(Status status, int temperature) {
-        super(status);
-        this.temperature = temperature;
+        super(status, DeviceType.HEATER);
+        initState(DeviceState.VALUE, DeviceState.valueBits(temperature));
+    }
+
+    /**
+     * Constructor to create a view of a heater whose state lives in a columnar store.
+     *
+     * @param store    Store holding the state of the heater.
+     * @param deviceId ID of the heater in the store.
+     */
+    Heater(DeviceStateStore store, int deviceId) {
+        super(store, deviceId, DeviceType.HEATER);
     }
 
     /**
@@ -23,7 +33,8 @@ public final class Heater extends SmartDevice {
      * @return Current temperature setting of the heater.
      */
     public int getTemperature() {
-        return temperature;
+        DeviceStateStore store = getStore();
+        return store != null ? store.getTemperature(getDeviceId()) : DeviceState.value(getState());
     }
 
     /**
@@ -33,16 +44,39 @@ public final class Heater extends SmartDevice {
      * @return true if the temperature was successfully set, false if out of range.
      */
     public boolean setTemperature(int temperature) {
-        if (temperature >= MIN_HEATER_TEMP && temperature <= MAX_HEATER_TEMP) {
-            this.temperature = temperature;
+        if (isValidTemperature(temperature)) {
+            changeTemperature(temperature);
             return true;
         }
         return false;
     }
 
+    /**
+     * Sets a temperature the caller validated with isValidTemperature().
+     *
+     * @param temperature New temperature setting for the heater.
+     * @return true if the temperature changed, false if the heater already had it.
+     */
+    boolean changeTemperature(int temperature) {
+        DeviceStateStore store = getStore();
+        if (store != null) {
+            return store.setTemperature(getDeviceId(), temperature);
+        }
+        return updateState(DeviceState.VALUE, DeviceState.valueBits(temperature));
+    }
+
+    /**
+     * Checks whether a temperature is within the range a heater accepts.
+     *
+     * @param temperature Temperature to check.
+     * @return true if setTemperature() accepts the temperature, false otherwise.
+     */
+    static boolean isValidTemperature(int temperature) {
+        return temperature >= MIN_HEATER_TEMP && temperature <= MAX_HEATER_TEMP;
+    }
+
     @Override
-    public String displayStatus() {
-        return String.format("Heater %d is %s and the temperature is %d.", this.getDeviceId(),
-                this.getStatus(), this.getTemperature());
+    String renderStatus() {
+        return "Heater " + getDeviceId() + " is " + getStatus() + " and the temperature is " + getTemperature() + ".";
     }
 }
@@ -1,10 +1,8 @@
 /**
  * Represents a light device, extending SmartDevice and implementing Chargeable.
+ * All state lives in the packed state word of SmartDevice, or in the store of a view.
  */
 public final class Light extends SmartDevice implements Chargeable {
-    private boolean charging;  // Charging status
-    private Brightnesslevel brightnessLevel;  // Brightness level
-    private LightColor lightColor;  // Light color
 
     /**
      * Constructor to initialize a light device.
@@ -15,10 +13,20 @@ public final class Light extends SmartDevice implements Chargeable {
      * @param lightColor      Initial color of the light.
      */
     public Light(Status status, boolean charging, Brightnesslevel brightnessLevel, LightColor lightColor) {
-        super(status);
-        this.charging = charging;
-        this.brightnessLevel = brightnessLevel;
-        this.lightColor = lightColor;
+        super(status, DeviceType.LIGHT);
+        initState(DeviceState.CHARGING | DeviceState.BRIGHTNESS | DeviceState.COLOR,
+                (charging ? DeviceState.CHARGING : 0) | DeviceState.brightnessBits(brightnessLevel)
+                        | DeviceState.colorBits(lightColor));
+    }
+
+    /**
+     * Constructor to create a view of a light whose state lives in a columnar store.
+     *
+     * @param store    Store holding the state of the light.
+     * @param deviceId ID of the light in the store.
+     */
+    Light(DeviceStateStore store, int deviceId) {
+        super(store, deviceId, DeviceType.LIGHT);
     }
 
     /**
@@ -27,16 +35,22 @@ public final class Light extends SmartDevice implements Chargeable {
      * @return The color of the light.
      */
     public LightColor getLightColor() {
-        return lightColor;
+        DeviceStateStore store = getStore();
+        return store != null ? store.getLightColor(getDeviceId()) : DeviceState.lightColor(getState());
     }
 
     /**
      * Sets the color of the light.
      *
      * @param lightColor New color for the light.
+     * @return true if the color changed, false if the light already had it.
      */
-    public void setLightColor(LightColor lightColor) {
-        this.lightColor = lightColor;
+    public boolean setLightColor(LightColor lightColor) {
+        DeviceStateStore store = getStore();
+        if (store != null) {
+            return store.setLightColor(getDeviceId(), lightColor);
+        }
+        return updateState(DeviceState.COLOR, DeviceState.colorBits(lightColor));
     }
 
     /**
@@ -45,45 +59,63 @@ public final class Light extends SmartDevice implements Chargeable {
      * @return The brightness level of the light.
      */
     public Brightnesslevel getBrightnessLevel() {
-        return brightnessLevel;
+        DeviceStateStore store = getStore();
+        return store != null ? store.getBrightnessLevel(getDeviceId()) : DeviceState.brightnessLevel(getState());
     }
 
     /**
      * Sets the brightness level of the light.
      *
      * @param brightnessLevel New brightness level for the light.
+     * @return true if the brightness level changed, false if the light already had it.
      */
-    public void setBrightnessLevel(Brightnesslevel brightnessLevel) {
-        this.brightnessLevel = brightnessLevel;
+    public boolean setBrightnessLevel(Brightnesslevel brightnessLevel) {
+        DeviceStateStore store = getStore();
+        if (store != null) {
+            return store.setBrightnessLevel(getDeviceId(), brightnessLevel);
+        }
+        return updateState(DeviceState.BRIGHTNESS, DeviceState.brightnessBits(brightnessLevel));
     }
 
     @Override
     public boolean isCharging() {
-        return charging;
+        DeviceStateStore store = getStore();
+        return store != null ? store.isCharging(getDeviceId()) : (getState() & DeviceState.CHARGING) != 0;
     }
 
     @Override
     public boolean startCharging() {
-        if (!charging) {
-            charging = true;
-            return true;
-        }
-        return false;
+        return changeCharging(true);
     }
 
     @Override
     public boolean stopCharging() {
-        if (charging) {
-            charging = false;
-            return true;
+        return changeCharging(false);
+    }
+
+    @Override
+    public int getBatteryLevel() {
+        return batteryLevel();
+    }
+
+    /**
+     * Atomically sets the charging status.
+     *
+     * @param charging New charging status.
+     * @return true if the status changed, false if it already had this value.
+     */
+    private boolean changeCharging(boolean charging) {
+        DeviceStateStore store = getStore();
+        if (store != null) {
+            return store.setCharging(getDeviceId(), charging);
         }
-        return false;
+        return updateState(DeviceState.CHARGING, charging ? DeviceState.CHARGING : 0);
     }
 
     @Override
-    public String displayStatus() {
-        return String.format("Light %d is %s, the color is %s, the charging status is %s, and the brightness "
-                        + "level is %s.", this.getDeviceId(), this.getStatus(), this.getLightColor(),
-                isCharging(), getBrightnessLevel());
+    String renderStatus() {
+        return "Light " + getDeviceId() + " is " + getStatus() + ", the color is " + getLightColor()
+                + ", the charging status is " + isCharging() + ", the battery level is " + getBatteryLevel()
+                + "%, and the brightness level is " + getBrightnessLevel() + ".";
     }
 }
@@ -1,446 +1,358 @@
-import java.util.Scanner;
-import java.util.regex.Pattern;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Path;
+import java.time.Clock;
 
 /**
  * Main application class for managing smart devices.
  */
 public class Main {
-    public static final int MAX_DEVICE_ID = 9;
-    public static final int MIN_DEVICE_ID = 0;
     public static final int INITIAL_CAMERA_ANGLE = 45;
     public static final int INITIAL_HEATER_TEMP = 20;
+    public static final int DEFAULT_DEVICE_COUNT = 10;
+    public static final String COLUMNAR_OPTION = "--columnar";
+    public static final String SERVER_OPTION = "--server";
+    public static final String DATA_OPTION = "--data";
+    public static final String STATS_OPTION = "--stats";
+    public static final String REPLAY_OPTION = "--replay";
+    public static final String PIPELINED_OPTION = "--pipelined";
+    public static final String RULES_OPTION = "--rules";
+    public static final String INDEX_OPTION = "--index";
+    public static final String SIMULATION_OPTION = "--simulation";
+    public static final String RECORDINGS_OPTION = "--recordings";
+    public static final String SHARDS_OPTION = "--shards";
+    public static final String REPLICATE_OPTION = "--replicate";
+    public static final String FOLLOW_OPTION = "--follow";
+    public static final long DEFAULT_SIMULATION_SEED = 1;
+    public static final long SNAPSHOT_PERIOD_SECONDS = 60;
+    public static final long SCHEDULER_TICK_MILLIS = 10;
 
-    public static void main(String[] args) {
-        // Create an array of smart devices
-        SmartDevice[] objects = new SmartDevice[] {
-                new Light(Status.ON, false, Brightnesslevel.LOW, LightColor.YELLOW),
-                new Light(Status.ON, false, Brightnesslevel.LOW, LightColor.YELLOW),
-                new Light(Status.ON, false, Brightnesslevel.LOW, LightColor.YELLOW),
-                new Light(Status.ON, false, Brightnesslevel.LOW, LightColor.YELLOW),
-                new Camera(Status.ON, false, false, INITIAL_CAMERA_ANGLE),
-                new Camera(Status.ON, false, false, INITIAL_CAMERA_ANGLE),
-                new Heater(Status.ON, INITIAL_HEATER_TEMP),
-                new Heater(Status.ON, INITIAL_HEATER_TEMP),
-                new Heater(Status.ON, INITIAL_HEATER_TEMP),
-                new Heater(Status.ON, INITIAL_HEATER_TEMP)
-        };
+    public static void main(String[] args) throws IOException {
+        boolean columnar = false;
+        int serverPort = -1;
+        String dataDirectory = null;
+        long statsPeriod = 0;
+        Path replayInput = null;
+        Path replayOutput = null;
+        boolean pipelined = false;
+        boolean rules = false;
+        boolean index = false;
+        long simulationSeed = -1;
+        Path recordings = null;
+        int shards = 0;
+        int homeSize = ShardedDispatcher.DEFAULT_HOME_SIZE;
+        int replicationPort = -1;
+        int followPort = -1;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case COLUMNAR_OPTION -> columnar = true;
+                case PIPELINED_OPTION -> pipelined = true;
+                case RULES_OPTION -> rules = true;
+                case INDEX_OPTION -> index = true;
+                case SIMULATION_OPTION -> simulationSeed = i + 1 < args.length && args[i + 1].matches("\\d{1,18}")
+                        ? Long.parseLong(args[++i]) : DEFAULT_SIMULATION_SEED;
+                case SERVER_OPTION -> serverPort = i + 1 < args.length && args[i + 1].matches("\\d+")
+                        ? Integer.parseInt(args[++i]) : CommandServer.DEFAULT_PORT;
+                case REPLICATE_OPTION -> replicationPort = i + 1 < args.length && args[i + 1].matches("\\d+")
+                        ? Integer.parseInt(args[++i]) : ReplicationPrimary.DEFAULT_PORT;
+                case FOLLOW_OPTION -> followPort = i + 1 < args.length && args[i + 1].matches("\\d+")
+                        ? Integer.parseInt(args[++i]) : ReplicationPrimary.DEFAULT_PORT;
+                case DATA_OPTION -> {
+                    if (i + 1 == args.length) {
+                        System.err.println("Missing directory after " + DATA_OPTION);
+                        return;
+                    }
+                    dataDirectory = args[++i];
+                }
+                case RECORDINGS_OPTION -> {
+                    if (i + 1 == args.length) {
+                        System.err.println("Missing directory after " + RECORDINGS_OPTION);
+                        return;
+                    }
+                    recordings = Path.of(args[++i]);
+                }
+                case SHARDS_OPTION -> {
+                    if (i + 1 == args.length || !args[i + 1].matches("[1-9]\\d{0,3}")) {
+                        System.err.println("Missing shard count after " + SHARDS_OPTION);
+                        return;
+                    }
+                    shards = Integer.parseInt(args[++i]);
+                    if (i + 1 < args.length && args[i + 1].matches("[1-9]\\d{0,8}")) {
+                        homeSize = Integer.parseInt(args[++i]);
+                    }
+                }
+                case STATS_OPTION -> {
+                    if (i + 1 == args.length || !args[i + 1].matches("[1-9]\\d*")) {
+                        System.err.println("Missing period in seconds after " + STATS_OPTION);
+                        return;
+                    }
+                    statsPeriod = Long.parseLong(args[++i]);
+                }
+                case REPLAY_OPTION -> {
+                    if (i + 2 >= args.length) {
+                        System.err.println("Missing command file and output file after " + REPLAY_OPTION);
+                        return;
+                    }
+                    replayInput = Path.of(args[++i]);
+                    replayOutput = Path.of(args[++i]);
+                }
+                default -> {
+                    System.err.println("Unknown option: " + args[i]);
+                    return;
+                }
+            }
+        }
 
-        // Assign unique device IDs to each device in the array
-        for (int i = 0; i < objects.length; i++) {
-            objects[i].setDeviceId(i);
+        // A follower changes its devices only as the primary does
+        String conflict = replicationPort >= 0 ? REPLICATE_OPTION : dataDirectory != null ? DATA_OPTION
+                : replayInput != null ? REPLAY_OPTION : rules ? RULES_OPTION : simulationSeed >= 0 ? SIMULATION_OPTION
+                : shards > 0 ? SHARDS_OPTION : null;
+        if (followPort >= 0 && conflict != null) {
+            System.err.println(FOLLOW_OPTION + " cannot be combined with " + conflict);
+            return;
         }
 
-        Scanner scanner = new Scanner(System.in);
-        String operation;
-        while (true) {
-            operation = scanner.nextLine();
-            Scanner sc = new Scanner(operation);
+        // The sharded dispatcher serves the console only
+        String shardsConflict = serverPort >= 0 ? SERVER_OPTION : pipelined ? PIPELINED_OPTION : null;
+        if (shards > 0 && shardsConflict != null) {
+            System.err.println(SHARDS_OPTION + " cannot be combined with " + shardsConflict);
+            return;
+        }
 
-            switch (sc.next()) {
-                /*
-                 * Process the "end" command to terminate the program.
-                 * Ensures no additional input follows the command.
-                 */
-                case "end" -> {
-                    if (sc.hasNext()) {
-                        System.out.println("Invalid command");
-                    } else {
-                        return; // Ends the program
-                    }
-                }
-                /*
-                 * Processes the "DisplayAllStatus" command to display the status of all devices.
-                 * Ensures no additional input follows the command.
-                 */
-                case "DisplayAllStatus" -> displayAllStatus(sc, objects);
-                /*
-                 * Processes the "TurnOn" command to turn on a specified device.
-                 * Validates the device name, ID, and ensures the device is off before turning it on.
-                 */
-                case "TurnOn" -> turnOn(sc, objects);
-                /*
-                 * Processes the "TurnOff" command to turn off a specified device.
-                 * Validates the device name, ID, and ensures the device is on before turning it off.
-                 */
-                case "TurnOff" -> turnOff(sc, objects);
-                /*
-                 * Processes the "StartCharging" command to start charging a device.
-                 * Validates the device name, ID, and checks if the device is chargeable.
-                 * Only devices that implement the Chargeable interface can start charging.
-                 */
-                case "StartCharging" -> startCharging(sc, objects);
-                /*
-                 * Processes the "StopCharging" command to stop charging a device.
-                 * Validates the device name, ID, and checks if the device is chargeable.
-                 * Only devices that implement the Chargeable interface can stop charging.
-                 */
-                case "StopCharging" -> stopCharging(sc, objects);
-                /*
-                 * Processes the "SetTemperature" command to set the temperature of a heater.
-                 * Validate the device name, ID, ensures the heater is on, checks temperature is within valid range.
-                 */
-                case "SetTemperature" -> setTemperature(sc, objects);
-                /*
-                 * Processes the "SetBrightness" command to set the brightness of a light device.
-                 * Validates the device name, ID, ensures the light is on, and checks for valid brightness levels.
-                 */
-                case "SetBrightness" -> setBrightness(sc, objects);
-                /*
-                 * Processes the "SetColor" command to set the color of a light device.
-                 * Validates the device name, ID, ensures the light is on, and checks for valid color options.
-                 */
-                case "SetColor" -> setColor(sc, objects);
-                /*
-                 * Processes the "SetAngle" command to set the angle of a camera device.
-                 * Validates the device name, ID, ensures the camera is on, and checks for a valid angle range.
-                 */
-                case "SetAngle" -> setAngle(sc, objects);
-                /*
-                 * Processes the "StartRecording" command to start recording with a camera.
-                 * Validates the device name, ID, ensures the camera is on, and checks if it is already recording.
-                 */
-                case "StartRecording" -> startRecording(sc, objects);
-                /*
-                 * Processes the "StopRecording" command to stop recording with a camera.
-                 * Validates the device name, ID, ensures the camera is on, and checks if it is recording.
-                 */
-                case "StopRecording" -> stopRecording(sc, objects);
-                default -> System.out.println("Invalid command");
-            }
+        // Keep the device state in the columnar store instead of the device objects if requested
+        DeviceRegistry registry = columnar ? new DeviceRegistry(new DeviceStateStore(DEFAULT_DEVICE_COUNT))
+                : new DeviceRegistry();
+
+        // Restore the devices of the last run, falling back to the default devices on the first run
+        PersistentState persistence = dataDirectory != null ? new PersistentState(Path.of(dataDirectory)) : null;
+        if (persistence == null || persistence.restoreSnapshot(registry) < 0) {
+            addDefaultDevices(registry);
+        }
+        CommandLog log = null;
+        if (persistence != null) {
+            persistence.replayLog(registry);
+            log = persistence.start(registry);
+            persistence.startPeriodicSnapshots(registry, SNAPSHOT_PERIOD_SECONDS);
         }
-    }
 
-    private static void stopRecording(Scanner sc, SmartDevice[] objects) {
-        if (sc.hasNext(Pattern.compile("(\\D+)"))) {
-            String deviceName = sc.next();
-            if (sc.hasNext(Pattern.compile("(\\d+)$"))) {
-                int deviceId = sc.nextInt();
-                if ((deviceId <= MAX_DEVICE_ID && deviceId >= MIN_DEVICE_ID)
-                        && objects[deviceId].getClass().getSimpleName().equals(deviceName)) {
-                    if (Pattern.compile("(Camera|Light)").matcher(deviceName).matches()) {
-                        if (objects[deviceId].isOn()) {
-                            if (((Camera) objects[deviceId]).stopRecording()) {
-                                System.out.printf("%s %d stopped recording\n", deviceName, deviceId);
-                            } else {
-                                System.out.printf("%s %d is not recording\n", deviceName, deviceId);
-                            }
-                        } else {
-                            System.out.printf("You can't change the status of the %s %d while it is off\n",
-                                    deviceName, deviceId);
-                        }
-                    } else {
-                        System.out.printf("%s %d is not a camera\n", deviceName, deviceId);
-                    }
-                } else {
-                    System.out.println("The smart device was not found");
-                }
-            } else {
-                System.out.println("Invalid command");
-            }
-        } else {
-            System.out.println("Invalid command");
+        // Count the outcomes and latencies of all commands, dumping them to stderr periodically if requested
+        CommandStats stats = new CommandStats();
+        if (statsPeriod > 0) {
+            stats.startPeriodicDump(System.err, statsPeriod);
         }
-    }
 
-    private static void startRecording(Scanner sc, SmartDevice[] objects) {
-        if (sc.hasNext(Pattern.compile("(\\D+)"))) {
-            String deviceName = sc.next();
-            if (sc.hasNext(Pattern.compile("(\\d+)$"))) {
-                int deviceId = sc.nextInt();
-                if ((deviceId <= MAX_DEVICE_ID && deviceId >= MIN_DEVICE_ID)
-                        && objects[deviceId].getClass().getSimpleName().equals(deviceName)) {
-                    if (Pattern.compile("(Camera|Light)").matcher(deviceName).matches()) {
-                        if (objects[deviceId].isOn()) {
-                            if (((Camera) objects[deviceId]).startRecording()) {
-                                System.out.printf("%s %d started recording\n", deviceName, deviceId);
-                            } else {
-                                System.out.printf("%s %d is already recording\n", deviceName, deviceId);
-                            }
-                        } else {
-                            System.out.printf("You can't change the status of the %s %d while it is off\n",
-                                    deviceName, deviceId);
-                        }
-                    } else {
-                        System.out.printf("%s %d is not a camera\n", deviceName, deviceId);
-                    }
-                } else {
-                    System.out.println("The smart device was not found");
-                }
+        try {
+            if (replayInput != null) {
+                // Execute a command file in batch, writing the responses to a file
+                BatchReplay.run(registry, replayInput, replayOutput, log, stats, pipelined, System.err);
             } else {
-                System.out.println("Invalid command");
+                run(registry, serverPort, log, stats, pipelined, rules, index, simulationSeed, recordings, shards,
+                        homeSize, replicationPort, followPort);
+            }
+        } finally {
+            if (persistence != null) {
+                persistence.close();
             }
-        } else {
-            System.out.println("Invalid command");
         }
     }
 
-    private static void setAngle(Scanner sc, SmartDevice[] objects) {
-        if (sc.hasNext(Pattern.compile("(\\D+)"))) {
-            String deviceName = sc.next();
-            if (sc.hasNext(Pattern.compile("(\\d+)"))) {
-                int deviceId = sc.nextInt();
-                if (sc.hasNext(Pattern.compile("(-?\\d+)$"))) {
-                    int angle = sc.nextInt();
-                    if ((deviceId <= MAX_DEVICE_ID && deviceId >= MIN_DEVICE_ID)
-                            && objects[deviceId].getClass().getSimpleName().equals(deviceName)) {
-                        if (Pattern.compile("(Camera)").matcher(deviceName).matches()) {
-                            if (objects[deviceId].isOn()) {
-                                if (((Camera) objects[deviceId]).setCameraAngle(angle)) {
-                                    System.out.printf("%s %d angle is set to %d\n", deviceName,
-                                            deviceId, angle);
-                                } else {
-                                    System.out.printf("Camera %d angle should be in the range [-60, 60]\n",
-                                            deviceId);
-                                }
-                            } else {
-                                System.out.printf("You can't change the status of the %s %d while it is "
-                                        + "off\n", deviceName, deviceId);
-                            }
-                        } else {
-                            System.out.printf("%s %d is not a camera\n", deviceName, deviceId);
-                        }
-                    } else {
-                        System.out.println("The smart device was not found");
-                    }
-                } else {
-                    System.out.println("Invalid command");
-                }
-            } else {
-                System.out.println("Invalid command");
-            }
-        } else {
-            System.out.println("Invalid command");
+    /**
+     * Sets up the requested background components and serves commands with them.
+     *
+     * @param registry        Devices the commands apply to.
+     * @param serverPort      Port to listen on, or -1 for the console.
+     * @param log             Write-ahead log of the commands that change a device, or null.
+     * @param stats           Statistics of the handled commands.
+     * @param pipelined       Whether to parse, execute and write console commands on separate threads.
+     * @param rules           Whether to publish device changes to an engine of automation rules.
+     * @param index           Whether to publish device changes to bitmap indexes answering queries.
+     * @param seed            Seed of a thermal simulation of the rooms of the heaters, or -1 for none.
+     * @param recordings      Directory to record the cameras to, or null for none.
+     * @param shards          Number of shards executing console commands, or 0 for none.
+     * @param homeSize        Number of consecutive device IDs kept in one shard.
+     * @param replicationPort Port to stream the device changes to followers on, or -1 for none.
+     * @param followPort      Replication port of a primary whose device changes to follow, or -1 for none.
+     * @throws IOException If reading commands or writing responses fails.
+     */
+    private static void run(DeviceRegistry registry, int serverPort, CommandLog log, CommandStats stats,
+                            boolean pipelined, boolean rules, boolean index, long seed, Path recordings,
+                            int shards, int homeSize, int replicationPort, int followPort) throws IOException {
+        // Run scheduled commands in the background, printing their responses to the console
+        CommandScheduler scheduler = new CommandScheduler(registry, new ResponseWriter(System.out),
+                Clock.systemDefaultZone());
+        scheduler.setLog(log);
+        scheduler.setStats(stats);
+        scheduler.start(SCHEDULER_TICK_MILLIS);
+
+        // Simulate the room temperatures around the heaters in real time if requested
+        ThermalSimulation simulation = null;
+        if (seed >= 0) {
+            simulation = new ThermalSimulation(registry, seed);
+            simulation.start();
+            scheduler.setSimulation(simulation);
         }
-    }
 
-    private static void setColor(Scanner sc, SmartDevice[] objects) {
-        if (sc.hasNext(Pattern.compile("(\\D+)"))) {
-            String deviceName = sc.next();
-            if (sc.hasNext(Pattern.compile("(\\d+)"))) {
-                int deviceId = sc.nextInt();
-                if (sc.hasNext(Pattern.compile("(\\D+)$"))) {
-                    String color = sc.next();
-                    if ((deviceId <= MAX_DEVICE_ID && deviceId >= MIN_DEVICE_ID)
-                            && objects[deviceId].getClass().getSimpleName().equals(deviceName)) {
-                        if (Pattern.compile("(Light)").matcher(deviceName).matches()) {
-                            if (objects[deviceId].isOn()) {
-                                if (Pattern.compile("(YELLOW|WHITE)").matcher(color).matches()) {
-                                    ((Light) objects[deviceId]).setLightColor(LightColor.valueOf(color));
-                                    System.out.printf("%s %d color is set to %s\n", deviceName,
-                                            deviceId, color);
-                                } else {
-                                    System.out.println("The light color can only "
-                                            + "be \"YELLOW\" or \"WHITE\"");
-                                }
-                            } else {
-                                System.out.printf("You can't change the status of the %s %d while it is "
-                                        + "off\n", deviceName, deviceId);
-                            }
-                        } else {
-                            System.out.printf("%s %d is not a light\n", deviceName, deviceId);
-                        }
-                    } else {
-                        System.out.println("The smart device was not found");
-                    }
-                } else {
-                    System.out.println("Invalid command");
-                }
-            } else {
-                System.out.println("Invalid command");
-            }
-        } else {
-            System.out.println("Invalid command");
+        // Publish device changes if automation rules, queries, recordings or followers need them
+        DeviceEventBus events = null;
+        if (rules || index || recordings != null || replicationPort >= 0) {
+            events = RuleEngine.newEventBus();
+            registry.setEventBus(events);
         }
-    }
 
-    private static void setBrightness(Scanner sc, SmartDevice[] objects) {
-        if (sc.hasNext(Pattern.compile("(\\D+)"))) {
-            String deviceName = sc.next();
-            if (sc.hasNext(Pattern.compile("(\\d+)"))) {
-                int deviceId = sc.nextInt();
-                if (sc.hasNext(Pattern.compile("(\\D+)$"))) {
-                    String brightnessLevel = sc.next();
-                    if ((deviceId <= MAX_DEVICE_ID && deviceId >= MIN_DEVICE_ID)
-                            && objects[deviceId].getClass().getSimpleName().equals(deviceName)) {
-                        if (Pattern.compile("(Light)").matcher(deviceName).matches()) {
-                            if (objects[deviceId].isOn()) {
-                                if (Pattern.compile("(LOW|MEDIUM|HIGH)")
-                                        .matcher(brightnessLevel).matches()) {
-                                    ((Light) objects[deviceId])
-                                            .setBrightnessLevel(Brightnesslevel.valueOf(brightnessLevel));
-                                    System.out.printf("%s %d brightness level is set to %s\n", deviceName,
-                                            deviceId, brightnessLevel);
-                                } else {
-                                    System.out.println("The brightness can only be one of \"LOW\", "
-                                            + "\"MEDIUM\", or \"HIGH\"");
-                                }
-                            } else {
-                                System.out.printf("You can't change the status of the %s %d while it is "
-                                        + "off\n", deviceName, deviceId);
-                            }
-                        } else {
-                            System.out.printf("%s %d is not a light\n", deviceName, deviceId);
-                        }
-                    } else {
-                        System.out.println("The smart device was not found");
-                    }
-                } else {
-                    System.out.println("Invalid command");
-                }
-            } else {
-                System.out.println("Invalid command");
-            }
-        } else {
-            System.out.println("Invalid command");
+        // Keep bitmap indexes of the device attributes up to date for queries if requested
+        DeviceIndex deviceIndex = null;
+        if (index) {
+            deviceIndex = new DeviceIndex(registry, events);
+            deviceIndex.start();
+            scheduler.setDeviceIndex(deviceIndex);
         }
-    }
 
-    private static void setTemperature(Scanner sc, SmartDevice[] objects) {
-        if (sc.hasNext(Pattern.compile("(\\D+)"))) {
-            String deviceName = sc.next();
-            if (sc.hasNext(Pattern.compile("(\\d+)"))) {
-                int deviceId = sc.nextInt();
-                if (sc.hasNext(Pattern.compile("(\\d+)$"))) {
-                    int temperature = sc.nextInt();
-                    if ((deviceId <= MAX_DEVICE_ID && deviceId >= MIN_DEVICE_ID)
-                            && objects[deviceId].getClass().getSimpleName().equals(deviceName)) {
-                        if (Pattern.compile("(Heater)").matcher(deviceName).matches()) {
-                            if (objects[deviceId].isOn()) {
-                                if (((Heater) objects[deviceId]).setTemperature(temperature)) {
-                                    System.out.printf("%s %d temperature is set to %d\n", deviceName,
-                                            deviceId, temperature);
-                                } else {
-                                    System.out.printf("Heater %d temperature should be in the range "
-                                            + "[15, 30]\n", deviceId);
-                                }
-                            } else {
-                                System.out.printf("You can't change the status of the %s %d while it is "
-                                        + "off\n", deviceName, deviceId);
-                            }
-                        } else {
-                            System.out.printf("%s %d is not a heater\n", deviceName, deviceId);
-                        }
-                    } else {
-                        System.out.println("The smart device was not found");
-                    }
-                } else {
-                    System.out.println("Invalid command");
-                }
-            } else {
-                System.out.println("Invalid command");
-            }
-        } else {
-            System.out.println("Invalid command");
+        // React to device changes with automation rules if requested, printing their responses to the console
+        RuleEngine engine = null;
+        if (rules) {
+            engine = new RuleEngine(registry, events, new ResponseWriter(System.out));
+            engine.setLog(log);
+            engine.setStats(stats);
+            engine.setScheduler(scheduler);
+            engine.setDeviceIndex(deviceIndex);
+            engine.setSimulation(simulation);
+            engine.start();
+
+            // Report batteries running low to the rules
+            new BatteryMonitor(registry, events).start();
         }
-    }
 
-    private static void stopCharging(Scanner sc, SmartDevice[] objects) {
-        if (sc.hasNext(Pattern.compile("(\\D+)"))) {
-            String deviceName = sc.next();
-            if (sc.hasNext(Pattern.compile("(\\d+)$"))) {
-                int deviceId = sc.nextInt();
-                if ((deviceId <= MAX_DEVICE_ID && deviceId >= MIN_DEVICE_ID)
-                        && objects[deviceId].getClass().getSimpleName().equals(deviceName)) {
-                    if (Pattern.compile("(Camera|Light)").matcher(deviceName).matches()) {
-                        if (((Chargeable) objects[deviceId]).stopCharging()) {
-                            System.out.printf("%s %d stopped charging\n", deviceName, deviceId);
-                        } else {
-                            System.out.printf("%s %d is not charging\n", deviceName, deviceId);
-                        }
-                    } else {
-                        System.out.printf("%s %d is not chargeable\n", deviceName, deviceId);
-                    }
-                } else {
-                    System.out.println("The smart device was not found");
-                }
-            } else {
-                System.out.println("Invalid command");
-            }
-        } else {
-            System.out.println("Invalid command");
+        // Record the cameras while they are on and recording if requested, closing the segments on exit
+        CameraRecorder recorder = null;
+        if (recordings != null) {
+            recorder = new CameraRecorder(registry, events, recordings, CameraRecorder.DEFAULT_SEGMENT_BYTES);
+            recorder.start();
         }
-    }
 
-    private static void startCharging(Scanner sc, SmartDevice[] objects) {
-        if (sc.hasNext(Pattern.compile("(\\D+)"))) {
-            String deviceName = sc.next();
-            if (sc.hasNext(Pattern.compile("(\\d+)$"))) {
-                int deviceId = sc.nextInt();
-                if ((deviceId <= MAX_DEVICE_ID && deviceId >= MIN_DEVICE_ID)
-                        && objects[deviceId].getClass().getSimpleName().equals(deviceName)) {
-                    if (Pattern.compile("(Camera|Light)").matcher(deviceName).matches()) {
-                        if (((Chargeable) objects[deviceId]).startCharging()) {
-                            System.out.printf("%s %d is charging\n", deviceName, deviceId);
-                        } else {
-                            System.out.printf("%s %d is already charging\n", deviceName, deviceId);
-                        }
-                    } else {
-                        System.out.printf("%s %d is not chargeable\n", deviceName, deviceId);
-                    }
-                } else {
-                    System.out.println("The smart device was not found");
-                }
-            } else {
-                System.out.println("Invalid command");
+        // Stream the device changes to follower processes if requested
+        ReplicationPrimary primary = null;
+        if (replicationPort >= 0) {
+            primary = new ReplicationPrimary(registry, events, replicationPort);
+            primary.start();
+            System.err.println("Replicating on localhost:" + primary.getPort());
+        }
+
+        // Change the devices only as a primary process does if requested
+        ReplicationFollower follower = null;
+        if (followPort >= 0) {
+            follower = new ReplicationFollower(registry, followPort);
+            follower.start();
+        }
+        try {
+            serve(registry, serverPort, log, stats, pipelined, shards, homeSize, scheduler, engine, deviceIndex,
+                    simulation, follower);
+        } finally {
+            if (recorder != null) {
+                recorder.close();
+            }
+            if (primary != null) {
+                primary.close();
+            }
+            if (follower != null) {
+                follower.close();
             }
-        } else {
-            System.out.println("Invalid command");
         }
     }
 
-    private static void turnOff(Scanner sc, SmartDevice[] objects) {
-        if (sc.hasNext(Pattern.compile("(\\D+)"))) {
-            String deviceName = sc.next();
-            if (sc.hasNext(Pattern.compile("(\\d+)$"))) {
-                int deviceId = sc.nextInt();
-                if ((deviceId <= MAX_DEVICE_ID && deviceId >= MIN_DEVICE_ID)
-                        && objects[deviceId].getClass().getSimpleName().equals(deviceName)) {
-                    if (objects[deviceId].turnOff()) {
-                        System.out.printf("%s %d is off\n", deviceName, deviceId);
-                    } else {
-                        System.out.printf("%s %d is already off\n", deviceName, deviceId);
-                    }
-                } else {
-                    System.out.println("The smart device was not found");
-                }
-            } else {
-                System.out.println("Invalid command");
+    /**
+     * Serves commands from the console, or from local socket clients if a server port is given, with
+     * the optional components set up by run().
+     *
+     * @param registry    Devices the commands apply to.
+     * @param serverPort  Port to listen on, or -1 for the console.
+     * @param log         Write-ahead log of the commands that change a device, or null.
+     * @param stats       Statistics of the handled commands.
+     * @param pipelined   Whether to parse, execute and write console commands on separate threads.
+     * @param shards      Number of shards executing console commands, or 0 for none.
+     * @param homeSize    Number of consecutive device IDs kept in one shard.
+     * @param scheduler   Scheduler of delayed and recurring commands.
+     * @param engine      Engine of automation rules, or null.
+     * @param deviceIndex Bitmap indexes answering queries, or null.
+     * @param simulation  Thermal simulation of the rooms of the heaters, or null.
+     * @param follower    Replication the devices follow, making the commands refuse changes, or null.
+     * @throws IOException If reading commands or writing responses fails.
+     */
+    private static void serve(DeviceRegistry registry, int serverPort, CommandLog log, CommandStats stats,
+                              boolean pipelined, int shards, int homeSize, CommandScheduler scheduler,
+                              RuleEngine engine, DeviceIndex deviceIndex, ThermalSimulation simulation,
+                              ReplicationFollower follower) throws IOException {
+        // Serve the command protocol to local socket clients instead of the console
+        if (serverPort >= 0) {
+            try (CommandServer server = new CommandServer(registry, serverPort)) {
+                server.setLog(log);
+                server.setStats(stats);
+                server.setScheduler(scheduler);
+                server.setRuleEngine(engine);
+                server.setDeviceIndex(deviceIndex);
+                server.setSimulation(simulation);
+                server.setFollower(follower);
+                System.out.println("Listening on localhost:" + server.getPort());
+                server.serve();
             }
-        } else {
-            System.out.println("Invalid command");
+            return;
         }
-    }
 
-    private static void turnOn(Scanner sc, SmartDevice[] objects) {
-        if (sc.hasNext(Pattern.compile("(\\D+)"))) {
-            String deviceName = sc.next();
-            if (sc.hasNext(Pattern.compile("(\\d+)$"))) {
-                int deviceId = sc.nextInt();
-                if ((deviceId <= MAX_DEVICE_ID && deviceId >= MIN_DEVICE_ID)
-                        && objects[deviceId].getClass().getSimpleName().equals(deviceName)) {
-                    if (objects[deviceId].turnOn()) {
-                        System.out.printf("%s %d is on\n", deviceName, deviceId);
-                    } else {
-                        System.out.printf("%s %d is already on\n", deviceName, deviceId);
-                    }
-                } else {
-                    System.out.println("The smart device was not found");
-                }
-            } else {
-                System.out.println("Invalid command");
+        ResponseWriter out = new ResponseWriter(System.out);
+        if (shards > 0) {
+            // Execute the commands of each shard of the devices on its own thread
+            try (ShardedDispatcher sharded = new ShardedDispatcher(registry, shards, homeSize)) {
+                sharded.setLog(log);
+                sharded.setStats(stats);
+                sharded.setScheduler(scheduler);
+                sharded.setRuleEngine(engine);
+                sharded.setDeviceIndex(deviceIndex);
+                sharded.setSimulation(simulation);
+                sharded.start();
+                ShardedDispatcher.Session session = sharded.newSession(out);
+                session.run(new CommandLexer(new InputStreamReader(System.in), session));
             }
-        } else {
-            System.out.println("Invalid command");
+            return;
+        }
+        CommandDispatcher dispatcher = new CommandDispatcher(registry, out);
+        dispatcher.setLog(log);
+        dispatcher.setStats(stats);
+        dispatcher.setScheduler(scheduler);
+        dispatcher.setRuleEngine(engine);
+        dispatcher.setDeviceIndex(deviceIndex);
+        dispatcher.setSimulation(simulation);
+        dispatcher.setFollower(follower);
+        if (pipelined) {
+            // Parse, execute and write on three threads; the writer flushes whenever it runs dry
+            new CommandPipeline(dispatcher, out).run(new CommandLexer(new InputStreamReader(System.in)));
+            return;
         }
+        CommandLexer lexer = new CommandLexer(new InputStreamReader(System.in), CommandServer.flushBefore(log, out));
+        dispatcher.run(lexer);
     }
 
-    private static void displayAllStatus(Scanner sc, SmartDevice[] objects) {
-        if (sc.hasNext()) {
-            System.out.println("Invalid command");
-        } else {
-            for (SmartDevice device : objects) {
-                System.out.println(device.displayStatus()); // Displays the status of each device
-            }
+    /**
+     * Adds the default smart devices under the IDs 0 to 9.
+     *
+     * @param registry Empty registry.
+     */
+    private static void addDefaultDevices(DeviceRegistry registry) {
+        // Create the default smart devices
+        SmartDevice[] objects = new SmartDevice[] {
+                new Light(Status.ON, false, Brightnesslevel.LOW, LightColor.YELLOW),
+                new Light(Status.ON, false, Brightnesslevel.LOW, LightColor.YELLOW),
+                new Light(Status.ON, false, Brightnesslevel.LOW, LightColor.YELLOW),
+                new Light(Status.ON, false, Brightnesslevel.LOW, LightColor.YELLOW),
+                new Camera(Status.ON, false, false, INITIAL_CAMERA_ANGLE),
+                new Camera(Status.ON, false, false, INITIAL_CAMERA_ANGLE),
+                new Heater(Status.ON, INITIAL_HEATER_TEMP),
+                new Heater(Status.ON, INITIAL_HEATER_TEMP),
+                new Heater(Status.ON, INITIAL_HEATER_TEMP),
+                new Heater(Status.ON, INITIAL_HEATER_TEMP)
+        };
+
+        // Register the devices under unique device IDs matching their position in the array
+        for (int i = 0; i < objects.length; i++) {
+            registry.add(i, objects[i]);
         }
     }
 }
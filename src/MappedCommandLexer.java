@@ -0,0 +1,308 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Lexer reading command lines from a file that is memory-mapped in windows of fixed size, so that
+ * memory use does not depend on the size of the file.
+ *
+ * <p>Lines of ASCII text are tokenized in place in the mapped bytes. A line containing other bytes
+ * is decoded with the charset first, the way an InputStreamReader decodes it, so that it is split
+ * at the Unicode line separators and whitespace exactly like CommandLexer does. The charset must
+ * encode ASCII as single bytes, which all common charsets except UTF-16 and UTF-32 do.</p>
+ */
+public final class MappedCommandLexer extends CommandInput implements Closeable {
+    private static final int DEFAULT_WINDOW = 64 << 20;  // Bytes mapped at a time
+    private static final int MAX_WINDOW = Integer.MAX_VALUE - 8;  // Largest mapping, limits the line length
+    private static final int PROGRESS_LINES = 4096;  // Lines between updates of the progress fields
+    private static final String ASCII_SAMPLE = "\n\r\t 09AZaz-*";  // Must encode to the same bytes in the charset
+    private static final long HIGH_BITS = 0x8080808080808080L;  // Highest bit of every byte in a word
+    private static final long LOW_BITS = 0x0101010101010101L;  // Lowest bit of every byte in a word
+    private static final long LINE_FEEDS = LOW_BITS * '\n';  // '\n' in every byte of a word
+    private static final long CARRIAGE_RETURNS = LOW_BITS * '\r';  // '\r' in every byte of a word
+    private final FileChannel channel;  // Open command file
+    private final long size;  // Size of the file in bytes
+    private final int windowSize;  // Bytes mapped at a time, unless a line is longer
+    private final CharsetDecoder decoder;  // Decodes lines that are not plain ASCII
+    private MappedByteBuffer window;  // Mapped part of the file
+    private long windowStart;  // File offset of the mapped part
+    private int position;  // Start of the unread part of the window
+    private boolean skipLineFeed;  // Whether a '\n' following a consumed '\r' should be skipped
+    private char[] chars = new char[256];  // Decoded text of a line that is not plain ASCII
+    private boolean decoded;  // Whether the current line is in chars instead of the window
+    private int charPosition;  // Start of the decoded text not yet returned as a line
+    private int charLimit;  // End of the decoded text
+    private boolean pendingChars;  // Whether decoded text remains to be returned as lines
+    private boolean charsTerminated;  // Whether the decoded text was followed by a line separator byte
+    private long lines;  // Lines returned so far
+    private volatile long progressBytes;  // Bytes consumed, updated every PROGRESS_LINES lines
+    private volatile long progressLines;  // Lines returned, updated every PROGRESS_LINES lines
+
+    /**
+     * Constructor to open a command file in the default charset, like the console reads standard input.
+     *
+     * @param file Command file.
+     * @throws IOException If the file cannot be opened.
+     */
+    public MappedCommandLexer(Path file) throws IOException {
+        this(file, Charset.defaultCharset(), DEFAULT_WINDOW);
+    }
+
+    /**
+     * Constructor to open a command file.
+     *
+     * @param file       Command file.
+     * @param charset    Charset of the file; must encode ASCII as single bytes.
+     * @param windowSize Bytes mapped at a time.
+     * @throws IOException If the file cannot be opened.
+     */
+    public MappedCommandLexer(Path file, Charset charset, int windowSize) throws IOException {
+        if (!Arrays.equals(ASCII_SAMPLE.getBytes(charset), ASCII_SAMPLE.getBytes(StandardCharsets.US_ASCII))) {
+            throw new IllegalArgumentException("Charset does not encode ASCII as single bytes: " + charset);
+        }
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.size = channel.size();
+        this.windowSize = Math.max(1, windowSize);
+        this.decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        map(0, this.windowSize);
+    }
+
+    @Override
+    public boolean nextLine() throws IOException {
+        if (pendingChars && nextDecodedLine()) {
+            return counted();
+        }
+        int scan = position;
+        boolean ascii = true;  // Whether the bytes of the line scanned so far are ASCII
+        while (true) {
+            MappedByteBuffer bytes = window;
+            int limit = bytes.limit();
+            if (skipLineFeed && scan < limit) {
+                skipLineFeed = false;
+                if (bytes.get(scan) == '\n') {
+                    position = ++scan;
+                }
+            }
+            byte b = 0;
+            while (true) {
+                if (scan + Long.BYTES <= limit) {
+                    // Skip to the first byte that is a line feed, a carriage return or not ASCII
+                    long word = bytes.getLong(scan);
+                    long found = (word | hasZeroByte(word ^ LINE_FEEDS) | hasZeroByte(word ^ CARRIAGE_RETURNS))
+                            & HIGH_BITS;
+                    if (found == 0) {
+                        scan += Long.BYTES;
+                        continue;
+                    }
+                    scan += Long.numberOfTrailingZeros(found) >>> 3;
+                } else if (scan == limit) {
+                    break;
+                }
+                b = bytes.get(scan);
+                if (b == '\n' || b == '\r') {
+                    break;
+                }
+                ascii &= b >= 0;
+                scan++;
+            }
+            boolean terminated = scan < limit;
+            if (terminated || windowStart + limit == size) {
+                if (!terminated && position == limit) {
+                    publishProgress();
+                    return false;
+                }
+                int start = position;
+                skipLineFeed = terminated && b == '\r';
+                position = terminated ? scan + 1 : scan;
+                if (ascii) {
+                    decoded = false;
+                    tokenize(start, scan);
+                    return counted();
+                }
+                decode(start, scan, terminated);
+                if (nextDecodedLine()) {
+                    return counted();
+                }
+                scan = position;
+                ascii = true;
+                continue;
+            }
+            scan -= remap();
+        }
+    }
+
+    /**
+     * Gets the number of bytes consumed so far; may be called from any thread.
+     *
+     * @return Bytes consumed, at most PROGRESS_LINES lines behind.
+     */
+    public long getProgressBytes() {
+        return progressBytes;
+    }
+
+    /**
+     * Gets the number of lines returned so far; may be called from any thread.
+     *
+     * @return Lines returned, at most PROGRESS_LINES lines behind.
+     */
+    public long getProgressLines() {
+        return progressLines;
+    }
+
+    /**
+     * Gets the size of the command file.
+     *
+     * @return Size in bytes.
+     */
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+
+    @Override
+    protected char charAt(int offset) {
+        return decoded ? chars[offset] : (char) window.get(offset);
+    }
+
+    /**
+     * Counts a returned line and updates the progress fields every PROGRESS_LINES lines.
+     *
+     * @return true.
+     */
+    private boolean counted() {
+        if (++lines % PROGRESS_LINES == 0) {
+            publishProgress();
+        }
+        return true;
+    }
+
+    /**
+     * Makes the current position visible to other threads; called by the thread reading the lines.
+     */
+    void publishProgress() {
+        progressBytes = windowStart + position;
+        progressLines = lines;
+    }
+
+    /**
+     * Decodes a line that is not plain ASCII into the char buffer.
+     *
+     * @param start      Start of the line in the window (inclusive).
+     * @param end        End of the line in the window (exclusive).
+     * @param terminated Whether a line separator byte follows the line.
+     */
+    private void decode(int start, int end, boolean terminated) {
+        ByteBuffer in = window.slice(start, end - start);
+        CharBuffer out = CharBuffer.wrap(chars);
+        decoder.reset();
+        while (decoder.decode(in, out, true).isOverflow()) {
+            out = grow(out);
+        }
+        while (decoder.flush(out).isOverflow()) {
+            out = grow(out);
+        }
+        charPosition = 0;
+        charLimit = out.position();
+        charsTerminated = terminated;
+        pendingChars = true;
+    }
+
+    /**
+     * Doubles the char buffer.
+     *
+     * @param out Full buffer wrapping the chars.
+     * @return A buffer wrapping the new chars, positioned after the decoded text.
+     */
+    private CharBuffer grow(CharBuffer out) {
+        chars = Arrays.copyOf(chars, chars.length * 2);
+        return CharBuffer.wrap(chars).position(out.position());
+    }
+
+    /**
+     * Tokenizes the next line of the decoded text, which ends at a Unicode line separator or at the
+     * end of the text.
+     *
+     * @return true if a line was found, false if the text is exhausted.
+     */
+    private boolean nextDecodedLine() {
+        decoded = true;
+        for (int i = charPosition; i < charLimit; i++) {
+            if (isLineSeparator(chars[i])) {
+                tokenize(charPosition, i);
+                charPosition = i + 1;
+                return true;
+            }
+        }
+        pendingChars = false;
+        if (charPosition < charLimit || charsTerminated) {
+            tokenize(charPosition, charLimit);
+            charPosition = charLimit;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Maps the next window of the file, starting at the unread part of the current one. A line
+     * longer than the window gets a window twice as large.
+     *
+     * @return The number of bytes the unread part was shifted left by.
+     * @throws IOException If mapping fails or a line is longer than the largest window.
+     */
+    private int remap() throws IOException {
+        int shift = position;
+        long length = window.limit() - position;
+        int next = windowSize;
+        if (length >= next) {
+            if (window.limit() >= MAX_WINDOW) {
+                throw new IOException("Line longer than " + MAX_WINDOW + " bytes at offset "
+                        + (windowStart + position));
+            }
+            next = (int) Math.min(MAX_WINDOW, (long) window.limit() * 2);
+        }
+        map(windowStart + position, next);
+        return shift;
+    }
+
+    /**
+     * Maps a part of the file.
+     *
+     * @param start  File offset of the part.
+     * @param length Bytes to map, less at the end of the file.
+     * @throws IOException If mapping fails.
+     */
+    private void map(long start, int length) throws IOException {
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(length, size - start));
+        window.order(ByteOrder.LITTLE_ENDIAN);
+        windowStart = start;
+        position = 0;
+    }
+
+    /**
+     * Computes a word whose bytes have their highest bit set where the byte of the given word is
+     * zero, and possibly in higher bytes above a zero byte, so the lowest set bit is exact.
+     *
+     * @param word Word to inspect.
+     * @return Nonzero in the high bits if the word has a zero byte.
+     */
+    private static long hasZeroByte(long word) {
+        return (word - LOW_BITS) & ~word;
+    }
+}
@@ -0,0 +1,8 @@
+/**
+ * Enumeration for what happens when a subscriber of a DeviceEventBus falls a full ring behind.
+ */
+public enum OverflowPolicy {
+    BLOCK,     // The publisher waits until the subscriber has made room, no event is lost
+    DROP,      // The publisher overwrites events the subscriber has not read; they are counted as dropped
+    COALESCE   // Like DROP, but a lagging subscriber only gets the latest event of each device attribute
+}
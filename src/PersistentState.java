@@ -0,0 +1,129 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the device state of a registry in a data directory across restarts: a snapshot of all
+ * devices plus a write-ahead log of the commands executed since that snapshot.
+ *
+ * <p>On startup the snapshot is mapped and only the log tail is replayed. A new snapshot first
+ * rotates the log, so that every command logged before the snapshot is contained in it, then writes
+ * the snapshot and deletes the rotated log. If the process dies in between, startup replays the
+ * rotated log as well, which is harmless because replay is idempotent.</p>
+ */
+public final class PersistentState implements Closeable {
+    private static final String SNAPSHOT_FILE = "devices.snapshot";  // Snapshot of all devices
+    private static final String LOG_FILE = "commands.log";  // Commands since the last snapshot
+    private static final String ROTATED_LOG_FILE = "commands.log.rotated";  // Log being replaced by a snapshot
+    private final Path snapshotFile;  // Snapshot of all devices
+    private final Path logFile;  // Commands since the last snapshot
+    private final Path rotatedLogFile;  // Log being replaced by a snapshot
+    private CommandLog log;  // Open log, null until start()
+    private ScheduledExecutorService snapshots;  // Takes periodic snapshots, or null
+
+    /**
+     * Constructor to use a data directory, creating it if necessary.
+     *
+     * @param directory Data directory.
+     * @throws IOException If the directory cannot be created.
+     */
+    public PersistentState(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        this.snapshotFile = directory.resolve(SNAPSHOT_FILE);
+        this.logFile = directory.resolve(LOG_FILE);
+        this.rotatedLogFile = directory.resolve(ROTATED_LOG_FILE);
+    }
+
+    /**
+     * Adds the devices of the last snapshot to a registry.
+     *
+     * @param registry Empty registry.
+     * @return Number of devices restored, or -1 if there is no snapshot yet.
+     * @throws IOException If the snapshot cannot be read.
+     */
+    public int restoreSnapshot(DeviceRegistry registry) throws IOException {
+        return DeviceSnapshot.read(snapshotFile, registry);
+    }
+
+    /**
+     * Replays the commands logged after the last snapshot.
+     *
+     * @param registry Registry holding the restored snapshot, or the default devices if there was none.
+     * @return Number of commands replayed.
+     * @throws IOException If a log cannot be read.
+     */
+    public int replayLog(DeviceRegistry registry) throws IOException {
+        return Math.max(0, CommandLog.replay(rotatedLogFile, registry))
+                + Math.max(0, CommandLog.replay(logFile, registry));
+    }
+
+    /**
+     * Takes a snapshot of the recovered state and opens an empty log for new commands.
+     *
+     * @param registry Recovered devices.
+     * @return The log that the command loops append to.
+     * @throws IOException If the snapshot cannot be written or the log cannot be opened.
+     */
+    public CommandLog start(DeviceRegistry registry) throws IOException {
+        DeviceSnapshot.write(registry, snapshotFile);
+        Files.deleteIfExists(rotatedLogFile);
+        Files.deleteIfExists(logFile);
+        log = new CommandLog(logFile);
+        return log;
+    }
+
+    /**
+     * Takes snapshots in the background at a fixed period.
+     *
+     * @param registry Devices to save.
+     * @param seconds  Period in seconds.
+     */
+    public void startPeriodicSnapshots(DeviceRegistry registry, long seconds) {
+        snapshots = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "snapshots");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshots.scheduleAtFixedRate(() -> {
+            try {
+                snapshot(registry);
+            } catch (IOException e) {
+                System.err.println("Snapshot failed: " + e.getMessage());
+            }
+        }, seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Writes a snapshot of all devices and discards the commands it contains from the log.
+     *
+     * @param registry Devices to save.
+     * @return Number of devices written.
+     * @throws IOException If the snapshot cannot be written.
+     */
+    public synchronized int snapshot(DeviceRegistry registry) throws IOException {
+        log.rotate(rotatedLogFile);
+        int count = DeviceSnapshot.write(registry, snapshotFile);
+        Files.deleteIfExists(rotatedLogFile);
+        return count;
+    }
+
+    /**
+     * Stops the periodic snapshots and closes the log; the state is recovered from the last
+     * snapshot and the log on the next start.
+     *
+     * @throws IOException If closing the log fails.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (snapshots != null) {
+            snapshots.shutdownNow();
+        }
+        if (log != null) {
+            log.close();
+        }
+    }
+}
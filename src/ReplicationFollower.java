@@ -0,0 +1,235 @@
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Follower side of the replication of the device state, keeping the devices of a registry equal
+ * to those of a ReplicationPrimary on the same machine.
+ *
+ * <p>A background thread connects to the replication port of the primary, sends the epoch and
+ * sequence it has reached, and applies the changes of the frames it receives in order, the way
+ * CommandLog replays its records. When the connection breaks it reconnects every
+ * RECONNECT_MILLIS and resumes at its sequence, or gets a resync from a primary that no longer
+ * holds it. The devices must have the IDs and types of the primary, e.g. both the defaults;
+ * changes of other devices are skipped. A resync also copies the battery anchors, from which the
+ * follower computes the levels like the primary does.</p>
+ *
+ * <p>Only the follower may change the devices: attached to a CommandDispatcher it makes the
+ * dispatcher refuse the commands that change devices, while reads such as DisplayAllStatus are
+ * served from the replicated state.</p>
+ */
+public final class ReplicationFollower implements Closeable {
+    public static final long RECONNECT_MILLIS = 1000;  // Pause between two connection attempts
+    private static final int INPUT_BUFFER = 1 << 16;  // Socket input buffer, in bytes
+    private final DeviceRegistry registry;  // Devices following the primary
+    private final int port;  // Replication port of the primary
+    private final Command command = new Command();  // Decoded record, used by the follower thread only
+    private volatile long epoch;  // Epoch of the primary followed, 0 before the first resync
+    private volatile long sequence;  // Sequence of the next change to apply
+    private volatile long applied;  // Number of records applied, including resyncs
+    private volatile long frames;  // Number of frames received
+    private volatile long resyncs;  // Number of resyncs applied
+    private volatile boolean running;  // Whether the follower keeps reconnecting
+    private volatile Socket socket;  // Current connection, or null
+    private Thread thread;  // Thread of start()
+
+    /**
+     * Constructor to create a follower of a primary listening on the loopback interface.
+     *
+     * @param registry Devices following the primary.
+     * @param port     Replication port of the primary.
+     */
+    public ReplicationFollower(DeviceRegistry registry, int port) {
+        this.registry = registry;
+        this.port = port;
+    }
+
+    /**
+     * Gets the epoch of the primary followed.
+     *
+     * @return The epoch, or 0 before the first resync completed.
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Gets the sequence of the next change to apply: the changes before it are in the devices.
+     *
+     * @return The sequence.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Gets the number of records applied, including those of resyncs.
+     *
+     * @return The number of records.
+     */
+    public long getApplied() {
+        return applied;
+    }
+
+    /**
+     * Gets the number of frames received.
+     *
+     * @return The number of frames.
+     */
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * Gets the number of completed resyncs.
+     *
+     * @return The number of resyncs.
+     */
+    public long getResyncs() {
+        return resyncs;
+    }
+
+    /**
+     * Follows the primary in the background until the follower is closed.
+     */
+    public void start() {
+        running = true;
+        thread = new Thread(() -> {
+            while (running) {
+                try {
+                    follow();
+                } catch (IOException e) {
+                    // The primary is not reachable or went away; try again after a pause
+                }
+                if (running) {
+                    try {
+                        Thread.sleep(RECONNECT_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, "follower");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Disconnects from the primary and stops following it.
+     *
+     * @throws IOException If closing the connection fails.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        disconnect();
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while stopping the follower", e);
+            }
+        }
+    }
+
+    /**
+     * Breaks the current connection; a running follower reconnects and resumes.
+     *
+     * @throws IOException If closing the connection fails.
+     */
+    void disconnect() throws IOException {
+        Socket current = socket;
+        if (current != null) {
+            current.close();
+        }
+    }
+
+    /**
+     * Connects to the primary and applies its frames until the connection breaks.
+     *
+     * @throws IOException If connecting, reading or the connection fails.
+     */
+    private void follow() throws IOException {
+        try (Socket connection = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket = connection;
+            if (!running) {
+                return;
+            }
+            connection.setTcpNoDelay(true);
+            ByteBuffer hello = ByteBuffer.allocate(ReplicationPrimary.HELLO_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            hello.putInt(ReplicationPrimary.MAGIC).putInt(0).putLong(epoch).putLong(sequence);
+            connection.getOutputStream().write(hello.array());
+            DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream(),
+                    INPUT_BUFFER));
+            ByteBuffer frame = ByteBuffer.allocate(ReplicationPrimary.FRAME_HEADER_BYTES
+                    + ReplicationPrimary.MAX_FRAME_RECORDS * ReplicationPrimary.RECORD_BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            while (running) {
+                in.readFully(frame.array(), 0, ReplicationPrimary.FRAME_HEADER_BYTES);
+                long frameEpoch = frame.getLong(0);
+                long frameSequence = frame.getLong(8);
+                int count = frame.getInt(16);
+                int flags = frame.getInt(20);
+                if (count < 0 || count > ReplicationPrimary.MAX_FRAME_RECORDS) {
+                    throw new IOException("Corrupt replication frame of " + count + " records");
+                }
+                in.readFully(frame.array(), ReplicationPrimary.FRAME_HEADER_BYTES,
+                        count * ReplicationPrimary.RECORD_BYTES);
+                frame.position(ReplicationPrimary.FRAME_HEADER_BYTES);
+                for (int left = count; left > 0; ) {
+                    left -= apply(frame, left);
+                }
+                applied += count;
+                frames++;
+                if ((flags & ReplicationPrimary.MORE) == 0) {
+                    // Adopt the position only once a resync is complete
+                    epoch = frameEpoch;
+                    sequence = frameSequence;
+                    if ((flags & ReplicationPrimary.RESYNC) != 0) {
+                        resyncs++;
+                    }
+                }
+            }
+        } finally {
+            socket = null;
+        }
+    }
+
+    /**
+     * Applies the record at the position of a frame and advances past it, and past the anchor that
+     * follows a BATTERY record. Records of devices that do not exist or have another type are skipped.
+     *
+     * @param frame Frame buffer positioned at a record.
+     * @param left  Number of records left in the frame, including this one.
+     * @return The number of records advanced past.
+     */
+    private int apply(ByteBuffer frame, int left) {
+        if ((frame.get(frame.position()) & 0xFF) == ReplicationPrimary.BATTERY) {
+            long record = frame.getLong();
+            if (left < 2) {
+                return 1;
+            }
+            long anchor = frame.getLong();
+            SmartDevice device = registry.get((int) (record >>> 32));
+            if (device != null && device.getType().ordinal() == (int) (record >>> 8 & 0xFF)
+                    && device.getType().supports(Capability.CHARGEABLE)) {
+                device.setBatteryAnchor(anchor);
+            }
+            return 2;
+        }
+        if (BinaryProtocol.decode(frame, command)) {
+            SmartDevice device = registry.get(command.getDeviceId());
+            if (device != null && device.getType() == command.getDeviceType()) {
+                CommandLog.apply(command.getVerb(), device, command.getArgument());
+            }
+        }
+        return 1;
+    }
+}
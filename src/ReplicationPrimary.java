@@ -0,0 +1,361 @@
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Primary side of the replication of the device state to follower processes on the same machine.
+ *
+ * <p>The primary subscribes to the event bus of its registry, so it sees every device change no
+ * matter whether a command, a schedule, a rule or a transaction caused it, and numbers them in a
+ * backlog ring: the change with sequence s is the s-th change since the primary started. Every
+ * change assigns one attribute of one device an absolute value, like a CommandLog record, so
+ * applying the changes in order reproduces the state, and applying a change again is harmless.
+ * Battery levels are not sent with the changes: followers compute them from the same transitions,
+ * which they settle a replication delay later, so a level may differ by what the battery gains or
+ * loses within that delay.</p>
+ *
+ * <p>A follower connects to the replication port on localhost and sends a hello of HELLO_BYTES
+ * little-endian bytes: MAGIC, a reserved int, the epoch of the primary it followed (a random number
+ * drawn at start, 0 for none) and the sequence of the next change it needs. If the epoch is ours
+ * and the backlog still holds that change, the connection resumes there. Otherwise it first gets a
+ * resync: the current state of every device as changes, which contains all changes before the
+ * sequence the resync ends at. It ends the records of a chargeable device with a record of opcode
+ * BATTERY followed by the battery anchor of the device (see Battery), whose time the follower shares
+ * on the same machine, so it goes on from the level of the primary rather than from the battery its
+ * own device had. A follower falling a full backlog behind is resynced the same way.</p>
+ *
+ * <p>Changes are sent in frames: a header of FRAME_HEADER_BYTES (the epoch, the sequence after the
+ * frame, the number of records and the flags) and RECORD_BYTES per change, laid out as a request of
+ * the BinaryProtocol that sets the new value. A frame holds all changes the follower has not got
+ * yet, up to MAX_FRAME_RECORDS, so frames grow with the load and a quiet primary sends single
+ * changes right away. Frames of a resync carry RESYNC, and all but its last also MORE: a follower
+ * only adopts the position of a frame without MORE.</p>
+ */
+public final class ReplicationPrimary implements Closeable {
+    public static final int DEFAULT_PORT = 7071;  // Default replication port
+    public static final int DEFAULT_BACKLOG = 1 << 20;  // Default number of changes kept for catching up
+    static final int MAGIC = 0x4C505252;  // "RRPL" in little-endian order, starts a hello
+    static final int HELLO_BYTES = 24;  // Magic, reserved, epoch, next sequence
+    static final int FRAME_HEADER_BYTES = 24;  // Epoch, sequence after the frame, record count, flags
+    static final int RECORD_BYTES = 8;  // A request of the BinaryProtocol
+    static final int MAX_FRAME_RECORDS = 4096;  // Most changes sent in one frame
+    static final int MORE = 1;  // Flag of a resync frame followed by more frames of the same resync
+    static final int RESYNC = 1 << 1;  // Flag of a frame carrying the state of devices instead of changes
+    static final int BATTERY = 0xFF;  // Opcode of a resync record followed by a battery anchor, not a request
+    private static final long IDLE_PARK_NANOS = 1_000_000;  // Sleep of the capture thread when no change arrived
+    private static final long WAIT_MILLIS = 100;  // Longest wait of a sender for changes before checking for close
+    private final DeviceRegistry registry;  // Devices whose changes are replicated
+    private final DeviceEventBus.Subscription subscription;  // Changes of the devices
+    private final ServerSocket serverSocket;  // Listening socket of the followers
+    private final ExecutorService sessions = CommandServer.newPerTaskExecutor();  // Runs one sender per follower
+    private final long epoch = ThreadLocalRandom.current().nextLong() | 1;  // Identifies this run, never 0
+    private final long[] backlog;  // Ring of the latest changes as encoded records
+    private final int mask;  // Backlog length - 1, maps a sequence to its record
+    private long next;  // Sequence of the next change, guarded by this
+    private long resyncs;  // Number of resyncs sent, guarded by this
+    private volatile boolean running;  // Whether the threads keep running
+    private Thread capturer;  // Thread moving changes from the bus to the backlog
+
+    /**
+     * Constructor to create a primary listening on the loopback interface with the default backlog.
+     *
+     * @param registry Devices whose changes are replicated.
+     * @param events   Event bus of the registry.
+     * @param port     Port to listen on, or 0 for any free port.
+     * @throws IOException If the port cannot be bound.
+     */
+    public ReplicationPrimary(DeviceRegistry registry, DeviceEventBus events, int port) throws IOException {
+        this(registry, events, port, DEFAULT_BACKLOG);
+    }
+
+    /**
+     * Constructor to create a primary listening on the loopback interface.
+     *
+     * @param registry Devices whose changes are replicated.
+     * @param events   Event bus of the registry.
+     * @param port     Port to listen on, or 0 for any free port.
+     * @param backlog  Number of changes kept for followers catching up, rounded up to a power of two.
+     * @throws IOException If the port cannot be bound.
+     */
+    public ReplicationPrimary(DeviceRegistry registry, DeviceEventBus events, int port, int backlog)
+            throws IOException {
+        int size = Integer.highestOneBit(Math.max(1, backlog - 1)) << 1;
+        this.registry = registry;
+        this.backlog = new long[size];
+        this.mask = size - 1;
+        this.subscription = events.subscribe(OverflowPolicy.BLOCK);
+        this.serverSocket = new ServerSocket(port, 0, InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * Gets the port the followers connect to.
+     *
+     * @return The local port.
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Gets the sequence of the next change, i.e. the number of changes numbered so far.
+     *
+     * @return The sequence.
+     */
+    public synchronized long getSequence() {
+        return next;
+    }
+
+    /**
+     * Gets the number of changes published on the bus that are not numbered yet.
+     *
+     * @return The number of changes the capture thread lags behind.
+     */
+    public long lag() {
+        return subscription.lag();
+    }
+
+    /**
+     * Gets the number of resyncs sent to followers that could not resume.
+     *
+     * @return The number of resyncs.
+     */
+    public synchronized long getResyncs() {
+        return resyncs;
+    }
+
+    /**
+     * Moves changes to the backlog and accepts followers in the background, until the primary is closed.
+     */
+    public void start() {
+        running = true;
+        capturer = new Thread(() -> {
+            while (running) {
+                if (capture() == 0) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            }
+        }, "replication-capture");
+        capturer.setDaemon(true);
+        capturer.start();
+        Thread acceptor = new Thread(this::accept, "replication-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Stops accepting followers, disconnects them and stops numbering changes.
+     *
+     * @throws IOException If closing the listening socket fails.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        serverSocket.close();
+        sessions.shutdownNow();
+        if (capturer != null) {
+            try {
+                capturer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        subscription.close();
+    }
+
+    /**
+     * Numbers the changes published since the last call and wakes the waiting senders.
+     *
+     * @return Number of events polled.
+     */
+    synchronized int capture() {
+        int polled = subscription.poll(event -> {
+            long record = encode(event);
+            if (record != 0) {
+                backlog[(int) next & mask] = record;
+                next++;
+            }
+        });
+        if (polled > 0) {
+            notifyAll();
+        }
+        return polled;
+    }
+
+    /**
+     * Encodes a change as a request of the BinaryProtocol that sets the new value, packed into a
+     * long in little-endian order.
+     *
+     * @param event Change of a device.
+     * @return The record, or 0 for an attribute that is not replicated.
+     */
+    private static long encode(DeviceEvent event) {
+        int value = event.getValue();
+        Verb verb = switch (event.getAttribute()) {
+            case STATUS -> value != 0 ? Verb.TURN_ON : Verb.TURN_OFF;
+            case CHARGING -> value != 0 ? Verb.START_CHARGING : Verb.STOP_CHARGING;
+            case RECORDING -> value != 0 ? Verb.START_RECORDING : Verb.STOP_RECORDING;
+            case ANGLE -> Verb.SET_ANGLE;
+            case TEMPERATURE -> Verb.SET_TEMPERATURE;
+            case BRIGHTNESS -> Verb.SET_BRIGHTNESS;
+            case COLOR -> Verb.SET_COLOR;
+            case BATTERY -> null;
+        };
+        return verb == null ? 0 : encode(verb, event.getDeviceType(), event.getDeviceId(), value);
+    }
+
+    /**
+     * Packs a request of the BinaryProtocol into a long in little-endian order.
+     *
+     * @param verb     Verb setting the value.
+     * @param type     Type of the device.
+     * @param deviceId ID of the device.
+     * @param value    New value, within 16 bits.
+     * @return The record, never 0 since no verb changing a device has ordinal 0.
+     */
+    private static long encode(Verb verb, DeviceType type, int deviceId, int value) {
+        return verb.ordinal() | type.ordinal() << 8 | (value & 0xFFFFL) << 16 | (long) deviceId << 32;
+    }
+
+    /**
+     * Accepts followers and starts a sender for each, until the primary is closed.
+     */
+    private void accept() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                sessions.execute(() -> send(socket));
+            } catch (SocketException e) {
+                return;
+            } catch (IOException e) {
+                System.err.println("Accepting a follower failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Sends the changes to one follower, starting where its hello asks for if possible.
+     *
+     * @param socket Connected follower.
+     */
+    private void send(Socket socket) {
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            ByteBuffer hello = ByteBuffer.allocate(HELLO_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            new DataInputStream(socket.getInputStream()).readFully(hello.array());
+            if (hello.getInt() != MAGIC) {
+                return;
+            }
+            hello.getInt();
+            long followerEpoch = hello.getLong();
+            long sent = hello.getLong();
+            OutputStream out = socket.getOutputStream();
+            ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_BYTES + MAX_FRAME_RECORDS * RECORD_BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            synchronized (this) {
+                if (followerEpoch != epoch || sent > next || sent < next - backlog.length) {
+                    sent = -1;
+                }
+            }
+            while (running) {
+                if (sent < 0) {
+                    sent = resync(frame, out);
+                }
+                frame.clear().position(FRAME_HEADER_BYTES);
+                synchronized (this) {
+                    while (running && next == sent) {
+                        wait(WAIT_MILLIS);
+                    }
+                    if (next - sent > backlog.length) {
+                        sent = -1;
+                        continue;
+                    }
+                    for (long end = Math.min(next, sent + MAX_FRAME_RECORDS); sent < end; sent++) {
+                        frame.putLong(backlog[(int) sent & mask]);
+                    }
+                }
+                writeFrame(frame, out, sent, 0);
+            }
+        } catch (IOException e) {
+            // The follower disconnected; it resumes when it connects again
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Sends the current state of every device in frames flagged RESYNC.
+     *
+     * @param frame Frame buffer.
+     * @param out   Destination of the frames.
+     * @return The sequence the resync ends at: it contains every change before it.
+     * @throws IOException If writing fails.
+     */
+    private long resync(ByteBuffer frame, OutputStream out) throws IOException {
+        long sequence;
+        synchronized (this) {
+            // Changes are published after they took effect, so the devices already hold every numbered change
+            sequence = next;
+            resyncs++;
+        }
+        frame.clear().position(FRAME_HEADER_BYTES);
+        for (int id = registry.nextId(0); id >= 0; id = registry.nextId(id + 1)) {
+            if (frame.remaining() < 6 * RECORD_BYTES) {
+                writeFrame(frame, out, sequence, RESYNC | MORE);
+                frame.clear().position(FRAME_HEADER_BYTES);
+            }
+            SmartDevice device = registry.get(id);
+            DeviceType type = device.getType();
+            frame.putLong(encode(device.isOn() ? Verb.TURN_ON : Verb.TURN_OFF, type, id, 0));
+            if (device instanceof Chargeable) {
+                frame.putLong(encode(((Chargeable) device).isCharging() ? Verb.START_CHARGING : Verb.STOP_CHARGING,
+                        type, id, 0));
+            }
+            switch (type) {
+                case LIGHT -> {
+                    Light light = (Light) device;
+                    frame.putLong(encode(Verb.SET_BRIGHTNESS, type, id, light.getBrightnessLevel().ordinal()));
+                    frame.putLong(encode(Verb.SET_COLOR, type, id, light.getLightColor().ordinal()));
+                }
+                case CAMERA -> {
+                    Camera camera = (Camera) device;
+                    frame.putLong(encode(camera.isRecording() ? Verb.START_RECORDING : Verb.STOP_RECORDING, type,
+                            id, 0));
+                    frame.putLong(encode(Verb.SET_ANGLE, type, id, camera.getAngle()));
+                }
+                case HEATER -> frame.putLong(encode(Verb.SET_TEMPERATURE, type, id,
+                        ((Heater) device).getTemperature()));
+            }
+            if (type.supports(Capability.CHARGEABLE)) {
+                // Sent after the transitions, which settle the battery of the follower
+                frame.putLong(BATTERY | type.ordinal() << 8 | (long) id << 32).putLong(device.getBatteryAnchor());
+            }
+        }
+        writeFrame(frame, out, sequence, RESYNC);
+        return sequence;
+    }
+
+    /**
+     * Fills in the header of a frame and writes it.
+     *
+     * @param frame    Frame buffer with the records from FRAME_HEADER_BYTES to its position.
+     * @param out      Destination of the frame.
+     * @param sequence Sequence after the frame.
+     * @param flags    Flags of the frame.
+     * @throws IOException If writing fails.
+     */
+    private void writeFrame(ByteBuffer frame, OutputStream out, long sequence, int flags) throws IOException {
+        int count = (frame.position() - FRAME_HEADER_BYTES) / RECORD_BYTES;
+        frame.putLong(0, epoch).putLong(8, sequence).putInt(16, count).putInt(20, flags);
+        out.write(frame.array(), 0, frame.position());
+    }
+}
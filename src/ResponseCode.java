@@ -0,0 +1,155 @@
+import java.io.IOException;
+
+/**
+ * Enumeration for the responses to the commands addressing a single device, shared by the text
+ * protocol, which prints them, and the binary protocol, which sends their ordinal.
+ *
+ * <p>A response consists of the code, the type and ID of the device, and a value: the angle or
+ * temperature that was set, the ordinal of the color or brightness that was set, or the ordinal of
+ * the capability a device lacks. A setting the device already had gets the ALREADY_SET code of
+ * the same text, so that it counts as unchanged.</p>
+ */
+public enum ResponseCode {
+    INVALID(CommandOutcome.INVALID, "Invalid command"),                  // Not a valid command
+    NOT_FOUND(CommandOutcome.NOT_FOUND, "The smart device was not found"),  // No device with the ID and type
+    NOT_CAPABLE(CommandOutcome.UNSUPPORTED, " is not "),                    // Lacks the capability of the value
+    DEVICE_OFF(CommandOutcome.OFF, " while it is off"),                     // The verb needs the device on
+    ON(CommandOutcome.CHANGED, " is on"),                                   // Turned on
+    ALREADY_ON(CommandOutcome.UNCHANGED, " is already on"),                 // Was on
+    OFF(CommandOutcome.CHANGED, " is off"),                                 // Turned off
+    ALREADY_OFF(CommandOutcome.UNCHANGED, " is already off"),               // Was off
+    CHARGING(CommandOutcome.CHANGED, " is charging"),                       // Started charging
+    ALREADY_CHARGING(CommandOutcome.UNCHANGED, " is already charging"),     // Was charging
+    STOPPED_CHARGING(CommandOutcome.CHANGED, " stopped charging"),          // Stopped charging
+    NOT_CHARGING(CommandOutcome.UNCHANGED, " is not charging"),             // Was not charging
+    STARTED_RECORDING(CommandOutcome.CHANGED, " started recording"),        // Started recording
+    ALREADY_RECORDING(CommandOutcome.UNCHANGED, " is already recording"),   // Was recording
+    STOPPED_RECORDING(CommandOutcome.CHANGED, " stopped recording"),        // Stopped recording
+    NOT_RECORDING(CommandOutcome.UNCHANGED, " is not recording"),           // Was not recording
+    ANGLE_SET(CommandOutcome.CHANGED, " angle is set to "),                 // Set the angle of the value
+    ANGLE_ALREADY_SET(CommandOutcome.UNCHANGED, " angle is set to "),       // Had the angle of the value
+    ANGLE_OUT_OF_RANGE(CommandOutcome.UNCHANGED,
+            " angle should be in the range [-60, 60]"),                     // Rejected the angle
+    TEMPERATURE_SET(CommandOutcome.CHANGED, " temperature is set to "),     // Set the temperature of the value
+    TEMPERATURE_ALREADY_SET(CommandOutcome.UNCHANGED,
+            " temperature is set to "),                                     // Had the temperature of the value
+    TEMPERATURE_OUT_OF_RANGE(CommandOutcome.UNCHANGED,
+            " temperature should be in the range [15, 30]"),                // Rejected the temperature
+    COLOR_SET(CommandOutcome.CHANGED, " color is set to "),                 // Set the color of the value
+    COLOR_ALREADY_SET(CommandOutcome.UNCHANGED, " color is set to "),       // Had the color of the value
+    UNKNOWN_COLOR(CommandOutcome.UNCHANGED,
+            "The light color can only be \"YELLOW\" or \"WHITE\""),         // Rejected the color
+    BRIGHTNESS_SET(CommandOutcome.CHANGED, " brightness level is set to "), // Set the brightness of the value
+    BRIGHTNESS_ALREADY_SET(CommandOutcome.UNCHANGED,
+            " brightness level is set to "),                                // Had the brightness of the value
+    UNKNOWN_BRIGHTNESS(CommandOutcome.UNCHANGED,
+            "The brightness can only be one of \"LOW\", \"MEDIUM\", or \"HIGH\"");  // Rejected the brightness
+
+    private static final Capability[] CAPABILITIES = Capability.values();
+    private static final LightColor[] LIGHT_COLORS = LightColor.values();
+    private static final Brightnesslevel[] BRIGHTNESS_LEVELS = Brightnesslevel.values();
+    private final CommandOutcome outcome;  // Outcome counted by the statistics
+    private final String text;  // Whole message, or the part following the device
+
+    /**
+     * Constructor to initialize a response code.
+     *
+     * @param outcome Outcome counted by the statistics.
+     * @param text    Whole message, or the part following the device.
+     */
+    ResponseCode(CommandOutcome outcome, String text) {
+        this.outcome = outcome;
+        this.text = text;
+    }
+
+    /**
+     * Gets the outcome of a command with this response.
+     *
+     * @return The outcome counted by the statistics.
+     */
+    public CommandOutcome getOutcome() {
+        return outcome;
+    }
+
+    /**
+     * Checks whether the response rejects the command, as opposed to one that ran, changing the
+     * device or finding the change already in effect. A transaction aborts on a rejection.
+     *
+     * @return true if the command could not run as given.
+     */
+    public boolean isRejection() {
+        return switch (this) {
+            case INVALID, NOT_FOUND, NOT_CAPABLE, DEVICE_OFF, ANGLE_OUT_OF_RANGE, TEMPERATURE_OUT_OF_RANGE,
+                 UNKNOWN_COLOR, UNKNOWN_BRIGHTNESS -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * Checks whether the response can be written with a device type and value, e.g. ones decoded
+     * from a binary response: every response naming a device needs its type, and NOT_CAPABLE needs
+     * the ordinal of a capability. Other values are written as unknown.
+     *
+     * @param type  Type of the device, or null.
+     * @param value Value of the response.
+     * @return true if writeTo() accepts them.
+     */
+    public boolean isWritable(DeviceType type, int value) {
+        return switch (this) {
+            case INVALID, NOT_FOUND, UNKNOWN_COLOR, UNKNOWN_BRIGHTNESS -> true;
+            case NOT_CAPABLE -> type != null && value >= 0 && value < CAPABILITIES.length;
+            default -> type != null;
+        };
+    }
+
+    /**
+     * Writes the response as the text protocol prints it, e.g. "Heater 7 temperature is set to 25".
+     *
+     * @param out      Sink for the response.
+     * @param type     Type of the device, or null for the responses without a device.
+     * @param deviceId ID of the device.
+     * @param value    Value of the response; a color or brightness outside its enum is written as unknown.
+     * @throws IOException If writing fails.
+     */
+    public void writeTo(ResponseWriter out, DeviceType type, int deviceId, int value) throws IOException {
+        switch (this) {
+            case INVALID, NOT_FOUND, UNKNOWN_COLOR, UNKNOWN_BRIGHTNESS -> out.println(text);
+            case DEVICE_OFF -> {
+                out.append("You can't change the status of the ");
+                appendDevice(out, type, deviceId).append(text).newLine();
+            }
+            case NOT_CAPABLE -> appendDevice(out, type, deviceId).append(text)
+                    .append(CAPABILITIES[value].getDescription()).newLine();
+            case ANGLE_SET, ANGLE_ALREADY_SET, TEMPERATURE_SET, TEMPERATURE_ALREADY_SET ->
+                    appendDevice(out, type, deviceId).append(text).append(value).newLine();
+            case COLOR_SET, COLOR_ALREADY_SET -> {
+                if (value < 0 || value >= LIGHT_COLORS.length) {
+                    UNKNOWN_COLOR.writeTo(out, type, deviceId, value);
+                } else {
+                    appendDevice(out, type, deviceId).append(text).append(LIGHT_COLORS[value]).newLine();
+                }
+            }
+            case BRIGHTNESS_SET, BRIGHTNESS_ALREADY_SET -> {
+                if (value < 0 || value >= BRIGHTNESS_LEVELS.length) {
+                    UNKNOWN_BRIGHTNESS.writeTo(out, type, deviceId, value);
+                } else {
+                    appendDevice(out, type, deviceId).append(text).append(BRIGHTNESS_LEVELS[value]).newLine();
+                }
+            }
+            default -> appendDevice(out, type, deviceId).append(text).newLine();
+        }
+    }
+
+    /**
+     * Appends the type name and ID of a device, e.g. "Light 3".
+     *
+     * @param out      Sink for the response.
+     * @param type     Type of the device.
+     * @param deviceId ID of the device.
+     * @return The response writer.
+     * @throws IOException If writing fails.
+     */
+    private static ResponseWriter appendDevice(ResponseWriter out, DeviceType type, int deviceId) throws IOException {
+        return out.append(type.getDisplayName()).append(' ').append(deviceId);
+    }
+}
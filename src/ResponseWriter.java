@@ -0,0 +1,237 @@
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Buffered sink for command responses. Messages are assembled with direct appends of text,
+ * numbers and enum names into a reusable byte buffer, which is written to the underlying stream
+ * only when it fills up or when flush() is called at a batch boundary.
+ */
+public final class ResponseWriter implements Flushable {
+    private static final int DEFAULT_BUFFER_SIZE = 1 << 16;  // Default capacity of the byte buffer
+    private static final int MIN_BUFFER_SIZE = 64;  // Smallest capacity, enough for any single number
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes();  // Used by println
+    private final OutputStream out;  // Destination of the responses
+    private final byte[] buffer;  // Pending response bytes
+    private final byte[] digits = new byte[20];  // Scratch space for formatting numbers
+    private int count;  // Number of pending bytes
+
+    /**
+     * Constructor to create a writer on top of an output stream.
+     *
+     * @param out Destination of the responses.
+     */
+    public ResponseWriter(OutputStream out) {
+        this(out, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Constructor to create a writer with a buffer of the given size, e.g. a small one for each
+     * of many network connections.
+     *
+     * @param out        Destination of the responses.
+     * @param bufferSize Capacity of the buffer in bytes.
+     */
+    public ResponseWriter(OutputStream out, int bufferSize) {
+        this.out = out;
+        this.buffer = new byte[Math.max(MIN_BUFFER_SIZE, bufferSize)];
+    }
+
+    /**
+     * Appends text.
+     *
+     * @param text Text to append.
+     * @return This writer.
+     * @throws IOException If the buffer had to be drained and writing failed.
+     */
+    public ResponseWriter append(String text) throws IOException {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                return appendEncoded(text);
+            }
+        }
+        ensureCapacity(length);
+        if (length > buffer.length) {
+            out.write(text.getBytes());
+            return this;
+        }
+        for (int i = 0; i < length; i++) {
+            buffer[count++] = (byte) text.charAt(i);
+        }
+        return this;
+    }
+
+    /**
+     * Appends text containing non-ASCII characters using the platform encoding,
+     * as System.out would.
+     *
+     * @param text Text to append.
+     * @return This writer.
+     * @throws IOException If the buffer had to be drained and writing failed.
+     */
+    private ResponseWriter appendEncoded(String text) throws IOException {
+        byte[] bytes = text.getBytes();
+        ensureCapacity(bytes.length);
+        if (bytes.length > buffer.length) {
+            out.write(bytes);
+        } else {
+            System.arraycopy(bytes, 0, buffer, count, bytes.length);
+            count += bytes.length;
+        }
+        return this;
+    }
+
+    /**
+     * Appends already encoded response bytes, such as the responses collected by another writer.
+     *
+     * @param bytes  Array holding the bytes.
+     * @param offset Offset of the first byte.
+     * @param length Number of bytes to append.
+     * @return This writer.
+     * @throws IOException If the buffer had to be drained and writing failed.
+     */
+    public ResponseWriter append(byte[] bytes, int offset, int length) throws IOException {
+        ensureCapacity(length);
+        if (length > buffer.length) {
+            out.write(bytes, offset, length);
+        } else {
+            System.arraycopy(bytes, offset, buffer, count, length);
+            count += length;
+        }
+        return this;
+    }
+
+    /**
+     * Appends a single ASCII character.
+     *
+     * @param c Character to append.
+     * @return This writer.
+     * @throws IOException If the buffer had to be drained and writing failed.
+     */
+    public ResponseWriter append(char c) throws IOException {
+        ensureCapacity(1);
+        buffer[count++] = (byte) c;
+        return this;
+    }
+
+    /**
+     * Appends the decimal representation of a number.
+     *
+     * @param value Number to append.
+     * @return This writer.
+     * @throws IOException If the buffer had to be drained and writing failed.
+     */
+    public ResponseWriter append(int value) throws IOException {
+        return append((long) value);
+    }
+
+    /**
+     * Appends the decimal representation of a long number.
+     *
+     * @param value Number to append.
+     * @return This writer.
+     * @throws IOException If the buffer had to be drained and writing failed.
+     */
+    public ResponseWriter append(long value) throws IOException {
+        ensureCapacity(digits.length);
+        long remaining = value;  // Kept negative, so that Long.MIN_VALUE needs no special case
+        if (remaining < 0) {
+            buffer[count++] = '-';
+        } else {
+            remaining = -remaining;
+        }
+        int length = 0;
+        do {
+            digits[length++] = (byte) ('0' - remaining % 10);
+            remaining /= 10;
+        } while (remaining < 0);
+        while (length > 0) {
+            buffer[count++] = digits[--length];
+        }
+        return this;
+    }
+
+    /**
+     * Appends "true" or "false".
+     *
+     * @param value Value to append.
+     * @return This writer.
+     * @throws IOException If the buffer had to be drained and writing failed.
+     */
+    public ResponseWriter append(boolean value) throws IOException {
+        return append(value ? "true" : "false");
+    }
+
+    /**
+     * Appends the name of an enum constant.
+     *
+     * @param value Constant to append.
+     * @return This writer.
+     * @throws IOException If the buffer had to be drained and writing failed.
+     */
+    public ResponseWriter append(Enum<?> value) throws IOException {
+        return append(value.name());
+    }
+
+    /**
+     * Ends a message with '\n', the terminator used by the printf style messages.
+     *
+     * @return This writer.
+     * @throws IOException If the buffer had to be drained and writing failed.
+     */
+    public ResponseWriter newLine() throws IOException {
+        return append('\n');
+    }
+
+    /**
+     * Appends text followed by the platform line separator, like System.out.println().
+     *
+     * @param text Text to append.
+     * @return This writer.
+     * @throws IOException If the buffer had to be drained and writing failed.
+     */
+    public ResponseWriter println(String text) throws IOException {
+        append(text);
+        ensureCapacity(LINE_SEPARATOR.length);
+        System.arraycopy(LINE_SEPARATOR, 0, buffer, count, LINE_SEPARATOR.length);
+        count += LINE_SEPARATOR.length;
+        return this;
+    }
+
+    /**
+     * Writes all pending bytes to the underlying stream and flushes it.
+     *
+     * @throws IOException If writing fails.
+     */
+    @Override
+    public void flush() throws IOException {
+        drain();
+        out.flush();
+    }
+
+    /**
+     * Makes room for the given number of bytes, draining the buffer if necessary.
+     *
+     * @param length Number of bytes about to be appended.
+     * @throws IOException If writing fails.
+     */
+    private void ensureCapacity(int length) throws IOException {
+        if (count + length > buffer.length) {
+            drain();
+        }
+    }
+
+    /**
+     * Writes all pending bytes to the underlying stream without flushing it.
+     *
+     * @throws IOException If writing fails.
+     */
+    private void drain() throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sizing of and waiting on the preallocated rings through which CommandPipeline and
+ * ShardedDispatcher hand records from thread to thread.
+ *
+ * <p>A thread waiting for progress on a ring spins briefly, since the other thread is usually
+ * about to publish, then yields, then parks for growing periods while the input is idle.</p>
+ */
+final class Rings {
+    static final int FIRST_PARK = 200;  // Waits before the first one that parks
+    private static final int SPIN_LIMIT = 100;  // Busy spins of a waiting thread before yielding
+    private static final long PARK_NANOS = 10_000;  // First parking time of a waiting thread
+    private static final long MAX_PARK_NANOS = 1_000_000;  // Longest parking time of a waiting thread
+
+    private Rings() {
+    }
+
+    /**
+     * Rounds the capacity of a ring up to a power of two, so a sequence maps to its slot with a mask.
+     *
+     * @param capacity Requested number of slots.
+     * @return The number of slots, a power of two of at least 2.
+     */
+    static int size(int capacity) {
+        return Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+    }
+
+    /**
+     * Waits once, longer the longer a thread has been waiting: spinning, then yielding, then
+     * parking from the wait FIRST_PARK on.
+     *
+     * @param waits Number of waits so far.
+     */
+    static void pause(int waits) {
+        if (waits < SPIN_LIMIT) {
+            Thread.onSpinWait();
+        } else if (waits < FIRST_PARK) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(Math.min(MAX_PARK_NANOS, PARK_NANOS * (waits - FIRST_PARK + 1)));
+        }
+    }
+}
@@ -0,0 +1,538 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Automation rules running a command when a device change meets a condition, e.g.
+ * "When Camera * Recording = true TurnOn Light 0-3".
+ *
+ * <p>The engine reads the changes from a COALESCE subscription of the event bus of the registry.
+ * Rules are indexed by the attribute of their condition and by device ID for a single device,
+ * by device type for an ID range of a type, or by attribute alone for devices of every type, so
+ * a change only evaluates the rules that name its device, its type or every type, and the
+ * attribute that changed. Matching rules run their commands through a dispatcher of their own,
+ * with the same checks, log records and statistics as typed commands; their responses follow a
+ * line naming the rule, e.g. "Rule 2: When Heater * Temperature > 28 StopCharging Light *".
+ * The rules and their indexes are guarded by the lock of the engine; buckets are copied on change.</p>
+ *
+ * <p>A rule is rejected if its command could change an attribute in a way that, through other
+ * rules, meets its own condition again. Loops the check cannot see, e.g. through scheduled
+ * commands, and very long chains are cut at run time: every change carries the number of chained
+ * rule actions that led to it, and a change of depth MAX_DEPTH triggers no further rule.</p>
+ */
+public final class RuleEngine {
+    public static final int MAX_DEPTH = 16;  // Longest chain of rule actions
+    private static final int ATTRIBUTES = DeviceAttribute.values().length;
+    private static final int EVENT_CAPACITY = 1 << 16;  // Changes the engine may lag behind before coalescing
+    private static final long IDLE_PARK_NANOS = 1_000_000;  // Sleep of the engine thread when no change arrived
+    private static final Rule[] NO_RULES = new Rule[0];
+    private final DeviceEventBus bus;  // Bus of the registry
+    private final DeviceEventBus.Subscription subscription;  // Changes of the devices
+    private final DeviceEventBus.Handler matcher = this::match;  // Collects the rules matching an event
+    private final CommandDispatcher dispatcher;  // Runs the commands of the rules
+    private final ResponseWriter out;  // Sink for the responses of the rules
+    private final Map<Integer, Rule> rules = new LinkedHashMap<>();  // Rules by ID, guarded by this
+    private final Map<Long, Rule[]> byDevice = new HashMap<>();  // Rules of one device, by device attribute
+    private final Rule[][] byType = new Rule[DeviceType.values().length * ATTRIBUTES][];  // Rules of IDs of a type
+    private final Rule[][] byAttribute = new Rule[ATTRIBUTES][];  // Rules of devices of every type
+    private int nextId = 1;  // ID of the next rule, guarded by this
+    private Rule[] matched = new Rule[16];  // Rules matched by the polled events, used by the polling thread
+    private int[] matchedDepths = new int[16];  // Depths of the events that matched them
+    private int matchedCount;  // Number of matched rules
+    private long evaluated;  // Conditions evaluated so far, used by the polling thread
+    private long suppressed;  // Matches cut by the depth limit so far, used by the polling thread
+
+    /**
+     * Condition on the changes of devices, with the command run when a change meets it.
+     */
+    private static final class Rule {
+        private final int id;  // ID of the rule
+        private final String text;  // Text of the line that added the rule
+        private final DeviceType deviceType;  // Device type of the condition, or null
+        private final boolean anyType;  // Whether the condition applies to devices of every type
+        private final boolean singleDevice;  // Whether the condition names one device ID
+        private final int firstId;  // First device ID of the condition (inclusive)
+        private final int lastId;  // Last device ID of the condition (inclusive)
+        private final DeviceAttribute attribute;  // Compared attribute
+        private final Comparison comparison;  // Comparison of the attribute with the operand
+        private final int operand;  // Value the attribute is compared with
+        private final Command action;  // Command run when a change meets the condition
+        private final DeviceAttribute effect;  // Attribute the command sets, or null
+        private final int effectValue;  // Value the command sets the attribute to
+
+        /**
+         * Constructor to create a rule from a parsed rule command.
+         *
+         * @param id   ID of the rule.
+         * @param rule Parsed command of the verb "When".
+         */
+        Rule(int id, Command rule) {
+            this.id = id;
+            this.text = rule.getText();
+            this.deviceType = rule.getDeviceType();
+            this.anyType = rule.isAnyType();
+            this.singleDevice = !rule.isBulk();
+            this.firstId = rule.getDeviceId();
+            this.lastId = rule.getLastDeviceId();
+            this.attribute = rule.getAttribute();
+            this.comparison = rule.getComparison();
+            this.operand = rule.getArgument();
+            this.action = rule.getDeferred();
+            this.effect = effectOf(action.getVerb());
+            this.effectValue = switch (action.getVerb()) {
+                case TURN_ON, START_CHARGING, START_RECORDING -> 1;
+                case TURN_OFF, STOP_CHARGING, STOP_RECORDING -> 0;
+                default -> action.getArgument();
+            };
+        }
+
+        /**
+         * Checks whether a change meets the condition.
+         *
+         * @param event Change of the attribute of the rule.
+         * @return true if the rule applies to the device and the new value passes the comparison.
+         */
+        boolean matches(DeviceEvent event) {
+            int deviceId = event.getDeviceId();
+            return (anyType || event.getDeviceType() == deviceType) && deviceId >= firstId && deviceId <= lastId
+                    && comparison.test(event.getValue(), operand);
+        }
+
+        /**
+         * Checks whether the command of this rule can make a change that meets the condition of another.
+         *
+         * @param other Rule to check.
+         * @return true if the command sets the attribute of the other rule to a value meeting its
+         *         condition on a device it may apply to, false otherwise.
+         */
+        boolean feeds(Rule other) {
+            return effect == other.attribute && other.comparison.test(effectValue, other.operand)
+                    && (other.anyType || other.deviceType != null && action.matchesType(other.deviceType))
+                    && action.getDeviceId() <= other.lastId && other.firstId <= action.getLastDeviceId();
+        }
+    }
+
+    /**
+     * Constructor to create an engine without rules, reading the changes published from now on.
+     *
+     * @param registry Devices the rules observe and the commands apply to.
+     * @param bus      Event bus attached to the registry.
+     * @param out      Sink for the responses of the rules.
+     */
+    public RuleEngine(DeviceRegistry registry, DeviceEventBus bus, ResponseWriter out) {
+        this.bus = bus;
+        this.out = out;
+        this.subscription = bus.subscribe(OverflowPolicy.COALESCE);
+        this.dispatcher = new CommandDispatcher(registry, out);
+        dispatcher.setRuleEngine(this);
+    }
+
+    /**
+     * Creates an event bus large enough for the changes the engine may lag behind.
+     *
+     * @return A new bus, to be attached to the registry.
+     */
+    public static DeviceEventBus newEventBus() {
+        return new DeviceEventBus(EVENT_CAPACITY);
+    }
+
+    /**
+     * Logs every change made by a rule.
+     *
+     * @param log Write-ahead log, or null to stop logging.
+     */
+    public void setLog(CommandLog log) {
+        dispatcher.setLog(log);
+    }
+
+    /**
+     * Records the outcome and latency of every command run by a rule.
+     *
+     * @param stats Statistics, possibly shared with other dispatchers, or null to stop recording.
+     */
+    public void setStats(CommandStats stats) {
+        dispatcher.setStats(stats);
+    }
+
+    /**
+     * Lets rules use the thermal simulation, e.g. "When Heater 6 Status = ON RoomTemperature Heater 6".
+     *
+     * @param simulation Simulation, or null to reject its verbs.
+     */
+    public void setSimulation(ThermalSimulation simulation) {
+        dispatcher.setSimulation(simulation);
+    }
+
+    /**
+     * Lets rules run queries, e.g. "When Heater * Temperature > 28 Count Heater * Temperature > 28".
+     *
+     * @param index Indexes of the devices, or null to reject queries.
+     */
+    public void setDeviceIndex(DeviceIndex index) {
+        dispatcher.setDeviceIndex(index);
+    }
+
+    /**
+     * Lets rules run the verbs of the scheduler, e.g. "When Camera 4 Recording = true After 10m
+     * StopRecording Camera 4".
+     *
+     * @param scheduler Scheduler, or null to reject the verbs.
+     */
+    public void setScheduler(CommandScheduler scheduler) {
+        dispatcher.setScheduler(scheduler);
+    }
+
+    /**
+     * Adds a rule unless it would form a cycle, and writes the outcome, e.g. "Rule 3 is added".
+     *
+     * @param rule Parsed command of the verb "When".
+     * @param out  Sink for the response.
+     * @return true if the rule was added, false if it was rejected.
+     * @throws IOException If writing the response fails.
+     */
+    public boolean add(Command rule, ResponseWriter out) throws IOException {
+        Rule added;
+        Rule cycle;
+        synchronized (this) {
+            added = new Rule(nextId, rule);
+            cycle = findCycle(added);
+            if (cycle == null) {
+                nextId++;
+                rules.put(added.id, added);
+                index(added, true);
+            }
+        }
+        if (cycle == added) {
+            out.println("The rule would trigger itself");
+        } else if (cycle != null) {
+            out.append("The rule would form a cycle with rule ").append(cycle.id).newLine();
+        } else {
+            out.append("Rule ").append(added.id).append(" is added").newLine();
+        }
+        return cycle == null;
+    }
+
+    /**
+     * Removes a rule.
+     *
+     * @param id ID of the rule.
+     * @return true if the rule existed, false otherwise.
+     */
+    public synchronized boolean remove(int id) {
+        Rule rule = rules.remove(id);
+        if (rule == null) {
+            return false;
+        }
+        index(rule, false);
+        return true;
+    }
+
+    /**
+     * Gets the number of rules.
+     *
+     * @return Number of rules.
+     */
+    public synchronized int size() {
+        return rules.size();
+    }
+
+    /**
+     * Writes a line per rule in ID order, e.g. "Rule 2: When Heater * Temperature > 28 StopCharging Light *".
+     *
+     * @param out Sink for the list.
+     * @throws IOException If writing fails.
+     */
+    public synchronized void writeTo(ResponseWriter out) throws IOException {
+        if (rules.isEmpty()) {
+            out.println("There are no rules");
+            return;
+        }
+        for (Rule rule : rules.values()) {
+            out.append("Rule ").append(rule.id).append(": ").append(rule.text).newLine();
+        }
+    }
+
+    /**
+     * Evaluates the rules against the changes published since the last call and runs the commands
+     * of the matching rules, in the order of the changes, then flushes the log and the responses.
+     * Must not be called concurrently; start() calls it on a thread of its own.
+     *
+     * @return Number of commands that ran.
+     * @throws IOException If writing the responses or the log fails.
+     */
+    public int poll() throws IOException {
+        synchronized (this) {
+            subscription.poll(matcher);
+        }
+        if (matchedCount == 0) {
+            return 0;
+        }
+        int ran = 0;
+        try {
+            for (int i = 0; i < matchedCount; i++) {
+                Rule rule = matched[i];
+                matched[i] = null;
+                if (matchedDepths[i] >= MAX_DEPTH) {
+                    suppressed++;
+                    out.append("Rule ").append(rule.id).append(" skipped after ").append(MAX_DEPTH)
+                            .append(" chained rule actions").newLine();
+                    continue;
+                }
+                long start = dispatcher.startTime();
+                bus.setCause(matchedDepths[i] + 1);
+                out.append("Rule ").append(rule.id).append(": ").append(rule.text).newLine();
+                dispatcher.execute(rule.action, out, start);
+                ran++;
+            }
+        } finally {
+            bus.setCause(0);
+            matchedCount = 0;
+        }
+        CommandServer.flushBefore(dispatcher.getLog(), out).flush();
+        return ran;
+    }
+
+    /**
+     * Polls for changes in the background until the program ends.
+     */
+    public void start() {
+        Thread thread = new Thread(() -> {
+            while (true) {
+                try {
+                    if (poll() == 0 && subscription.lag() == 0) {
+                        LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    }
+                } catch (IOException e) {
+                    System.err.println("Rule action failed: " + e.getMessage());
+                }
+            }
+        }, "rules");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Gets the number of conditions evaluated so far, which the indexes keep close to the number
+     * of rules that name the changed device, its type or every type.
+     *
+     * @return Number of evaluated conditions.
+     */
+    public long getEvaluated() {
+        return evaluated;
+    }
+
+    /**
+     * Gets the number of rule matches cut by the depth limit so far.
+     *
+     * @return Number of skipped rule actions.
+     */
+    public long getSuppressed() {
+        return suppressed;
+    }
+
+    /**
+     * Collects the rules whose condition an event meets. Called with the lock held.
+     *
+     * @param event Change of a device.
+     */
+    private void match(DeviceEvent event) {
+        int attribute = event.getAttribute().ordinal();
+        match(byDevice.get(deviceKey(event.getDeviceId(), event.getAttribute())), event);
+        match(byType[event.getDeviceType().ordinal() * ATTRIBUTES + attribute], event);
+        match(byAttribute[attribute], event);
+    }
+
+    /**
+     * Collects the rules of an index bucket whose condition an event meets.
+     *
+     * @param bucket Rules of the bucket, or null.
+     * @param event  Change of a device.
+     */
+    private void match(Rule[] bucket, DeviceEvent event) {
+        if (bucket == null) {
+            return;
+        }
+        evaluated += bucket.length;
+        for (Rule rule : bucket) {
+            if (!rule.matches(event)) {
+                continue;
+            }
+            if (matchedCount == matched.length) {
+                matched = Arrays.copyOf(matched, matchedCount * 2);
+                matchedDepths = Arrays.copyOf(matchedDepths, matchedCount * 2);
+            }
+            matched[matchedCount] = rule;
+            matchedDepths[matchedCount++] = event.getDepth();
+        }
+    }
+
+    /**
+     * Finds a rule on a cycle through a new rule: a chain of rules, each of whose command can meet
+     * the condition of the next, leading back to the new rule. Commands of the scheduler are not
+     * followed, as they run later on their own.
+     *
+     * @param added New rule, not yet indexed.
+     * @return The rule feeding the new rule on a cycle, the new rule itself if it feeds itself, or
+     *         null if there is no cycle.
+     */
+    private Rule findCycle(Rule added) {
+        if (added.feeds(added)) {
+            return added;
+        }
+        Set<Integer> visited = new HashSet<>();
+        Rule[] stack = new Rule[16];
+        int depth = 0;
+        stack[depth++] = added;
+        while (depth > 0) {
+            Rule rule = stack[--depth];
+            if (rule.effect == null) {
+                continue;
+            }
+            for (Rule next : successors(rule)) {
+                if (next.feeds(added)) {
+                    return next;
+                }
+                if (visited.add(next.id)) {
+                    if (depth == stack.length) {
+                        stack = Arrays.copyOf(stack, depth * 2);
+                    }
+                    stack[depth++] = next;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the indexed rules whose condition the command of a rule can meet, using the index
+     * buckets of the attribute the command sets.
+     *
+     * @param rule Rule whose command sets an attribute.
+     * @return The rules fed by the rule.
+     */
+    private Rule[] successors(Rule rule) {
+        Command action = rule.action;
+        int attribute = rule.effect.ordinal();
+        Rule[] found = NO_RULES;
+        if (action.isBulk()) {
+            for (Rule[] bucket : byDevice.values()) {
+                found = feeding(rule, bucket, found);
+            }
+        } else {
+            found = feeding(rule, byDevice.get(deviceKey(action.getDeviceId(), rule.effect)), found);
+        }
+        for (DeviceType type : DeviceType.values()) {
+            if (action.matchesType(type)) {
+                found = feeding(rule, byType[type.ordinal() * ATTRIBUTES + attribute], found);
+            }
+        }
+        return feeding(rule, byAttribute[attribute], found);
+    }
+
+    /**
+     * Adds the rules of a bucket that a rule feeds to an array.
+     *
+     * @param rule   Feeding rule.
+     * @param bucket Rules to check, or null.
+     * @param found  Rules found so far.
+     * @return The rules found so far, extended by the fed rules of the bucket.
+     */
+    private static Rule[] feeding(Rule rule, Rule[] bucket, Rule[] found) {
+        if (bucket == null) {
+            return found;
+        }
+        for (Rule candidate : bucket) {
+            if (rule.feeds(candidate)) {
+                found = Arrays.copyOf(found, found.length + 1);
+                found[found.length - 1] = candidate;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Adds a rule to its index bucket, or removes it. Buckets are copied on change.
+     *
+     * @param rule  Rule to index.
+     * @param added Whether to add the rule, false to remove it.
+     */
+    private void index(Rule rule, boolean added) {
+        int attribute = rule.attribute.ordinal();
+        if (rule.anyType) {
+            byAttribute[attribute] = update(byAttribute[attribute], rule, added);
+        } else if (rule.deviceType == null) {
+            // An unknown device name never matches a change
+        } else if (rule.singleDevice) {
+            long key = deviceKey(rule.firstId, rule.attribute);
+            Rule[] bucket = update(byDevice.get(key), rule, added);
+            if (bucket == null) {
+                byDevice.remove(key);
+            } else {
+                byDevice.put(key, bucket);
+            }
+        } else {
+            int slot = rule.deviceType.ordinal() * ATTRIBUTES + attribute;
+            byType[slot] = update(byType[slot], rule, added);
+        }
+    }
+
+    /**
+     * Creates a copy of a bucket with a rule added or removed.
+     *
+     * @param bucket Rules of the bucket, or null.
+     * @param rule   Rule to add or remove.
+     * @param added  Whether to add the rule, false to remove it.
+     * @return The new bucket, or null if it is empty.
+     */
+    private static Rule[] update(Rule[] bucket, Rule rule, boolean added) {
+        Rule[] current = bucket == null ? NO_RULES : bucket;
+        if (added) {
+            Rule[] grown = Arrays.copyOf(current, current.length + 1);
+            grown[current.length] = rule;
+            return grown;
+        }
+        Rule[] shrunk = new Rule[current.length - 1];
+        int count = 0;
+        for (Rule other : current) {
+            if (other != rule) {
+                shrunk[count++] = other;
+            }
+        }
+        return count == 0 ? null : shrunk;
+    }
+
+    /**
+     * Gets the key of a device attribute in the index of single device rules.
+     *
+     * @param deviceId  Device ID.
+     * @param attribute Attribute of the condition.
+     * @return The key.
+     */
+    private static long deviceKey(int deviceId, DeviceAttribute attribute) {
+        return (long) deviceId << 8 | attribute.ordinal();
+    }
+
+    /**
+     * Gets the attribute a verb sets.
+     *
+     * @param verb Verb of a command.
+     * @return The attribute, or null if the verb does not change devices itself.
+     */
+    private static DeviceAttribute effectOf(Verb verb) {
+        return switch (verb) {
+            case TURN_ON, TURN_OFF -> DeviceAttribute.STATUS;
+            case START_CHARGING, STOP_CHARGING -> DeviceAttribute.CHARGING;
+            case START_RECORDING, STOP_RECORDING -> DeviceAttribute.RECORDING;
+            case SET_ANGLE -> DeviceAttribute.ANGLE;
+            case SET_TEMPERATURE -> DeviceAttribute.TEMPERATURE;
+            case SET_BRIGHTNESS -> DeviceAttribute.BRIGHTNESS;
+            case SET_COLOR -> DeviceAttribute.COLOR;
+            default -> null;
+        };
+    }
+}
@@ -0,0 +1,619 @@
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+/**
+ * Dispatcher partitioning the devices of a registry into shards, each owned by one worker thread
+ * that is the only one executing commands on them, so that the command streams of many homes use
+ * several cores without two of them ever contending for a device.
+ *
+ * <p>A device belongs to shard (ID / homeSize) % shardCount: with a home size of 1 the IDs are
+ * spread round robin, and with the number of IDs per home every home stays within one shard.
+ * Each shard has a mailbox, a bounded multi-producer single-consumer ring of command records
+ * without locks. A command stream is a Session that parses its lines and posts every command
+ * addressing a single device to the mailbox of the owner of the device. A bulk command or
+ * DisplayAllStatus is posted to every shard, which answers for its own devices with one line per
+ * device; the session merges the lines in ID order, so the output is that of
+ * CommandDispatcher.run(). The other commands, such as transactions, schedules and queries, run on
+ * the thread of the session once its earlier commands are done.</p>
+ *
+ * <p>A session writes the responses in input order as their records complete, and waits for all of
+ * them before its lexer blocks for input. Sessions run concurrently like the connections of the
+ * CommandServer. Devices changed outside the shards, e.g. by the scheduler, still go through the
+ * transitions of SmartDevice, so ownership removes the contention on a device, not its safety.</p>
+ */
+public final class ShardedDispatcher implements Closeable {
+    public static final int DEFAULT_HOME_SIZE = 1;  // Default number of consecutive IDs kept in one shard
+    public static final int DEFAULT_CAPACITY = 1024;  // Default records in flight per session and per mailbox
+    private static final VarHandle SEQUENCES = MethodHandles.arrayElementVarHandle(long[].class);
+    private static final VarHandle PENDING;  // Accesses Record.pending
+    private static final int PADDING = 16;  // Longs before and after the tail, keeps it on its own cache lines
+    private static final int RECORD_BUFFER = 256;  // Response buffer of a record, in bytes
+    private static final int PART_LINES = 64;  // Initial number of lines a shard collects for a record
+    private final DeviceRegistry devices;  // Devices of all shards
+    private final int homeSize;  // Number of consecutive IDs kept in one shard
+    private final int capacity;  // Records in flight per session and per mailbox, a power of two
+    private final Shard[] shards;  // Shards indexed by shardOf()
+    private final CommandDispatcher dispatcher;  // Runs the commands that no shard runs
+    private CommandStats stats;  // Statistics of the handled command lines, or null
+    private CommandLog log;  // Write-ahead log of the commands that changed a device, or null
+    private Thread[] threads = new Thread[0];  // Threads of start()
+    private volatile boolean running;  // Whether the shard threads keep waiting for commands
+    private volatile Throwable failure;  // First failure of a shard, fails all sessions
+
+    static {
+        try {
+            PENDING = MethodHandles.lookup().findVarHandle(Record.class, "pending", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * Constructor to create a dispatcher with the default capacity.
+     *
+     * @param devices    Devices the commands apply to; must not gain or lose devices while running.
+     * @param shardCount Number of shards, each with its own thread.
+     * @param homeSize   Number of consecutive IDs kept in one shard.
+     */
+    public ShardedDispatcher(DeviceRegistry devices, int shardCount, int homeSize) {
+        this(devices, shardCount, homeSize, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor to create a dispatcher.
+     *
+     * @param devices    Devices the commands apply to; must not gain or lose devices while running.
+     * @param shardCount Number of shards, each with its own thread.
+     * @param homeSize   Number of consecutive IDs kept in one shard.
+     * @param capacity   Records in flight per session and per mailbox, rounded up to a power of two.
+     * @throws IllegalArgumentException If the shard count or home size is not positive.
+     */
+    public ShardedDispatcher(DeviceRegistry devices, int shardCount, int homeSize, int capacity) {
+        if (shardCount < 1 || homeSize < 1) {
+            throw new IllegalArgumentException("Shard count and home size must be positive: " + shardCount + ", "
+                    + homeSize);
+        }
+        this.devices = devices;
+        this.homeSize = homeSize;
+        this.capacity = Rings.size(capacity);
+        this.dispatcher = new CommandDispatcher(devices, new ResponseWriter(OutputStream.nullOutputStream()));
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(i);
+        }
+    }
+
+    /**
+     * Attaches a write-ahead log, shared by all shards, to which every device change is appended.
+     *
+     * @param log Command log, or null to stop logging.
+     */
+    public void setLog(CommandLog log) {
+        this.log = log;
+        dispatcher.setLog(log);
+        for (Shard shard : shards) {
+            shard.dispatcher.setLog(log);
+        }
+    }
+
+    /**
+     * Attaches statistics, shared by all shards, in which every handled command line is recorded.
+     *
+     * @param stats Command statistics, or null to stop recording.
+     */
+    public void setStats(CommandStats stats) {
+        this.stats = stats;
+        dispatcher.setStats(stats);
+        for (Shard shard : shards) {
+            shard.dispatcher.setStats(stats);
+        }
+    }
+
+    /**
+     * Attaches the scheduler that the scheduling commands of the sessions use.
+     *
+     * @param scheduler Command scheduler, or null to disable scheduling.
+     */
+    public void setScheduler(CommandScheduler scheduler) {
+        dispatcher.setScheduler(scheduler);
+    }
+
+    /**
+     * Attaches the engine that the rule commands of the sessions use.
+     *
+     * @param rules Rule engine, or null to disable rules.
+     */
+    public void setRuleEngine(RuleEngine rules) {
+        dispatcher.setRuleEngine(rules);
+    }
+
+    /**
+     * Attaches the indexes that answer the queries of the sessions.
+     *
+     * @param index Device indexes, or null to disable queries.
+     */
+    public void setDeviceIndex(DeviceIndex index) {
+        dispatcher.setDeviceIndex(index);
+    }
+
+    /**
+     * Attaches the thermal simulation that the simulation commands of the sessions use.
+     *
+     * @param simulation Thermal simulation, or null to disable it.
+     */
+    public void setSimulation(ThermalSimulation simulation) {
+        dispatcher.setSimulation(simulation);
+    }
+
+    /**
+     * Gets the shard owning a device.
+     *
+     * @param deviceId Device ID.
+     * @return Index of the shard, between 0 and the shard count - 1.
+     */
+    public int shardOf(int deviceId) {
+        return Math.floorMod(deviceId / homeSize, shards.length);
+    }
+
+    /**
+     * Creates a command stream. Run it with a lexer that flushes the session before blocking, e.g.
+     * {@code session.run(new CommandLexer(reader, session))}, so that every response is seen before
+     * the next line is awaited.
+     *
+     * @param out Sink for the responses of the stream.
+     * @return A new session.
+     */
+    public Session newSession(ResponseWriter out) {
+        return new Session(out);
+    }
+
+    /**
+     * Starts the thread of every shard. Sessions may run from now on until the dispatcher is closed.
+     */
+    public void start() {
+        running = true;
+        threads = new Thread[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            threads[i] = new Thread(shards[i]::run, "shard-" + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+
+    /**
+     * Stops the threads of start() once their mailboxes are empty. Sessions must have finished.
+     *
+     * @throws IOException If interrupted while waiting for a thread.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while stopping the shards", e);
+            }
+        }
+    }
+
+    /**
+     * Records the first failure of a shard; the waiting sessions fail with it.
+     *
+     * @param e Failure.
+     */
+    private synchronized void fail(Throwable e) {
+        if (failure == null) {
+            failure = e;
+        }
+    }
+
+    /**
+     * Waits once with Rings.pause(), unless a shard failed.
+     *
+     * @param waits Number of waits so far.
+     * @throws IOException If a shard failed, since the awaited progress may never come.
+     */
+    private void pause(int waits) throws IOException {
+        Throwable thrown = failure;
+        if (thrown != null) {
+            throw new IOException("A shard failed: " + thrown, thrown);
+        }
+        Rings.pause(waits);
+    }
+
+    /**
+     * Stream of command lines, e.g. of one connection, executed by the shards with its responses in
+     * input order. A session is used by one thread at a time.
+     */
+    public final class Session implements Flushable {
+        private final ResponseWriter out;  // Sink for the responses
+        private final Record[] records;  // Ring of reusable command records
+        private final int mask;  // Capacity - 1, maps a sequence to its record
+        private long posted;  // Sequence of the next record to post
+        private long written;  // Sequence of the next record to write
+
+        /**
+         * Constructor to create a session.
+         *
+         * @param out Sink for the responses.
+         */
+        private Session(ResponseWriter out) {
+            this.out = out;
+            this.records = new Record[capacity];
+            for (int i = 0; i < capacity; i++) {
+                records[i] = new Record();
+            }
+            this.mask = capacity - 1;
+        }
+
+        /**
+         * Executes command lines until "end" or the end of input, like CommandDispatcher.run(), and
+         * returns once all responses are flushed.
+         *
+         * @param lexer Source of command lines.
+         * @throws IOException If reading commands, writing responses or a shard fails.
+         */
+        public void run(CommandInput lexer) throws IOException {
+            while (lexer.nextLine()) {
+                if (posted - written == records.length) {
+                    write(records[(int) written & mask]);
+                }
+                Record record = records[(int) posted & mask];
+                record.start = dispatcher.startTime();
+                boolean valid = CommandParser.parse(lexer, record.command);
+                if (valid && record.command.getVerb() == Verb.END) {
+                    break;
+                }
+                if (valid && post(record)) {
+                    posted++;
+                    while (written < posted && records[(int) written & mask].pending == 0) {
+                        write(records[(int) written & mask]);
+                    }
+                } else {
+                    writePosted();
+                    dispatcher.execute(valid ? record.command : null, out, record.start);
+                }
+            }
+            flush();
+        }
+
+        /**
+         * Waits for the posted records, writes their responses, then flushes the log and the responses.
+         *
+         * @throws IOException If writing or a shard fails.
+         */
+        @Override
+        public void flush() throws IOException {
+            writePosted();
+            if (log != null) {
+                log.flush();
+            }
+            out.flush();
+        }
+
+        /**
+         * Posts a command to the shards that run it.
+         *
+         * @param record Record of a parsed command.
+         * @return true if the command was posted, false if it must run on the session thread.
+         * @throws IOException If a shard failed while the mailbox was full.
+         */
+        private boolean post(Record record) throws IOException {
+            Command command = record.command;
+            boolean display = command.getVerb() == Verb.DISPLAY_ALL_STATUS;
+            if (!display && !BinaryProtocol.supports(command.getVerb())) {
+                return false;
+            }
+            record.gathered = display || command.isBulk();
+            if (!record.gathered) {
+                record.pending = 1;
+                shards[shardOf(command.getDeviceId())].offer(record);
+                return true;
+            }
+            if (record.parts == null) {
+                record.parts = new Part[shards.length];
+                for (int i = 0; i < shards.length; i++) {
+                    record.parts[i] = new Part();
+                }
+            }
+            record.pending = shards.length;
+            for (Shard shard : shards) {
+                shard.offer(record);
+            }
+            return true;
+        }
+
+        /**
+         * Writes the responses of all posted records, waiting for the shards where needed.
+         *
+         * @throws IOException If writing or a shard fails.
+         */
+        private void writePosted() throws IOException {
+            while (written < posted) {
+                write(records[(int) written & mask]);
+            }
+        }
+
+        /**
+         * Waits for the next record to write and writes its responses.
+         *
+         * @param record Record with the sequence written.
+         * @throws IOException If writing or a shard fails.
+         */
+        private void write(Record record) throws IOException {
+            for (int waits = 0; record.pending != 0; waits++) {
+                pause(waits);
+            }
+            if (record.gathered) {
+                writeGathered(record);
+            } else {
+                record.responses.writeTo(out);
+            }
+            written++;
+        }
+
+        /**
+         * Merges the lines of all shards for a bulk command or DisplayAllStatus in ID order, followed
+         * by the summary of a bulk command, and records the command in the statistics.
+         *
+         * @param record Completed record of a gathered command.
+         * @throws IOException If writing fails.
+         */
+        private void writeGathered(Record record) throws IOException {
+            Part[] parts = record.parts;
+            int matched = 0;
+            int changed = 0;
+            while (true) {
+                // Write the lines of the part with the lowest next ID up to the next ID of any other part
+                Part lowest = null;
+                int bound = Integer.MAX_VALUE;
+                for (Part part : parts) {
+                    if (part.cursor == part.count) {
+                        continue;
+                    }
+                    int id = part.ids[part.cursor];
+                    if (lowest == null || id < lowest.ids[lowest.cursor]) {
+                        if (lowest != null) {
+                            bound = lowest.ids[lowest.cursor];
+                        }
+                        lowest = part;
+                    } else if (id < bound) {
+                        bound = id;
+                    }
+                }
+                if (lowest == null) {
+                    break;
+                }
+                int from = lowest.cursor == 0 ? 0 : lowest.ends[lowest.cursor - 1];
+                do {
+                    lowest.cursor++;
+                } while (lowest.cursor < lowest.count && lowest.ids[lowest.cursor] < bound);
+                lowest.responses.writeTo(out, from, lowest.ends[lowest.cursor - 1]);
+            }
+            for (Part part : parts) {
+                matched += part.matched;
+                changed += part.changed;
+                part.clear();
+            }
+            Command command = record.command;
+            CommandOutcome outcome = CommandOutcome.UNCHANGED;
+            if (command.isBulk()) {
+                out.append(command.getVerb().getKeyword()).append(": ").append(changed).append(" of ")
+                        .append(matched).append(" devices changed").newLine();
+                outcome = changed > 0 ? CommandOutcome.CHANGED : CommandOutcome.UNCHANGED;
+            }
+            if (stats != null) {
+                stats.record(command.getVerb(), outcome, System.nanoTime() - record.start);
+            }
+        }
+    }
+
+    /**
+     * Partition of the devices with the thread executing all commands on them, fed by its mailbox.
+     */
+    private final class Shard {
+        private final int index;  // Index of the shard
+        private final CommandDispatcher dispatcher;  // Executes the commands of the shard
+        private final Command single = new Command();  // Single device form of a bulk command
+        private final Record[] mailbox = new Record[capacity];  // Ring of posted records
+        private final long[] sequences = new long[capacity];  // Lap of each slot, accessed via SEQUENCES
+        private final long[] tail = new long[2 * PADDING + 1];  // Next sequence to claim, at index PADDING
+        private long head;  // Next sequence to take, used by the shard thread only
+
+        /**
+         * Constructor to create a shard with an empty mailbox.
+         *
+         * @param index Index of the shard.
+         */
+        Shard(int index) {
+            this.index = index;
+            this.dispatcher = new CommandDispatcher(devices, new ResponseWriter(OutputStream.nullOutputStream()));
+            for (int i = 0; i < capacity; i++) {
+                sequences[i] = i;
+            }
+        }
+
+        /**
+         * Posts a record to the mailbox: claims the next sequence, waits until its slot has been
+         * taken in the previous lap, then publishes the record with a release store of the sequence.
+         *
+         * @param record Record to post.
+         * @throws IOException If the shard failed while the mailbox was full.
+         */
+        void offer(Record record) throws IOException {
+            long sequence = (long) SEQUENCES.getAndAdd(tail, PADDING, 1L);
+            int slot = (int) sequence & (capacity - 1);
+            for (int waits = 0; (long) SEQUENCES.getAcquire(sequences, slot) != sequence; waits++) {
+                pause(waits);
+            }
+            mailbox[slot] = record;
+            SEQUENCES.setRelease(sequences, slot, sequence + 1);
+        }
+
+        /**
+         * Takes the next record from the mailbox, if one was posted.
+         *
+         * @return The record, or null if the mailbox is empty.
+         */
+        private Record poll() {
+            int slot = (int) head & (capacity - 1);
+            if ((long) SEQUENCES.getAcquire(sequences, slot) != head + 1) {
+                return null;
+            }
+            Record record = mailbox[slot];
+            mailbox[slot] = null;
+            SEQUENCES.setRelease(sequences, slot, head + capacity);
+            head++;
+            return record;
+        }
+
+        /**
+         * Executes the posted records until the dispatcher is closed.
+         */
+        void run() {
+            try {
+                for (int waits = 0; ; ) {
+                    Record record = poll();
+                    if (record == null) {
+                        if (!running) {
+                            return;
+                        }
+                        pause(waits++);
+                        continue;
+                    }
+                    waits = 0;
+                    if (record.gathered) {
+                        gather(record.command, record.parts[index]);
+                    } else {
+                        dispatcher.execute(record.command, record.out, record.start);
+                        record.out.flush();
+                    }
+                    PENDING.getAndAdd(record, -1);
+                }
+            } catch (IOException | RuntimeException | Error e) {
+                fail(e);
+            }
+        }
+
+        /**
+         * Answers a bulk command or DisplayAllStatus for the devices of the shard, one line per device.
+         * A bulk command gets the responses of its single device form for the devices that have the
+         * named type and the capability of the verb, like CommandDispatcher.dispatchBulk().
+         *
+         * @param command Parsed command.
+         * @param part    Collects the lines of the shard.
+         * @throws IOException If writing a response or the log fails.
+         */
+        private void gather(Command command, Part part) throws IOException {
+            Verb verb = command.getVerb();
+            boolean display = verb == Verb.DISPLAY_ALL_STATUS;
+            int last = display ? Integer.MAX_VALUE : command.getLastDeviceId();
+            CommandHandler handler = dispatcher.getHandler(verb);
+            for (int id = nextOwned(display ? 0 : command.getDeviceId()); id >= 0 && id <= last;
+                 id = nextOwned(id + 1)) {
+                SmartDevice device = devices.get(id);
+                if (display) {
+                    part.out.println(device.displayStatus());
+                } else if (command.matchesType(device.getType())
+                        && device.getType().supports(handler.getCapability())) {
+                    part.matched++;
+                    single.set(verb, device.getType(), id, command.getArgument());
+                    if (dispatcher.dispatch(single, part.out) == CommandOutcome.CHANGED) {
+                        part.changed++;
+                    }
+                } else {
+                    continue;
+                }
+                part.endLine(id);
+            }
+        }
+
+        /**
+         * Finds the smallest registered device ID of the shard that is not below the given one,
+         * skipping the homes of the other shards.
+         *
+         * @param fromId ID to start searching from (inclusive); negative values lie past the last ID.
+         * @return The next ID of the shard, or -1 if there is none.
+         */
+        private int nextOwned(int fromId) {
+            for (int id = devices.nextId(fromId); id >= 0; id = devices.nextId(fromId)) {
+                int home = id / homeSize;
+                int owner = home % shards.length;
+                if (owner == index) {
+                    return id;
+                }
+                long next = (long) (home + Math.floorMod(index - owner, shards.length)) * homeSize;
+                if (next > Integer.MAX_VALUE) {
+                    return -1;
+                }
+                fromId = (int) next;
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Reusable record of a command line, posted to the shard owning its device or to every shard.
+     */
+    private static final class Record {
+        private final Command command = new Command();  // Parsed command
+        private final CommandPipeline.ResponseBuffer responses = new CommandPipeline.ResponseBuffer();  // Responses
+        private final ResponseWriter out = new ResponseWriter(responses, RECORD_BUFFER);  // Fills responses
+        private long start;  // Start time of the line for the statistics
+        private boolean gathered;  // Whether every shard answers for its own devices
+        private Part[] parts;  // Lines of each shard for a gathered command, allocated on first use
+        private volatile int pending;  // Shards yet to complete the record, accessed via PENDING
+    }
+
+    /**
+     * Lines written by one shard for a gathered command, with the device ID of each line.
+     */
+    private static final class Part {
+        private final CommandPipeline.ResponseBuffer responses = new CommandPipeline.ResponseBuffer();  // Lines
+        private final ResponseWriter out = new ResponseWriter(responses, RECORD_BUFFER);  // Fills responses
+        private int[] ids = new int[PART_LINES];  // Device ID of each line
+        private int[] ends = new int[PART_LINES];  // Offset in responses after each line
+        private int count;  // Number of lines
+        private int cursor;  // Next line to merge
+        private int matched;  // Devices of the shard a bulk command applied to
+        private int changed;  // Devices of the shard a bulk command changed
+
+        /**
+         * Ends the line of a device.
+         *
+         * @param deviceId ID of the device the line is about.
+         * @throws IOException Never; declared by ResponseWriter.flush().
+         */
+        void endLine(int deviceId) throws IOException {
+            out.flush();
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, 2 * count);
+                ends = Arrays.copyOf(ends, 2 * count);
+            }
+            ids[count] = deviceId;
+            ends[count++] = responses.size();
+        }
+
+        /**
+         * Empties the part for the next command.
+         */
+        void clear() {
+            responses.clear();
+            if (ids.length > PART_LINES * PART_LINES) {
+                ids = new int[PART_LINES];
+                ends = new int[PART_LINES];
+            }
+            count = 0;
+            cursor = 0;
+            matched = 0;
+            changed = 0;
+        }
+    }
+}
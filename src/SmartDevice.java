@@ -1,8 +1,39 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
 /**
  * Abstract class representing a smart device, providing functionality for controlling the device's power status.
+ *
+ * <p>State transitions are atomic and lock-free: a standalone device keeps its whole state in one
+ * packed word (see DeviceState) that is only changed by compare-and-set, and a view changes the
+ * columns of its DeviceStateStore the same way. Concurrent commands therefore never lose updates,
+ * and of two racing turnOn() calls exactly one reports a change.</p>
+ *
+ * <p>displayStatus() caches the rendered line and renders it again only after the state changed:
+ * a standalone device keys the cached line by its state word, a view by the version kept in the store,
+ * and a chargeable device also by its battery level.</p>
+ *
+ * <p>The battery of a chargeable device is computed lazily from an anchor word (see Battery) that
+ * every transition of the power, charging or recording status settles with the rate of the state
+ * it leaves, right after the state changed and before the change is published. A level read
+ * between the two uses the new rate from the settled time on, an error of the few microseconds in
+ * between; two such transitions racing each other may lose as much.</p>
+ *
+ * <p>Every effective change is published to the DeviceEventBus of the registry, if one is attached.</p>
+ *
+ * <p>A Transaction changes several devices at once through snapshot(), lock() and commit(): it
+ * validates its steps against snapshots, locks the devices in ID order if their versions are
+ * unchanged, and writes them. Transitions of a locked device wait until the commit is done.</p>
  */
 public abstract class SmartDevice implements Controllable {
-    private Status status;  // Device power status
+    private static final VarHandle STATE;  // Atomic access to the state word
+    private static final VarHandle BATTERY;  // Atomic access to the battery anchor
+    private final DeviceType type;  // Kind of the device
+    private final DeviceStateStore store;  // Columnar store holding the state, or null for a standalone device
+    private volatile long state;  // Packed state word of a standalone device
+    private volatile long battery;  // Battery anchor of a standalone chargeable device
+    private volatile StatusLine statusLine;  // Cached status line of a standalone device
+    private DeviceEventBus events;  // Bus receiving the changes of a standalone device, or null
     private int deviceId;   // Unique identifier for the device
     private int numberOfDevices = 0;  // Counter for the number of devices created
 
@@ -10,18 +41,65 @@ public abstract class SmartDevice implements Controllable {
      * Constructor to initialize the smart device with a given status.
      *
      * @param status Initial power status of the device.
+     * @param type   Kind of the device.
      */
-    public SmartDevice(Status status) {
-        this.status = status;
+    public SmartDevice(Status status, DeviceType type) {
+        this.state = status == Status.ON ? DeviceState.ON : 0;
+        this.type = type;
+        this.store = null;
+        this.battery = Battery.full();
         numberOfDevices++;
     }
 
     /**
-     * Abstract method to display the status of the device.
+     * Constructor to create a view of a device whose state lives in a columnar store.
+     *
+     * @param store    Store holding the state of the device.
+     * @param deviceId ID of the device in the store.
+     * @param type     Kind of the device.
+     */
+    SmartDevice(DeviceStateStore store, int deviceId, DeviceType type) {
+        this.store = store;
+        this.deviceId = deviceId;
+        this.type = type;
+        numberOfDevices++;
+    }
+
+    static {
+        try {
+            STATE = MethodHandles.lookup().findVarHandle(SmartDevice.class, "state", long.class);
+            BATTERY = MethodHandles.lookup().findVarHandle(SmartDevice.class, "battery", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * Displays the status of the device, reusing the line rendered for the previous call if the
+     * device has not changed since.
      *
      * @return A string representing the device status.
      */
-    public abstract String displayStatus();
+    public final String displayStatus() {
+        if (store != null) {
+            return store.statusLine(deviceId, this);
+        }
+        long current = state;
+        int level = type.supports(Capability.CHARGEABLE) ? batteryLevel() : -1;
+        StatusLine cached = statusLine;
+        if (cached == null || !cached.isValidFor(current, level)) {
+            cached = new StatusLine(current, level, renderStatus());
+            statusLine = cached;
+        }
+        return cached.getText();
+    }
+
+    /**
+     * Abstract method to render the status line of the device from its current state.
+     *
+     * @return A string representing the device status.
+     */
+    abstract String renderStatus();
 
     /**
      * Gets the unique identifier of the device.
@@ -39,6 +117,226 @@ public abstract class SmartDevice implements Controllable {
      */
     public final void setDeviceId(int deviceId) {
         this.deviceId = deviceId;
+        this.statusLine = null;
+    }
+
+    /**
+     * Gets the kind of the device.
+     *
+     * @return Type of the device.
+     */
+    public final DeviceType getType() {
+        return type;
+    }
+
+    /**
+     * Gets the columnar store holding the state of this device.
+     *
+     * @return The store, or null if the device keeps its state in its own fields.
+     */
+    final DeviceStateStore getStore() {
+        return store;
+    }
+
+    /**
+     * Gets the packed state word of a standalone device.
+     *
+     * @return The current state word.
+     */
+    final long getState() {
+        return state;
+    }
+
+    /**
+     * Atomically replaces some bits of the state word of a standalone device, waiting while a
+     * transaction commits it.
+     *
+     * @param mask Bits to replace.
+     * @param bits New values of the masked bits.
+     * @return true if the state changed, false if the masked bits already had these values.
+     */
+    final boolean updateState(long mask, long bits) {
+        for (int spins = 0; ; spins++) {
+            long current = state;
+            long next = DeviceState.with(current, mask, bits);
+            if (next == current) {
+                return false;
+            }
+            if ((current & DeviceState.LOCKED) != 0) {
+                Transaction.backOff(spins);
+                continue;
+            }
+            if (STATE.compareAndSet(this, current, next)) {
+                if ((mask & Battery.RATE_BITS) != 0 && type.supports(Capability.CHARGEABLE)) {
+                    settleBattery(current);
+                }
+                publish(mask);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Reads the whole state of the device as a state word with its version, waiting while a
+     * transaction commits it.
+     *
+     * @return The state word in the layout of DeviceState, without the lock bit.
+     */
+    final long snapshot() {
+        if (store != null) {
+            return store.snapshot(deviceId);
+        }
+        for (int spins = 0; ; spins++) {
+            long current = state;
+            if ((current & DeviceState.LOCKED) == 0) {
+                return current;
+            }
+            Transaction.backOff(spins);
+        }
+    }
+
+    /**
+     * Locks the device for a transaction if it has not changed since the snapshot, waiting while
+     * another transaction holds the lock.
+     *
+     * @param snapshot Result of snapshot().
+     * @return true if the device is locked, false if its version changed.
+     */
+    final boolean lock(long snapshot) {
+        if (store != null) {
+            return store.lock(deviceId, snapshot);
+        }
+        for (int spins = 0; ; spins++) {
+            long current = state;
+            if ((current & DeviceState.LOCKED) != 0) {
+                Transaction.backOff(spins);
+            } else if (current != snapshot) {
+                return false;
+            } else if (STATE.compareAndSet(this, current, current | DeviceState.LOCKED)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Writes the state a transaction computed from the snapshot of a locked device and releases
+     * the lock, settling the battery and publishing every attribute that changed.
+     *
+     * @param snapshot Result of snapshot() the lock was taken with.
+     * @param next     New state word, equal to the snapshot to release the lock without a change.
+     */
+    final void commit(long snapshot, long next) {
+        if (store != null) {
+            store.commit(deviceId, snapshot, next);
+            return;
+        }
+        state = next;
+        long changed = (snapshot ^ next) & ~DeviceState.VERSION;
+        if ((changed & Battery.RATE_BITS) != 0 && type.supports(Capability.CHARGEABLE)) {
+            settleBattery(snapshot);
+        }
+        for (long mask : DeviceState.ATTRIBUTES) {
+            if ((changed & mask) != 0) {
+                publish(mask);
+            }
+        }
+    }
+
+    /**
+     * Gets the battery level of a chargeable device.
+     *
+     * @return The level in percent.
+     */
+    final int batteryLevel() {
+        if (store != null) {
+            return store.getBatteryLevel(deviceId);
+        }
+        return Battery.level(battery, batteryRate(), Battery.now());
+    }
+
+    /**
+     * Gets the rate at which the battery of a chargeable device currently charges or drains.
+     *
+     * @return Percent gained per hour, negative while draining.
+     */
+    final int batteryRate() {
+        return Battery.ratePerHour(type, store != null ? store.rateBits(deviceId) : state);
+    }
+
+    /**
+     * Gets the battery anchor of a chargeable device, for copying it into a store. The copy reads
+     * the same level as long as it is read with the same power, charging and recording status.
+     *
+     * @return The anchor word.
+     */
+    final long getBatteryAnchor() {
+        return store != null ? store.getBatteryAnchor(deviceId) : battery;
+    }
+
+    /**
+     * Replaces the battery anchor of a chargeable device, e.g. one restored from a snapshot or
+     * resynced by a ReplicationFollower.
+     *
+     * @param anchor Anchor word, see Battery.
+     */
+    final void setBatteryAnchor(long anchor) {
+        if (store != null) {
+            store.setBatteryAnchor(deviceId, anchor);
+        } else {
+            battery = anchor;
+        }
+    }
+
+    /**
+     * Settles the battery anchor of a standalone device at the current time.
+     *
+     * @param previous State word before the transition.
+     */
+    private void settleBattery(long previous) {
+        int rate = Battery.ratePerHour(type, previous);
+        long now = Battery.now();
+        while (true) {
+            long anchor = battery;
+            if (BATTERY.compareAndSet(this, anchor, Battery.settle(anchor, rate, now))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Publishes the current value of a changed attribute, read while holding the lock of the bus
+     * so that the events of this device follow the order of its changes.
+     *
+     * @param mask Bits of the changed attribute.
+     */
+    private void publish(long mask) {
+        DeviceEventBus bus = events;
+        if (bus == null) {
+            return;
+        }
+        DeviceAttribute attribute = DeviceState.attribute(mask, type);
+        synchronized (bus) {
+            bus.publish(deviceId, type, attribute, DeviceState.attributeValue(state, attribute));
+        }
+    }
+
+    /**
+     * Attaches the bus receiving the changes of a standalone device; views publish through their store.
+     *
+     * @param events Event bus, or null to stop publishing.
+     */
+    final void setEventBus(DeviceEventBus events) {
+        this.events = events;
+    }
+
+    /**
+     * Sets the initial value of some state bits; only used while a device is being constructed.
+     *
+     * @param mask Bits to set.
+     * @param bits New values of the masked bits.
+     */
+    final void initState(long mask, long bits) {
+        state = (state & ~mask) | (bits & mask);
     }
 
     /**
@@ -47,7 +345,7 @@ public abstract class SmartDevice implements Controllable {
      * @return Current status of the device.
      */
     public final Status getStatus() {
-        return status;
+        return isOn() ? Status.ON : Status.OFF;
     }
 
     /**
@@ -56,7 +354,7 @@ public abstract class SmartDevice implements Controllable {
      * @param status New power status for the device.
      */
     public final void setStatus(Status status) {
-        this.status = status;
+        changeStatus(status == Status.ON);
     }
 
     /**
@@ -65,11 +363,7 @@ public abstract class SmartDevice implements Controllable {
      * @return true if the device was turned off, false if it was already off.
      */
     public final boolean turnOff() {
-        if (status == Status.ON) {
-            status = Status.OFF;
-            return true;
-        }
-        return false;
+        return changeStatus(false);
     }
 
     /**
@@ -78,11 +372,20 @@ public abstract class SmartDevice implements Controllable {
      * @return true if the device was turned on, false if it was already on.
      */
     public final boolean turnOn() {
-        if (status == Status.OFF) {
-            status = Status.ON;
-            return true;
+        return changeStatus(true);
+    }
+
+    /**
+     * Atomically sets the power status.
+     *
+     * @param on Whether the device should be on.
+     * @return true if the status changed, false if it already had this value.
+     */
+    private boolean changeStatus(boolean on) {
+        if (store != null) {
+            return store.setOn(deviceId, on);
         }
-        return false;
+        return updateState(DeviceState.ON, on ? DeviceState.ON : 0);
     }
 
     /**
@@ -91,7 +394,10 @@ public abstract class SmartDevice implements Controllable {
      * @return true if the device is on, false otherwise.
      */
     public final boolean isOn() {
-        return status == Status.ON;
+        if (store != null) {
+            return store.isOn(deviceId);
+        }
+        return (state & DeviceState.ON) != 0;
     }
 
     /**
@@ -100,6 +406,6 @@ public abstract class SmartDevice implements Controllable {
      * @return true if the device is on, false otherwise.
      */
     public final boolean checkStatusAccess() {
-        return status == Status.ON;
+        return isOn();
     }
 }
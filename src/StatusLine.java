@@ -0,0 +1,42 @@
+/**
+ * Rendered status line of a device together with the stamp of the state and the battery level it
+ * was rendered from. The line is still valid as long as the device reports the same stamp and level.
+ */
+final class StatusLine {
+    private final long stamp;  // State word, or device ID and version, the line was rendered from
+    private final int level;  // Battery level the line was rendered with, or -1 without a battery
+    private final String text;  // Rendered status line
+
+    /**
+     * Constructor to initialize a rendered status line.
+     *
+     * @param stamp State word, or device ID and version, the line was rendered from.
+     * @param level Battery level read before rendering, or -1 for a device without a battery.
+     * @param text  Rendered status line.
+     */
+    StatusLine(long stamp, int level, String text) {
+        this.stamp = stamp;
+        this.level = level;
+        this.text = text;
+    }
+
+    /**
+     * Checks whether the line was rendered from the given state.
+     *
+     * @param currentStamp Current state word, or device ID and version, of the device.
+     * @param currentLevel Current battery level, or -1 for a device without a battery.
+     * @return true if the line is still valid, false if the device changed since.
+     */
+    boolean isValidFor(long currentStamp, int currentLevel) {
+        return stamp == currentStamp && level == currentLevel;
+    }
+
+    /**
+     * Gets the rendered status line.
+     *
+     * @return The text of the line.
+     */
+    String getText() {
+        return text;
+    }
+}
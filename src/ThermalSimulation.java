@@ -0,0 +1,218 @@
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulation of the room temperature around every heater of a registry, advanced in fixed ticks of
+ * TICK_MILLIS of simulated time, for trying control strategies before rolling them out.
+ *
+ * <p>Every room loses heat to the outdoor temperature with a time constant of its own and, while
+ * its heater is on and the room is below the setpoint of the heater, gains heat at a rate of its
+ * own; a small disturbance is added every tick. Time constants, heating rates and initial
+ * temperatures are drawn from the seed in the order of the heater IDs, and the disturbance of a
+ * room in a tick is a hash of the seed, the room and the tick, so a seed always gives the same
+ * temperatures however the rooms are split among threads.</p>
+ *
+ * <p>The state of the rooms is kept in primitive arrays indexed by the position of the heater in
+ * ID order. advance() steps chunks of rooms in parallel on the common fork-join pool; each chunk
+ * reads the power status and setpoint of its heaters once and then runs all ticks, so a setpoint
+ * changed while the simulation advances takes effect with the next call. The simulation
+ * covers the heaters registered when it was created, and is guarded by its lock.</p>
+ */
+public final class ThermalSimulation {
+    public static final long TICK_MILLIS = 1000;  // Simulated time per tick
+    public static final double OUTDOOR_TEMPERATURE = 5;  // Temperature the rooms lose heat to
+    private static final double MIN_TIME_CONSTANT_HOURS = 2;  // Fastest cooling room
+    private static final double MAX_TIME_CONSTANT_HOURS = 6;  // Slowest cooling room
+    private static final double MIN_HEATING_PER_HOUR = 6;  // Weakest heater, in degrees per hour
+    private static final double MAX_HEATING_PER_HOUR = 12;  // Strongest heater, in degrees per hour
+    private static final double MIN_INITIAL_TEMPERATURE = 15;  // Coldest room at the start
+    private static final double MAX_INITIAL_TEMPERATURE = 22;  // Warmest room at the start
+    private static final double DISTURBANCE = 0.002;  // Largest change of a room per tick by disturbance
+    private static final double TICKS_PER_HOUR = 3_600_000.0 / TICK_MILLIS;
+    private static final int CHUNK_ROOMS = 8192;  // Largest number of rooms stepped sequentially by one task
+    private static final int BLOCK_ROOMS = 512;  // Rooms stepped through all ticks before the next ones
+    private final long seed;  // Seed of the rooms and the disturbances
+    private final int[] deviceIds;  // Heater IDs in ascending order
+    private final Heater[] heaters;  // Heater of every room
+    private final double[] temperatures;  // Current temperature of every room
+    private final double[] losses;  // Fraction of the difference to the outdoor temperature lost per tick
+    private final double[] gains;  // Degrees gained per tick while heating
+    private final double[] targets;  // Setpoint of every heater that is on, negative infinity for the others
+    private long ticks;  // Ticks simulated so far
+
+    /**
+     * Constructor to create rooms for the heaters of a registry.
+     *
+     * @param registry Devices whose heaters are simulated.
+     * @param seed     Seed of the rooms and the disturbances.
+     */
+    public ThermalSimulation(DeviceRegistry registry, long seed) {
+        this.seed = seed;
+        int count = 0;
+        for (int id = registry.nextId(0); id >= 0; id = registry.nextId(id + 1)) {
+            count += registry.get(id).getType() == DeviceType.HEATER ? 1 : 0;
+        }
+        deviceIds = new int[count];
+        heaters = new Heater[count];
+        temperatures = new double[count];
+        losses = new double[count];
+        gains = new double[count];
+        targets = new double[count];
+        SplittableRandom random = new SplittableRandom(seed);
+        int room = 0;
+        for (int id = registry.nextId(0); id >= 0 && room < count; id = registry.nextId(id + 1)) {
+            SmartDevice device = registry.get(id);
+            if (device.getType() != DeviceType.HEATER) {
+                continue;
+            }
+            deviceIds[room] = id;
+            heaters[room] = (Heater) device;
+            temperatures[room] = random.nextDouble(MIN_INITIAL_TEMPERATURE, MAX_INITIAL_TEMPERATURE);
+            losses[room] = 1 / (random.nextDouble(MIN_TIME_CONSTANT_HOURS, MAX_TIME_CONSTANT_HOURS) * TICKS_PER_HOUR);
+            gains[room] = random.nextDouble(MIN_HEATING_PER_HOUR, MAX_HEATING_PER_HOUR) / TICKS_PER_HOUR;
+            room++;
+        }
+    }
+
+    /**
+     * Advances the simulation.
+     *
+     * @param count Number of ticks to simulate.
+     */
+    public synchronized void advance(long count) {
+        if (count <= 0 || deviceIds.length == 0) {
+            return;
+        }
+        StepTask task = new StepTask(0, deviceIds.length, ticks, count);
+        if (deviceIds.length <= CHUNK_ROOMS) {
+            task.compute();
+        } else {
+            ForkJoinPool.commonPool().invoke(task);
+        }
+        ticks += count;
+    }
+
+    /**
+     * Gets the simulated temperature of the room of a heater.
+     *
+     * @param deviceId ID of the heater.
+     * @return The room temperature, or NaN if the device is not simulated.
+     */
+    public synchronized double temperatureOf(int deviceId) {
+        int room = Arrays.binarySearch(deviceIds, deviceId);
+        return room >= 0 ? temperatures[room] : Double.NaN;
+    }
+
+    /**
+     * Gets the number of simulated rooms.
+     *
+     * @return Number of heaters covered by the simulation.
+     */
+    public int size() {
+        return deviceIds.length;
+    }
+
+    /**
+     * Gets the simulated time.
+     *
+     * @return Milliseconds simulated so far.
+     */
+    public synchronized long elapsedMillis() {
+        return ticks * TICK_MILLIS;
+    }
+
+    /**
+     * Advances the simulation in the background by one tick every TICK_MILLIS, i.e. in real time.
+     */
+    public void start() {
+        ScheduledExecutorService clock = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "simulation");
+            thread.setDaemon(true);
+            return thread;
+        });
+        clock.scheduleAtFixedRate(() -> advance(1), TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs ticks of a range of rooms, all ticks of a block of rooms before the next block, so that
+     * the rooms of a block stay in the cache and their independent updates can overlap.
+     *
+     * @param from  First room (inclusive).
+     * @param to    Last room (exclusive).
+     * @param first Number of the first tick.
+     * @param count Number of ticks.
+     */
+    private void step(int from, int to, long first, long count) {
+        for (int room = from; room < to; room++) {
+            Heater heater = heaters[room];
+            targets[room] = heater.isOn() ? heater.getTemperature() : Double.NEGATIVE_INFINITY;
+        }
+        for (int block = from; block < to; block += BLOCK_ROOMS) {
+            int end = Math.min(to, block + BLOCK_ROOMS);
+            for (long tick = first; tick < first + count; tick++) {
+                long tickKey = seed + tick * 0xBF58476D1CE4E5B9L;
+                for (int room = block; room < end; room++) {
+                    double temperature = temperatures[room];
+                    double heating = temperature < targets[room] ? gains[room] : 0;
+                    temperatures[room] = temperature + (OUTDOOR_TEMPERATURE - temperature) * losses[room] + heating
+                            + disturbance(tickKey ^ (room + 1) * 0x9E3779B97F4A7C15L);
+                }
+            }
+        }
+    }
+
+    /**
+     * Derives the disturbance of a room in a tick from a hash of the seed, the room and the tick.
+     *
+     * @param key Combination of the seed, the room and the tick.
+     * @return A change of the temperature between -DISTURBANCE and DISTURBANCE.
+     */
+    private static double disturbance(long key) {
+        long z = key;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z ^= z >>> 31;
+        return ((z >>> 11) * 0x1.0p-53 * 2 - 1) * DISTURBANCE;
+    }
+
+    /**
+     * Fork-join task stepping a range of rooms, split in halves down to CHUNK_ROOMS rooms.
+     */
+    @SuppressWarnings("serial")
+    private final class StepTask extends RecursiveAction {
+        private final int from;  // First room (inclusive)
+        private final int to;  // Last room (exclusive)
+        private final long first;  // Number of the first tick
+        private final long count;  // Number of ticks
+
+        /**
+         * Constructor to create a task for a range of rooms.
+         *
+         * @param from  First room (inclusive).
+         * @param to    Last room (exclusive).
+         * @param first Number of the first tick.
+         * @param count Number of ticks.
+         */
+        StepTask(int from, int to, long first, long count) {
+            this.from = from;
+            this.to = to;
+            this.first = first;
+            this.count = count;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= CHUNK_ROOMS) {
+                step(from, to, first, count);
+                return;
+            }
+            int middle = from + (to - from) / 2;
+            invokeAll(new StepTask(from, middle, first, count), new StepTask(middle, to, first, count));
+        }
+    }
+}
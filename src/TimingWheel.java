@@ -0,0 +1,260 @@
+/**
+ * Hierarchical timing wheel holding timers by deadline, with constant time insertion and removal.
+ *
+ * <p>Time advances in ticks of one millisecond. Level 0 has a slot per tick of a 64 tick block,
+ * and every further level has a slot per block of the level below it, so six levels cover about
+ * two years; later deadlines wait in the top level and are placed again when they come into range.
+ * A timer lives in the slot of its deadline at the lowest level whose range covers it, in an
+ * intrusive doubly linked list. When time reaches the start of a block, the timers of the slot of
+ * that block are moved down a level, so every timer moves at most once per level. A bitmap of the
+ * occupied slots of every level lets advanceTo() skip empty stretches of time in a few steps.</p>
+ *
+ * <p>Expired timers are queued in the order they expired and taken with pollExpired(). The wheel
+ * is not thread safe.</p>
+ */
+public final class TimingWheel {
+    private static final int SLOT_BITS = 6;  // log2 of the slots per level
+    private static final int SLOTS = 1 << SLOT_BITS;  // Slots per level, one bit of an occupancy bitmap each
+    private static final int LEVELS = 6;  // Number of levels
+    private static final long RANGE = 1L << (SLOT_BITS * LEVELS);  // Ticks covered by all levels
+    private static final int EXPIRED = LEVELS * SLOTS;  // Index of the list of expired timers
+    private final Timer[] heads = new Timer[EXPIRED + 1];  // First timer of every slot, then of the expired list
+    private final Timer[] tails = new Timer[EXPIRED + 1];  // Last timer of every slot, then of the expired list
+    private final long[] occupied = new long[LEVELS];  // Bitmap of the non-empty slots of every level
+    private long current;  // Last tick processed
+    private int size;  // Number of timers in the wheel, expired or not
+
+    /**
+     * Timer that can be put into a wheel; subclasses carry what is due at the deadline.
+     */
+    public abstract static class Timer {
+        private long deadline;  // Tick at which the timer expires
+        private int slot = -1;  // Index of the list holding the timer, or -1 outside a wheel
+        private Timer previous;  // Previous timer of the list
+        private Timer next;  // Next timer of the list
+
+        /**
+         * Gets the tick at which the timer expires.
+         *
+         * @return The deadline in milliseconds.
+         */
+        public long getDeadline() {
+            return deadline;
+        }
+
+        /**
+         * Checks whether the timer is in a wheel, pending or expired.
+         *
+         * @return true if the timer is in a wheel, false otherwise.
+         */
+        public boolean isScheduled() {
+            return slot >= 0;
+        }
+    }
+
+    /**
+     * Constructor to create an empty wheel.
+     *
+     * @param start Current tick, e.g. the current time in milliseconds.
+     */
+    public TimingWheel(long start) {
+        this.current = start;
+    }
+
+    /**
+     * Gets the last tick processed by advanceTo().
+     *
+     * @return The current tick.
+     */
+    public long currentTick() {
+        return current;
+    }
+
+    /**
+     * Gets the number of timers in the wheel.
+     *
+     * @return Pending and expired timers not yet polled.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Adds a timer. A deadline that is not after the current tick expires immediately.
+     *
+     * @param timer    Timer outside any wheel.
+     * @param deadline Tick at which the timer expires.
+     */
+    public void add(Timer timer, long deadline) {
+        if (timer.slot >= 0) {
+            throw new IllegalStateException("Timer is already scheduled");
+        }
+        timer.deadline = deadline;
+        place(timer);
+        size++;
+    }
+
+    /**
+     * Removes a pending or expired timer.
+     *
+     * @param timer Timer to remove.
+     * @return true if the timer was in the wheel, false otherwise.
+     */
+    public boolean remove(Timer timer) {
+        if (timer.slot < 0) {
+            return false;
+        }
+        unlink(timer);
+        size--;
+        return true;
+    }
+
+    /**
+     * Takes the next expired timer out of the wheel.
+     *
+     * @return The timer that expired first, or null if none expired.
+     */
+    public Timer pollExpired() {
+        Timer timer = heads[EXPIRED];
+        if (timer != null) {
+            unlink(timer);
+            size--;
+        }
+        return timer;
+    }
+
+    /**
+     * Advances time, expiring every timer whose deadline is not after the given tick.
+     *
+     * @param tick New current tick; ticks before the current one are ignored.
+     */
+    public void advanceTo(long tick) {
+        while (current < tick) {
+            long next = nextEvent();
+            if (next > tick) {
+                current = tick;
+                return;
+            }
+            current = next;
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((next & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                    cascade(level * SLOTS + slotOf(next, level));
+                }
+            }
+            int slot = slotOf(next, 0);
+            for (Timer timer = heads[slot]; timer != null; timer = heads[slot]) {
+                unlink(timer);
+                append(EXPIRED, timer);
+            }
+        }
+    }
+
+    /**
+     * Finds the next tick after the current one at which a slot expires or moves down a level.
+     * The lowest non-empty level decides: a slot of it later in the current block, or else the
+     * start of the next block, where the level is filled from above.
+     *
+     * @return The tick, or Long.MAX_VALUE if no timer is pending.
+     */
+    private long nextEvent() {
+        for (int level = 0; level < LEVELS; level++) {
+            if (occupied[level] == 0) {
+                continue;
+            }
+            int shift = SLOT_BITS * level;
+            int position = slotOf(current, level);
+            long later = occupied[level] & (-2L << position);
+            long block = current >>> (shift + SLOT_BITS);
+            if (later != 0) {
+                return ((block << SLOT_BITS) + Long.numberOfTrailingZeros(later)) << shift;
+            }
+            return (block + 1) << (shift + SLOT_BITS);
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Moves the timers of a slot to the slots of their deadlines relative to the current tick.
+     *
+     * @param slot Index of the slot.
+     */
+    private void cascade(int slot) {
+        for (Timer timer = heads[slot]; timer != null; timer = heads[slot]) {
+            unlink(timer);
+            place(timer);
+        }
+    }
+
+    /**
+     * Puts a timer into the slot of its deadline, or into the expired list if it is due.
+     *
+     * @param timer Timer outside any list.
+     */
+    private void place(Timer timer) {
+        long delta = timer.deadline - current;
+        if (delta <= 0) {
+            append(EXPIRED, timer);
+            return;
+        }
+        long target = delta < RANGE ? timer.deadline : current + RANGE - 1;
+        int level = Math.min(LEVELS - 1, (63 - Long.numberOfLeadingZeros(target - current)) / SLOT_BITS);
+        int index = slotOf(target, level);
+        append(level * SLOTS + index, timer);
+        occupied[level] |= 1L << index;
+    }
+
+    /**
+     * Gets the slot of a level that a tick falls into.
+     *
+     * @param tick  Tick, e.g. a deadline.
+     * @param level Level of the wheel.
+     * @return Index of the slot within the level.
+     */
+    private static int slotOf(long tick, int level) {
+        return (int) (tick >>> (SLOT_BITS * level)) & (SLOTS - 1);
+    }
+
+    /**
+     * Appends a timer to a list.
+     *
+     * @param slot  Index of the list.
+     * @param timer Timer outside any list.
+     */
+    private void append(int slot, Timer timer) {
+        Timer tail = tails[slot];
+        timer.slot = slot;
+        timer.previous = tail;
+        timer.next = null;
+        if (tail == null) {
+            heads[slot] = timer;
+        } else {
+            tail.next = timer;
+        }
+        tails[slot] = timer;
+    }
+
+    /**
+     * Removes a timer from its list, clearing the bit of a slot that becomes empty.
+     *
+     * @param timer Timer in a list.
+     */
+    private void unlink(Timer timer) {
+        int slot = timer.slot;
+        if (timer.previous == null) {
+            heads[slot] = timer.next;
+        } else {
+            timer.previous.next = timer.next;
+        }
+        if (timer.next == null) {
+            tails[slot] = timer.previous;
+        } else {
+            timer.next.previous = timer.previous;
+        }
+        if (heads[slot] == null && slot < EXPIRED) {
+            occupied[slot / SLOTS] &= ~(1L << (slot % SLOTS));
+        }
+        timer.slot = -1;
+        timer.previous = null;
+        timer.next = null;
+    }
+}
@@ -0,0 +1,472 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * All-or-nothing change of several devices, e.g. the scene "turn on Lights 0-3, set them to WHITE
+ * and HIGH and start recording Camera 4". Created by CommandDispatcher.newTransaction() and used
+ * by one thread.
+ *
+ * <p>Steps are the commands changing a single device, added in order; a bulk step adds every
+ * device of its range that has the named type and the capability of the verb, like a bulk command.
+ * commit() validates the steps against snapshots of their devices with the rules of the single
+ * commands, each step seeing the changes of the steps before it. If any step would be rejected,
+ * because its device is missing, lacks the capability, is off or the argument is out of range,
+ * no device is changed.</p>
+ *
+ * <p>Otherwise the transaction commits with optimistic concurrency on the versions of the devices:
+ * it locks its devices in ID order, each only if its version is still that of the snapshot, and
+ * writes them. If a device changed since the snapshot, the locks taken so far are released and the
+ * steps are validated again against new snapshots. No lock is held while validating and only the
+ * devices of the transaction are locked, so transactions on disjoint devices commit in parallel;
+ * the ID order rules out deadlocks between transactions sharing devices. Single commands wait
+ * while a device is locked, so they never see a transaction half written on that device. With a
+ * CommandLog the locks are taken while holding the lock of the log, like a single command, and
+ * every step that changed a device is logged.</p>
+ */
+public final class Transaction {
+    private static final int SPIN_LIMIT = 100;  // Busy spins waiting for a locked device before yielding
+    private static final LightColor[] LIGHT_COLORS = LightColor.values();
+    private static final Brightnesslevel[] BRIGHTNESS_LEVELS = Brightnesslevel.values();
+    private final DeviceRegistry devices;  // Devices the steps apply to
+    private final CommandHandler[] handlers;  // Capability and power requirement of the verbs, by ordinal
+    private final CommandLog log;  // Write-ahead log of the changed steps, or null
+    private final List<Step> steps = new ArrayList<>();  // Steps in order, one per addressed device
+    private final Map<Integer, Target> targets = new HashMap<>();  // Devices of the steps by ID
+    private Step rejected;  // Step that aborted the commit, or null
+    private boolean committed;  // Whether commit() succeeded
+    private int retries;  // Validations repeated because a device changed
+
+    /**
+     * A device written by the transaction, with its snapshot and the state its steps lead to.
+     */
+    private static final class Target {
+        private final SmartDevice device;  // Device to write
+        private long snapshot;  // State word read before validating
+        private long state;  // State word after the steps validated so far
+
+        /**
+         * Constructor to create a target.
+         *
+         * @param device Device to write.
+         */
+        Target(SmartDevice device) {
+            this.device = device;
+        }
+    }
+
+    /**
+     * A step applied to one device.
+     */
+    private static final class Step {
+        private final Verb verb;  // Verb changing the device
+        private final DeviceType type;  // Type of the device, or null if it was not found
+        private final int deviceId;  // ID of the device
+        private final int argument;  // Argument of the command
+        private final Target target;  // Device of the step, or null if it was rejected when added
+        private ResponseCode code;  // Response of the last validation, or the rejection when added
+
+        /**
+         * Constructor to create a step.
+         *
+         * @param verb     Verb changing the device.
+         * @param type     Type of the device, or null.
+         * @param deviceId ID of the device.
+         * @param argument Argument of the command.
+         * @param target   Device of the step, or null.
+         * @param code     Rejection found when adding the step, or null.
+         */
+        Step(Verb verb, DeviceType type, int deviceId, int argument, Target target, ResponseCode code) {
+            this.verb = verb;
+            this.type = type;
+            this.deviceId = deviceId;
+            this.argument = argument;
+            this.target = target;
+            this.code = code;
+        }
+
+        /**
+         * Gets the value of the response: the capability the device lacks, or the argument.
+         *
+         * @param capability Capability required by the verb.
+         * @return The value passed to ResponseCode.writeTo().
+         */
+        int value(Capability capability) {
+            return code == ResponseCode.NOT_CAPABLE ? capability.ordinal() : argument;
+        }
+    }
+
+    /**
+     * Constructor to create an empty transaction.
+     *
+     * @param devices  Devices the steps apply to.
+     * @param handlers Handlers of the dispatcher, giving the capability and power requirement of the verbs.
+     * @param log      Write-ahead log, or null.
+     */
+    Transaction(DeviceRegistry devices, CommandHandler[] handlers, CommandLog log) {
+        this.devices = devices;
+        this.handlers = handlers;
+        this.log = log;
+    }
+
+    /**
+     * Checks whether a verb can be a step.
+     *
+     * @param verb Verb to check.
+     * @return true for the verbs changing a single device.
+     */
+    public static boolean supports(Verb verb) {
+        return BinaryProtocol.supports(verb);
+    }
+
+    /**
+     * Adds a step changing one device, e.g. SET_COLOR of Light 3 with the ordinal of WHITE.
+     *
+     * @param verb     Verb changing a single device.
+     * @param type     Type the device must have.
+     * @param deviceId ID of the device.
+     * @param argument Number, or ordinal of the color or brightness level; another one rejects the step.
+     * @return This transaction.
+     * @throws IllegalArgumentException If the verb cannot be a step.
+     */
+    public Transaction add(Verb verb, DeviceType type, int deviceId, int argument) {
+        Command step = new Command();
+        step.set(verb, type, deviceId, argument);
+        return add(step);
+    }
+
+    /**
+     * Adds the steps of a parsed command: one for its device, or one per matching device of a bulk command.
+     *
+     * @param command Parsed command whose verb changes a single device.
+     * @return This transaction.
+     * @throws IllegalArgumentException If the verb cannot be a step.
+     */
+    public Transaction add(Command command) {
+        Verb verb = command.getVerb();
+        if (!supports(verb)) {
+            throw new IllegalArgumentException("A transaction cannot run " + verb.getKeyword());
+        }
+        Capability capability = handlers[verb.ordinal()].getCapability();
+        if (!command.isBulk()) {
+            SmartDevice device = devices.get(command.getDeviceId());
+            if (device == null || !command.matchesType(device.getType())) {
+                steps.add(new Step(verb, null, command.getDeviceId(), command.getArgument(), null,
+                        ResponseCode.NOT_FOUND));
+            } else if (!device.getType().supports(capability)) {
+                steps.add(new Step(verb, device.getType(), device.getDeviceId(), command.getArgument(), null,
+                        ResponseCode.NOT_CAPABLE));
+            } else {
+                addStep(verb, device, command.getArgument());
+            }
+            return this;
+        }
+        int last = Math.min(command.getLastDeviceId(), devices.idBound() - 1);
+        for (int id = devices.nextId(command.getDeviceId()); id >= 0 && id <= last; id = devices.nextId(id + 1)) {
+            SmartDevice device = devices.get(id);
+            if (device != null && command.matchesType(device.getType()) && device.getType().supports(capability)) {
+                addStep(verb, device, command.getArgument());
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Adds a step for a device that exists and has the capability of the verb. A color or
+     * brightness outside its enum is rejected here, so the commit aborts instead of failing.
+     *
+     * @param verb     Verb changing the device.
+     * @param device   Device of the step.
+     * @param argument Argument of the command.
+     */
+    private void addStep(Verb verb, SmartDevice device, int argument) {
+        ResponseCode rejection = verb == Verb.SET_COLOR && (argument < 0 || argument >= LIGHT_COLORS.length)
+                ? ResponseCode.UNKNOWN_COLOR
+                : verb == Verb.SET_BRIGHTNESS && (argument < 0 || argument >= BRIGHTNESS_LEVELS.length)
+                ? ResponseCode.UNKNOWN_BRIGHTNESS : null;
+        if (rejection != null) {
+            steps.add(new Step(verb, device.getType(), device.getDeviceId(), argument, null, rejection));
+            return;
+        }
+        Target target = targets.computeIfAbsent(device.getDeviceId(), id -> new Target(device));
+        steps.add(new Step(verb, device.getType(), device.getDeviceId(), argument, target, null));
+    }
+
+    /**
+     * Validates all steps and, if none is rejected, applies them to all devices at once.
+     *
+     * @return true if the transaction committed, false if a step was rejected and nothing changed.
+     * @throws IOException If writing the log fails.
+     * @throws IllegalStateException If the transaction was committed before.
+     */
+    public boolean commit() throws IOException {
+        if (committed) {
+            throw new IllegalStateException("The transaction is already committed");
+        }
+        rejected = null;
+        Target[] order = targets.values().toArray(new Target[0]);
+        Arrays.sort(order, Comparator.comparingInt(target -> target.device.getDeviceId()));
+        while (true) {
+            for (Target target : order) {
+                target.snapshot = target.device.snapshot();
+                target.state = target.snapshot;
+            }
+            if (!validate()) {
+                return false;
+            }
+            if (log == null) {
+                if (lockAll(order)) {
+                    writeAll(order);
+                    break;
+                }
+            } else {
+                synchronized (log) {
+                    if (lockAll(order)) {
+                        writeAll(order);
+                        logChanges();
+                        break;
+                    }
+                }
+            }
+            retries++;
+        }
+        committed = true;
+        return true;
+    }
+
+    /**
+     * Validates the steps in order against the states of their devices, advancing the states.
+     *
+     * @return true if no step is rejected, false after noting the first rejected step.
+     */
+    private boolean validate() {
+        for (Step step : steps) {
+            if (step.target != null) {
+                step.code = evaluate(step);
+            }
+            if (step.code.isRejection()) {
+                rejected = step;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Applies a step to the state of its device with the rules of the single command.
+     *
+     * @param step Step of a device that exists and has the capability of the verb.
+     * @return The response the single command would give in this state.
+     */
+    private ResponseCode evaluate(Step step) {
+        Target target = step.target;
+        long state = target.state;
+        if (handlers[step.verb.ordinal()].requiresOn() && (state & DeviceState.ON) == 0) {
+            return ResponseCode.DEVICE_OFF;
+        }
+        int argument = step.argument;
+        return switch (step.verb) {
+            case TURN_ON -> change(target, DeviceState.ON, DeviceState.ON, ResponseCode.ON, ResponseCode.ALREADY_ON);
+            case TURN_OFF -> change(target, DeviceState.ON, 0, ResponseCode.OFF, ResponseCode.ALREADY_OFF);
+            case START_CHARGING -> change(target, DeviceState.CHARGING, DeviceState.CHARGING, ResponseCode.CHARGING,
+                    ResponseCode.ALREADY_CHARGING);
+            case STOP_CHARGING -> change(target, DeviceState.CHARGING, 0, ResponseCode.STOPPED_CHARGING,
+                    ResponseCode.NOT_CHARGING);
+            case START_RECORDING -> change(target, DeviceState.RECORDING, DeviceState.RECORDING,
+                    ResponseCode.STARTED_RECORDING, ResponseCode.ALREADY_RECORDING);
+            case STOP_RECORDING -> change(target, DeviceState.RECORDING, 0, ResponseCode.STOPPED_RECORDING,
+                    ResponseCode.NOT_RECORDING);
+            case SET_ANGLE -> Camera.isValidAngle(argument)
+                    ? change(target, DeviceState.VALUE, DeviceState.valueBits(argument), ResponseCode.ANGLE_SET,
+                            ResponseCode.ANGLE_ALREADY_SET)
+                    : ResponseCode.ANGLE_OUT_OF_RANGE;
+            case SET_TEMPERATURE -> Heater.isValidTemperature(argument)
+                    ? change(target, DeviceState.VALUE, DeviceState.valueBits(argument), ResponseCode.TEMPERATURE_SET,
+                            ResponseCode.TEMPERATURE_ALREADY_SET)
+                    : ResponseCode.TEMPERATURE_OUT_OF_RANGE;
+            case SET_COLOR -> change(target, DeviceState.COLOR, DeviceState.colorBits(LIGHT_COLORS[argument]),
+                    ResponseCode.COLOR_SET, ResponseCode.COLOR_ALREADY_SET);
+            case SET_BRIGHTNESS -> change(target, DeviceState.BRIGHTNESS,
+                    DeviceState.brightnessBits(BRIGHTNESS_LEVELS[argument]), ResponseCode.BRIGHTNESS_SET,
+                    ResponseCode.BRIGHTNESS_ALREADY_SET);
+            default -> throw new IllegalArgumentException("A transaction cannot run " + step.verb.getKeyword());
+        };
+    }
+
+    /**
+     * Replaces some bits of the state of a device, answering whether they changed.
+     *
+     * @param target    Device of the step.
+     * @param mask      Bits to replace.
+     * @param bits      New values of the masked bits.
+     * @param changed   Response if the bits changed.
+     * @param unchanged Response if the bits already had these values.
+     * @return One of the two responses.
+     */
+    private static ResponseCode change(Target target, long mask, long bits, ResponseCode changed,
+                                       ResponseCode unchanged) {
+        long next = DeviceState.with(target.state, mask, bits);
+        if (next == target.state) {
+            return unchanged;
+        }
+        target.state = next;
+        return changed;
+    }
+
+    /**
+     * Locks the devices in ID order, or none of them if one changed since its snapshot.
+     *
+     * @param order Devices sorted by ID.
+     * @return true if all devices are locked, false if none is.
+     */
+    private static boolean lockAll(Target[] order) {
+        for (int i = 0; i < order.length; i++) {
+            if (!order[i].device.lock(order[i].snapshot)) {
+                for (int j = 0; j < i; j++) {
+                    order[j].device.commit(order[j].snapshot, order[j].snapshot);
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the validated states of the locked devices and releases them.
+     *
+     * @param order Locked devices.
+     */
+    private static void writeAll(Target[] order) {
+        for (Target target : order) {
+            target.device.commit(target.snapshot, target.state);
+        }
+    }
+
+    /**
+     * Logs every step that changed its device, in order.
+     *
+     * @throws IOException If writing the log fails.
+     */
+    private void logChanges() throws IOException {
+        for (Step step : steps) {
+            if (step.code.getOutcome() == CommandOutcome.CHANGED) {
+                log.append(step.verb, step.type, step.deviceId, step.argument);
+            }
+        }
+    }
+
+    /**
+     * Pauses a thread waiting for a device that a transaction or transition has locked: busy at
+     * first, then yielding, since the lock is only held while a few words are written.
+     *
+     * @param spins Number of times the thread waited for the lock so far.
+     */
+    static void backOff(int spins) {
+        if (spins < SPIN_LIMIT) {
+            Thread.onSpinWait();
+        } else {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Writes the responses: those of all steps and a summary if the transaction committed, the
+     * rejected step and a note that nothing changed otherwise.
+     *
+     * @param out Sink for the responses.
+     * @throws IOException If writing fails.
+     */
+    public void writeTo(ResponseWriter out) throws IOException {
+        if (rejected != null) {
+            writeStep(rejected, out);
+            out.println("Transaction: aborted, no device was changed");
+            return;
+        }
+        for (Step step : steps) {
+            writeStep(step, out);
+        }
+        out.append("Transaction: ").append(steps.size()).append(" steps committed, ").append(changedDevices())
+                .append(" devices changed").newLine();
+    }
+
+    /**
+     * Writes the response of a step as the single command would.
+     *
+     * @param step Validated step.
+     * @param out  Sink for the response.
+     * @throws IOException If writing fails.
+     */
+    private void writeStep(Step step, ResponseWriter out) throws IOException {
+        step.code.writeTo(out, step.type, step.deviceId, step.value(handlers[step.verb.ordinal()].getCapability()));
+    }
+
+    /**
+     * Checks whether the transaction committed.
+     *
+     * @return true after a successful commit().
+     */
+    public boolean isCommitted() {
+        return committed;
+    }
+
+    /**
+     * Gets the response of the step that aborted the commit.
+     *
+     * @return The rejection, or null if no step was rejected.
+     */
+    public ResponseCode getRejection() {
+        return rejected != null ? rejected.code : null;
+    }
+
+    /**
+     * Gets the number of steps, one per addressed device of every added command.
+     *
+     * @return Number of steps.
+     */
+    public int size() {
+        return steps.size();
+    }
+
+    /**
+     * Counts the steps that changed their device in the committed transaction.
+     *
+     * @return Number of changing steps, 0 before a successful commit().
+     */
+    public int changes() {
+        int changes = 0;
+        for (Step step : steps) {
+            if (committed && step.code.getOutcome() == CommandOutcome.CHANGED) {
+                changes++;
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Counts the devices the committed transaction changed.
+     *
+     * @return Number of changed devices, 0 before a successful commit().
+     */
+    public int changedDevices() {
+        int changed = 0;
+        for (Target target : targets.values()) {
+            if (committed && ((target.snapshot ^ target.state) & ~DeviceState.VERSION) != 0) {
+                changed++;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Gets the number of validations repeated because a device changed between snapshot and lock.
+     *
+     * @return Number of retries.
+     */
+    public int getRetries() {
+        return retries;
+    }
+}
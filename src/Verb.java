@@ -0,0 +1,64 @@
+/**
+ * Enumeration for the verbs understood by the command line, together with the arguments they expect.
+ */
+public enum Verb {
+    END("end", ArgumentShape.NONE),                                 // Terminates the program
+    DISPLAY_ALL_STATUS("DisplayAllStatus", ArgumentShape.NONE),     // Prints the status of every device
+    TURN_ON("TurnOn", ArgumentShape.DEVICE),                        // Turns a device on
+    TURN_OFF("TurnOff", ArgumentShape.DEVICE),                      // Turns a device off
+    START_CHARGING("StartCharging", ArgumentShape.DEVICE),          // Starts charging a device
+    STOP_CHARGING("StopCharging", ArgumentShape.DEVICE),            // Stops charging a device
+    SET_TEMPERATURE("SetTemperature", ArgumentShape.DEVICE_NUMBER), // Sets the temperature of a heater
+    SET_BRIGHTNESS("SetBrightness", ArgumentShape.DEVICE_WORD),     // Sets the brightness of a light
+    SET_COLOR("SetColor", ArgumentShape.DEVICE_WORD),               // Sets the color of a light
+    SET_ANGLE("SetAngle", ArgumentShape.DEVICE_SIGNED),             // Sets the angle of a camera
+    START_RECORDING("StartRecording", ArgumentShape.DEVICE),        // Starts recording with a camera
+    STOP_RECORDING("StopRecording", ArgumentShape.DEVICE),          // Stops recording with a camera
+    STATS("Stats", ArgumentShape.NONE),                             // Prints the command statistics
+    AFTER("After", ArgumentShape.DELAY_COMMAND),                    // Runs a command once after a delay
+    AT("At", ArgumentShape.TIME_COMMAND),                           // Runs a command once at a time of day
+    EVERY("Every", ArgumentShape.DELAY_COMMAND),                    // Runs a command repeatedly at a period
+    DAILY("Daily", ArgumentShape.TIME_COMMAND),                     // Runs a command every day at a time of day
+    LIST_SCHEDULES("ListSchedules", ArgumentShape.NONE),            // Prints the pending scheduled commands
+    CANCEL_SCHEDULE("CancelSchedule", ArgumentShape.NUMBER),        // Cancels a scheduled command
+    WHEN("When", ArgumentShape.CONDITION_COMMAND),                  // Adds a rule reacting to device changes
+    LIST_RULES("ListRules", ArgumentShape.NONE),                    // Prints the rules
+    REMOVE_RULE("RemoveRule", ArgumentShape.NUMBER),                // Removes a rule
+    FIND("Find", ArgumentShape.QUERY),                              // Prints the status of the matching devices
+    COUNT("Count", ArgumentShape.QUERY),                            // Counts the matching devices
+    ROOM_TEMPERATURE("RoomTemperature", ArgumentShape.DEVICE),      // Prints the simulated room temperature of a heater
+    SIMULATE("Simulate", ArgumentShape.DURATION),                   // Advances the thermal simulation
+    TRANSACTION("Transaction", ArgumentShape.STEPS);                // Changes several devices all or nothing
+
+    private final String keyword;  // Text of the verb on the command line
+    private final ArgumentShape shape;  // Arguments expected after the verb
+
+    /**
+     * Constructor to initialize a verb.
+     *
+     * @param keyword Text of the verb on the command line.
+     * @param shape   Arguments expected after the verb.
+     */
+    Verb(String keyword, ArgumentShape shape) {
+        this.keyword = keyword;
+        this.shape = shape;
+    }
+
+    /**
+     * Gets the text of the verb on the command line.
+     *
+     * @return The keyword of the verb.
+     */
+    public String getKeyword() {
+        return keyword;
+    }
+
+    /**
+     * Gets the arguments expected after the verb.
+     *
+     * @return The argument shape of the verb.
+     */
+    public ArgumentShape getShape() {
+        return shape;
+    }
+}